@@ -15,10 +15,7 @@ import android.support.annotation.UiThread;
 import android.support.annotation.WorkerThread;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.view.ViewCompat;
-import android.text.SpannableString;
-import android.text.format.DateFormat;
-import android.text.method.ScrollingMovementMethod;
-import android.text.style.ForegroundColorSpan;
+import android.util.Log;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.ViewAnimationUtils;
@@ -26,8 +23,10 @@ import android.widget.TextView;
 import android.widget.Toast;
 import com.google.android.gms.nearby.connection.ConnectionInfo;
 import com.google.android.gms.nearby.connection.Payload;
-import com.google.android.gms.nearby.connection.Strategy;
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.Random;
 
 /**
@@ -46,15 +45,12 @@ public class MainActivity extends ConnectionsActivity {
   /** If true, debug logs are shown on the device. */
   private static final boolean DEBUG = true;
 
-  /**
-   * The connection strategy we'll use for Nearby Connections. In this case, we've decided on
-   * P2P_STAR, which is a combination of Bluetooth Classic and WiFi Hotspots.
-   */
-  private static final Strategy STRATEGY = Strategy.P2P_STAR;
-
   /** Length of state change animations. */
   private static final long ANIMATION_DURATION = 600;
 
+  /** The directory, inside our private files, where sent and received audio is archived. */
+  private static final String ARCHIVE_DIRECTORY = "archive";
+
   /**
    * A set of background colors. We'll hash the authentication token we get from connecting to a
    * device to pick a color randomly from this list. Devices with the same background color are
@@ -104,8 +100,17 @@ public class MainActivity extends ConnectionsActivity {
   /** An animator that controls the animation from previous state to current state. */
   @Nullable private Animator mCurrentAnimator;
 
+  /** Shows how loud we are, and how loud the people talking to us are. Only while connected. */
+  private View mLevelMetersView;
+
+  /** Shows the level of our microphone while we're talking. */
+  private LevelMeterView mOutgoingLevelView;
+
+  /** Shows the level of the audio we're receiving. */
+  private LevelMeterView mIncomingLevelView;
+
   /** A running log of debug messages. Only visible when DEBUG=true. */
-  private TextView mDebugLogView;
+  private DebugLogView mDebugLogView;
 
   /** Listens to holding/releasing the volume rocker. */
   private final GestureDetector mGestureDetector =
@@ -129,6 +134,9 @@ public class MainActivity extends ConnectionsActivity {
   /** For playing audio from other users nearby. */
   @Nullable private AudioPlayer mAudioPlayer;
 
+  /** Keeps a record on disk of everything said, both by us and to us. */
+  private AudioArchiver mArchiver;
+
   /** The phone's original media volume. */
   private int mOriginalVolume;
 
@@ -142,11 +150,16 @@ public class MainActivity extends ConnectionsActivity {
     mPreviousStateView = (TextView) findViewById(R.id.previous_state);
     mCurrentStateView = (TextView) findViewById(R.id.current_state);
 
-    mDebugLogView = (TextView) findViewById(R.id.debug_log);
+    mLevelMetersView = findViewById(R.id.level_meters);
+    mOutgoingLevelView = (LevelMeterView) findViewById(R.id.level_meter_outgoing);
+    mIncomingLevelView = (LevelMeterView) findViewById(R.id.level_meter_incoming);
+
+    mDebugLogView = (DebugLogView) findViewById(R.id.debug_log);
     mDebugLogView.setVisibility(DEBUG ? View.VISIBLE : View.GONE);
-    mDebugLogView.setMovementMethod(new ScrollingMovementMethod());
 
-    mName = generateRandomName();
+    mName = getPersistentName(generateRandomName());
+
+    mArchiver = new AudioArchiver(new File(getFilesDir(), ARCHIVE_DIRECTORY));
 
     ((TextView) findViewById(R.id.name)).setText(mName);
   }
@@ -170,7 +183,10 @@ public class MainActivity extends ConnectionsActivity {
     audioManager.setStreamVolume(
         AudioManager.STREAM_MUSIC, audioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC), 0);
 
-    setState(State.SEARCHING);
+    mArchiver.start();
+
+    // Our connections survive us being recreated, so we may already be connected.
+    setState(getConnectedEndpoints().isEmpty() ? State.SEARCHING : State.CONNECTED);
   }
 
   @Override
@@ -187,8 +203,9 @@ public class MainActivity extends ConnectionsActivity {
     if (isPlaying()) {
       stopPlaying();
     }
+    mArchiver.stop();
 
-    // After our Activity stops, we disconnect from Nearby Connections.
+    // After our Activity stops, we stop driving Nearby Connections until we start again.
     setState(State.UNKNOWN);
 
     if (mCurrentAnimator != null && mCurrentAnimator.isRunning()) {
@@ -221,7 +238,8 @@ public class MainActivity extends ConnectionsActivity {
     // visually see which device they connected with.
     mConnectedColor = COLORS[connectionInfo.getAuthenticationToken().hashCode() % COLORS.length];
 
-    // We accept the connection immediately.
+    // We accept the connection immediately. Anyone we don't have room for has already been turned
+    // away.
     acceptConnection(endpoint);
   }
 
@@ -263,6 +281,7 @@ public class MainActivity extends ConnectionsActivity {
     logD("State set to " + state);
     State oldState = mState;
     mState = state;
+    recordStateChange(state.name());
     onStateChanged(oldState, state);
   }
 
@@ -294,7 +313,8 @@ public class MainActivity extends ConnectionsActivity {
         stopAdvertising();
         break;
       case UNKNOWN:
-        stopAllEndpoints();
+        // Our connections are kept by NearbyConnectionManager, in case we're only being
+        // recreated. It shuts them down on its own if we don't come back.
         break;
       default:
         // no-op
@@ -302,6 +322,7 @@ public class MainActivity extends ConnectionsActivity {
     }
 
     // Update the UI.
+    mLevelMetersView.setVisibility(newState == State.CONNECTED ? View.VISIBLE : View.GONE);
     switch (oldState) {
       case UNKNOWN:
         // Unknown is our initial state. Whatever state we move to,
@@ -461,6 +482,8 @@ public class MainActivity extends ConnectionsActivity {
                   });
             }
           };
+      player.setArchiver(mArchiver);
+      mIncomingLevelView.setMeter(player.getLevelMeter());
       mAudioPlayer = player;
       player.start();
     }
@@ -486,11 +509,14 @@ public class MainActivity extends ConnectionsActivity {
     try {
       ParcelFileDescriptor[] payloadPipe = ParcelFileDescriptor.createPipe();
 
-      // Send the first half of the payload (the read side) to Nearby Connections.
-      send(Payload.fromStream(payloadPipe[0]));
+      // Send the first half of the payload (the read side) to Nearby Connections, ahead of
+      // anything less urgent.
+      send(Payload.fromStream(payloadPipe[0]), PayloadSendQueue.Priority.REAL_TIME);
 
       // Use the second half of the payload (the write side) in AudioRecorder.
       mRecorder = new AudioRecorder(payloadPipe[1]);
+      mRecorder.setArchiver(mArchiver);
+      mOutgoingLevelView.setMeter(mRecorder.getLevelMeter());
       mRecorder.start();
     } catch (IOException e) {
       logE("startRecording() failed", e);
@@ -542,52 +568,61 @@ public class MainActivity extends ConnectionsActivity {
     return SERVICE_ID;
   }
 
-  /** {@see ConnectionsActivity#getStrategy()} */
+  /**
+   * We pair up with a single device and stream audio to it, so {@link ConnectionsActivity} picks
+   * P2P_POINT_TO_POINT, which has the most bandwidth.
+   */
   @Override
-  public Strategy getStrategy() {
-    return STRATEGY;
+  protected int getExpectedGroupSize() {
+    return 2;
+  }
+
+  /** {@see ConnectionsActivity#getWorkload()} */
+  @Override
+  protected StrategySelector.Workload getWorkload() {
+    return StrategySelector.Workload.STREAMING;
+  }
+
+  /** {@see ConnectionsActivity#getAudioUnderrunRate()} */
+  @Override
+  protected float getAudioUnderrunRate() {
+    return mAudioPlayer == null ? 0 : mAudioPlayer.getUnderrunRate();
+  }
+
+  @Override
+  public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+    super.dump(prefix, fd, writer, args);
+    mDebugLogView.dump(prefix, writer);
   }
 
   @Override
   protected void logV(String msg) {
     super.logV(msg);
-    appendToLogs(toColor(msg, getResources().getColor(R.color.log_verbose)));
+    mDebugLogView.log(Log.VERBOSE, msg);
   }
 
   @Override
   protected void logD(String msg) {
     super.logD(msg);
-    appendToLogs(toColor(msg, getResources().getColor(R.color.log_debug)));
+    mDebugLogView.log(Log.DEBUG, msg);
   }
 
   @Override
   protected void logW(String msg) {
     super.logW(msg);
-    appendToLogs(toColor(msg, getResources().getColor(R.color.log_warning)));
+    mDebugLogView.log(Log.WARN, msg);
   }
 
   @Override
   protected void logW(String msg, Throwable e) {
     super.logW(msg, e);
-    appendToLogs(toColor(msg, getResources().getColor(R.color.log_warning)));
+    mDebugLogView.log(Log.WARN, msg);
   }
 
   @Override
   protected void logE(String msg, Throwable e) {
     super.logE(msg, e);
-    appendToLogs(toColor(msg, getResources().getColor(R.color.log_error)));
-  }
-
-  private void appendToLogs(CharSequence msg) {
-    mDebugLogView.append("\n");
-    mDebugLogView.append(DateFormat.format("hh:mm", System.currentTimeMillis()) + ": ");
-    mDebugLogView.append(msg);
-  }
-
-  private static CharSequence toColor(String msg, int color) {
-    SpannableString spannable = new SpannableString(msg);
-    spannable.setSpan(new ForegroundColorSpan(color), 0, msg.length(), 0);
-    return spannable;
+    mDebugLogView.log(Log.ERROR, msg);
   }
 
   private static String generateRandomName() {
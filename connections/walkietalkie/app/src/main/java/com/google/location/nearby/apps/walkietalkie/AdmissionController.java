@@ -0,0 +1,401 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.os.Process;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decides whether we, as a hub, have room for another device. Every device we accept shares our
+ * radio and our CPU with the rest, and once either is saturated, audio falls apart for everyone. So
+ * we sample how many bytes we move, how busy the CPU is and how often audio playback runs dry, and
+ * only admit a new device while all of them, and our connection count, are within {@link Limits}.
+ *
+ * <p>Devices we turn away are steered, if we can: we let them connect just long enough to tell
+ * them we're {@link #BUSY}, and which other hub we can see, if any. They then leave us alone for a
+ * while. If we have no connection to spare even for that, they're rejected outright. With {@link
+ * Limits#setShedding(boolean) shedding} on, we also steer away the device we admitted last once
+ * we've been overloaded for a while.
+ */
+@MainThread
+public class AdmissionController {
+  /** How often we sample our load. */
+  static final long SAMPLE_INTERVAL_MILLIS = 2000;
+
+  /** How many samples in a row must be over our limits before we shed a device. */
+  static final int OVERLOAD_SAMPLES = 3;
+
+  /** How long we stay away from a hub that told us it's busy. */
+  static final long BUSY_COOLDOWN_MILLIS = 30000;
+
+  private static final int TAG_BUSY = 0x70;
+
+  /** What we do with a device that wants to connect to us. */
+  public enum Decision {
+    ADMIT,
+    /** Tell it we're busy, and where else to go, then disconnect. */
+    STEER,
+    REJECT
+  }
+
+  /** Why a device was turned away. */
+  private enum Reason {
+    NONE,
+    CONNECTIONS,
+    THROUGHPUT,
+    CPU,
+    AUDIO
+  }
+
+  /** How much we take on. A device is only admitted if we'd stay within every limit. */
+  public static class Limits {
+    /** Bluetooth can't hold more than 7 connections at once. */
+    private int mMaxConnections = 7;
+
+    /** About what Bluetooth sustains in practice. */
+    private double mMaxBytesPerSecond = 128 * 1024;
+
+    private float mMaxCpuLoad = 0.75f;
+    private float mMaxUnderrunsPerMinute = 6;
+    private boolean mShedding;
+
+    /** Sets how many devices we may be connected to at once. */
+    public Limits setMaxConnections(int maxConnections) {
+      mMaxConnections = maxConnections;
+      return this;
+    }
+
+    /** Sets how many bytes per second we may send and receive, across all devices. */
+    public Limits setMaxBytesPerSecond(double maxBytesPerSecond) {
+      mMaxBytesPerSecond = maxBytesPerSecond;
+      return this;
+    }
+
+    /** Sets how much of the CPU, from 0 to 1 across all cores, our process may use. */
+    public Limits setMaxCpuLoad(float maxCpuLoad) {
+      mMaxCpuLoad = maxCpuLoad;
+      return this;
+    }
+
+    /** Sets how many times a minute audio playback may run dry. */
+    public Limits setMaxUnderrunsPerMinute(float maxUnderrunsPerMinute) {
+      mMaxUnderrunsPerMinute = maxUnderrunsPerMinute;
+      return this;
+    }
+
+    /** Sets whether we steer away devices we've already admitted, once we're overloaded. */
+    public Limits setShedding(boolean shedding) {
+      mShedding = shedding;
+      return this;
+    }
+  }
+
+  /** Measures our load, and turns devices away for us. */
+  public interface Host {
+    Collection<Endpoint> getConnectedEndpoints();
+
+    Collection<Endpoint> getDiscoveredEndpoints();
+
+    /** Returns how many bytes we've sent and received so far. */
+    long getTotalBytes();
+
+    /** Returns how many times a minute audio playback runs dry. */
+    float getUnderrunsPerMinute();
+
+    /** Tells a connected device we're busy, suggesting {@code hub} instead, and disconnects it. */
+    void shed(Endpoint endpoint, @Nullable Endpoint hub);
+  }
+
+  /** Tells us how much CPU time our process has used. */
+  interface CpuSource {
+    /** Our process's CPU time, from {@link Process#getElapsedCpuTime()}. */
+    CpuSource PROCESS =
+        new CpuSource() {
+          @Override
+          public long getElapsedCpuMillis() {
+            return Process.getElapsedCpuTime();
+          }
+
+          @Override
+          public int getCoreCount() {
+            return Math.max(1, Runtime.getRuntime().availableProcessors());
+          }
+        };
+
+    /** Returns the CPU time, summed across cores, that we've used so far. */
+    long getElapsedCpuMillis();
+
+    /** Returns how many cores that CPU time is spread across. */
+    int getCoreCount();
+  }
+
+  /** Tells a device we're too busy for it. Holds the name of another hub to try, or "". */
+  public static final MessageCodec.MessageType<String> BUSY =
+      new MessageCodec.MessageType<String>() {
+        @Override
+        public int getTag() {
+          return TAG_BUSY;
+        }
+
+        @Override
+        public void encode(String hub, MessageWriter writer) {
+          writer.writeString(hub);
+        }
+
+        @Override
+        public String decode(MessageReader reader, @Nullable String reuse) {
+          return reader.readString();
+        }
+      };
+
+  private final Host mHost;
+  private final Scheduler mScheduler;
+  private final CpuSource mCpu;
+  private Limits mLimits = new Limits();
+
+  /** The devices we've admitted and are still connected to, in the order we admitted them. */
+  private final List<String> mAdmitted = new ArrayList<>();
+
+  /** Hubs that told us they're busy, by name, and until when we leave them alone. */
+  private final Map<String, Long> mBusyHubs = new HashMap<>();
+
+  private boolean mStarted;
+  private long mLastSampleMillis;
+  private long mLastBytes;
+  private long mLastCpuMillis;
+
+  /** Our load, as of the last sample. */
+  private double mBytesPerSecond;
+
+  private float mCpuLoad;
+  private float mUnderrunsPerMinute;
+
+  /** How many samples in a row have been over our limits. */
+  private int mOverloadSamples;
+
+  // Metrics
+  private final MetricsRegistry.Counter mAdmittedCount;
+  private final MetricsRegistry.Counter mSteeredCount;
+  private final MetricsRegistry.Counter mRejectedCount;
+  private final MetricsRegistry.Counter mShedCount;
+  private final long[] mTurnedAwayByReason = new long[Reason.values().length];
+
+  private final Runnable mSampleRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          sample();
+          mScheduler.postDelayed(this, SAMPLE_INTERVAL_MILLIS);
+        }
+      };
+
+  public AdmissionController(Host host, MetricsRegistry metrics) {
+    this(host, metrics, Scheduler.MAIN_THREAD, CpuSource.PROCESS);
+  }
+
+  AdmissionController(Host host, MetricsRegistry metrics, Scheduler scheduler, CpuSource cpu) {
+    mHost = host;
+    mScheduler = scheduler;
+    mCpu = cpu;
+    mAdmittedCount = metrics.counter("admission.admitted");
+    mSteeredCount = metrics.counter("admission.steered");
+    mRejectedCount = metrics.counter("admission.rejected");
+    mShedCount = metrics.counter("admission.shed");
+    metrics.gauge(
+        "admission.cpu_load_pct",
+        new MetricsRegistry.Gauge() {
+          @Override
+          public long get() {
+            return (long) (mCpuLoad * 100);
+          }
+        });
+  }
+
+  /** Changes how much we take on. Devices we've already admitted stay, unless we're shedding. */
+  public void setLimits(Limits limits) {
+    mLimits = limits;
+  }
+
+  /** Starts sampling our load. */
+  public void start() {
+    if (mStarted) {
+      return;
+    }
+    mStarted = true;
+    mLastSampleMillis = mScheduler.elapsedRealtime();
+    mLastBytes = mHost.getTotalBytes();
+    mLastCpuMillis = mCpu.getElapsedCpuMillis();
+    mScheduler.postDelayed(mSampleRunnable, SAMPLE_INTERVAL_MILLIS);
+  }
+
+  /** Stops sampling our load. Decisions are made on the last sample until we start again. */
+  public void stop() {
+    mStarted = false;
+    mScheduler.removeCallbacks(mSampleRunnable);
+  }
+
+  /** Decides what to do with a device that wants to connect to us. */
+  public Decision admit(Endpoint endpoint) {
+    int connections = mHost.getConnectedEndpoints().size();
+    Reason reason = getOverload(connections + 1, predictBytesPerSecond(connections + 1));
+    if (reason == Reason.NONE) {
+      mAdmittedCount.increment();
+      mAdmitted.remove(endpoint.getId());
+      mAdmitted.add(endpoint.getId());
+      return Decision.ADMIT;
+    }
+
+    mTurnedAwayByReason[reason.ordinal()]++;
+    Log.i(TAG, "Turning " + endpoint + " away; we're over our " + reason + " limit");
+    // Steering takes a connection, if only for a moment.
+    if (connections < mLimits.mMaxConnections) {
+      mSteeredCount.increment();
+      return Decision.STEER;
+    }
+    mRejectedCount.increment();
+    return Decision.REJECT;
+  }
+
+  /**
+   * Returns another hub the device could connect to instead of us: one we can see, but that's
+   * neither connected to us nor known to be busy. Returns null if we don't know of any.
+   */
+  @Nullable
+  public Endpoint findOtherHub(Endpoint endpoint) {
+    Collection<Endpoint> connected = mHost.getConnectedEndpoints();
+    for (Endpoint hub : mHost.getDiscoveredEndpoints()) {
+      if (!hub.equals(endpoint) && !connected.contains(hub) && !isBusy(hub)) {
+        return hub;
+      }
+    }
+    return null;
+  }
+
+  /** Call when a device we admitted has disconnected. */
+  public void onDisconnected(Endpoint endpoint) {
+    mAdmitted.remove(endpoint.getId());
+  }
+
+  /** Call when a hub has told us it's busy. We'll leave it alone for a while. */
+  public void onBusy(Endpoint hub) {
+    mBusyHubs.put(hub.getName(), mScheduler.elapsedRealtime() + BUSY_COOLDOWN_MILLIS);
+  }
+
+  /** Returns true if the hub recently told us it's busy. */
+  public boolean isBusy(Endpoint hub) {
+    Long until = mBusyHubs.get(hub.getName());
+    if (until == null) {
+      return false;
+    }
+    if (mScheduler.elapsedRealtime() >= until) {
+      mBusyHubs.remove(hub.getName());
+      return false;
+    }
+    return true;
+  }
+
+  /** Writes our load, limits and decisions, in a human readable form. */
+  public void dump(String prefix, PrintWriter writer) {
+    writer.print(prefix);
+    writer.println(
+        String.format(
+            Locale.US,
+            "AdmissionController{rate=%.0fB/s, cpu=%.2f, underruns=%.1f/min, admitted=%d, "
+                + "steered=%d, rejected=%d, shed=%d, busyHubs=%d}",
+            mBytesPerSecond,
+            mCpuLoad,
+            mUnderrunsPerMinute,
+            mAdmittedCount.get(),
+            mSteeredCount.get(),
+            mRejectedCount.get(),
+            mShedCount.get(),
+            mBusyHubs.size()));
+    writer.print(prefix);
+    writer.println(
+        String.format(
+            Locale.US,
+            "  turnedAway{connections=%d, throughput=%d, cpu=%d, audio=%d}",
+            mTurnedAwayByReason[Reason.CONNECTIONS.ordinal()],
+            mTurnedAwayByReason[Reason.THROUGHPUT.ordinal()],
+            mTurnedAwayByReason[Reason.CPU.ordinal()],
+            mTurnedAwayByReason[Reason.AUDIO.ordinal()]));
+  }
+
+  private void sample() {
+    long now = mScheduler.elapsedRealtime();
+    long bytes = mHost.getTotalBytes();
+    long cpuMillis = mCpu.getElapsedCpuMillis();
+    long elapsed = Math.max(1, now - mLastSampleMillis);
+    // Transfers still in progress are forgotten when an endpoint disconnects, so this may go down.
+    mBytesPerSecond = Math.max(0, bytes - mLastBytes) * 1000.0 / elapsed;
+    long cpuCapacityMillis = elapsed * mCpu.getCoreCount();
+    mCpuLoad = Math.min(1f, (float) (cpuMillis - mLastCpuMillis) / cpuCapacityMillis);
+    mUnderrunsPerMinute = mHost.getUnderrunsPerMinute();
+    mLastSampleMillis = now;
+    mLastBytes = bytes;
+    mLastCpuMillis = cpuMillis;
+
+    for (Iterator<Long> it = mBusyHubs.values().iterator(); it.hasNext(); ) {
+      if (now >= it.next()) {
+        it.remove();
+      }
+    }
+
+    int connections = mHost.getConnectedEndpoints().size();
+    if (getOverload(connections, mBytesPerSecond) == Reason.NONE) {
+      mOverloadSamples = 0;
+      return;
+    }
+    if (++mOverloadSamples < OVERLOAD_SAMPLES || !mLimits.mShedding || mAdmitted.isEmpty()) {
+      return;
+    }
+
+    // Shedding the device we admitted last disrupts the fewest conversations.
+    mOverloadSamples = 0;
+    String endpointId = mAdmitted.remove(mAdmitted.size() - 1);
+    for (Endpoint endpoint : mHost.getConnectedEndpoints()) {
+      if (endpoint.getId().equals(endpointId)) {
+        Log.i(TAG, "Overloaded for a while; shedding " + endpoint);
+        mShedCount.increment();
+        mHost.shed(endpoint, findOtherHub(endpoint));
+        return;
+      }
+    }
+  }
+
+  /** Returns how many bytes per second we'd move with this many connections, at today's rate. */
+  private double predictBytesPerSecond(int connections) {
+    int current = mHost.getConnectedEndpoints().size();
+    if (current == 0) {
+      return mBytesPerSecond;
+    }
+    return mBytesPerSecond / current * connections;
+  }
+
+  /** Returns the first limit the load is over, or {@link Reason#NONE}. */
+  private Reason getOverload(int connections, double bytesPerSecond) {
+    if (connections > mLimits.mMaxConnections) {
+      return Reason.CONNECTIONS;
+    }
+    if (bytesPerSecond > mLimits.mMaxBytesPerSecond) {
+      return Reason.THROUGHPUT;
+    }
+    if (mCpuLoad > mLimits.mMaxCpuLoad) {
+      return Reason.CPU;
+    }
+    if (mUnderrunsPerMinute > mLimits.mMaxUnderrunsPerMinute) {
+      return Reason.AUDIO;
+    }
+    return Reason.NONE;
+  }
+}
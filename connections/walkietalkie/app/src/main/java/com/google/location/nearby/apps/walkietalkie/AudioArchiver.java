@@ -0,0 +1,477 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+import static android.os.Process.setThreadPriority;
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Archives talk-spurts to WAV files on disk. Each {@link Track} reads from an {@link
+ * AudioRingBuffer} that an audio thread is already publishing to, so archiving costs the audio
+ * thread nothing at all. A background thread drains the rings through a buffered {@link
+ * FileChannel}, rotates files that grow too large, patches the WAV header once a file is closed,
+ * and then enforces the disk quota and retention period.
+ *
+ * <p>The audio threads are never blocked: if the writer falls so far behind that a ring laps it,
+ * audio is dropped from the archive and counted in {@link #getDroppedBytes()}.
+ */
+public class AudioArchiver {
+  /** How often the writer checks the tracks for new audio. */
+  private static final long POLL_INTERVAL_MS = 20;
+
+  /** How much we buffer per file before touching the disk. */
+  private static final int WRITE_BUFFER_SIZE = 32 * 1024;
+
+  /** The size of a canonical PCM WAV header. */
+  private static final int WAV_HEADER_SIZE = 44;
+
+  private static final String FILE_EXTENSION = ".wav";
+
+  /** The directory archives are written to. */
+  private final File mDirectory;
+
+  /** Tracks opened since the writer last looked. Lock-free, so opening one never blocks. */
+  private final Queue<Track> mNewTracks = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Tracks the writer is reading from. Only touched by the writer thread, and kept across a
+   * {@link #stop()} and {@link #start()} so tracks still being recorded pick up where they were.
+   */
+  private final List<Track> mTracks = new ArrayList<>();
+
+  /** The files currently open for writing. Only touched by the writer thread. */
+  private final List<ArchiveFile> mOpenFiles = new ArrayList<>();
+
+  /** Files larger than this are closed and a new one is started. */
+  private volatile long mMaxFileBytes = 16 * 1024 * 1024;
+
+  /** Once the archive grows larger than this, the oldest files are deleted. */
+  private volatile long mMaxTotalBytes = 256 * 1024 * 1024;
+
+  /** Files older than this are deleted. */
+  private volatile long mRetentionMillis = 7 * 24 * 60 * 60 * 1000L;
+
+  /** Audio that didn't make it into the archive because the writer fell behind. */
+  private final AtomicLong mDroppedBytes = new AtomicLong();
+
+  /** Frames waiting in the tracks' rings, as of the writer's last pass. */
+  private volatile long mQueueDepth;
+
+  /** Audio written to disk so far. */
+  private volatile long mBytesWritten;
+
+  /** Time spent inside FileChannel writes, used to compute throughput. */
+  private volatile long mWriteNanos;
+
+  /** If true, the writer thread will keep draining the tracks. */
+  private volatile boolean mAlive;
+
+  /**
+   * Set once we've failed to create the archive directory. Archiving is then off for good, rather
+   * than failing, and logging, for every frame.
+   */
+  private volatile boolean mDisabled;
+
+  /** The background thread writing to disk for us. */
+  private Thread mThread;
+
+  /**
+   * An archive of talk-spurts.
+   *
+   * @param directory Where the archive files are written. Created if it doesn't exist yet.
+   */
+  public AudioArchiver(File directory) {
+    mDirectory = directory;
+  }
+
+  /** Sets the size at which a file is closed and a new one started. */
+  public void setMaxFileBytes(long maxFileBytes) {
+    mMaxFileBytes = maxFileBytes;
+  }
+
+  /** Sets the total size of the archive. The oldest files are deleted once it's exceeded. */
+  public void setMaxTotalBytes(long maxTotalBytes) {
+    mMaxTotalBytes = maxTotalBytes;
+  }
+
+  /** Sets how long files are kept before they are deleted. */
+  public void setRetentionMillis(long retentionMillis) {
+    mRetentionMillis = retentionMillis;
+  }
+
+  /** Starts the writer thread. */
+  public void start() {
+    if (mAlive) {
+      Log.w(TAG, "Already running");
+      return;
+    }
+    if (mDisabled) {
+      return;
+    }
+
+    mAlive = true;
+    mThread =
+        new Thread("AudioArchiver") {
+          @Override
+          public void run() {
+            setThreadPriority(THREAD_PRIORITY_BACKGROUND);
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+              Log.e(TAG, "Failed to create archive directory " + mDirectory + "; not archiving");
+              mDisabled = true;
+              mAlive = false;
+              mNewTracks.clear();
+              mTracks.clear();
+              return;
+            }
+            enforceQuota();
+
+            while (mAlive) {
+              // Once we've caught up, push everything buffered out to disk and take a nap.
+              if (!readTracks()) {
+                flushAll();
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL_MS));
+              }
+            }
+
+            // Write out what's left, and close every file so its header gets patched. Tracks
+            // that are still open carry on in a new file if we're started again.
+            readTracks();
+            for (Track track : mTracks) {
+              closeFile(track);
+            }
+          }
+        };
+    mThread.start();
+  }
+
+  /** Stops the writer thread once everything already in the rings has been written. */
+  public void stop() {
+    if (!mAlive) {
+      return;
+    }
+    mAlive = false;
+    LockSupport.unpark(mThread);
+    try {
+      mThread.join();
+    } catch (InterruptedException e) {
+      Log.e(TAG, "Interrupted while joining AudioArchiver thread", e);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Opens a new archive file fed from a ring. The writer thread reads the frames itself, so the
+   * audio thread doesn't need to do anything more than publish to the ring, and {@link
+   * Track#close()} the track once the ring has seen the last of the talk-spurt.
+   *
+   * @param label A short name included in the file name, eg. "sent" or "received".
+   * @param sampleRate The sample rate of the 16bit mono PCM in the ring.
+   * @param reader A reader of the ring, for the writer thread's use only.
+   */
+  public Track openTrack(String label, int sampleRate, AudioRingBuffer.Reader reader) {
+    Track track = new Track(label, sampleRate, reader);
+    if (!mDisabled) {
+      mNewTracks.add(track);
+    }
+    return track;
+  }
+
+  /** Returns the number of frames waiting to be written to disk. */
+  public long getQueueDepth() {
+    return mQueueDepth;
+  }
+
+  /** Returns the number of bytes of audio written to disk. */
+  public long getBytesWritten() {
+    return mBytesWritten;
+  }
+
+  /** Returns the number of bytes of audio dropped because the writer couldn't keep up. */
+  public long getDroppedBytes() {
+    return mDroppedBytes.get();
+  }
+
+  /** Returns how fast the disk has accepted our writes, in bytes per second. */
+  public long getWriteThroughput() {
+    long nanos = mWriteNanos;
+    return nanos == 0 ? 0 : mBytesWritten * 1000000000L / nanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        Locale.US,
+        "AudioArchiver{queueDepth=%d, written=%d, dropped=%d, throughput=%dB/s, disabled=%b}",
+        getQueueDepth(),
+        getBytesWritten(),
+        getDroppedBytes(),
+        getWriteThroughput(),
+        mDisabled);
+  }
+
+  /** Archives whatever is new in the tracks. Returns true if there was anything. */
+  private boolean readTracks() {
+    Track track;
+    while ((track = mNewTracks.poll()) != null) {
+      mTracks.add(track);
+    }
+    boolean readAny = false;
+    long queueDepth = 0;
+    for (int i = mTracks.size() - 1; i >= 0; i--) {
+      track = mTracks.get(i);
+      // Check before draining, so we can't miss audio published just before the close.
+      boolean closed = track.mClosed;
+      readAny |= readTrack(track);
+      if (closed) {
+        closeFile(track);
+        mTracks.remove(i);
+      } else {
+        queueDepth += track.mReader.getLag();
+      }
+    }
+    mQueueDepth = queueDepth;
+    return readAny;
+  }
+
+  private boolean readTrack(Track track) {
+    boolean readAny = false;
+    int len;
+    while ((len = track.mReader.read(track.mFrame)) > 0) {
+      writeToFile(track, track.mFrame, len);
+      readAny = true;
+    }
+    long dropped = track.mReader.getDroppedFrames();
+    if (dropped > track.mDroppedFrames) {
+      // We don't know how long the frames we missed were, but they're all much the same.
+      mDroppedBytes.addAndGet((dropped - track.mDroppedFrames) * track.mFrame.length);
+      track.mDroppedFrames = dropped;
+    }
+    return readAny;
+  }
+
+  private void writeToFile(Track track, byte[] data, int length) {
+    try {
+      if (track.mFile != null && track.mFile.mDataBytes + length > mMaxFileBytes) {
+        closeFile(track);
+      }
+      if (track.mFile == null) {
+        track.mFile = openFile(track);
+      }
+      track.mFile.write(data, length);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to archive audio", e);
+      closeFile(track);
+    }
+  }
+
+  private ArchiveFile openFile(Track track) throws IOException {
+    String name =
+        new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.US).format(new Date())
+            + "-"
+            + track.mLabel
+            + FILE_EXTENSION;
+    return new ArchiveFile(new File(mDirectory, name), track.mSampleRate);
+  }
+
+  private void closeFile(Track track) {
+    if (track.mFile == null) {
+      return;
+    }
+    try {
+      track.mFile.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to close archive file", e);
+    }
+    track.mFile = null;
+    enforceQuota();
+  }
+
+  private void flushAll() {
+    for (ArchiveFile file : mOpenFiles) {
+      try {
+        file.flush();
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to flush archive file", e);
+      }
+    }
+  }
+
+  /** Deletes files past their retention period, then the oldest files until we're under quota. */
+  private void enforceQuota() {
+    File[] files = mDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(
+        files,
+        new Comparator<File>() {
+          @Override
+          public int compare(File a, File b) {
+            long diff = a.lastModified() - b.lastModified();
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+          }
+        });
+
+    long total = 0;
+    for (File file : files) {
+      total += file.length();
+    }
+
+    long expiry = System.currentTimeMillis() - mRetentionMillis;
+    for (File file : files) {
+      if (!file.getName().endsWith(FILE_EXTENSION) || isOpen(file)) {
+        continue;
+      }
+      if (file.lastModified() < expiry || total > mMaxTotalBytes) {
+        long length = file.length();
+        if (file.delete()) {
+          total -= length;
+        } else {
+          Log.w(TAG, "Failed to delete archive file " + file);
+        }
+      }
+    }
+  }
+
+  private boolean isOpen(File file) {
+    for (ArchiveFile open : mOpenFiles) {
+      if (open.mFile.equals(file)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** A single stream of audio being archived, such as one outgoing or incoming talk-spurt. */
+  public class Track {
+    private final String mLabel;
+    private final int mSampleRate;
+
+    /** The ring the writer thread reads this track's audio from. */
+    private final AudioRingBuffer.Reader mReader;
+
+    /** The frame the writer thread reads into. */
+    private final byte[] mFrame;
+
+    /** Set once the audio thread is done with us. */
+    private volatile boolean mClosed;
+
+    /** The frames {@link #mReader} had dropped when we last looked. Only for the writer. */
+    private long mDroppedFrames;
+
+    /** The file currently being written. Only touched by the writer thread. */
+    @Nullable private ArchiveFile mFile;
+
+    private Track(String label, int sampleRate, AudioRingBuffer.Reader reader) {
+      mLabel = label;
+      mSampleRate = sampleRate;
+      mReader = reader;
+      mFrame = new byte[reader.getFrameSize()];
+    }
+
+    /**
+     * Closes the file once everything already published to the ring has been written. Never
+     * blocks.
+     */
+    public void close() {
+      mClosed = true;
+    }
+  }
+
+  /** A WAV file being written. Only touched by the writer thread. */
+  private class ArchiveFile {
+    private final File mFile;
+    private final int mSampleRate;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private long mDataBytes;
+
+    ArchiveFile(File file, int sampleRate) throws IOException {
+      mFile = file;
+      mSampleRate = sampleRate;
+      mRandomAccessFile = new RandomAccessFile(file, "rw");
+      mChannel = mRandomAccessFile.getChannel();
+
+      // Reserve room for the header. We'll fill it in once we know how long the file is.
+      mChannel.write(ByteBuffer.allocate(WAV_HEADER_SIZE));
+      mOpenFiles.add(this);
+    }
+
+    void write(byte[] data, int length) throws IOException {
+      if (mBuffer.remaining() < length) {
+        flush();
+      }
+      mBuffer.put(data, 0, length);
+      mDataBytes += length;
+    }
+
+    void flush() throws IOException {
+      if (mBuffer.position() == 0) {
+        return;
+      }
+      mBuffer.flip();
+      long start = System.nanoTime();
+      int written = 0;
+      while (mBuffer.hasRemaining()) {
+        written += mChannel.write(mBuffer);
+      }
+      mWriteNanos += System.nanoTime() - start;
+      mBytesWritten += written;
+      mBuffer.clear();
+    }
+
+    void close() throws IOException {
+      try {
+        flush();
+        mChannel.write(createWavHeader(mSampleRate, mDataBytes), 0);
+      } finally {
+        mOpenFiles.remove(this);
+        mRandomAccessFile.close();
+      }
+    }
+  }
+
+  /** Creates a header for a 16bit mono PCM WAV file with the given amount of audio. */
+  private static ByteBuffer createWavHeader(int sampleRate, long dataBytes) {
+    int channels = 1;
+    int bitsPerSample = 16;
+    int blockAlign = channels * bitsPerSample / 8;
+    ByteBuffer header = ByteBuffer.allocate(WAV_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    header.put(new byte[] {'R', 'I', 'F', 'F'});
+    header.putInt((int) (WAV_HEADER_SIZE - 8 + dataBytes));
+    header.put(new byte[] {'W', 'A', 'V', 'E'});
+    header.put(new byte[] {'f', 'm', 't', ' '});
+    header.putInt(16);
+    header.putShort((short) 1 /* PCM */);
+    header.putShort((short) channels);
+    header.putInt(sampleRate);
+    header.putInt(sampleRate * blockAlign);
+    header.putShort((short) blockAlign);
+    header.putShort((short) bitsPerSample);
+    header.put(new byte[] {'d', 'a', 't', 'a'});
+    header.putInt((int) dataBytes);
+    header.flip();
+    return header;
+  }
+}
@@ -0,0 +1,91 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+/**
+ * Measures how loud a stream of 16bit mono PCM is. The audio thread only publishes its frames to
+ * an {@link AudioRingBuffer}; whoever samples the meter calls {@link #poll()} at its own frame
+ * rate, which measures the newest frame in the ring. The latest RMS and peak levels are then
+ * published through a single volatile field, so they can be read from any thread without any
+ * locking, messages or allocation.
+ */
+public class AudioLevelMeter {
+  /** We only look at every Nth sample. Plenty for a meter, and a fraction of the cost. */
+  private static final int DECIMATION = 4;
+
+  /** The largest magnitude of a 16bit sample. */
+  private static final float FULL_SCALE = 32768f;
+
+  /** The latest levels, packed as (rms << 16 | peak), each out of 0xFFFF. */
+  private volatile int mLevels;
+
+  /** Where {@link #poll()} reads frames from. */
+  private final AudioRingBuffer.Reader mReader;
+
+  /** The frame {@link #poll()} reads into. */
+  private final byte[] mFrame;
+
+  /** Set by {@link #reset()}, so {@link #poll()} throws away whatever is left in the ring. */
+  private volatile boolean mDiscard;
+
+  /** A meter that measures the frames in a ring, whenever {@link #poll()} is called. */
+  public AudioLevelMeter(AudioRingBuffer.Reader reader) {
+    mReader = reader;
+    mFrame = new byte[reader.getFrameSize()];
+  }
+
+  /**
+   * Catches up with the ring and measures the newest frame in it. Frames older than that are
+   * skipped; the UI would never have shown them anyway. Must only be called from one thread.
+   */
+  public void poll() {
+    int newest = 0;
+    int len;
+    while ((len = mReader.read(mFrame)) > 0) {
+      newest = len;
+    }
+    if (mDiscard) {
+      mDiscard = false;
+      mLevels = 0;
+      return;
+    }
+    if (newest > 0) {
+      update(mFrame, newest);
+    }
+  }
+
+  /** Measures a buffer of audio, and publishes its levels. */
+  private void update(byte[] data, int length) {
+    long sumOfSquares = 0;
+    int peak = 0;
+    int count = 0;
+    for (int i = 0; i + 1 < length; i += 2 * DECIMATION) {
+      int sample = (short) ((data[i] & 0xFF) | (data[i + 1] << 8));
+      int magnitude = Math.abs(sample);
+      if (magnitude > peak) {
+        peak = magnitude;
+      }
+      sumOfSquares += sample * sample;
+      count++;
+    }
+    if (count == 0) {
+      return;
+    }
+    int rms = (int) Math.sqrt(sumOfSquares / (double) count);
+    mLevels = (Math.min(0xFFFF, rms * 2) << 16) | Math.min(0xFFFF, peak * 2);
+  }
+
+  /** Resets the levels to silence. */
+  public void reset() {
+    mDiscard = true;
+    mLevels = 0;
+  }
+
+  /** Returns the RMS level of the latest buffer, from 0 (silence) to 1 (full scale). */
+  public float getRms() {
+    return (mLevels >>> 16) / (2 * FULL_SCALE);
+  }
+
+  /** Returns the peak level of the latest buffer, from 0 (silence) to 1 (full scale). */
+  public float getPeak() {
+    return (mLevels & 0xFFFF) / (2 * FULL_SCALE);
+  }
+}
@@ -4,12 +4,18 @@ import static android.os.Process.THREAD_PRIORITY_AUDIO;
 import static android.os.Process.setThreadPriority;
 import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
 
+import android.media.AudioAttributes;
 import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioTrack;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
 import android.util.Log;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
  * A fire-once class. When created, you must pass a {@link InputStream}. Once {@link #start()} is
@@ -17,6 +23,33 @@ import java.io.InputStream;
  * ends.
  */
 public class AudioPlayer {
+  /**
+   * How much audio we're happy to have queued up in the stream, in milliseconds. Anything above
+   * this is latency we try to drain by playing slightly faster.
+   */
+  private static final int TARGET_LATENCY_MS = 150;
+
+  /** How far above the target we need to be before we play at {@link TimeStretcher#MAX_SPEED}. */
+  private static final int MAX_SPEED_LATENCY_MS = 500;
+
+  /**
+   * The track is created with this many times the minimum buffer, so the buffer has room to grow
+   * if we keep underrunning.
+   */
+  private static final int MAX_BUFFER_MULTIPLIER = 4;
+
+  /** How often we check the track for underruns. */
+  private static final long UNDERRUN_CHECK_INTERVAL_MS = 500;
+
+  /** How long we need to go without an underrun before we try a smaller buffer. */
+  private static final long SHRINK_AFTER_MS = 5000;
+
+  /** How many frames other consumers may fall behind before they start losing audio. */
+  private static final int RING_CAPACITY = 32;
+
+  /** Every player that's currently playing, so the metrics can find them. */
+  private static final Set<AudioPlayer> sPlaying = new CopyOnWriteArraySet<>();
+
   /** The audio stream we're reading from. */
   private final InputStream mInputStream;
 
@@ -29,6 +62,27 @@ public class AudioPlayer {
   /** The background thread recording audio for us. */
   private Thread mThread;
 
+  /** Sizes our reads from the stream, and holds each frame while we play it. */
+  private final Buffer mBuffer = new Buffer();
+
+  /** Shares every frame we play with the level meter and the archive. */
+  private final AudioRingBuffer mRingBuffer = new AudioRingBuffer(RING_CAPACITY, mBuffer.size);
+
+  /** Measures how loud the audio we play is, reading from the ring on the UI's schedule. */
+  private final AudioLevelMeter mLevelMeter = new AudioLevelMeter(mRingBuffer.openReader());
+
+  /** If set, everything we play is also archived to disk. */
+  @Nullable private AudioArchiver mArchiver;
+
+  /** The current size of the track's buffer, in frames. */
+  private volatile int mBufferSizeInFrames;
+
+  /** The number of times the track has run out of audio to play. */
+  private volatile int mUnderrunCount;
+
+  /** When the track started playing, for computing the underrun rate. */
+  private volatile long mStartTimeMillis;
+
   /**
    * A simple audio player.
    *
@@ -38,6 +92,69 @@ public class AudioPlayer {
     mInputStream = inputStream;
   }
 
+  /** Archives everything we play from now on. Must be called before {@link #start()}. */
+  public void setArchiver(@Nullable AudioArchiver archiver) {
+    mArchiver = archiver;
+  }
+
+  /**
+   * Exports the track buffer size and underrun rate as gauges. There may be several players at
+   * once, so each gauge reports whichever player is doing worst.
+   */
+  public static void registerMetrics(MetricsRegistry metrics) {
+    metrics.gauge(
+        "audio.players",
+        new MetricsRegistry.Gauge() {
+          @Override
+          public long get() {
+            return sPlaying.size();
+          }
+        });
+    metrics.gauge(
+        "audio.buffer_frames",
+        new MetricsRegistry.Gauge() {
+          @Override
+          public long get() {
+            long frames = 0;
+            for (AudioPlayer player : sPlaying) {
+              frames = Math.max(frames, player.getBufferSizeInFrames());
+            }
+            return frames;
+          }
+        });
+    metrics.gauge(
+        "audio.underruns_per_hour",
+        new MetricsRegistry.Gauge() {
+          @Override
+          public long get() {
+            float rate = 0;
+            for (AudioPlayer player : sPlaying) {
+              rate = Math.max(rate, player.getUnderrunRate());
+            }
+            return Math.round(rate * 60);
+          }
+        });
+  }
+
+  /** Returns the current size of the track's buffer, in frames. */
+  public int getBufferSizeInFrames() {
+    return mBufferSizeInFrames;
+  }
+
+  /** Returns the number of underruns per minute since we started playing. */
+  public float getUnderrunRate() {
+    long elapsed = SystemClock.elapsedRealtime() - mStartTimeMillis;
+    return elapsed <= 0 ? 0 : mUnderrunCount * 60000f / elapsed;
+  }
+
+  /**
+   * Returns a meter of how loud the audio we play is. Its levels are safe to read from any thread,
+   * but {@link AudioLevelMeter#poll()} must only be called from one.
+   */
+  public AudioLevelMeter getLevelMeter() {
+    return mLevelMeter;
+  }
+
   /** @return True if currently playing. */
   public boolean isPlaying() {
     return mAlive;
@@ -52,27 +169,56 @@ public class AudioPlayer {
           public void run() {
             setThreadPriority(THREAD_PRIORITY_AUDIO);
 
-            Buffer buffer = new Buffer();
-            AudioTrack audioTrack =
-                new AudioTrack(
-                    AudioManager.STREAM_MUSIC,
-                    buffer.sampleRate,
-                    AudioFormat.CHANNEL_OUT_MONO,
-                    AudioFormat.ENCODING_PCM_16BIT,
-                    buffer.size,
-                    AudioTrack.MODE_STREAM);
+            Buffer buffer = mBuffer;
+            AudioTrack audioTrack = createAudioTrack(buffer);
+            BufferTuner tuner = new BufferTuner(audioTrack, buffer.size / 2);
+            mStartTimeMillis = SystemClock.elapsedRealtime();
             audioTrack.play();
+            sPlaying.add(AudioPlayer.this);
+
+            // The archiver reads from the ring on its own thread, so all we do is publish.
+            AudioArchiver.Track archive =
+                mArchiver != null
+                    ? mArchiver.openTrack(
+                        "received", buffer.sampleRate, mRingBuffer.openReader())
+                    : null;
+
+            TimeStretcher stretcher = new TimeStretcher(buffer.sampleRate, buffer.size);
+            byte[] stretched = new byte[stretcher.getMaxOutputBytes()];
+            int bytesPerMs = buffer.sampleRate * 2 / 1000;
 
             int len;
             try {
               while (isPlaying() && (len = mInputStream.read(buffer.data)) > 0) {
-                audioTrack.write(buffer.data, 0, len);
+                // Anything still waiting in the stream is audio we're going to play late.
+                int queuedMs = mInputStream.available() / bytesPerMs;
+                stretcher.setSpeed(getSpeed(queuedMs));
+                int stretchedLen = stretcher.process(buffer.data, len, stretched);
+                audioTrack.write(stretched, 0, stretchedLen);
+                mRingBuffer.write(buffer.data, 0, len);
+                tuner.update();
               }
             } catch (IOException e) {
               Log.e(TAG, "Exception with playing stream", e);
             } finally {
+              Log.v(
+                  TAG,
+                  String.format(
+                      "Drained %dms of latency in %dus of processing",
+                      stretcher.getSamplesSkipped() * 1000 / buffer.sampleRate,
+                      stretcher.getProcessingNanos() / 1000));
+              Log.v(
+                  TAG,
+                  String.format(
+                      "Played with %d underruns, ending with a buffer of %d frames",
+                      mUnderrunCount, mBufferSizeInFrames));
+              sPlaying.remove(AudioPlayer.this);
+              mLevelMeter.reset();
               stopInternal();
               audioTrack.release();
+              if (archive != null) {
+                archive.close();
+              }
               onFinish();
             }
           }
@@ -80,6 +226,58 @@ public class AudioPlayer {
     mThread.start();
   }
 
+  /**
+   * Creates a track for streaming 16bit mono PCM. Where available, we ask for the low latency path
+   * and leave room in the buffer to grow, since {@link BufferTuner} will shrink it back down to
+   * the smallest size that plays without underruns.
+   */
+  @SuppressWarnings("deprecation")
+  private static AudioTrack createAudioTrack(Buffer buffer) {
+    if (Build.VERSION.SDK_INT < 23) {
+      return new AudioTrack(
+          AudioManager.STREAM_MUSIC,
+          buffer.sampleRate,
+          AudioFormat.CHANNEL_OUT_MONO,
+          AudioFormat.ENCODING_PCM_16BIT,
+          buffer.size,
+          AudioTrack.MODE_STREAM);
+    }
+
+    AudioTrack.Builder builder =
+        new AudioTrack.Builder()
+            .setAudioAttributes(
+                new AudioAttributes.Builder()
+                    .setUsage(AudioAttributes.USAGE_MEDIA)
+                    .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+                    .build())
+            .setAudioFormat(
+                new AudioFormat.Builder()
+                    .setSampleRate(buffer.sampleRate)
+                    .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+                    .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                    .build())
+            .setTransferMode(AudioTrack.MODE_STREAM);
+    if (Build.VERSION.SDK_INT >= 24) {
+      // We can resize the buffer later, so allocate room to grow.
+      builder.setBufferSizeInBytes(buffer.size * MAX_BUFFER_MULTIPLIER);
+    } else {
+      builder.setBufferSizeInBytes(buffer.size);
+    }
+    if (Build.VERSION.SDK_INT >= 26) {
+      builder.setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY);
+    }
+    return builder.build();
+  }
+
+  /** Picks a playback speed that drains anything queued beyond our target latency. */
+  private static float getSpeed(int queuedMs) {
+    if (queuedMs <= TARGET_LATENCY_MS) {
+      return 1f;
+    }
+    float excess = Math.min(1f, (queuedMs - TARGET_LATENCY_MS) / (float) MAX_SPEED_LATENCY_MS);
+    return 1f + excess * (TimeStretcher.MAX_SPEED - 1f);
+  }
+
   private void stopInternal() {
     mAlive = false;
     try {
@@ -103,6 +301,73 @@ public class AudioPlayer {
   /** The stream has now ended. */
   protected void onFinish() {}
 
+  /**
+   * Periodically reads the track's underrun count, growing the buffer when it underruns and
+   * shrinking it again after a quiet period. This settles on the smallest buffer that plays
+   * without underruns. Requires API 24; on older devices the buffer stays at its initial size.
+   */
+  private class BufferTuner {
+    private final AudioTrack mAudioTrack;
+
+    /** How much we grow or shrink the buffer by at a time, in frames. */
+    private final int mStepInFrames;
+
+    /** The smallest buffer we'll ask for, in frames. */
+    private final int mMinFrames;
+
+    /** The underrun count when we last checked. */
+    private int mLastUnderrunCount;
+
+    /** When we last checked for underruns. */
+    private long mLastCheckMillis;
+
+    /** When we last saw an underrun, or last resized the buffer. */
+    private long mLastChangeMillis;
+
+    BufferTuner(AudioTrack audioTrack, int minFrames) {
+      mAudioTrack = audioTrack;
+      mMinFrames = minFrames;
+      mStepInFrames = Math.max(1, minFrames / 2);
+      mLastCheckMillis = mLastChangeMillis = SystemClock.elapsedRealtime();
+      if (Build.VERSION.SDK_INT >= 24) {
+        mBufferSizeInFrames = audioTrack.setBufferSizeInFrames(minFrames);
+      } else {
+        mBufferSizeInFrames = minFrames;
+      }
+    }
+
+    void update() {
+      if (Build.VERSION.SDK_INT < 24) {
+        return;
+      }
+      long now = SystemClock.elapsedRealtime();
+      if (now - mLastCheckMillis < UNDERRUN_CHECK_INTERVAL_MS) {
+        return;
+      }
+      mLastCheckMillis = now;
+
+      int underruns = mAudioTrack.getUnderrunCount();
+      mUnderrunCount = underruns;
+      int size = mBufferSizeInFrames;
+      if (underruns > mLastUnderrunCount) {
+        size = Math.min(mAudioTrack.getBufferCapacityInFrames(), size + mStepInFrames);
+        mLastChangeMillis = now;
+      } else if (now - mLastChangeMillis > SHRINK_AFTER_MS && size > mMinFrames) {
+        size = Math.max(mMinFrames, size - mStepInFrames);
+        mLastChangeMillis = now;
+      }
+      mLastUnderrunCount = underruns;
+
+      if (size != mBufferSizeInFrames) {
+        int actual = mAudioTrack.setBufferSizeInFrames(size);
+        if (actual > 0) {
+          mBufferSizeInFrames = actual;
+          Log.v(TAG, String.format("AudioTrack buffer resized to %d frames", actual));
+        }
+      }
+    }
+  }
+
   private static class Buffer extends AudioBuffer {
     @Override
     protected boolean validSize(int size) {
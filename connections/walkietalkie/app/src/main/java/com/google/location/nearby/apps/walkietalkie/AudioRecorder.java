@@ -8,6 +8,7 @@ import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaRecorder;
 import android.os.ParcelFileDescriptor;
+import android.support.annotation.Nullable;
 import android.util.Log;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -15,11 +16,23 @@ import java.io.OutputStream;
 /**
  * When created, you must pass a {@link ParcelFileDescriptor}. Once {@link #start()} is called, the
  * file descriptor will be written to until {@link #stop()} is called.
+ *
+ * <p>Every captured frame is also published to an {@link AudioRingBuffer}, so other consumers (a
+ * level meter, a local recording, ...) can {@link #openReader()} and share the same capture.
  */
 public class AudioRecorder {
+  /** How many frames other consumers may fall behind before they start losing audio. */
+  private static final int RING_CAPACITY = 32;
+
   /** The stream to write to. */
   private final OutputStream mOutputStream;
 
+  /** Sizes our reads from {@link AudioRecord}, and holds each frame while we pass it on. */
+  private final Buffer mBuffer = new Buffer();
+
+  /** Shares every captured frame with any additional consumers. */
+  private final AudioRingBuffer mRingBuffer = new AudioRingBuffer(RING_CAPACITY, mBuffer.size);
+
   /**
    * If true, the background thread will continue to loop and record audio. Once false, the thread
    * will shut down.
@@ -29,6 +42,12 @@ public class AudioRecorder {
   /** The background thread recording audio for us. */
   private Thread mThread;
 
+  /** Measures how loud the audio we record is, reading from the ring on the UI's schedule. */
+  private final AudioLevelMeter mLevelMeter = new AudioLevelMeter(mRingBuffer.openReader());
+
+  /** If set, everything we record is also archived to disk. */
+  @Nullable private AudioArchiver mArchiver;
+
   /**
    * A simple audio recorder.
    *
@@ -38,6 +57,32 @@ public class AudioRecorder {
     mOutputStream = new ParcelFileDescriptor.AutoCloseOutputStream(file);
   }
 
+  /**
+   * Opens an additional consumer of the captured audio. Frames are 16bit mono PCM at {@link
+   * #getSampleRate()}. Readers that fall too far behind skip ahead rather than slowing us down.
+   */
+  public AudioRingBuffer.Reader openReader() {
+    return mRingBuffer.openReader();
+  }
+
+  /** Returns the sample rate we're recording at. */
+  public int getSampleRate() {
+    return mBuffer.sampleRate;
+  }
+
+  /** Archives everything we record from now on. Must be called before {@link #start()}. */
+  public void setArchiver(@Nullable AudioArchiver archiver) {
+    mArchiver = archiver;
+  }
+
+  /**
+   * Returns a meter of how loud the audio we record is. Its levels are safe to read from any
+   * thread, but {@link AudioLevelMeter#poll()} must only be called from one.
+   */
+  public AudioLevelMeter getLevelMeter() {
+    return mLevelMeter;
+  }
+
   /** @return True if actively recording. False otherwise. */
   public boolean isRecording() {
     return mAlive;
@@ -57,7 +102,7 @@ public class AudioRecorder {
           public void run() {
             setThreadPriority(THREAD_PRIORITY_AUDIO);
 
-            Buffer buffer = new Buffer();
+            Buffer buffer = mBuffer;
             AudioRecord record =
                 new AudioRecord(
                     MediaRecorder.AudioSource.DEFAULT,
@@ -74,12 +119,19 @@ public class AudioRecorder {
 
             record.startRecording();
 
+            // The archiver reads from the ring on its own thread, so all we do is publish.
+            AudioArchiver.Track archive =
+                mArchiver != null
+                    ? mArchiver.openTrack("sent", buffer.sampleRate, openReader())
+                    : null;
+
             // While we're running, we'll read the bytes from the AudioRecord and write them
             // to our output stream.
             try {
               while (isRecording()) {
                 int len = record.read(buffer.data, 0, buffer.size);
                 if (len >= 0 && len <= buffer.size) {
+                  mRingBuffer.write(buffer.data, 0, len);
                   mOutputStream.write(buffer.data, 0, len);
                   mOutputStream.flush();
                 } else {
@@ -89,6 +141,7 @@ public class AudioRecorder {
             } catch (IOException e) {
               Log.e(TAG, "Exception with recording stream", e);
             } finally {
+              mLevelMeter.reset();
               stopInternal();
               try {
                 record.stop();
@@ -96,6 +149,9 @@ public class AudioRecorder {
                 Log.e(TAG, "Failed to stop AudioRecord", e);
               }
               record.release();
+              if (archive != null) {
+                archive.close();
+              }
             }
           }
         };
@@ -0,0 +1,271 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A single-producer, multi-consumer ring of audio frames. The capture thread {@link #write}s each
+ * frame exactly once, and any number of {@link Reader}s consume the same frames at their own pace.
+ *
+ * <p>The producer never waits for a reader. If a reader falls more than {@link #getCapacity()}
+ * frames behind, it gets lapped: the frames it missed are counted in {@link
+ * Reader#getDroppedFrames()} and it resumes from the oldest frame still in the ring.
+ *
+ * <p>Each slot is guarded by a sequence lock. The producer marks a slot odd before overwriting it
+ * and even once it's done, and a reader only keeps its copy if it saw the same even sequence
+ * before and after copying. The frames live in {@link AtomicIntegerArray}s rather than plain
+ * arrays so that none of those accesses can be reordered around the sequence checks, on any
+ * memory model.
+ */
+public class AudioRingBuffer {
+  /**
+   * The frames themselves, packed four bytes to an int. Slot {@code seq % capacity} holds frame
+   * number {@code seq}, starting at index {@code slot * mWordsPerFrame}.
+   */
+  private final AtomicIntegerArray mData;
+
+  /** The number of valid bytes in each slot. */
+  private final AtomicIntegerArray mLengths;
+
+  /**
+   * The sequence lock for each slot. {@code 2 * seq + 1} while frame {@code seq} is being
+   * written, and {@code 2 * seq + 2} once it's complete.
+   */
+  private final AtomicLongArray mSequences;
+
+  /** The number of frames kept around. */
+  private final int mCapacity;
+
+  /** The largest frame we accept, in bytes. */
+  private final int mFrameSize;
+
+  /** The number of ints each slot takes up in {@link #mData}. */
+  private final int mWordsPerFrame;
+
+  /** The number of frames readers are allowed to see. */
+  private volatile long mPublished;
+
+  /** Readers blocked in {@link Reader#await(long)} wait on this. */
+  private final Object mLock = new Object();
+
+  /** The number of readers currently waiting. The producer only notifies when this is non-zero. */
+  private volatile int mWaiters;
+
+  /**
+   * @param capacity The number of frames kept around for slow readers.
+   * @param frameSize The largest frame, in bytes, that will be written.
+   */
+  public AudioRingBuffer(int capacity, int frameSize) {
+    if (capacity <= 0 || frameSize <= 0) {
+      throw new IllegalArgumentException(
+          "Invalid ring size: capacity=" + capacity + ", frameSize=" + frameSize);
+    }
+    mCapacity = capacity;
+    mFrameSize = frameSize;
+    mWordsPerFrame = (frameSize + 3) / 4;
+    mData = new AtomicIntegerArray(capacity * mWordsPerFrame);
+    mLengths = new AtomicIntegerArray(capacity);
+    mSequences = new AtomicLongArray(capacity);
+  }
+
+  /** Returns the number of frames kept in the ring. */
+  public int getCapacity() {
+    return mCapacity;
+  }
+
+  /** Returns the largest frame, in bytes, that the ring accepts. */
+  public int getFrameSize() {
+    return mFrameSize;
+  }
+
+  /** Returns the total number of frames written so far. */
+  public long getFramesWritten() {
+    return mPublished;
+  }
+
+  /**
+   * Publishes a frame to every reader. Must only ever be called from a single thread. Never
+   * blocks, never allocates.
+   */
+  public void write(byte[] data, int offset, int length) {
+    if (length > mFrameSize) {
+      throw new IllegalArgumentException(
+          "Frame of " + length + " bytes exceeds frame size " + mFrameSize);
+    }
+    long seq = mPublished;
+    int slot = (int) (seq % mCapacity);
+
+    // Tell readers this slot is going away before we touch it. The lazySets below are ordered
+    // after this store, and before the store that marks the slot complete again.
+    mSequences.set(slot, 2 * seq + 1);
+    int base = slot * mWordsPerFrame;
+    for (int i = 0; i < length; i += 4) {
+      mData.lazySet(base + i / 4, pack(data, offset + i, Math.min(4, length - i)));
+    }
+    mLengths.lazySet(slot, length);
+    mSequences.set(slot, 2 * seq + 2);
+    mPublished = seq + 1;
+
+    if (mWaiters > 0) {
+      synchronized (mLock) {
+        mLock.notifyAll();
+      }
+    }
+  }
+
+  /** Packs up to four bytes into an int, little endian. */
+  private static int pack(byte[] src, int offset, int count) {
+    int word = 0;
+    for (int i = 0; i < count; i++) {
+      word |= (src[offset + i] & 0xFF) << (8 * i);
+    }
+    return word;
+  }
+
+  /** Unpacks up to four bytes from an int, little endian. */
+  private static void unpack(int word, byte[] dst, int offset, int count) {
+    for (int i = 0; i < count; i++) {
+      dst[offset + i] = (byte) (word >>> (8 * i));
+    }
+  }
+
+  /**
+   * Creates a new consumer. It starts at the next frame to be written, so it won't see audio that
+   * was captured before it was opened.
+   */
+  public Reader openReader() {
+    return new Reader(mPublished);
+  }
+
+  /**
+   * A consumer with its own cursor into the ring. A reader must only be used by one thread at a
+   * time, but different readers may live on different threads.
+   */
+  public class Reader {
+    /** The sequence number of the next frame we'll read. */
+    private long mCursor;
+
+    /** Frames we skipped because the producer lapped us. */
+    private volatile long mDroppedFrames;
+
+    /** Frames we've successfully read. */
+    private volatile long mFramesRead;
+
+    /** The furthest we've ever been behind the producer, in frames. */
+    private volatile long mMaxLag;
+
+    private Reader(long cursor) {
+      mCursor = cursor;
+    }
+
+    /** Returns the size of the buffer {@link #read(byte[])} needs. */
+    public int getFrameSize() {
+      return mFrameSize;
+    }
+
+    /**
+     * Copies the next frame into {@code dst}, which must be at least {@link #getFrameSize()} long.
+     *
+     * @return The number of bytes copied, or 0 if no new frame is available yet.
+     */
+    public int read(byte[] dst) {
+      while (true) {
+        long published = mPublished;
+        if (mCursor >= published) {
+          return 0;
+        }
+
+        long lag = published - mCursor;
+        if (lag > mMaxLag) {
+          mMaxLag = lag;
+        }
+        if (lag > mCapacity) {
+          skipTo(published - mCapacity);
+        }
+
+        long seq = mCursor;
+        int slot = (int) (seq % mCapacity);
+        long complete = 2 * seq + 2;
+
+        // If the producer has already started on a newer frame in this slot, ours is gone.
+        if (mSequences.get(slot) != complete) {
+          skipTo(seq + 1);
+          continue;
+        }
+
+        int length = mLengths.get(slot);
+        int base = slot * mWordsPerFrame;
+        for (int i = 0; i < length; i += 4) {
+          unpack(mData.get(base + i / 4), dst, i, Math.min(4, length - i));
+        }
+
+        // If the producer touched the slot while we were copying, our copy may be torn. Count it
+        // as dropped and move on.
+        if (mSequences.get(slot) != complete) {
+          skipTo(seq + 1);
+          continue;
+        }
+
+        mCursor = seq + 1;
+        mFramesRead++;
+        return length;
+      }
+    }
+
+    /**
+     * Blocks until a frame is available to {@link #read(byte[])} or the timeout passes.
+     *
+     * @return True if a frame is available.
+     */
+    public boolean await(long timeoutMillis) throws InterruptedException {
+      if (mCursor < mPublished) {
+        return true;
+      }
+      synchronized (mLock) {
+        mWaiters++;
+        try {
+          if (mCursor >= mPublished) {
+            mLock.wait(timeoutMillis);
+          }
+        } finally {
+          mWaiters--;
+        }
+      }
+      return mCursor < mPublished;
+    }
+
+    private void skipTo(long seq) {
+      if (seq > mCursor) {
+        mDroppedFrames += seq - mCursor;
+        mCursor = seq;
+      }
+    }
+
+    /** Returns how many frames this reader is currently behind the producer. */
+    public long getLag() {
+      return Math.max(0, mPublished - mCursor);
+    }
+
+    /** Returns the furthest this reader has been behind the producer, in frames. */
+    public long getMaxLag() {
+      return mMaxLag;
+    }
+
+    /** Returns the number of frames this reader missed because it was lapped. */
+    public long getDroppedFrames() {
+      return mDroppedFrames;
+    }
+
+    /** Returns the number of frames this reader has read. */
+    public long getFramesRead() {
+      return mFramesRead;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "Reader{lag=%d, maxLag=%d, read=%d, dropped=%d}",
+          getLag(), getMaxLag(), getFramesRead(), getDroppedFrames());
+    }
+  }
+}
@@ -0,0 +1,239 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import android.support.annotation.Nullable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A recording of what Nearby Connections told us, and of the payloads we sent, so it can be played
+ * back off the device. Event types are the ones in {@link EventLog}.
+ *
+ * <p>The binary format is a 4 byte magic number and a version, followed by the events. Each event
+ * is its type, the microseconds since the previous event (a varint), the endpoint and then the
+ * type's own fields. Endpoint ids are numbered in the order they first appear, and only written out
+ * in full the first time. Payloads are recorded by size; only the contents of small BYTES payloads,
+ * which are usually messages, are kept.
+ */
+public class CallbackTrace {
+  private static final int MAGIC = 0x4E435431; // NCT1
+
+  private static final int VERSION = 1;
+
+  /** The largest BYTES payload whose contents we keep. Larger ones are replayed as zeros. */
+  public static final int MAX_RECORDED_BYTES = 4096;
+
+  /** What we write for payloads whose contents we didn't keep. */
+  private static final byte[] NO_BYTES = new byte[0];
+
+  /** A single callback, or sent payload. Fields that don't apply to its type are left unset. */
+  public static class Event {
+    int mType;
+    long mTimeMicros;
+    String mEndpointId;
+
+    // ENDPOINT_FOUND and CONNECTION_INITIATED
+    String mName = "";
+    String mServiceId = "";
+    String mAuthenticationToken = "";
+    boolean mIncoming;
+
+    // CONNECTION_RESULT
+    int mStatusCode;
+
+    // PAYLOAD_SENT, PAYLOAD_RECEIVED and PAYLOAD_TRANSFER_UPDATE
+    long mPayloadId;
+    int mPayloadType;
+
+    /** The payload's size, or -1 if it isn't known yet, as for streams. */
+    long mSize = -1;
+
+    /** The payload's contents, if it's a small BYTES payload. */
+    @Nullable byte[] mBytes;
+
+    int mTransferStatus;
+    long mTotalBytes;
+    long mBytesTransferred;
+
+    Event(int type, long timeMicros, String endpointId) {
+      mType = type;
+      mTimeMicros = timeMicros;
+      mEndpointId = endpointId;
+    }
+  }
+
+  private final MessageWriter mWriter = new MessageWriter(16 * 1024);
+  private final Map<String, Integer> mEndpointIds = new HashMap<>();
+  private long mLastTimeMicros = -1;
+  private int mEventCount;
+
+  public CallbackTrace() {
+    for (int i = 3; i >= 0; i--) {
+      mWriter.writeByte(MAGIC >>> (8 * i));
+    }
+    mWriter.writeVarint(VERSION);
+  }
+
+  /** Returns the number of events written so far. */
+  public int getEventCount() {
+    return mEventCount;
+  }
+
+  /** Returns the size of the trace so far, in bytes. */
+  public int length() {
+    return mWriter.length();
+  }
+
+  /** Adds an event. Events must be written in the order they happened. */
+  public void write(Event event) {
+    mWriter.writeByte(event.mType);
+    mWriter.writeVarint(mLastTimeMicros < 0 ? 0 : Math.max(0, event.mTimeMicros - mLastTimeMicros));
+    mLastTimeMicros = event.mTimeMicros;
+
+    Integer index = mEndpointIds.get(event.mEndpointId);
+    if (index == null) {
+      mWriter.writeVarint(mEndpointIds.size());
+      mWriter.writeString(event.mEndpointId);
+      mEndpointIds.put(event.mEndpointId, mEndpointIds.size());
+    } else {
+      mWriter.writeVarint(index);
+    }
+
+    switch (event.mType) {
+      case EventLog.ENDPOINT_FOUND:
+        mWriter.writeString(event.mServiceId);
+        mWriter.writeString(event.mName);
+        break;
+      case EventLog.CONNECTION_INITIATED:
+        mWriter.writeString(event.mName);
+        mWriter.writeString(event.mAuthenticationToken);
+        mWriter.writeBoolean(event.mIncoming);
+        break;
+      case EventLog.CONNECTION_RESULT:
+        mWriter.writeSignedVarint(event.mStatusCode);
+        break;
+      case EventLog.PAYLOAD_SENT:
+      case EventLog.PAYLOAD_RECEIVED:
+        mWriter.writeFixed64(event.mPayloadId);
+        mWriter.writeVarint(event.mPayloadType);
+        mWriter.writeSignedVarint(event.mSize);
+        mWriter.writeBytes(event.mBytes == null ? NO_BYTES : event.mBytes);
+        break;
+      case EventLog.PAYLOAD_TRANSFER_UPDATE:
+        mWriter.writeFixed64(event.mPayloadId);
+        mWriter.writeVarint(event.mTransferStatus);
+        mWriter.writeSignedVarint(event.mTotalBytes);
+        mWriter.writeVarint(event.mBytesTransferred);
+        break;
+      default:
+        // ENDPOINT_LOST and DISCONNECTED have nothing more to say.
+        break;
+    }
+    mEventCount++;
+  }
+
+  /** Writes the trace to the file, replacing it atomically. */
+  public void save(File file) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    OutputStream out = new FileOutputStream(tmp);
+    try {
+      out.write(mWriter.getBuffer(), 0, mWriter.length());
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file)) {
+      throw new IOException("Unable to rename " + tmp + " to " + file);
+    }
+  }
+
+  /** Reads every event of a trace saved with {@link #save(File)}. */
+  public static List<Event> load(File file) throws IOException {
+    byte[] bytes = new byte[(int) file.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      in.readFully(bytes);
+    } finally {
+      in.close();
+    }
+    return read(bytes);
+  }
+
+  /** Reads every event of a trace. */
+  public static List<Event> read(byte[] bytes) throws IOException {
+    MessageReader reader = new MessageReader();
+    reader.reset(bytes, 0, bytes.length);
+    List<Event> events = new ArrayList<>();
+    List<String> endpointIds = new ArrayList<>();
+    try {
+      int magic = 0;
+      for (int i = 0; i < 4; i++) {
+        magic = (magic << 8) | (reader.readByte() & 0xFF);
+      }
+      if (magic != MAGIC) {
+        throw new IOException("Not a trace");
+      }
+      int version = reader.readVarintInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported trace version " + version);
+      }
+
+      long timeMicros = 0;
+      while (reader.remaining() > 0) {
+        int type = reader.readByte() & 0xFF;
+        if (type < EventLog.ENDPOINT_FOUND || type > EventLog.PAYLOAD_TRANSFER_UPDATE) {
+          throw new IOException("Unknown event type " + type);
+        }
+        timeMicros += reader.readVarint();
+        int index = reader.readVarintInt();
+        if (index == endpointIds.size()) {
+          endpointIds.add(reader.readString());
+        } else if (index > endpointIds.size()) {
+          throw new IOException("Unknown endpoint " + index);
+        }
+        Event event = new Event(type, timeMicros, endpointIds.get(index));
+        switch (type) {
+          case EventLog.ENDPOINT_FOUND:
+            event.mServiceId = reader.readString();
+            event.mName = reader.readString();
+            break;
+          case EventLog.CONNECTION_INITIATED:
+            event.mName = reader.readString();
+            event.mAuthenticationToken = reader.readString();
+            event.mIncoming = reader.readBoolean();
+            break;
+          case EventLog.CONNECTION_RESULT:
+            event.mStatusCode = (int) reader.readSignedVarint();
+            break;
+          case EventLog.PAYLOAD_SENT:
+          case EventLog.PAYLOAD_RECEIVED:
+            event.mPayloadId = reader.readFixed64();
+            event.mPayloadType = reader.readVarintInt();
+            event.mSize = reader.readSignedVarint();
+            byte[] contents = reader.readBytes();
+            event.mBytes = contents.length == 0 ? null : contents;
+            break;
+          case EventLog.PAYLOAD_TRANSFER_UPDATE:
+            event.mPayloadId = reader.readFixed64();
+            event.mTransferStatus = reader.readVarintInt();
+            event.mTotalBytes = reader.readSignedVarint();
+            event.mBytesTransferred = reader.readVarint();
+            break;
+          default:
+            // ENDPOINT_LOST and DISCONNECTED have nothing more to say.
+            break;
+        }
+        events.add(event);
+      }
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Truncated trace", e);
+    }
+    return events;
+  }
+}
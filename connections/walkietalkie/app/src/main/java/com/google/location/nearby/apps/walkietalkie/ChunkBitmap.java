@@ -0,0 +1,129 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * One bit per chunk of a transfer, set once the chunk has been received and verified. It can be
+ * saved to, and loaded from, a file, so an interrupted transfer can pick up where it left off even
+ * after a restart.
+ */
+public class ChunkBitmap {
+  private final int mChunkCount;
+  private final long[] mBits;
+  private int mSetCount;
+
+  public ChunkBitmap(int chunkCount) {
+    mChunkCount = chunkCount;
+    mBits = new long[(chunkCount + 63) / 64];
+  }
+
+  /** Returns the number of chunks this bitmap covers. */
+  public int getChunkCount() {
+    return mChunkCount;
+  }
+
+  /** Returns the number of chunks received. */
+  public int getSetCount() {
+    return mSetCount;
+  }
+
+  public boolean isComplete() {
+    return mSetCount == mChunkCount;
+  }
+
+  public boolean get(int index) {
+    return (mBits[index >>> 6] & (1L << index)) != 0;
+  }
+
+  public void set(int index) {
+    if (!get(index)) {
+      mBits[index >>> 6] |= 1L << index;
+      mSetCount++;
+    }
+  }
+
+  /** Returns the first chunk at or after {@code from} that we don't have, or -1 if none. */
+  public int nextClear(int from) {
+    for (int i = from; i < mChunkCount; i++) {
+      long word = ~mBits[i >>> 6] >>> (i & 63);
+      if (word == 0) {
+        // Everything left in this word is set. Skip to the next one.
+        i |= 63;
+        continue;
+      }
+      int index = i + Long.numberOfTrailingZeros(word);
+      return index < mChunkCount ? index : -1;
+    }
+    return -1;
+  }
+
+  /** Returns a copy that doesn't change when this one does, eg. to save it on another thread. */
+  public ChunkBitmap copy() {
+    ChunkBitmap copy = new ChunkBitmap(mChunkCount);
+    System.arraycopy(mBits, 0, copy.mBits, 0, mBits.length);
+    copy.mSetCount = mSetCount;
+    return copy;
+  }
+
+  /** Returns the bitmap as bytes, eg. to tell the sender what we already have. */
+  public byte[] toByteArray() {
+    byte[] bytes = new byte[(mChunkCount + 7) / 8];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) (mBits[i >>> 3] >>> (8 * (i & 7)));
+    }
+    return bytes;
+  }
+
+  /** Reads a bitmap from {@link #toByteArray()}. */
+  public static ChunkBitmap fromByteArray(int chunkCount, byte[] bytes) {
+    ChunkBitmap bitmap = new ChunkBitmap(chunkCount);
+    for (int i = 0; i < chunkCount && i / 8 < bytes.length; i++) {
+      if ((bytes[i / 8] & (1 << (i & 7))) != 0) {
+        bitmap.set(i);
+      }
+    }
+    return bitmap;
+  }
+
+  /** Writes the bitmap to the file, replacing it atomically. */
+  public void save(File file) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+    try {
+      out.writeInt(mChunkCount);
+      byte[] bytes = toByteArray();
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file)) {
+      throw new IOException("Unable to rename " + tmp + " to " + file);
+    }
+  }
+
+  /**
+   * Reads a bitmap saved with {@link #save(File)}. Returns an empty bitmap if there's no file, or
+   * if it was saved for a different number of chunks.
+   */
+  public static ChunkBitmap load(File file, int chunkCount) throws IOException {
+    if (!file.exists()) {
+      return new ChunkBitmap(chunkCount);
+    }
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      if (in.readInt() != chunkCount) {
+        return new ChunkBitmap(chunkCount);
+      }
+      byte[] bytes = new byte[(chunkCount + 7) / 8];
+      in.readFully(bytes);
+      return fromByteArray(chunkCount, bytes);
+    } finally {
+      in.close();
+    }
+  }
+}
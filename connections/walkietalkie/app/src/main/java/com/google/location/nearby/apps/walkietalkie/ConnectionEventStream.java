@@ -0,0 +1,425 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.AnyThread;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import com.google.android.gms.nearby.connection.ConnectionInfo;
+import com.google.android.gms.nearby.connection.Payload;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hands the events {@link ConnectionsActivity} sees to any number of subscribers, each on its own
+ * {@link Executor}, so that eg. the audio engine, metrics and logging can each follow along without
+ * the activity passing events on to them, and without running on the main thread.
+ *
+ * <p>Publishing never blocks, and never takes a lock. Every subscriber has a bounded ring buffer of
+ * its own; a slow subscriber only fills its own buffer, and then loses events according to its
+ * {@link Overflow} policy, rather than holding up the main thread or anyone else. Events are handed
+ * to a subscriber one at a time, in the order they were published, however many threads its
+ * executor has.
+ *
+ * <p>Subscribers share the events' {@link Payload}s. Streams and files can only be read once, so
+ * only one subscriber should read them.
+ *
+ * <p>EventStreamBenchmark, in the unit tests, compares it with a naive fan-out.
+ */
+public class ConnectionEventStream {
+  /** How many events a subscriber buffers, unless it asks otherwise. */
+  public static final int DEFAULT_CAPACITY = 256;
+
+  /** How many events we hand a subscriber in one go, before giving its executor back. */
+  private static final int MAX_BATCH = 64;
+
+  /** Runs subscribers on the main thread. */
+  public static final Executor MAIN_THREAD =
+      new Executor() {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable runnable) {
+          mHandler.post(runnable);
+        }
+      };
+
+  /** What happened. These match the callbacks of {@link ConnectionsActivity}. */
+  public enum Type {
+    ADVERTISING_STARTED,
+    ADVERTISING_FAILED,
+    DISCOVERY_STARTED,
+    DISCOVERY_FAILED,
+    ENDPOINT_DISCOVERED,
+    CONNECTION_INITIATED,
+    CONNECTION_FAILED,
+    ENDPOINT_CONNECTED,
+    ENDPOINT_DISCONNECTED,
+    PAYLOAD_RECEIVED
+  }
+
+  /** What a subscriber loses once its buffer is full. */
+  public enum Overflow {
+    /** The event being published. Best for events that only make sense in order, eg. payloads. */
+    DROP_NEWEST,
+    /** The oldest event still buffered. Best when only recent events matter, eg. for a display. */
+    DROP_OLDEST
+  }
+
+  /** A single event. Fields that don't apply to its type are null. */
+  public static final class Event {
+    private final Type mType;
+    private final long mTimeNanos;
+    @Nullable private final Endpoint mEndpoint;
+    @Nullable private final ConnectionInfo mConnectionInfo;
+    @Nullable private final Payload mPayload;
+
+    Event(
+        Type type,
+        @Nullable Endpoint endpoint,
+        @Nullable ConnectionInfo connectionInfo,
+        @Nullable Payload payload) {
+      mType = type;
+      mTimeNanos = System.nanoTime();
+      mEndpoint = endpoint;
+      mConnectionInfo = connectionInfo;
+      mPayload = payload;
+    }
+
+    public Type getType() {
+      return mType;
+    }
+
+    /** Returns when the event was published, on the {@link System#nanoTime()} clock. */
+    public long getTimeNanos() {
+      return mTimeNanos;
+    }
+
+    @Nullable
+    public Endpoint getEndpoint() {
+      return mEndpoint;
+    }
+
+    /** Returns the details of the connection, for {@link Type#CONNECTION_INITIATED}. */
+    @Nullable
+    public ConnectionInfo getConnectionInfo() {
+      return mConnectionInfo;
+    }
+
+    /** Returns what was received, for {@link Type#PAYLOAD_RECEIVED}. */
+    @Nullable
+    public Payload getPayload() {
+      return mPayload;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("Event{type=%s, endpoint=%s}", mType, mEndpoint);
+    }
+  }
+
+  /** Receives events, on its executor. */
+  public interface Subscriber {
+    void onEvent(Event event);
+  }
+
+  /**
+   * A subscriber's place in the stream, and its buffer. Its buffer is written by the publishing
+   * thread and read by whichever thread its executor picks; positions only ever move forward, and
+   * are claimed with compare and set, so neither side takes a lock.
+   */
+  public final class Subscription {
+    private final Subscriber mSubscriber;
+    private final Executor mExecutor;
+    private final Set<Type> mTypes;
+    private final Overflow mOverflow;
+    private final AtomicReferenceArray<Event> mSlots;
+    private final int mMask;
+
+    /** The position of the next event to hand to the subscriber. Moved by both sides. */
+    private final AtomicLong mHead = new AtomicLong();
+
+    /** The position of the next event to publish. Only moved by the publishing thread. */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /** True while a drain is queued on, or running on, the executor. */
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    private volatile boolean mCancelled;
+
+    // Metrics
+    private final AtomicLong mDelivered = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    private final Runnable mDrainRunnable =
+        new Runnable() {
+          @Override
+          public void run() {
+            drain();
+          }
+        };
+
+    private Subscription(
+        Subscriber subscriber,
+        Executor executor,
+        Set<Type> types,
+        int capacity,
+        Overflow overflow) {
+      mSubscriber = subscriber;
+      mExecutor = executor;
+      mTypes = types.isEmpty() ? EnumSet.noneOf(Type.class) : EnumSet.copyOf(types);
+      mOverflow = overflow;
+      // A power of two, so a position maps to its slot with a mask.
+      int slots = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+      mSlots = new AtomicReferenceArray<>(slots);
+      mMask = slots - 1;
+    }
+
+    /** Stops handing events to the subscriber. Events already being handed over may still be. */
+    @AnyThread
+    public void cancel() {
+      mCancelled = true;
+      remove(this);
+    }
+
+    /** Returns how many events the subscriber has been handed. */
+    @AnyThread
+    public long getDeliveredCount() {
+      return mDelivered.get();
+    }
+
+    /** Returns how many events the subscriber lost, because its buffer was full. */
+    @AnyThread
+    public long getDroppedCount() {
+      return mDropped.get();
+    }
+
+    /** Returns how many events are waiting for the subscriber. */
+    @AnyThread
+    public int getPendingCount() {
+      return (int) Math.max(0, mTail.get() - mHead.get());
+    }
+
+    /** Buffers the event, and makes sure a drain is on its way. */
+    private void offer(Event event) {
+      if (mCancelled || !mTypes.contains(event.mType)) {
+        return;
+      }
+      long tail = mTail.get();
+      while (true) {
+        long head = mHead.get();
+        if (tail - head <= mMask) {
+          break;
+        }
+        if (mOverflow == Overflow.DROP_NEWEST) {
+          mDropped.incrementAndGet();
+          return;
+        }
+        // Take the oldest event out from under the subscriber, whose slot is the one we're about to
+        // fill. If the subscriber got to it first, look again.
+        if (mHead.compareAndSet(head, head + 1)) {
+          mDropped.incrementAndGet();
+          break;
+        }
+      }
+      mSlots.set((int) tail & mMask, event);
+      mTail.set(tail + 1);
+      schedule();
+    }
+
+    @Nullable
+    private Event poll() {
+      while (true) {
+        long head = mHead.get();
+        if (head >= mTail.get()) {
+          return null;
+        }
+        int slot = (int) head & mMask;
+        Event event = mSlots.get(slot);
+        // If the publisher dropped this event meanwhile, the position has moved on and this fails.
+        if (mHead.compareAndSet(head, head + 1)) {
+          // Let go of it, unless the publisher has already reused the slot.
+          mSlots.compareAndSet(slot, event, null);
+          return event;
+        }
+      }
+    }
+
+    private void schedule() {
+      if (!mScheduled.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        mExecutor.execute(mDrainRunnable);
+      } catch (RejectedExecutionException e) {
+        mScheduled.set(false);
+        Log.w(TAG, "Unable to hand events to " + mSubscriber, e);
+      }
+    }
+
+    private void drain() {
+      int delivered = 0;
+      Event event;
+      while (delivered < MAX_BATCH && !mCancelled && (event = poll()) != null) {
+        try {
+          mSubscriber.onEvent(event);
+        } catch (RuntimeException e) {
+          Log.e(TAG, "Subscriber " + mSubscriber + " failed on " + event, e);
+        }
+        delivered++;
+      }
+      mDelivered.addAndGet(delivered);
+      // Cleared first, so an event published from now on schedules another drain. One published
+      // before that found us still scheduled, so we look again ourselves.
+      mScheduled.set(false);
+      if (!mCancelled && mHead.get() < mTail.get()) {
+        schedule();
+      }
+    }
+  }
+
+  /** Every subscription. Replaced, never modified, so publishing can read it without a lock. */
+  private final AtomicReference<Subscription[]> mSubscriptions =
+      new AtomicReference<>(new Subscription[0]);
+
+  // Metrics
+  private final AtomicLong mPublished = new AtomicLong();
+
+  /**
+   * Hands every event to the subscriber, on the executor, buffering up to {@link
+   * #DEFAULT_CAPACITY} events and dropping the newest beyond that.
+   */
+  @AnyThread
+  public Subscription subscribe(Subscriber subscriber, Executor executor) {
+    return subscribe(
+        subscriber,
+        executor,
+        EnumSet.allOf(Type.class),
+        DEFAULT_CAPACITY,
+        Overflow.DROP_NEWEST);
+  }
+
+  /**
+   * Hands events of the given types to the subscriber, on the executor.
+   *
+   * @param capacity How many events to buffer while the subscriber catches up. Rounded up to a
+   *     power of two.
+   * @param overflow What to lose once {@code capacity} events are waiting.
+   */
+  @AnyThread
+  public Subscription subscribe(
+      Subscriber subscriber,
+      Executor executor,
+      Set<Type> types,
+      int capacity,
+      Overflow overflow) {
+    Subscription subscription = new Subscription(subscriber, executor, types, capacity, overflow);
+    while (true) {
+      Subscription[] current = mSubscriptions.get();
+      Subscription[] next = Arrays.copyOf(current, current.length + 1);
+      next[current.length] = subscription;
+      if (mSubscriptions.compareAndSet(current, next)) {
+        return subscription;
+      }
+    }
+  }
+
+  /** Cancels every subscription. */
+  @AnyThread
+  public void clear() {
+    for (Subscription subscription : mSubscriptions.getAndSet(new Subscription[0])) {
+      subscription.mCancelled = true;
+    }
+  }
+
+  /** Returns the number of subscribers. */
+  @AnyThread
+  public int getSubscriberCount() {
+    return mSubscriptions.get().length;
+  }
+
+  @MainThread
+  public void publish(Type type) {
+    publish(new Event(type, null, null, null));
+  }
+
+  @MainThread
+  public void publish(Type type, Endpoint endpoint) {
+    publish(new Event(type, endpoint, null, null));
+  }
+
+  @MainThread
+  public void publish(Type type, Endpoint endpoint, ConnectionInfo connectionInfo) {
+    publish(new Event(type, endpoint, connectionInfo, null));
+  }
+
+  @MainThread
+  public void publish(Type type, @Nullable Endpoint endpoint, Payload payload) {
+    publish(new Event(type, endpoint, null, payload));
+  }
+
+  /**
+   * Hands the event to every subscriber. Buffers only have a single writer, so events must all be
+   * published from the same thread.
+   */
+  @MainThread
+  void publish(Event event) {
+    mPublished.incrementAndGet();
+    for (Subscription subscription : mSubscriptions.get()) {
+      subscription.offer(event);
+    }
+  }
+
+  /** Writes how each subscriber is keeping up, in a human readable form. */
+  @AnyThread
+  public void dump(String prefix, PrintWriter writer) {
+    Subscription[] subscriptions = mSubscriptions.get();
+    writer.print(prefix);
+    writer.println(
+        String.format(
+            Locale.US,
+            "ConnectionEventStream{subscribers=%d, published=%d}",
+            subscriptions.length,
+            mPublished.get()));
+    for (Subscription subscription : subscriptions) {
+      writer.print(prefix);
+      writer.println(
+          String.format(
+              Locale.US,
+              "  %s{delivered=%d, dropped=%d, pending=%d, overflow=%s}",
+              subscription.mSubscriber,
+              subscription.getDeliveredCount(),
+              subscription.getDroppedCount(),
+              subscription.getPendingCount(),
+              subscription.mOverflow));
+    }
+  }
+
+  private void remove(Subscription subscription) {
+    while (true) {
+      Subscription[] current = mSubscriptions.get();
+      int index = Arrays.asList(current).indexOf(subscription);
+      if (index < 0) {
+        return;
+      }
+      Subscription[] next = new Subscription[current.length - 1];
+      System.arraycopy(current, 0, next, 0, index);
+      System.arraycopy(current, index + 1, next, index, next.length - index);
+      if (mSubscriptions.compareAndSet(current, next)) {
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import android.os.SystemClock;
+import android.support.annotation.MainThread;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures the connection lifecycle: how long discovery takes to find someone, how long a
+ * connection request takes to succeed or fail, how many incoming connections we accept, why
+ * connections end, and how long we spend in each state. Everything is recorded into a {@link
+ * MetricsRegistry}, with the counters and histograms looked up once, up front.
+ */
+@MainThread
+public class ConnectionMetrics {
+  private final MetricsRegistry mMetrics;
+
+  private final MetricsRegistry.Histogram mDiscoveryToFoundMillis;
+  private final MetricsRegistry.Histogram mRequestToResultMillis;
+  private final MetricsRegistry.Counter mEndpointsFound;
+  private final MetricsRegistry.Counter mConnectionsRequested;
+  private final MetricsRegistry.Counter mConnectionsInitiated;
+  private final MetricsRegistry.Counter mConnectionsAccepted;
+  private final MetricsRegistry.Counter mConnectionsRejected;
+  private final MetricsRegistry.Counter mConnectionsSucceeded;
+  private final MetricsRegistry.Counter mConnectionsFailed;
+  private final MetricsRegistry.Counter mRemoteDisconnects;
+  private final MetricsRegistry.Counter mLocalDisconnects;
+  private final MetricsRegistry.Counter mResetDisconnects;
+
+  /** When discovery last started, or -1 if we aren't discovering. */
+  private long mDiscoveryStartedAtMillis = -1;
+
+  /** When we asked each endpoint to connect. Keyed by endpoint id. */
+  private final Map<String, Long> mRequestedAtMillis = new HashMap<>();
+
+  /** The state we're in, and when we entered it, or null if we haven't been told yet. */
+  private String mState;
+
+  private long mStateEnteredAtMillis;
+
+  public ConnectionMetrics(MetricsRegistry metrics) {
+    mMetrics = metrics;
+    mDiscoveryToFoundMillis = metrics.histogram("discovery.to_found_ms");
+    mRequestToResultMillis = metrics.histogram("connection.request_to_result_ms");
+    mEndpointsFound = metrics.counter("discovery.found");
+    mConnectionsRequested = metrics.counter("connection.requested");
+    mConnectionsInitiated = metrics.counter("connection.initiated");
+    mConnectionsAccepted = metrics.counter("connection.accepted");
+    mConnectionsRejected = metrics.counter("connection.rejected");
+    mConnectionsSucceeded = metrics.counter("connection.succeeded");
+    mConnectionsFailed = metrics.counter("connection.failed");
+    mRemoteDisconnects = metrics.counter("disconnect.remote");
+    mLocalDisconnects = metrics.counter("disconnect.local");
+    mResetDisconnects = metrics.counter("disconnect.reset");
+    metrics.gauge(
+        "connection.accept_rate_pct",
+        new MetricsRegistry.Gauge() {
+          @Override
+          public long get() {
+            long initiated = mConnectionsInitiated.get();
+            return initiated == 0 ? 0 : mConnectionsAccepted.get() * 100 / initiated;
+          }
+        });
+  }
+
+  /** Returns the registry we record into. */
+  public MetricsRegistry getRegistry() {
+    return mMetrics;
+  }
+
+  public void onDiscoveryStarted() {
+    mDiscoveryStartedAtMillis = SystemClock.elapsedRealtime();
+  }
+
+  public void onDiscoveryStopped() {
+    mDiscoveryStartedAtMillis = -1;
+  }
+
+  public void onEndpointFound() {
+    mEndpointsFound.increment();
+    if (mDiscoveryStartedAtMillis >= 0) {
+      mDiscoveryToFoundMillis.record(SystemClock.elapsedRealtime() - mDiscoveryStartedAtMillis);
+    }
+  }
+
+  public void onConnectionRequested(String endpointId) {
+    mConnectionsRequested.increment();
+    if (!mRequestedAtMillis.containsKey(endpointId)) {
+      mRequestedAtMillis.put(endpointId, SystemClock.elapsedRealtime());
+    }
+  }
+
+  public void onConnectionInitiated() {
+    mConnectionsInitiated.increment();
+  }
+
+  public void onConnectionAccepted() {
+    mConnectionsAccepted.increment();
+  }
+
+  public void onConnectionRejected() {
+    mConnectionsRejected.increment();
+  }
+
+  public void onConnected(String endpointId) {
+    mConnectionsSucceeded.increment();
+    recordResult(endpointId);
+  }
+
+  public void onConnectionFailed(String endpointId) {
+    mConnectionsFailed.increment();
+    recordResult(endpointId);
+  }
+
+  /** The other device, or the connection, went away. */
+  public void onRemoteDisconnect() {
+    mRemoteDisconnects.increment();
+  }
+
+  /** We hung up on {@code count} endpoints. */
+  public void onLocalDisconnect(int count) {
+    mLocalDisconnects.add(count);
+  }
+
+  /** We reset Nearby Connections, dropping {@code count} endpoints. */
+  public void onReset(int count) {
+    mResetDisconnects.add(count);
+    mRequestedAtMillis.clear();
+    mDiscoveryStartedAtMillis = -1;
+  }
+
+  /** We moved to {@code state}. Records how long we spent in the state we left. */
+  public void onStateChanged(String state) {
+    long now = SystemClock.elapsedRealtime();
+    if (mState != null) {
+      mMetrics.histogram("state." + mState + ".dwell_ms").record(now - mStateEnteredAtMillis);
+    }
+    mState = state;
+    mStateEnteredAtMillis = now;
+  }
+
+  private void recordResult(String endpointId) {
+    Long requestedAtMillis = mRequestedAtMillis.remove(endpointId);
+    if (requestedAtMillis != null) {
+      mRequestToResultMillis.record(SystemClock.elapsedRealtime() - requestedAtMillis);
+    }
+  }
+}
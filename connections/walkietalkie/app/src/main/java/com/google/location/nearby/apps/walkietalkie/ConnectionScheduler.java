@@ -0,0 +1,317 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.support.annotation.MainThread;
+import android.util.Log;
+import java.io.PrintWriter;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Decides which endpoints we ask to connect to, and when. Candidates wait in a priority queue, and
+ * up to {@link #setMaxConcurrent(int) a limit} of them have a connection request in flight at
+ * once. Each attempt gets {@link #ATTEMPT_TIMEOUT_MS} to complete, and each endpoint gets {@link
+ * #MAX_ATTEMPTS} attempts before we give up on it.
+ *
+ * <p>We measure how long each connection took to form, from the moment it was scheduled, and how
+ * long it took to work through everything that was scheduled (eg. to join a whole group).
+ */
+@MainThread
+public class ConnectionScheduler {
+  /** Reconnecting to a peer we just lost. */
+  public static final int PRIORITY_RECONNECT = 2;
+
+  /** Connecting to a peer we've been connected to before. */
+  public static final int PRIORITY_KNOWN = 1;
+
+  /** Connecting to anyone else. */
+  public static final int PRIORITY_DEFAULT = 0;
+
+  /** How long we give a connection request before we cancel it. */
+  static final long ATTEMPT_TIMEOUT_MS = 15000;
+
+  /** How many times we'll try to connect to an endpoint. */
+  static final int MAX_ATTEMPTS = 3;
+
+  /** How long we wait before retrying. Multiplied by the number of attempts so far. */
+  static final long RETRY_DELAY_MS = 1000;
+
+  /** Sends and cancels connection requests. */
+  public interface Connector {
+    void requestConnection(Endpoint endpoint);
+
+    void cancelConnection(Endpoint endpoint);
+  }
+
+  /** Hears about endpoints we've given up on. */
+  public interface Callback {
+    /** We tried {@link #MAX_ATTEMPTS} times, and failed. */
+    void onGaveUp(Endpoint endpoint);
+  }
+
+  private final Connector mConnector;
+  private final Callback mCallback;
+  private final Scheduler mScheduler;
+
+  /** Candidates waiting for their turn, highest priority first, then first come first served. */
+  private final PriorityQueue<Candidate> mQueue =
+      new PriorityQueue<>(
+          11,
+          new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+              if (a.mPriority != b.mPriority) {
+                return b.mPriority - a.mPriority;
+              }
+              return a.mSequence < b.mSequence ? -1 : (a.mSequence > b.mSequence ? 1 : 0);
+            }
+          });
+
+  /** Every candidate, whether queued, waiting to retry or in flight, by endpoint id. */
+  private final Map<String, Candidate> mCandidates = new HashMap<>();
+
+  private int mMaxConcurrent = 1;
+  private int mInFlight;
+  private long mSequence;
+
+  // Metrics
+  private long mBusySinceMillis = -1;
+  private long mLastFormationMillis = -1;
+  private long mAttempts;
+  private long mConnections;
+  private long mFailures;
+  private long mTimeouts;
+  private long mGiveUps;
+  private long mTotalConnectMillis;
+  private long mMaxConnectMillis;
+
+  public ConnectionScheduler(Connector connector, Callback callback) {
+    this(connector, callback, Scheduler.MAIN_THREAD);
+  }
+
+  ConnectionScheduler(Connector connector, Callback callback, Scheduler scheduler) {
+    mConnector = connector;
+    mCallback = callback;
+    mScheduler = scheduler;
+  }
+
+  /** Sets how many connection requests we may have in flight at once. */
+  public void setMaxConcurrent(int maxConcurrent) {
+    mMaxConcurrent = Math.max(1, maxConcurrent);
+    pump();
+  }
+
+  /**
+   * Schedules a connection to the endpoint. If it's already scheduled, it's given the higher of
+   * the two priorities.
+   */
+  public void schedule(Endpoint endpoint, int priority) {
+    Candidate candidate = mCandidates.get(endpoint.getId());
+    if (candidate != null) {
+      if (priority > candidate.mPriority && mQueue.remove(candidate)) {
+        candidate.mPriority = priority;
+        mQueue.add(candidate);
+      }
+      return;
+    }
+
+    if (mCandidates.isEmpty()) {
+      mBusySinceMillis = mScheduler.elapsedRealtime();
+    }
+    candidate = new Candidate(endpoint, priority, mSequence++);
+    mCandidates.put(endpoint.getId(), candidate);
+    mQueue.add(candidate);
+    pump();
+  }
+
+  /** Returns true if the endpoint is queued, waiting to retry or has a request in flight. */
+  public boolean isScheduled(String endpointId) {
+    return mCandidates.containsKey(endpointId);
+  }
+
+  /** Returns true if any connection request is in flight. */
+  public boolean isConnecting() {
+    return mInFlight > 0;
+  }
+
+  /** Call when a connection to the endpoint is established. */
+  public void onConnected(String endpointId) {
+    Candidate candidate = mCandidates.get(endpointId);
+    if (candidate == null || !candidate.mInFlight) {
+      return;
+    }
+    long connectMillis = mScheduler.elapsedRealtime() - candidate.mScheduledAtMillis;
+    mConnections++;
+    mTotalConnectMillis += connectMillis;
+    mMaxConnectMillis = Math.max(mMaxConnectMillis, connectMillis);
+    finish(candidate);
+  }
+
+  /** Call when a connection request to the endpoint fails. We'll retry, if there's budget left. */
+  public void onConnectionFailed(String endpointId) {
+    Candidate candidate = mCandidates.get(endpointId);
+    if (candidate == null || !candidate.mInFlight) {
+      return;
+    }
+    mFailures++;
+    retryOrGiveUp(candidate);
+  }
+
+  /** Forgets the endpoint, eg. because it's no longer around. Doesn't cancel requests in flight. */
+  public void remove(String endpointId) {
+    Candidate candidate = mCandidates.get(endpointId);
+    if (candidate != null && !candidate.mInFlight) {
+      mQueue.remove(candidate);
+      mScheduler.removeCallbacks(candidate.mRetryRunnable);
+      mCandidates.remove(endpointId);
+      onIdleCheck();
+    }
+  }
+
+  /** Forgets everything that's waiting. Requests in flight are left to finish on their own. */
+  public void clearQueue() {
+    for (Candidate candidate : mCandidates.values().toArray(new Candidate[0])) {
+      remove(candidate.mEndpoint.getId());
+    }
+  }
+
+  /** Forgets everything, including requests in flight. */
+  public void clear() {
+    for (Candidate candidate : mCandidates.values()) {
+      mScheduler.removeCallbacks(candidate.mRetryRunnable);
+      mScheduler.removeCallbacks(candidate.mTimeoutRunnable);
+    }
+    mQueue.clear();
+    mCandidates.clear();
+    mInFlight = 0;
+    mBusySinceMillis = -1;
+  }
+
+  /** Returns the number of candidates waiting for their turn. */
+  public int getQueueLength() {
+    return mQueue.size();
+  }
+
+  /**
+   * Returns how long it took, the last time the scheduler went from idle to busy and back, to
+   * work through everything. Returns -1 if that hasn't happened yet.
+   */
+  public long getLastFormationMillis() {
+    return mLastFormationMillis;
+  }
+
+  /** Returns the average time from scheduling a connection to it being established. */
+  public long getAverageConnectMillis() {
+    return mConnections == 0 ? 0 : mTotalConnectMillis / mConnections;
+  }
+
+  /** Writes the scheduler's state and statistics, in a human readable form. */
+  public void dump(String prefix, PrintWriter writer) {
+    writer.print(prefix);
+    writer.println(
+        String.format(
+            Locale.US,
+            "ConnectionScheduler{maxConcurrent=%d, inFlight=%d, queued=%d, attempts=%d, "
+                + "connections=%d, failures=%d, timeouts=%d, giveUps=%d, avgConnectMs=%d, "
+                + "maxConnectMs=%d, lastFormationMs=%d}",
+            mMaxConcurrent,
+            mInFlight,
+            mQueue.size(),
+            mAttempts,
+            mConnections,
+            mFailures,
+            mTimeouts,
+            mGiveUps,
+            getAverageConnectMillis(),
+            mMaxConnectMillis,
+            mLastFormationMillis));
+  }
+
+  /** Sends requests until we hit the concurrency limit or run out of candidates. */
+  private void pump() {
+    while (mInFlight < mMaxConcurrent && !mQueue.isEmpty()) {
+      Candidate candidate = mQueue.poll();
+      candidate.mInFlight = true;
+      candidate.mAttempts++;
+      mInFlight++;
+      mAttempts++;
+      mScheduler.postDelayed(candidate.mTimeoutRunnable, ATTEMPT_TIMEOUT_MS);
+      mConnector.requestConnection(candidate.mEndpoint);
+    }
+  }
+
+  private void retryOrGiveUp(Candidate candidate) {
+    endAttempt(candidate);
+    if (candidate.mAttempts >= MAX_ATTEMPTS) {
+      Log.w(TAG, "Giving up on connecting to " + candidate.mEndpoint);
+      mGiveUps++;
+      mCandidates.remove(candidate.mEndpoint.getId());
+      mCallback.onGaveUp(candidate.mEndpoint);
+      onIdleCheck();
+    } else {
+      mScheduler.postDelayed(candidate.mRetryRunnable, RETRY_DELAY_MS * candidate.mAttempts);
+    }
+    pump();
+  }
+
+  private void finish(Candidate candidate) {
+    endAttempt(candidate);
+    mCandidates.remove(candidate.mEndpoint.getId());
+    onIdleCheck();
+    pump();
+  }
+
+  private void endAttempt(Candidate candidate) {
+    mScheduler.removeCallbacks(candidate.mTimeoutRunnable);
+    candidate.mInFlight = false;
+    mInFlight--;
+  }
+
+  private void onIdleCheck() {
+    if (mCandidates.isEmpty() && mBusySinceMillis >= 0) {
+      mLastFormationMillis = mScheduler.elapsedRealtime() - mBusySinceMillis;
+      mBusySinceMillis = -1;
+      Log.v(TAG, String.format(Locale.US, "Connections formed in %dms", mLastFormationMillis));
+    }
+  }
+
+  /** An endpoint we'd like to connect to. */
+  private class Candidate {
+    final Endpoint mEndpoint;
+    final long mSequence;
+    final long mScheduledAtMillis = mScheduler.elapsedRealtime();
+    int mPriority;
+    int mAttempts;
+    boolean mInFlight;
+
+    final Runnable mTimeoutRunnable =
+        new Runnable() {
+          @Override
+          public void run() {
+            Log.w(TAG, "Timed out connecting to " + mEndpoint);
+            mTimeouts++;
+            mConnector.cancelConnection(mEndpoint);
+            retryOrGiveUp(Candidate.this);
+          }
+        };
+
+    final Runnable mRetryRunnable =
+        new Runnable() {
+          @Override
+          public void run() {
+            mQueue.add(Candidate.this);
+            pump();
+          }
+        };
+
+    Candidate(Endpoint endpoint, int priority, long sequence) {
+      mEndpoint = endpoint;
+      mPriority = priority;
+      mSequence = sequence;
+    }
+  }
+}
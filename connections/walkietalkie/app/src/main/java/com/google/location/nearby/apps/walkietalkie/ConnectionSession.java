@@ -0,0 +1,751 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import com.google.android.gms.nearby.connection.ConnectionInfo;
+import com.google.android.gms.nearby.connection.Payload;
+import com.google.android.gms.nearby.connection.Strategy;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Everything we know about a session beyond the connections themselves: the messages we encode,
+ * batch and decode, file transfers, mesh routing, a strategy switch in progress, the devices we're
+ * turning away, and the stream of events others follow along with. It's owned by {@link
+ * NearbyConnectionManager}, next to the connections it describes, so it outlives the Activity too.
+ * A rotation doesn't break a strategy switch half way, forget which mesh messages we've already
+ * seen, or end anyone's subscriptions.
+ *
+ * <p>An Activity {@link #attach(Callbacks) attaches} while it's started. While nobody is attached,
+ * the manager holds on to the events from Nearby Connections, decoded payloads wait in the {@link
+ * PayloadDispatcher}, and anything else meant for the Activity waits here, until the next one
+ * attaches.
+ */
+@MainThread
+public class ConnectionSession {
+  /** How long we give a device we're turning away to hear that we're busy, before we disconnect. */
+  private static final long TURN_AWAY_DELAY_MILLIS = 500;
+
+  /** What the attached Activity is told, and asked. */
+  public interface Callbacks {
+    /** Returns the name we go by. */
+    String getName();
+
+    /** Returns the service id we advertise and discover. */
+    String getServiceId();
+
+    /** Returns how many times a minute audio playback runs dry. */
+    float getAudioUnderrunRate();
+
+    void onAdvertisingStarted();
+
+    void onAdvertisingFailed();
+
+    void onDiscoveryStarted();
+
+    void onDiscoveryFailed();
+
+    void onEndpointDiscovered(Endpoint endpoint);
+
+    void onConnectionInitiated(Endpoint endpoint, ConnectionInfo connectionInfo);
+
+    void onConnectionFailed(Endpoint endpoint);
+
+    void onEndpointConnected(Endpoint endpoint);
+
+    void onEndpointDisconnected(Endpoint endpoint);
+
+    void onReceive(@Nullable Endpoint endpoint, Payload payload);
+
+    void onTransferProgress(long transferId, long bytesDone, long totalBytes);
+
+    void onFileReceived(Endpoint endpoint, File file);
+
+    void onTransferFailed(long transferId);
+  }
+
+  /** Owns our connections. */
+  private final NearbyConnectionManager mManager;
+
+  /** Encodes the typed messages we send, and hands the ones we receive to their handlers. */
+  private final MessageCodec mMessageCodec = new MessageCodec();
+
+  /** Coalesces the small messages we send to each endpoint into fewer payloads. */
+  private final MessageBatcher mMessageBatcher;
+
+  /** Decodes the payloads we receive off the main thread. */
+  private final PayloadDispatcher mPayloadDispatcher;
+
+  /** Moves files too large for a single payload. */
+  private final TransferManager mTransferManager;
+
+  /** Floods messages across the mesh, when our strategy is {@link Strategy#P2P_CLUSTER}. */
+  @Nullable private final MeshRouter mMeshRouter;
+
+  /** Picks our strategy, and moves a busy one to one session to a faster one. */
+  private final StrategySelector mStrategySelector;
+
+  /** The device we're switching strategies with, until the session with it is over. */
+  @Nullable private Endpoint mSwitchPeer;
+
+  /** Decides whether we have room for the devices that connect to us. */
+  private final AdmissionController mAdmissionController;
+
+  /**
+   * Devices we're turning away, by endpoint id, and the hub we're pointing each at, or "". They're
+   * only connected long enough to be told, so the Activity never hears about them.
+   */
+  private final Map<String, String> mTurningAway = new HashMap<>();
+
+  /** The hub a busy hub pointed us at, until that hub has disconnected us. */
+  @Nullable private String mSuggestedHub;
+
+  /** Hands our events to anyone else interested, alongside the Activity's callbacks. */
+  private final ConnectionEventStream mEventStream = new ConnectionEventStream();
+
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+  /** The attached Activity, or null while there is none. */
+  @Nullable private Callbacks mCallbacks;
+
+  /** What the name and service id were, as of the last Activity to attach. */
+  private String mName = "";
+  private String mServiceId = "";
+
+  /** Callbacks for the Activity that came up while nobody was attached, in order. */
+  private final List<Runnable> mPendingCallbacks = new ArrayList<>();
+
+  /** Receives events from {@link #mManager} while an Activity is attached. */
+  private final NearbyConnectionManager.Listener mListener =
+      new NearbyConnectionManager.Listener() {
+        @Override
+        public void onAdvertisingStarted() {
+          if (mStrategySelector.isReconnecting()) {
+            return;
+          }
+          mEventStream.publish(ConnectionEventStream.Type.ADVERTISING_STARTED);
+          mCallbacks.onAdvertisingStarted();
+        }
+
+        @Override
+        public void onAdvertisingFailed() {
+          if (mStrategySelector.isReconnecting()) {
+            return;
+          }
+          mEventStream.publish(ConnectionEventStream.Type.ADVERTISING_FAILED);
+          mCallbacks.onAdvertisingFailed();
+        }
+
+        @Override
+        public void onDiscoveryStarted() {
+          if (mStrategySelector.isReconnecting()) {
+            return;
+          }
+          mEventStream.publish(ConnectionEventStream.Type.DISCOVERY_STARTED);
+          mCallbacks.onDiscoveryStarted();
+        }
+
+        @Override
+        public void onDiscoveryFailed() {
+          if (mStrategySelector.isReconnecting()) {
+            return;
+          }
+          mEventStream.publish(ConnectionEventStream.Type.DISCOVERY_FAILED);
+          mCallbacks.onDiscoveryFailed();
+        }
+
+        @Override
+        public void onEndpointDiscovered(Endpoint endpoint) {
+          if (mStrategySelector.isReconnecting()) {
+            // While we switch strategies, we're only looking for our peer.
+            if (isSwitchPeer(endpoint)) {
+              connectToEndpoint(endpoint);
+            }
+            return;
+          }
+          if (mAdmissionController.isBusy(endpoint)) {
+            Log.d(TAG, String.format("Ignoring %s; it told us it's busy", endpoint));
+            return;
+          }
+          mEventStream.publish(ConnectionEventStream.Type.ENDPOINT_DISCOVERED, endpoint);
+          mCallbacks.onEndpointDiscovered(endpoint);
+        }
+
+        @Override
+        public void onConnectionInitiated(Endpoint endpoint, ConnectionInfo connectionInfo) {
+          mManager.getMetrics().onConnectionInitiated();
+          if (mStrategySelector.isReconnecting()) {
+            if (isSwitchPeer(endpoint)) {
+              acceptConnection(endpoint);
+            } else {
+              rejectConnection(endpoint);
+            }
+            return;
+          }
+          if (connectionInfo.isIncomingConnection()) {
+            switch (mAdmissionController.admit(endpoint)) {
+              case STEER:
+                Endpoint hub = mAdmissionController.findOtherHub(endpoint);
+                mTurningAway.put(endpoint.getId(), hub == null ? "" : hub.getName());
+                mManager.acceptConnection(endpoint);
+                return;
+              case REJECT:
+                rejectConnection(endpoint);
+                return;
+              default:
+                break;
+            }
+          }
+          mEventStream.publish(
+              ConnectionEventStream.Type.CONNECTION_INITIATED, endpoint, connectionInfo);
+          mCallbacks.onConnectionInitiated(endpoint, connectionInfo);
+        }
+
+        @Override
+        public void onConnectionFailed(Endpoint endpoint) {
+          mManager.getMetrics().onConnectionFailed(endpoint.getId());
+          if (mTurningAway.remove(endpoint.getId()) != null) {
+            return;
+          }
+          if (mStrategySelector.isReconnecting()) {
+            // We keep trying until the switch times out.
+            return;
+          }
+          mEventStream.publish(ConnectionEventStream.Type.CONNECTION_FAILED, endpoint);
+          mCallbacks.onConnectionFailed(endpoint);
+        }
+
+        @Override
+        public void onEndpointConnected(Endpoint endpoint) {
+          mManager.getMetrics().onConnected(endpoint.getId());
+          mTransferManager.onEndpointConnected(endpoint);
+          String hub = mTurningAway.get(endpoint.getId());
+          if (hub != null) {
+            turnAway(endpoint, hub);
+            return;
+          }
+          if (mStrategySelector.isReconnecting() && isSwitchPeer(endpoint)) {
+            // As far as the Activity is concerned, we never left.
+            mSwitchPeer = endpoint;
+            mManager.stopAdvertising();
+            mManager.stopDiscovering();
+            mStrategySelector.onReconnected();
+            return;
+          }
+          mEventStream.publish(ConnectionEventStream.Type.ENDPOINT_CONNECTED, endpoint);
+          mCallbacks.onEndpointConnected(endpoint);
+        }
+
+        @Override
+        public void onEndpointDisconnected(Endpoint endpoint) {
+          mManager.getMetrics().onRemoteDisconnect();
+          mMessageBatcher.remove(endpoint);
+          mTransferManager.onEndpointDisconnected(endpoint);
+          mAdmissionController.onDisconnected(endpoint);
+          if (mTurningAway.remove(endpoint.getId()) != null) {
+            return;
+          }
+          if (isSwitchPeer(endpoint)) {
+            if (mStrategySelector.isReconnecting()) {
+              // They dropped us to switch strategies, a little before we did.
+              return;
+            }
+            mSwitchPeer = null;
+            mStrategySelector.reset();
+          }
+          // A busy hub that let us go may have pointed us at another. Look it up now, since the
+          // callback may restart discovery and forget what we've discovered so far.
+          Endpoint suggestedHub =
+              mAdmissionController.isBusy(endpoint) ? findSuggestedHub() : null;
+          mEventStream.publish(ConnectionEventStream.Type.ENDPOINT_DISCONNECTED, endpoint);
+          mCallbacks.onEndpointDisconnected(endpoint);
+          offerSuggestedHub(suggestedHub);
+        }
+
+        @Override
+        public void onReceive(Endpoint endpoint, Payload payload) {
+          mPayloadDispatcher.dispatch(endpoint, payload);
+        }
+      };
+
+  /**
+   * @param strategy The strategy we start out with.
+   * @param canSwitch True if a busy one to one session may be switched to a faster strategy.
+   * @param transferDirectory Where partial file transfers are kept.
+   */
+  ConnectionSession(
+      NearbyConnectionManager manager,
+      Strategy strategy,
+      boolean canSwitch,
+      File transferDirectory) {
+    mManager = manager;
+    MetricsRegistry metrics = manager.getMetrics().getRegistry();
+    mMessageBatcher =
+        new MessageBatcher(
+            new MessageBatcher.Sender() {
+              @Override
+              public void send(Endpoint endpoint, byte[] bytes) {
+                mManager.send(endpoint, Payload.fromBytes(bytes));
+              }
+            });
+    mPayloadDispatcher =
+        new PayloadDispatcher(
+            mMessageCodec,
+            mMessageBatcher,
+            new PayloadDispatcher.Callback() {
+              @Override
+              public void onPayload(Endpoint endpoint, Payload payload) {
+                if (endpoint != null && mTurningAway.containsKey(endpoint.getId())) {
+                  // The Activity doesn't know it's connected.
+                  return;
+                }
+                mEventStream.publish(
+                    ConnectionEventStream.Type.PAYLOAD_RECEIVED, endpoint, payload);
+                mCallbacks.onReceive(endpoint, payload);
+              }
+            },
+            metrics);
+    // Decoded payloads wait for an Activity to attach.
+    mPayloadDispatcher.setHeld(true);
+    mTransferManager =
+        new TransferManager(
+            mMessageCodec,
+            transferDirectory,
+            new TransferManager.Transport() {
+              @Override
+              public void send(
+                  Endpoint endpoint, byte[] message, PayloadSendQueue.Priority priority) {
+                if (priority == PayloadSendQueue.Priority.BULK) {
+                  mManager.send(endpoint, Payload.fromBytes(message), priority);
+                } else {
+                  mMessageBatcher.send(endpoint, message, /* realTime= */ false);
+                }
+              }
+            },
+            new TransferManager.Listener() {
+              @Override
+              public void onTransferProgress(
+                  final long transferId, final long bytesDone, final long totalBytes) {
+                if (mCallbacks != null) {
+                  // Progress is only worth showing as it happens.
+                  mCallbacks.onTransferProgress(transferId, bytesDone, totalBytes);
+                }
+              }
+
+              @Override
+              public void onFileReceived(final Endpoint endpoint, final File file) {
+                deliver(
+                    new Runnable() {
+                      @Override
+                      public void run() {
+                        mCallbacks.onFileReceived(endpoint, file);
+                      }
+                    });
+              }
+
+              @Override
+              public void onFileSent(Endpoint endpoint, long transferId) {
+                Log.d(
+                    TAG,
+                    String.format("onFileSent(endpoint=%s, transferId=%x)", endpoint, transferId));
+              }
+
+              @Override
+              public void onTransferFailed(final long transferId) {
+                deliver(
+                    new Runnable() {
+                      @Override
+                      public void run() {
+                        mCallbacks.onTransferFailed(transferId);
+                      }
+                    });
+              }
+            });
+
+    mStrategySelector =
+        new StrategySelector(
+            strategy,
+            canSwitch,
+            new StrategySelector.Host() {
+              @Override
+              public long getTotalBytes() {
+                return mManager.getPayloadTracker().getTotalBytes();
+              }
+
+              @Nullable
+              @Override
+              public Endpoint getOnlyPeer() {
+                Set<Endpoint> endpoints = mManager.getConnectedEndpoints();
+                return endpoints.size() == 1 ? endpoints.iterator().next() : null;
+              }
+
+              @Override
+              public boolean isStreaming(Endpoint endpoint) {
+                return mManager.getPayloadTracker().isStreaming(endpoint.getId());
+              }
+
+              @Override
+              public void requestSwitch(Endpoint peer, Strategy strategy) {
+                mSwitchPeer = peer;
+                sendMessage(
+                    peer, StrategySelector.SWITCH, MessageCodec.NO_CHANNEL, strategy, true);
+              }
+
+              @Override
+              public void reconnect() {
+                reconnectToSwitchPeer();
+              }
+
+              @Override
+              public void onSwitchAbandoned() {
+                final Endpoint peer = mSwitchPeer;
+                mSwitchPeer = null;
+                mManager.stopAdvertising();
+                mManager.stopDiscovering();
+                mStrategySelector.reset();
+                if (peer != null) {
+                  mEventStream.publish(ConnectionEventStream.Type.ENDPOINT_DISCONNECTED, peer);
+                  deliver(
+                      new Runnable() {
+                        @Override
+                        public void run() {
+                          mCallbacks.onEndpointDisconnected(peer);
+                        }
+                      });
+                }
+              }
+            });
+    mMessageCodec.register(
+        StrategySelector.SWITCH,
+        new MessageCodec.Handler<Strategy>() {
+          @Override
+          public void onMessage(Endpoint endpoint, int channel, Strategy strategy) {
+            if (mStrategySelector.isReconnecting()) {
+              // We asked them at the same time, and are already on our way.
+              return;
+            }
+            Log.d(TAG, String.format("Switching strategies at the request of %s", endpoint));
+            mSwitchPeer = endpoint;
+            mStrategySelector.onSwitchRequested(strategy);
+          }
+        });
+
+    mAdmissionController =
+        new AdmissionController(
+            new AdmissionController.Host() {
+              @Override
+              public Collection<Endpoint> getConnectedEndpoints() {
+                return mManager.getConnectedEndpoints();
+              }
+
+              @Override
+              public Collection<Endpoint> getDiscoveredEndpoints() {
+                return mManager.getDiscoveredEndpoints();
+              }
+
+              @Override
+              public long getTotalBytes() {
+                return mManager.getPayloadTracker().getTotalBytes();
+              }
+
+              @Override
+              public float getUnderrunsPerMinute() {
+                return mCallbacks == null ? 0 : mCallbacks.getAudioUnderrunRate();
+              }
+
+              @Override
+              public void shed(Endpoint endpoint, @Nullable Endpoint hub) {
+                turnAway(endpoint, hub == null ? "" : hub.getName());
+              }
+            },
+            metrics);
+    mMessageCodec.register(
+        AdmissionController.BUSY,
+        new MessageCodec.Handler<String>() {
+          @Override
+          public void onMessage(Endpoint endpoint, int channel, String hub) {
+            Log.d(TAG, String.format("%s is busy; it suggested we try \"%s\"", endpoint, hub));
+            mAdmissionController.onBusy(endpoint);
+            // It's about to let us go. That's no reason to keep knocking on its door.
+            mManager.getReconnectionEngine().forget(endpoint.getName());
+            mSuggestedHub = hub.isEmpty() ? null : hub;
+            if (!mManager.getConnectedEndpoints().contains(endpoint)) {
+              // The message was decoded after the disconnect it came with had already arrived.
+              offerSuggestedHub(findSuggestedHub());
+            }
+          }
+        });
+
+    if (Strategy.P2P_CLUSTER.equals(strategy)) {
+      mMeshRouter =
+          new MeshRouter(
+              mMessageCodec,
+              new MeshRouter.Transport() {
+                @Override
+                public void send(Endpoint endpoint, byte[] message) {
+                  mMessageBatcher.send(endpoint, message, /* realTime= */ false);
+                }
+
+                @Override
+                public Collection<Endpoint> getNeighbors() {
+                  return mManager.getConnectedEndpoints();
+                }
+              });
+    } else {
+      mMeshRouter = null;
+    }
+  }
+
+  /**
+   * Starts handing events to {@code callbacks}, beginning with anything that came up while nobody
+   * was attached.
+   */
+  public void attach(Callbacks callbacks) {
+    mCallbacks = callbacks;
+    mName = callbacks.getName();
+    mServiceId = callbacks.getServiceId();
+    mManager.addListener(mListener);
+    mStrategySelector.start();
+    mAdmissionController.start();
+    mPayloadDispatcher.setHeld(false);
+    List<Runnable> pending = new ArrayList<>(mPendingCallbacks);
+    mPendingCallbacks.clear();
+    for (Runnable callback : pending) {
+      callback.run();
+    }
+  }
+
+  /**
+   * Stops handing events to the Activity. Until the next one attaches, they're held for it.
+   *
+   * @param changingConfigurations True if the Activity is only being recreated.
+   */
+  public void detach(boolean changingConfigurations) {
+    mMessageBatcher.flushAll();
+    mStrategySelector.stop();
+    mAdmissionController.stop();
+    mPayloadDispatcher.setHeld(true);
+    mManager.removeListener(mListener, changingConfigurations);
+    mCallbacks = null;
+  }
+
+  /** Calls the Activity back now if it's attached, or else as soon as one is. */
+  private void deliver(Runnable callback) {
+    if (mCallbacks != null) {
+      callback.run();
+    } else {
+      mPendingCallbacks.add(callback);
+    }
+  }
+
+  /** Accepts a connection request. */
+  public void acceptConnection(Endpoint endpoint) {
+    mManager.getMetrics().onConnectionAccepted();
+    mManager.acceptConnection(endpoint);
+  }
+
+  /** Rejects a connection request. */
+  public void rejectConnection(Endpoint endpoint) {
+    mManager.getMetrics().onConnectionRejected();
+    mManager.rejectConnection(endpoint);
+  }
+
+  /** Schedules a connection request to the endpoint, under the name we go by. */
+  public void connectToEndpoint(Endpoint endpoint) {
+    Log.v(TAG, "Scheduling a connection request to endpoint " + endpoint);
+    mManager.getMetrics().onConnectionRequested(endpoint.getId());
+    mManager.connectToEndpoint(mName, endpoint);
+  }
+
+  /** Returns the strategy we're currently advertising and discovering with. */
+  public Strategy getStrategy() {
+    return mStrategySelector.getStrategy();
+  }
+
+  /** Starts handing received messages of this type to {@code handler}. */
+  public <T> void registerMessageHandler(
+      MessageCodec.MessageType<T> type, MessageCodec.Handler<T> handler) {
+    mMessageCodec.register(type, handler);
+  }
+
+  /** {@see PayloadDispatcher#setOffMainThread(boolean)} */
+  public void setReceiveOffMainThread(boolean offMainThread) {
+    mPayloadDispatcher.setOffMainThread(offMainThread);
+  }
+
+  /** Sends a typed message to all currently connected endpoints. */
+  public <T> void sendMessage(MessageCodec.MessageType<T> type, T message, boolean realTime) {
+    byte[] bytes = mMessageCodec.encode(type, message);
+    for (Endpoint endpoint : mManager.getConnectedEndpoints()) {
+      mMessageBatcher.send(endpoint, bytes, realTime);
+    }
+  }
+
+  /** Sends a typed message to a single connected endpoint. */
+  public <T> void sendMessage(
+      Endpoint endpoint,
+      MessageCodec.MessageType<T> type,
+      int channel,
+      T message,
+      boolean realTime) {
+    mMessageBatcher.send(endpoint, mMessageCodec.encode(type, channel, message), realTime);
+  }
+
+  /** {@see MessageBatcher#setPolicy(int, long)} */
+  public void setMessageBatchPolicy(int maxBatchBytes, long maxDelayMillis) {
+    mMessageBatcher.setPolicy(maxBatchBytes, maxDelayMillis);
+  }
+
+  /** Floods a typed message to every device within {@code ttl} hops. */
+  public <T> void floodMessage(MessageCodec.MessageType<T> type, T message, int ttl) {
+    if (mMeshRouter == null) {
+      throw new IllegalStateException("Flooding needs the P2P_CLUSTER strategy");
+    }
+    mMeshRouter.broadcast(type, message, ttl);
+  }
+
+  /** Returns the id of the device that flooded the message whose handler is running, or 0. */
+  public long getFloodOrigin() {
+    return mMeshRouter == null ? 0 : mMeshRouter.getCurrentOrigin();
+  }
+
+  /** Sends a file of any size to a connected endpoint, in verified chunks. */
+  public long sendFile(Endpoint endpoint, File file) throws IOException {
+    return mTransferManager.send(endpoint, file);
+  }
+
+  /** Returns the stream of the same events the Activity's callbacks receive. */
+  public ConnectionEventStream getEventStream() {
+    return mEventStream;
+  }
+
+  /** {@see AdmissionController#setLimits(AdmissionController.Limits)} */
+  public void setAdmissionLimits(AdmissionController.Limits limits) {
+    mAdmissionController.setLimits(limits);
+  }
+
+  /** Writes the state of everything in the session, in a human readable form. */
+  public void dump(String prefix, PrintWriter writer) {
+    mMessageCodec.dump(prefix, writer);
+    mMessageBatcher.dump(prefix, writer);
+    mPayloadDispatcher.dump(prefix, writer);
+    mTransferManager.dump(prefix, writer);
+    mStrategySelector.dump(prefix, writer);
+    mAdmissionController.dump(prefix, writer);
+    mEventStream.dump(prefix, writer);
+    if (mMeshRouter != null) {
+      mMeshRouter.dump(prefix, writer);
+    }
+    writer.print(prefix);
+    writer.println(
+        String.format(
+            Locale.US,
+            "ConnectionSession{attached=%b, pendingCallbacks=%d, turningAway=%d, switchPeer=%s}",
+            mCallbacks != null,
+            mPendingCallbacks.size(),
+            mTurningAway.size(),
+            mSwitchPeer));
+  }
+
+  /**
+   * Tells a connected device we're {@link AdmissionController#BUSY busy}, pointing it at {@code
+   * hub}, and disconnects it once it's had a moment to hear us. The Activity is told it's
+   * disconnected, unless it was only connected to be turned away.
+   */
+  private void turnAway(final Endpoint endpoint, String hub) {
+    sendMessage(endpoint, AdmissionController.BUSY, MessageCodec.NO_CHANNEL, hub, true);
+    mHandler.postDelayed(
+        new Runnable() {
+          @Override
+          public void run() {
+            boolean steered = mTurningAway.remove(endpoint.getId()) != null;
+            if (!steered && !mManager.getConnectedEndpoints().contains(endpoint)) {
+              // They beat us to it.
+              return;
+            }
+            mManager.disconnect(endpoint);
+            mMessageBatcher.remove(endpoint);
+            mTransferManager.onEndpointDisconnected(endpoint);
+            mAdmissionController.onDisconnected(endpoint);
+            if (!steered) {
+              mEventStream.publish(ConnectionEventStream.Type.ENDPOINT_DISCONNECTED, endpoint);
+              deliver(
+                  new Runnable() {
+                    @Override
+                    public void run() {
+                      mCallbacks.onEndpointDisconnected(endpoint);
+                    }
+                  });
+            }
+          }
+        },
+        TURN_AWAY_DELAY_MILLIS);
+  }
+
+  /**
+   * Returns the discovered endpoint a busy hub suggested we try instead, and forgets the
+   * suggestion, or returns null if there's none we can connect to.
+   */
+  @Nullable
+  private Endpoint findSuggestedHub() {
+    String name = mSuggestedHub;
+    mSuggestedHub = null;
+    if (name == null) {
+      return null;
+    }
+    for (Endpoint hub : mManager.getDiscoveredEndpoints()) {
+      if (hub.getName().equals(name)
+          && !mManager.getConnectedEndpoints().contains(hub)
+          && !mAdmissionController.isBusy(hub)) {
+        return hub;
+      }
+    }
+    return null;
+  }
+
+  /** Offers up the hub a busy hub suggested, as if it had just been discovered. */
+  private void offerSuggestedHub(@Nullable Endpoint hub) {
+    if (hub == null) {
+      return;
+    }
+    mEventStream.publish(ConnectionEventStream.Type.ENDPOINT_DISCOVERED, hub);
+    mCallbacks.onEndpointDiscovered(hub);
+  }
+
+  /** Returns true if the endpoint is the device we're switching strategies with. */
+  private boolean isSwitchPeer(Endpoint endpoint) {
+    return mSwitchPeer != null && mSwitchPeer.getName().equals(endpoint.getName());
+  }
+
+  /**
+   * Drops our connections, and looks for {@link #mSwitchPeer} again under the current strategy.
+   * One of us must advertise and the other discover, so the name that sorts first advertises.
+   */
+  private void reconnectToSwitchPeer() {
+    if (mSwitchPeer == null) {
+      return;
+    }
+    Log.d(TAG, String.format("Reconnecting to %s under a new strategy", mSwitchPeer));
+    mMessageBatcher.remove(mSwitchPeer);
+    mTransferManager.onEndpointDisconnected(mSwitchPeer);
+    mManager.stopAllEndpoints();
+    if (mName.compareTo(mSwitchPeer.getName()) < 0) {
+      mManager.startAdvertising(mName, mServiceId, getStrategy());
+    } else {
+      mManager.startDiscovering(mServiceId, getStrategy());
+    }
+  }
+}
@@ -14,29 +14,14 @@ import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.widget.Toast;
 
-import com.google.android.gms.common.api.Status;
-import com.google.android.gms.nearby.Nearby;
-import com.google.android.gms.nearby.connection.AdvertisingOptions;
 import com.google.android.gms.nearby.connection.ConnectionInfo;
-import com.google.android.gms.nearby.connection.ConnectionLifecycleCallback;
-import com.google.android.gms.nearby.connection.ConnectionResolution;
-import com.google.android.gms.nearby.connection.ConnectionsClient;
-import com.google.android.gms.nearby.connection.ConnectionsStatusCodes;
-import com.google.android.gms.nearby.connection.DiscoveredEndpointInfo;
-import com.google.android.gms.nearby.connection.DiscoveryOptions;
-import com.google.android.gms.nearby.connection.EndpointDiscoveryCallback;
 import com.google.android.gms.nearby.connection.Payload;
-import com.google.android.gms.nearby.connection.PayloadCallback;
-import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
 import com.google.android.gms.nearby.connection.Strategy;
-import com.google.android.gms.tasks.OnFailureListener;
-import com.google.android.gms.tasks.OnSuccessListener;
-
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Locale;
-import java.util.Map;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.Set;
 
 import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
@@ -60,92 +45,108 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
 
   private static final int REQUEST_CODE_REQUIRED_PERMISSIONS = 1;
 
-  /** Our handler to Nearby Connections. */
-  private ConnectionsClient mConnectionsClient;
-
-  /** The devices we've discovered near us. */
-  private final Map<String, Endpoint> mDiscoveredEndpoints = new HashMap<>();
+  /** Owns our connections. It outlives us, so we keep them across configuration changes. */
+  private NearbyConnectionManager mManager;
 
   /**
-   * The devices we have pending connections to. They will stay pending until we call {@link
-   * #acceptConnection(Endpoint)} or {@link #rejectConnection(Endpoint)}.
+   * Everything else we know about the session, from the messages in flight to a strategy switch
+   * in progress. It's kept by {@link #mManager}, so it outlives us too.
    */
-  private final Map<String, Endpoint> mPendingConnections = new HashMap<>();
+  private ConnectionSession mSession;
 
-  /**
-   * The devices we are currently connected to. For advertisers, this may be large. For discoverers,
-   * there will only be one entry in this map.
-   */
-  private final Map<String, Endpoint> mEstablishedConnections = new HashMap<>();
+  /** Hands the session's events to subclasses while we're started. */
+  private final ConnectionSession.Callbacks mCallbacks =
+      new ConnectionSession.Callbacks() {
+        @Override
+        public String getName() {
+          return ConnectionsActivity.this.getName();
+        }
 
-  /**
-   * True if we are asking a discovered device to connect to us. While we ask, we cannot ask another
-   * device.
-   */
-  private boolean mIsConnecting = false;
+        @Override
+        public String getServiceId() {
+          return ConnectionsActivity.this.getServiceId();
+        }
+
+        @Override
+        public float getAudioUnderrunRate() {
+          return ConnectionsActivity.this.getAudioUnderrunRate();
+        }
+
+        @Override
+        public void onAdvertisingStarted() {
+          ConnectionsActivity.this.onAdvertisingStarted();
+        }
+
+        @Override
+        public void onAdvertisingFailed() {
+          logW("startAdvertising() failed.");
+          ConnectionsActivity.this.onAdvertisingFailed();
+        }
+
+        @Override
+        public void onDiscoveryStarted() {
+          ConnectionsActivity.this.onDiscoveryStarted();
+        }
 
-  /** True if we are discovering. */
-  private boolean mIsDiscovering = false;
+        @Override
+        public void onDiscoveryFailed() {
+          logW("startDiscovering() failed.");
+          ConnectionsActivity.this.onDiscoveryFailed();
+        }
 
-  /** True if we are advertising. */
-  private boolean mIsAdvertising = false;
+        @Override
+        public void onEndpointDiscovered(Endpoint endpoint) {
+          logD(String.format("onEndpointDiscovered(endpoint=%s)", endpoint));
+          ConnectionsActivity.this.onEndpointDiscovered(endpoint);
+        }
 
-  /** Callbacks for connections to other devices. */
-  private final ConnectionLifecycleCallback mConnectionLifecycleCallback =
-      new ConnectionLifecycleCallback() {
         @Override
-        public void onConnectionInitiated(String endpointId, ConnectionInfo connectionInfo) {
+        public void onConnectionInitiated(Endpoint endpoint, ConnectionInfo connectionInfo) {
           logD(
               String.format(
                   "onConnectionInitiated(endpointId=%s, endpointName=%s)",
-                  endpointId, connectionInfo.getEndpointName()));
-          Endpoint endpoint = new Endpoint(endpointId, connectionInfo.getEndpointName());
-          mPendingConnections.put(endpointId, endpoint);
+                  endpoint.getId(), connectionInfo.getEndpointName()));
           ConnectionsActivity.this.onConnectionInitiated(endpoint, connectionInfo);
         }
 
         @Override
-        public void onConnectionResult(String endpointId, ConnectionResolution result) {
-          logD(String.format("onConnectionResponse(endpointId=%s, result=%s)", endpointId, result));
-
-          // We're no longer connecting
-          mIsConnecting = false;
-
-          if (!result.getStatus().isSuccess()) {
-            logW(
-                String.format(
-                    "Connection failed. Received status %s.",
-                    ConnectionsActivity.toString(result.getStatus())));
-            onConnectionFailed(mPendingConnections.remove(endpointId));
-            return;
-          }
-          connectedToEndpoint(mPendingConnections.remove(endpointId));
+        public void onConnectionFailed(Endpoint endpoint) {
+          logW(String.format("onConnectionFailed(endpoint=%s)", endpoint));
+          ConnectionsActivity.this.onConnectionFailed(endpoint);
         }
 
         @Override
-        public void onDisconnected(String endpointId) {
-          if (!mEstablishedConnections.containsKey(endpointId)) {
-            logW("Unexpected disconnection from endpoint " + endpointId);
-            return;
-          }
-          disconnectedFromEndpoint(mEstablishedConnections.get(endpointId));
+        public void onEndpointConnected(Endpoint endpoint) {
+          logD(String.format("connectedToEndpoint(endpoint=%s)", endpoint));
+          ConnectionsActivity.this.onEndpointConnected(endpoint);
         }
-      };
 
-  /** Callbacks for payloads (bytes of data) sent from another device to us. */
-  private final PayloadCallback mPayloadCallback =
-      new PayloadCallback() {
         @Override
-        public void onPayloadReceived(String endpointId, Payload payload) {
-          logD(String.format("onPayloadReceived(endpointId=%s, payload=%s)", endpointId, payload));
-          onReceive(mEstablishedConnections.get(endpointId), payload);
+        public void onEndpointDisconnected(Endpoint endpoint) {
+          logD(String.format("disconnectedFromEndpoint(endpoint=%s)", endpoint));
+          ConnectionsActivity.this.onEndpointDisconnected(endpoint);
         }
 
         @Override
-        public void onPayloadTransferUpdate(String endpointId, PayloadTransferUpdate update) {
-          logD(
-              String.format(
-                  "onPayloadTransferUpdate(endpointId=%s, update=%s)", endpointId, update));
+        public void onReceive(@Nullable Endpoint endpoint, Payload payload) {
+          ConnectionsActivity.this.onReceive(endpoint, payload);
+        }
+
+        @Override
+        public void onTransferProgress(long transferId, long bytesDone, long totalBytes) {
+          ConnectionsActivity.this.onTransferProgress(transferId, bytesDone, totalBytes);
+        }
+
+        @Override
+        public void onFileReceived(Endpoint endpoint, File file) {
+          logD(String.format("onFileReceived(endpoint=%s, file=%s)", endpoint, file));
+          ConnectionsActivity.this.onFileReceived(endpoint, file);
+        }
+
+        @Override
+        public void onTransferFailed(long transferId) {
+          logW(String.format("onTransferFailed(transferId=%x)", transferId));
+          ConnectionsActivity.this.onTransferFailed(transferId);
         }
       };
 
@@ -153,13 +154,17 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
   @Override
   protected void onCreate(@Nullable Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
-    mConnectionsClient = Nearby.getConnectionsClient(this);
+    mManager = NearbyConnectionManager.getInstance(this);
+    AudioPlayer.registerMetrics(mManager.getMetrics().getRegistry());
+    mSession = mManager.getSession(getStrategy(), getExpectedGroupSize() <= 2);
   }
 
   /** Called when our Activity has been made visible to the user. */
   @Override
   protected void onStart() {
     super.onStart();
+    mSession.attach(mCallbacks);
+    mManager.getMetricsExporter().start();
     if (!hasPermissions(this, getRequiredPermissions())) {
       if (!hasPermissions(this, getRequiredPermissions())) {
         if (Build.VERSION.SDK_INT < 23) {
@@ -172,6 +177,54 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
     }
   }
 
+  /**
+   * Called when our Activity is no longer visible. Our connections are kept if we're only being
+   * recreated, and otherwise for a short grace period in case the user comes right back.
+   */
+  @Override
+  protected void onStop() {
+    mSession.detach(isChangingConfigurations());
+    if (!isChangingConfigurations()) {
+      mManager.getMetricsExporter().stop();
+    }
+    super.onStop();
+  }
+
+  /** Adds our connection statistics to {@code adb shell dumpsys activity}. */
+  @Override
+  public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+    if (args != null && args.length > 0 && "--trace-start".equals(args[0])) {
+      mManager.getTraceRecorder().start();
+      writer.println("Recording a trace. Stop it with --trace-stop.");
+      return;
+    }
+    if (args != null && args.length > 0 && "--trace-stop".equals(args[0])) {
+      File dir = new File(getFilesDir(), "traces");
+      File file = new File(dir, "trace-" + System.currentTimeMillis() + ".nct");
+      try {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+          throw new IOException("Unable to create " + dir);
+        }
+        int events = mManager.getTraceRecorder().stop(file);
+        writer.println(
+            events < 0 ? "Not recording a trace." : "Wrote " + events + " events to " + file);
+      } catch (IOException e) {
+        writer.println("Unable to write the trace: " + e);
+      }
+      return;
+    }
+    super.dump(prefix, fd, writer, args);
+    mManager.getPayloadTracker().dump(prefix, writer);
+    mManager.getReconnectionEngine().dump(prefix, writer);
+    mManager.getConnectionScheduler().dump(prefix, writer);
+    mManager.getEventLog().dump(prefix, writer);
+    mManager.getTraceRecorder().dump(prefix, writer);
+    mManager.getMetrics().getRegistry().dump(prefix, writer);
+    mSession.dump(prefix, writer);
+    writer.print(prefix);
+    writer.println(mManager.getSendQueue());
+  }
+
   /** Called when the user has accepted (or denied) our permission request. */
   @CallSuper
   @Override
@@ -196,46 +249,17 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
    * we've found out if we successfully entered this mode.
    */
   protected void startAdvertising() {
-    mIsAdvertising = true;
-    final String localEndpointName = getName();
-
-    AdvertisingOptions.Builder advertisingOptions = new AdvertisingOptions.Builder();
-    advertisingOptions.setStrategy(getStrategy());
-
-    mConnectionsClient
-        .startAdvertising(
-            localEndpointName,
-            getServiceId(),
-            mConnectionLifecycleCallback,
-            advertisingOptions.build())
-        .addOnSuccessListener(
-            new OnSuccessListener<Void>() {
-              @Override
-              public void onSuccess(Void unusedResult) {
-                logV("Now advertising endpoint " + localEndpointName);
-                onAdvertisingStarted();
-              }
-            })
-        .addOnFailureListener(
-            new OnFailureListener() {
-              @Override
-              public void onFailure(@NonNull Exception e) {
-                mIsAdvertising = false;
-                logW("startAdvertising() failed.", e);
-                onAdvertisingFailed();
-              }
-            });
+    mManager.startAdvertising(getName(), getServiceId(), getCurrentStrategy());
   }
 
   /** Stops advertising. */
   protected void stopAdvertising() {
-    mIsAdvertising = false;
-    mConnectionsClient.stopAdvertising();
+    mManager.stopAdvertising();
   }
 
   /** Returns {@code true} if currently advertising. */
   protected boolean isAdvertising() {
-    return mIsAdvertising;
+    return mManager.isAdvertising();
   }
 
   /** Called when advertising successfully starts. Override this method to act on the event. */
@@ -253,29 +277,13 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
   protected void onConnectionInitiated(Endpoint endpoint, ConnectionInfo connectionInfo) {}
 
   /** Accepts a connection request. */
-  protected void acceptConnection(final Endpoint endpoint) {
-    mConnectionsClient
-        .acceptConnection(endpoint.getId(), mPayloadCallback)
-        .addOnFailureListener(
-            new OnFailureListener() {
-              @Override
-              public void onFailure(@NonNull Exception e) {
-                logW("acceptConnection() failed.", e);
-              }
-            });
+  protected void acceptConnection(Endpoint endpoint) {
+    mSession.acceptConnection(endpoint);
   }
 
   /** Rejects a connection request. */
   protected void rejectConnection(Endpoint endpoint) {
-    mConnectionsClient
-        .rejectConnection(endpoint.getId())
-        .addOnFailureListener(
-            new OnFailureListener() {
-              @Override
-              public void onFailure(@NonNull Exception e) {
-                logW("rejectConnection() failed.", e);
-              }
-            });
+    mSession.rejectConnection(endpoint);
   }
 
   /**
@@ -284,61 +292,17 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
    * out if we successfully entered this mode.
    */
   protected void startDiscovering() {
-    mIsDiscovering = true;
-    mDiscoveredEndpoints.clear();
-    DiscoveryOptions.Builder discoveryOptions = new DiscoveryOptions.Builder();
-    discoveryOptions.setStrategy(getStrategy());
-    mConnectionsClient
-        .startDiscovery(
-            getServiceId(),
-            new EndpointDiscoveryCallback() {
-              @Override
-              public void onEndpointFound(String endpointId, DiscoveredEndpointInfo info) {
-                logD(
-                    String.format(
-                        "onEndpointFound(endpointId=%s, serviceId=%s, endpointName=%s)",
-                        endpointId, info.getServiceId(), info.getEndpointName()));
-
-                if (getServiceId().equals(info.getServiceId())) {
-                  Endpoint endpoint = new Endpoint(endpointId, info.getEndpointName());
-                  mDiscoveredEndpoints.put(endpointId, endpoint);
-                  onEndpointDiscovered(endpoint);
-                }
-              }
-
-              @Override
-              public void onEndpointLost(String endpointId) {
-                logD(String.format("onEndpointLost(endpointId=%s)", endpointId));
-              }
-            },
-            discoveryOptions.build())
-        .addOnSuccessListener(
-            new OnSuccessListener<Void>() {
-              @Override
-              public void onSuccess(Void unusedResult) {
-                onDiscoveryStarted();
-              }
-            })
-        .addOnFailureListener(
-            new OnFailureListener() {
-              @Override
-              public void onFailure(@NonNull Exception e) {
-                mIsDiscovering = false;
-                logW("startDiscovering() failed.", e);
-                onDiscoveryFailed();
-              }
-            });
+    mManager.startDiscovering(getServiceId(), getCurrentStrategy());
   }
 
   /** Stops discovery. */
   protected void stopDiscovering() {
-    mIsDiscovering = false;
-    mConnectionsClient.stopDiscovery();
+    mManager.stopDiscovering();
   }
 
   /** Returns {@code true} if currently discovering. */
   protected boolean isDiscovering() {
-    return mIsDiscovering;
+    return mManager.isDiscovering();
   }
 
   /** Called when discovery successfully starts. Override this method to act on the event. */
@@ -355,68 +319,33 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
 
   /** Disconnects from the given endpoint. */
   protected void disconnect(Endpoint endpoint) {
-    mConnectionsClient.disconnectFromEndpoint(endpoint.getId());
-    mEstablishedConnections.remove(endpoint.getId());
+    mManager.disconnect(endpoint);
   }
 
   /** Disconnects from all currently connected endpoints. */
   protected void disconnectFromAllEndpoints() {
-    for (Endpoint endpoint : mEstablishedConnections.values()) {
-      mConnectionsClient.disconnectFromEndpoint(endpoint.getId());
-    }
-    mEstablishedConnections.clear();
+    mManager.disconnectFromAllEndpoints();
   }
 
   /** Resets and clears all state in Nearby Connections. */
   protected void stopAllEndpoints() {
-    mConnectionsClient.stopAllEndpoints();
-    mIsAdvertising = false;
-    mIsDiscovering = false;
-    mIsConnecting = false;
-    mDiscoveredEndpoints.clear();
-    mPendingConnections.clear();
-    mEstablishedConnections.clear();
-  }
-
-  /**
-   * Sends a connection request to the endpoint. Either {@link #onConnectionInitiated(Endpoint,
-   * ConnectionInfo)} or {@link #onConnectionFailed(Endpoint)} will be called once we've found out
-   * if we successfully reached the device.
-   */
-  protected void connectToEndpoint(final Endpoint endpoint) {
-    logV("Sending a connection request to endpoint " + endpoint);
-    // Mark ourselves as connecting so we don't connect multiple times
-    mIsConnecting = true;
-
-    // Ask to connect
-    mConnectionsClient
-        .requestConnection(getName(), endpoint.getId(), mConnectionLifecycleCallback)
-        .addOnFailureListener(
-            new OnFailureListener() {
-              @Override
-              public void onFailure(@NonNull Exception e) {
-                logW("requestConnection() failed.", e);
-                mIsConnecting = false;
-                onConnectionFailed(endpoint);
-              }
-            });
-  }
-
-  /** Returns {@code true} if we're currently attempting to connect to another device. */
-  protected final boolean isConnecting() {
-    return mIsConnecting;
+    mManager.stopAllEndpoints();
   }
 
-  private void connectedToEndpoint(Endpoint endpoint) {
-    logD(String.format("connectedToEndpoint(endpoint=%s)", endpoint));
-    mEstablishedConnections.put(endpoint.getId(), endpoint);
-    onEndpointConnected(endpoint);
+  /**
+   * Sends a connection request to the endpoint, once it's the endpoint's turn. Either {@link
+   * #onConnectionInitiated(Endpoint, ConnectionInfo)} or {@link #onConnectionFailed(Endpoint)} will
+   * be called once we've found out if we successfully reached the device. Failed requests are
+   * retried a few times before {@link #onConnectionFailed(Endpoint)} is called.
+   */
+  protected void connectToEndpoint(Endpoint endpoint) {
+    logV("Scheduling a connection request to endpoint " + endpoint);
+    mSession.connectToEndpoint(endpoint);
   }
 
-  private void disconnectedFromEndpoint(Endpoint endpoint) {
-    logD(String.format("disconnectedFromEndpoint(endpoint=%s)", endpoint));
-    mEstablishedConnections.remove(endpoint.getId());
-    onEndpointDisconnected(endpoint);
+  /** Returns {@code true} if we're currently attempting to connect to another device. */
+  protected final boolean isConnecting() {
+    return mManager.isConnecting();
   }
 
   /**
@@ -431,37 +360,185 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
   /** Called when someone has disconnected. Override this method to act on the event. */
   protected void onEndpointDisconnected(Endpoint endpoint) {}
 
-  /** Returns a list of currently connected endpoints. */
+  /**
+   * Returns an immutable snapshot of the currently discovered endpoints. Endpoints that have gone
+   * away aren't included.
+   */
   protected Set<Endpoint> getDiscoveredEndpoints() {
-    return new HashSet<>(mDiscoveredEndpoints.values());
+    return mManager.getDiscoveredEndpoints();
   }
 
-  /** Returns a list of currently connected endpoints. */
+  /** Returns an immutable snapshot of the currently connected endpoints. */
   protected Set<Endpoint> getConnectedEndpoints() {
-    return new HashSet<>(mEstablishedConnections.values());
+    return mManager.getConnectedEndpoints();
+  }
+
+  /**
+   * Tells us the subclass moved to a new state, so we can measure how long it spends in each.
+   * Subclasses with a state machine should call this on every transition.
+   */
+  protected void recordStateChange(String state) {
+    mManager.getMetrics().onStateChanged(state);
+  }
+
+  /**
+   * Returns the strategy we're advertising and discovering with. It starts out as {@link
+   * #getStrategy()}, but a busy one to one session may have been switched to {@link
+   * Strategy#P2P_POINT_TO_POINT}, for as long as it lasts.
+   */
+  protected Strategy getCurrentStrategy() {
+    return mSession.getStrategy();
+  }
+
+  /** Returns true if we've recently been connected to a device with the same name. */
+  protected boolean isKnownPeer(Endpoint endpoint) {
+    return mManager.getPeerCache().contains(endpoint.getName());
+  }
+
+  /**
+   * Returns the name we should go by. It's remembered across restarts, so that the devices we've
+   * been connected to recognize us when they find us again. {@code defaultName} is used, and
+   * remembered, the first time.
+   */
+  protected String getPersistentName(String defaultName) {
+    return mManager.getPeerCache().getLocalName(defaultName);
   }
 
   /**
-   * Sends a {@link Payload} to all currently connected endpoints.
+   * Sends a {@link Payload} to all currently connected endpoints. Endpoints that already have too
+   * much data in flight hold on to the payload, or refuse it, depending on the send policy.
    *
    * @param payload The data you want to send.
+   * @return False if any endpoint was too backed up to accept the payload.
+   */
+  protected boolean send(Payload payload) {
+    return mManager.send(payload);
+  }
+
+  /**
+   * Sends a {@link Payload} to all currently connected endpoints, ahead of waiting payloads with a
+   * lower priority. Audio should be sent as {@link PayloadSendQueue.Priority#REAL_TIME}.
+   *
+   * @return False if any endpoint was too backed up to accept the payload.
+   */
+  protected boolean send(Payload payload, PayloadSendQueue.Priority priority) {
+    return mManager.send(payload, priority);
+  }
+
+  /**
+   * Sends a {@link Payload} to a single connected endpoint.
+   *
+   * @return False if the endpoint was too backed up to accept the payload.
+   */
+  protected boolean send(Endpoint endpoint, Payload payload) {
+    return mManager.send(endpoint, payload);
+  }
+
+  /**
+   * Sends a {@link Payload} to a single connected endpoint, ahead of waiting payloads with a lower
+   * priority. {@link PayloadSendQueue.Priority#BULK} payloads are paced while our audio stream to
+   * the endpoint is falling behind.
+   *
+   * @return False if the endpoint was too backed up to accept the payload.
+   */
+  protected boolean send(Endpoint endpoint, Payload payload, PayloadSendQueue.Priority priority) {
+    return mManager.send(endpoint, payload, priority);
+  }
+
+  /** Changes what happens to payloads sent to an endpoint that already has too much in flight. */
+  protected void setSendPolicy(PayloadSendQueue.Policy policy) {
+    mManager.setSendPolicy(policy);
+  }
+
+  /**
+   * Starts handing received messages of this type to {@code handler}, instead of to {@link
+   * #onReceive(Endpoint, Payload)}.
+   */
+  protected <T> void registerMessageHandler(
+      MessageCodec.MessageType<T> type, MessageCodec.Handler<T> handler) {
+    mSession.registerMessageHandler(type, handler);
+  }
+
+  /**
+   * Decodes received payloads on the main thread, as they arrive, if false. Received messages and
+   * payloads are always handed to us on the main thread, either way; this is only meant for
+   * measuring what decoding them elsewhere saves.
+   */
+  protected void setReceiveOffMainThread(boolean offMainThread) {
+    mSession.setReceiveOffMainThread(offMainThread);
+  }
+
+  /**
+   * Sends a typed message to all currently connected endpoints. Small messages are batched with
+   * others for a few milliseconds, unless {@code realTime} is set.
+   *
+   * @param realTime True to send the message right away, eg. for a floor request.
+   */
+  protected <T> void sendMessage(MessageCodec.MessageType<T> type, T message, boolean realTime) {
+    mSession.sendMessage(type, message, realTime);
+  }
+
+  /**
+   * Sends a typed message to a single connected endpoint. Small messages are batched with others
+   * for a few milliseconds, unless {@code realTime} is set.
+   *
+   * @param channel A channel id of 0 or more, or {@link MessageCodec#NO_CHANNEL}.
+   * @param realTime True to send the message right away, eg. for a floor request.
+   */
+  protected <T> void sendMessage(
+      Endpoint endpoint,
+      MessageCodec.MessageType<T> type,
+      int channel,
+      T message,
+      boolean realTime) {
+    mSession.sendMessage(endpoint, type, channel, message, realTime);
+  }
+
+  /** Changes how large a batch of messages may grow, and how long it may wait, before it's sent. */
+  protected void setMessageBatchPolicy(int maxBatchBytes, long maxDelayMillis) {
+    mSession.setMessageBatchPolicy(maxBatchBytes, maxDelayMillis);
+  }
+
+  /**
+   * Floods a typed message to every device within {@link MeshRouter#DEFAULT_TTL} hops, not just the
+   * ones we're connected to. Only available when our strategy is {@link Strategy#P2P_CLUSTER}.
+   */
+  protected <T> void floodMessage(MessageCodec.MessageType<T> type, T message) {
+    floodMessage(type, message, MeshRouter.DEFAULT_TTL);
+  }
+
+  /** Floods a typed message to every device within {@code ttl} hops. */
+  protected <T> void floodMessage(MessageCodec.MessageType<T> type, T message, int ttl) {
+    mSession.floodMessage(type, message, ttl);
+  }
+
+  /**
+   * Returns the id of the device that flooded the message whose handler is running. The endpoint
+   * handed to the handler is only the neighbor that passed the message on to us.
    */
-  protected void send(Payload payload) {
-    send(payload, mEstablishedConnections.keySet());
+  protected long getFloodOrigin() {
+    return mSession.getFloodOrigin();
   }
 
-  private void send(Payload payload, Set<String> endpoints) {
-    mConnectionsClient
-        .sendPayload(new ArrayList<>(endpoints), payload)
-        .addOnFailureListener(
-            new OnFailureListener() {
-              @Override
-              public void onFailure(@NonNull Exception e) {
-                logW("sendPayload() failed.", e);
-              }
-            });
+  /**
+   * Sends a file of any size to a connected endpoint, in verified chunks. If the connection drops,
+   * the transfer resumes where it left off once the endpoint reconnects.
+   *
+   * @return The transfer's id.
+   */
+  protected long sendFile(Endpoint endpoint, File file) throws IOException {
+    return mSession.sendFile(endpoint, file);
   }
 
+  /** Called as a file transfer, in either direction, progresses. */
+  protected void onTransferProgress(long transferId, long bytesDone, long totalBytes) {}
+
+  /** Called when a file sent with {@link #sendFile} has arrived. */
+  protected void onFileReceived(Endpoint endpoint, File file) {}
+
+  /** Called when a file transfer was abandoned. */
+  protected void onTransferFailed(long transferId) {}
+
   /**
    * Someone connected to us has sent us data. Override this method to act on the event.
    *
@@ -493,23 +570,50 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
    * Returns the strategy we use to connect to other devices. Only devices using the same strategy
    * and service id will appear when discovering. Stragies determine how many incoming and outgoing
    * connections are possible at the same time, as well as how much bandwidth is available for use.
+   * By default, it's picked from {@link #getExpectedGroupSize()} and {@link #getWorkload()}.
+   */
+  protected Strategy getStrategy() {
+    return StrategySelector.select(getExpectedGroupSize(), getWorkload());
+  }
+
+  /**
+   * Returns how many devices, ourselves included, we expect in a session, or 0 if we don't know.
+   * Sessions expected to hold more than 2 are never switched to {@link
+   * Strategy#P2P_POINT_TO_POINT}.
    */
-  protected abstract Strategy getStrategy();
+  protected int getExpectedGroupSize() {
+    return 0;
+  }
+
+  /** Returns what we'll mostly be sending. */
+  protected StrategySelector.Workload getWorkload() {
+    return StrategySelector.Workload.MESSAGING;
+  }
 
   /**
-   * Transforms a {@link Status} into a English-readable message for logging.
-   *
-   * @param status The current status
-   * @return A readable String. eg. [404]File not found.
+   * Returns a stream of the same events our callbacks receive, for components that want to follow
+   * along on a thread of their own, eg. with {@code
+   * getEventStream().subscribe(subscriber, executor)}. The stream belongs to the session, not to
+   * us, so subscriptions outlive a recreated Activity; cancel them when you're done.
+   */
+  protected ConnectionEventStream getEventStream() {
+    return mSession.getEventStream();
+  }
+
+  /**
+   * Changes how many devices, and how much traffic, CPU and audio load, we take on before we turn
+   * new devices away.
+   */
+  protected void setAdmissionLimits(AdmissionController.Limits limits) {
+    mSession.setAdmissionLimits(limits);
+  }
+
+  /**
+   * Returns how many times a minute audio playback runs dry. Devices are turned away while it's
+   * over the limit. Subclasses that play audio should override this.
    */
-  private static String toString(Status status) {
-    return String.format(
-        Locale.US,
-        "[%d]%s",
-        status.getStatusCode(),
-        status.getStatusMessage() != null
-            ? status.getStatusMessage()
-            : ConnectionsStatusCodes.getStatusCodeString(status.getStatusCode()));
+  protected float getAudioUnderrunRate() {
+    return 0;
   }
 
   /**
@@ -550,44 +654,4 @@ public abstract class ConnectionsActivity extends AppCompatActivity {
   protected void logE(String msg, Throwable e) {
     Log.e(TAG, msg, e);
   }
-
-  /** Represents a device we can talk to. */
-  protected static class Endpoint {
-    @NonNull private final String id;
-    @NonNull private final String name;
-
-    private Endpoint(@NonNull String id, @NonNull String name) {
-      this.id = id;
-      this.name = name;
-    }
-
-    @NonNull
-    public String getId() {
-      return id;
-    }
-
-    @NonNull
-    public String getName() {
-      return name;
-    }
-
-    @Override
-    public boolean equals(Object obj) {
-      if (obj instanceof Endpoint) {
-        Endpoint other = (Endpoint) obj;
-        return id.equals(other.id);
-      }
-      return false;
-    }
-
-    @Override
-    public int hashCode() {
-      return id.hashCode();
-    }
-
-    @Override
-    public String toString() {
-      return String.format("Endpoint{id=%s, name=%s}", id, name);
-    }
-  }
 }
@@ -0,0 +1,92 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import android.util.Log;
+
+/**
+ * A fixed-size, in-memory log of recent debug messages. Records are kept in preallocated parallel
+ * arrays, so memory is capped at {@code capacity} records and adding a record never allocates.
+ * Once full, the oldest record is overwritten. Nothing is formatted until a record is displayed.
+ */
+public class DebugLog {
+  private final long[] mTimes;
+  private final int[] mLevels;
+  private final String[] mMessages;
+
+  /** Where the oldest record is. */
+  private int mHead;
+
+  /** How many records we hold. */
+  private int mSize;
+
+  // Metrics
+  private long mAdded;
+  private long mAddNanos;
+
+  public DebugLog(int capacity) {
+    mTimes = new long[capacity];
+    mLevels = new int[capacity];
+    mMessages = new String[capacity];
+  }
+
+  /**
+   * Adds a record.
+   *
+   * @param level One of the {@link Log} levels, eg. {@link Log#DEBUG}.
+   */
+  public synchronized void add(int level, String message) {
+    long start = System.nanoTime();
+    int index = (mHead + mSize) % mMessages.length;
+    if (mSize == mMessages.length) {
+      mHead = (mHead + 1) % mMessages.length;
+    } else {
+      mSize++;
+    }
+    mTimes[index] = System.currentTimeMillis();
+    mLevels[index] = level;
+    mMessages[index] = message;
+    mAdded++;
+    mAddNanos += System.nanoTime() - start;
+  }
+
+  /** Returns the number of records held. */
+  public synchronized int size() {
+    return mSize;
+  }
+
+  /** Returns the wall clock time of the record at {@code position}, where 0 is the oldest. */
+  public synchronized long getTime(int position) {
+    return mTimes[indexOf(position)];
+  }
+
+  /** Returns the {@link Log} level of the record at {@code position}, where 0 is the oldest. */
+  public synchronized int getLevel(int position) {
+    return mLevels[indexOf(position)];
+  }
+
+  /** Returns the message of the record at {@code position}, where 0 is the oldest. */
+  public synchronized String getMessage(int position) {
+    return mMessages[indexOf(position)];
+  }
+
+  /** Returns how many records were added in total, including ones since overwritten. */
+  public synchronized long getAddedCount() {
+    return mAdded;
+  }
+
+  /** Returns how many records were overwritten to make room for newer ones. */
+  public synchronized long getDroppedCount() {
+    return mAdded - mSize;
+  }
+
+  /** Returns the average time it took to add a record, in nanoseconds. */
+  public synchronized long getAverageAddNanos() {
+    return mAdded == 0 ? 0 : mAddNanos / mAdded;
+  }
+
+  private int indexOf(int position) {
+    if (position < 0 || position >= mSize) {
+      throw new IndexOutOfBoundsException("position " + position + ", size " + mSize);
+    }
+    return (mHead + position) % mMessages.length;
+  }
+}
@@ -0,0 +1,181 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+import android.support.v4.content.ContextCompat;
+import android.support.v4.view.ViewCompat;
+import android.text.format.DateFormat;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.util.TypedValue;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Shows the most recent messages in a {@link DebugLog}. Adding a message only records it. The list
+ * is refreshed at most once per display frame, however many messages arrived in between, and only
+ * the rows on screen are ever formatted. Rows are recycled as the list scrolls.
+ */
+public class DebugLogView extends ListView {
+  /** How many messages we keep. */
+  private static final int CAPACITY = 500;
+
+  /** The text size of each message, in sp. */
+  private static final float TEXT_SIZE_SP = 20;
+
+  private final DebugLog mLog = new DebugLog(CAPACITY);
+  private final Adapter mAdapter = new Adapter();
+
+  private final int mVerboseColor;
+  private final int mDebugColor;
+  private final int mWarningColor;
+  private final int mErrorColor;
+
+  /** True if a refresh is already waiting for the next frame. */
+  private boolean mRefreshPending;
+
+  // Metrics
+  private long mRefreshes;
+  private long mRefreshNanos;
+
+  private final Runnable mRefreshRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          long start = System.nanoTime();
+          mRefreshPending = false;
+          mAdapter.refresh();
+          mRefreshes++;
+          mRefreshNanos += System.nanoTime() - start;
+        }
+      };
+
+  public DebugLogView(Context context) {
+    this(context, null);
+  }
+
+  public DebugLogView(Context context, @Nullable AttributeSet attrs) {
+    super(context, attrs);
+    mVerboseColor = ContextCompat.getColor(context, R.color.log_verbose);
+    mDebugColor = ContextCompat.getColor(context, R.color.log_debug);
+    mWarningColor = ContextCompat.getColor(context, R.color.log_warning);
+    mErrorColor = ContextCompat.getColor(context, R.color.log_error);
+
+    // Keep the newest messages in view, unless the user has scrolled up to read older ones.
+    setStackFromBottom(true);
+    setTranscriptMode(TRANSCRIPT_MODE_NORMAL);
+    setDivider(null);
+    setAdapter(mAdapter);
+  }
+
+  /**
+   * Adds a message. Must be called on the main thread.
+   *
+   * @param level One of the {@link Log} levels, eg. {@link Log#DEBUG}.
+   */
+  public void log(int level, String message) {
+    mLog.add(level, message);
+    if (!mRefreshPending) {
+      mRefreshPending = true;
+      ViewCompat.postOnAnimation(this, mRefreshRunnable);
+    }
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    removeCallbacks(mRefreshRunnable);
+    mRefreshPending = false;
+    super.onDetachedFromWindow();
+  }
+
+  /** Writes how much the log has cost us, in a human readable form. */
+  public void dump(String prefix, PrintWriter writer) {
+    writer.print(prefix);
+    writer.println(
+        String.format(
+            Locale.US,
+            "DebugLogView{size=%d, added=%d, dropped=%d, avgAddNs=%d, refreshes=%d, "
+                + "avgRefreshNs=%d}",
+            mLog.size(),
+            mLog.getAddedCount(),
+            mLog.getDroppedCount(),
+            mLog.getAverageAddNanos(),
+            mRefreshes,
+            mRefreshes == 0 ? 0 : mRefreshNanos / mRefreshes));
+  }
+
+  private int colorOf(int level) {
+    switch (level) {
+      case Log.VERBOSE:
+        return mVerboseColor;
+      case Log.WARN:
+        return mWarningColor;
+      case Log.ERROR:
+        return mErrorColor;
+      case Log.DEBUG:
+      default:
+        return mDebugColor;
+    }
+  }
+
+  /**
+   * Formats the messages that are on screen. ListView insists that the adapter doesn't change
+   * between notifications, so we show the log as it was at the last refresh, even if newer messages
+   * have arrived (or older ones have been overwritten) since.
+   */
+  private class Adapter extends BaseAdapter {
+    /** The number of messages, as of the last refresh. */
+    private int mCount;
+
+    /** The sequence number of the oldest message, as of the last refresh. */
+    private long mFirstSequence;
+
+    void refresh() {
+      mCount = mLog.size();
+      mFirstSequence = mLog.getAddedCount() - mCount;
+      notifyDataSetChanged();
+    }
+
+    /** Maps a position as of the last refresh to a position in the log today. */
+    private int toLogPosition(int position) {
+      long oldestSequence = mLog.getAddedCount() - mLog.size();
+      return (int) Math.max(0, mFirstSequence + position - oldestSequence);
+    }
+
+    @Override
+    public int getCount() {
+      return mCount;
+    }
+
+    @Override
+    public Object getItem(int position) {
+      return mLog.getMessage(toLogPosition(position));
+    }
+
+    @Override
+    public long getItemId(int position) {
+      return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+      TextView view = (TextView) convertView;
+      if (view == null) {
+        view = new TextView(parent.getContext());
+        view.setTextSize(TypedValue.COMPLEX_UNIT_SP, TEXT_SIZE_SP);
+      }
+      int logPosition = toLogPosition(position);
+      view.setText(
+          DateFormat.format("hh:mm", mLog.getTime(logPosition))
+              + ": "
+              + mLog.getMessage(logPosition));
+      view.setTextColor(colorOf(mLog.getLevel(logPosition)));
+      return view;
+    }
+  }
+}
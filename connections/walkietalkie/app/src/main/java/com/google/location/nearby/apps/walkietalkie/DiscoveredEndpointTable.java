@@ -0,0 +1,238 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The endpoints we've discovered, each with the time we last saw it. An endpoint leaves the table
+ * when Nearby Connections reports it lost, or when we haven't seen it for the time-to-live,
+ * whichever comes first. Expiry runs on a hashed timer wheel, so each tick only looks at the
+ * endpoints due around then, and the wheel stops ticking while the table is empty.
+ *
+ * <p>Reads go through an {@link EndpointRegistry}, so snapshots are still cheap and safe from any
+ * thread. Changes must be made on the main thread.
+ */
+public class DiscoveredEndpointTable {
+  /** How long an endpoint stays in the table if we don't hear about it again. */
+  static final long DEFAULT_TTL_MS = 2 * 60 * 1000;
+
+  /** The resolution of the timer wheel. */
+  static final long TICK_MS = 1000;
+
+  /** The number of slots on the wheel. Longer time-to-lives go around more than once. */
+  static final int WHEEL_SIZE = 64;
+
+  /** Hears about endpoints that expired. */
+  public interface Callback {
+    void onEndpointExpired(Endpoint endpoint);
+  }
+
+  private final Callback mCallback;
+  private final Scheduler mScheduler;
+  private final EndpointRegistry mEndpoints = new EndpointRegistry();
+
+  /** When we last saw each endpoint, and when it's due to expire. Keyed by endpoint id. */
+  private final Map<String, Entry> mEntries = new HashMap<>();
+
+  /** The ids of the endpoints due in each slot. */
+  private final List<Set<String>> mWheel = new ArrayList<>(WHEEL_SIZE);
+
+  private long mTtlMillis = DEFAULT_TTL_MS;
+
+  /** The last tick we've processed. */
+  private long mTick;
+
+  private boolean mTicking;
+
+  // Metrics
+  private long mLost;
+  private long mExpired;
+
+  private final Runnable mTickRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          mTicking = false;
+          advance();
+          if (!mEntries.isEmpty()) {
+            scheduleTick();
+          }
+        }
+      };
+
+  public DiscoveredEndpointTable(Callback callback) {
+    this(callback, Scheduler.MAIN_THREAD);
+  }
+
+  DiscoveredEndpointTable(Callback callback, Scheduler scheduler) {
+    mCallback = callback;
+    mScheduler = scheduler;
+    for (int i = 0; i < WHEEL_SIZE; i++) {
+      mWheel.add(new LinkedHashSet<String>());
+    }
+  }
+
+  /** Sets how long an endpoint stays in the table if we don't hear about it again. */
+  @MainThread
+  public void setTtlMillis(long ttlMillis) {
+    mTtlMillis = ttlMillis;
+  }
+
+  /** Adds the endpoint, or refreshes it if we already have it. */
+  @MainThread
+  public void put(Endpoint endpoint) {
+    if (mEntries.isEmpty()) {
+      // Nothing has been ticking, so catch the wheel up to now.
+      mTick = currentTick();
+    }
+
+    Entry entry = mEntries.get(endpoint.getId());
+    if (entry == null) {
+      entry = new Entry();
+      mEntries.put(endpoint.getId(), entry);
+    } else {
+      slotOf(entry.mExpiresAtTick).remove(endpoint.getId());
+    }
+    entry.mLastSeenMillis = mScheduler.elapsedRealtime();
+    entry.mExpiresAtTick = currentTick() + ttlTicks();
+    slotOf(entry.mExpiresAtTick).add(endpoint.getId());
+
+    mEndpoints.put(endpoint);
+    scheduleTick();
+  }
+
+  /** Removes the endpoint because Nearby Connections reported it lost. Returns it, if we had it. */
+  @MainThread
+  @Nullable
+  public Endpoint onLost(String endpointId) {
+    Endpoint endpoint = remove(endpointId);
+    if (endpoint != null) {
+      mLost++;
+    }
+    return endpoint;
+  }
+
+  /** Removes the endpoint. Returns it, or null if we didn't have it. */
+  @MainThread
+  @Nullable
+  public Endpoint remove(String endpointId) {
+    Entry entry = mEntries.remove(endpointId);
+    if (entry != null) {
+      slotOf(entry.mExpiresAtTick).remove(endpointId);
+    }
+    if (mEntries.isEmpty()) {
+      mScheduler.removeCallbacks(mTickRunnable);
+      mTicking = false;
+    }
+    return mEndpoints.remove(endpointId);
+  }
+
+  /** Removes every endpoint. */
+  @MainThread
+  public void clear() {
+    mEntries.clear();
+    for (Set<String> slot : mWheel) {
+      slot.clear();
+    }
+    mScheduler.removeCallbacks(mTickRunnable);
+    mTicking = false;
+    mEndpoints.clear();
+  }
+
+  /** Returns the endpoint with the given id, or null if there isn't one. */
+  @Nullable
+  public Endpoint get(String endpointId) {
+    return mEndpoints.get(endpointId);
+  }
+
+  /** Returns true if there's an endpoint with the given id. */
+  public boolean containsKey(String endpointId) {
+    return mEndpoints.containsKey(endpointId);
+  }
+
+  /** Returns an immutable snapshot of the endpoints. */
+  public Set<Endpoint> getEndpoints() {
+    return mEndpoints.getEndpoints();
+  }
+
+  /**
+   * Returns the {@link Scheduler#elapsedRealtime()} we last saw the endpoint at, or -1 if it's
+   * not in the table.
+   */
+  @MainThread
+  public long getLastSeenMillis(String endpointId) {
+    Entry entry = mEntries.get(endpointId);
+    return entry == null ? -1 : entry.mLastSeenMillis;
+  }
+
+  /** Returns how many endpoints were reported lost while in the table. */
+  public long getLostCount() {
+    return mLost;
+  }
+
+  /** Returns how many endpoints expired without being reported lost. */
+  public long getExpiredCount() {
+    return mExpired;
+  }
+
+  private void scheduleTick() {
+    if (!mTicking) {
+      mTicking = true;
+      mScheduler.postDelayed(mTickRunnable, TICK_MS);
+    }
+  }
+
+  /** Expires everything that's due, up to and including the current tick. */
+  private void advance() {
+    long now = currentTick();
+    while (mTick < now && !mEntries.isEmpty()) {
+      mTick++;
+      Set<String> slot = slotOf(mTick);
+      if (slot.isEmpty()) {
+        continue;
+      }
+      for (String endpointId : slot.toArray(new String[slot.size()])) {
+        // Endpoints with longer time-to-lives share the slot, but aren't due until a later trip
+        // around the wheel.
+        Entry entry = mEntries.get(endpointId);
+        if (entry != null && entry.mExpiresAtTick <= mTick) {
+          Endpoint endpoint = remove(endpointId);
+          if (endpoint != null) {
+            mExpired++;
+            mCallback.onEndpointExpired(endpoint);
+          }
+        }
+      }
+    }
+    mTick = now;
+  }
+
+  private Set<String> slotOf(long tick) {
+    return mWheel.get((int) (tick % WHEEL_SIZE));
+  }
+
+  private long currentTick() {
+    return mScheduler.elapsedRealtime() / TICK_MS;
+  }
+
+  /**
+   * Returns the time-to-live in ticks, rounded up. Rounding up by adding {@code TICK_MS - 1} first
+   * would wrap around for very long time-to-lives and expire those endpoints on the next tick.
+   */
+  private long ttlTicks() {
+    long ticks = mTtlMillis / TICK_MS + (mTtlMillis % TICK_MS == 0 ? 0 : 1);
+    return Math.max(1, ticks);
+  }
+
+  /** What we know about an endpoint's freshness. */
+  private static class Entry {
+    long mLastSeenMillis;
+    long mExpiresAtTick;
+  }
+}
@@ -0,0 +1,93 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A table of endpoints, keyed by endpoint id. Every change builds a new immutable snapshot, which
+ * readers pick up with a single volatile read. This makes reads (which happen for every payload we
+ * send) free of locks and allocation, and safe from any thread, at the cost of copying on writes
+ * (which only happen when devices come and go).
+ */
+public class EndpointRegistry {
+  /** The current contents. Replaced wholesale on every change, never modified in place. */
+  private volatile Snapshot mSnapshot = Snapshot.EMPTY;
+
+  /** Adds an endpoint, replacing any existing endpoint with the same id. */
+  public synchronized void put(Endpoint endpoint) {
+    Map<String, Endpoint> map = new HashMap<>(mSnapshot.mMap);
+    map.put(endpoint.getId(), endpoint);
+    mSnapshot = new Snapshot(map);
+  }
+
+  /** Removes the endpoint with the given id, and returns it. Returns null if there wasn't one. */
+  @Nullable
+  public synchronized Endpoint remove(String endpointId) {
+    Snapshot snapshot = mSnapshot;
+    Endpoint endpoint = snapshot.mMap.get(endpointId);
+    if (endpoint == null) {
+      return null;
+    }
+    Map<String, Endpoint> map = new HashMap<>(snapshot.mMap);
+    map.remove(endpointId);
+    mSnapshot = new Snapshot(map);
+    return endpoint;
+  }
+
+  /** Removes every endpoint. */
+  public synchronized void clear() {
+    mSnapshot = Snapshot.EMPTY;
+  }
+
+  /** Returns the endpoint with the given id, or null if there isn't one. */
+  @Nullable
+  public Endpoint get(String endpointId) {
+    return mSnapshot.mMap.get(endpointId);
+  }
+
+  /** Returns true if there's an endpoint with the given id. */
+  public boolean containsKey(String endpointId) {
+    return mSnapshot.mMap.containsKey(endpointId);
+  }
+
+  /** Returns true if there are no endpoints. */
+  public boolean isEmpty() {
+    return mSnapshot.mMap.isEmpty();
+  }
+
+  /** Returns the number of endpoints. */
+  public int size() {
+    return mSnapshot.mMap.size();
+  }
+
+  /** Returns an immutable snapshot of the endpoints. It won't change as endpoints come and go. */
+  public Set<Endpoint> getEndpoints() {
+    return mSnapshot.mEndpoints;
+  }
+
+  /** Returns an immutable snapshot of the endpoint ids, ready to hand to sendPayload(). */
+  public List<String> getIds() {
+    return mSnapshot.mIds;
+  }
+
+  /** An immutable view of the registry at one point in time. */
+  private static class Snapshot {
+    static final Snapshot EMPTY = new Snapshot(Collections.<String, Endpoint>emptyMap());
+
+    final Map<String, Endpoint> mMap;
+    final Set<Endpoint> mEndpoints;
+    final List<String> mIds;
+
+    Snapshot(Map<String, Endpoint> map) {
+      mMap = Collections.unmodifiableMap(map);
+      mEndpoints = Collections.unmodifiableSet(new LinkedHashSet<>(map.values()));
+      mIds = Collections.unmodifiableList(new ArrayList<>(map.keySet()));
+    }
+  }
+}
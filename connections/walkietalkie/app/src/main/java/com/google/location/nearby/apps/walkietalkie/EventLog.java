@@ -0,0 +1,208 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * A structured log of events from Nearby Connections. Each event is stored as its type plus a few
+ * primitive fields, in preallocated parallel arrays that wrap around once full, so recording an
+ * event doesn't allocate or format anything. Events are only turned into text when someone reads
+ * them: {@link #dump}, or the logcat mirror, which is off unless {@code adb shell setprop
+ * log.tag.WalkieTalkie DEBUG} was run before the app started.
+ */
+public class EventLog {
+  public static final int ENDPOINT_FOUND = 1;
+  public static final int ENDPOINT_LOST = 2;
+  public static final int CONNECTION_INITIATED = 3;
+  public static final int CONNECTION_RESULT = 4;
+  public static final int DISCONNECTED = 5;
+  public static final int PAYLOAD_SENT = 6;
+  public static final int PAYLOAD_RECEIVED = 7;
+  public static final int PAYLOAD_TRANSFER_UPDATE = 8;
+
+  /** How many events we keep. */
+  private static final int DEFAULT_CAPACITY = 1024;
+
+  /** How many numeric fields each event has room for. */
+  private static final int FIELDS = 4;
+
+  private final int mCapacity;
+  private final long[] mTimes;
+  private final int[] mTypes;
+  private final String[] mEndpointIds;
+  private final String[] mNames;
+  private final long[] mFields;
+
+  /** The total number of events recorded. The next event goes at this, modulo the capacity. */
+  private long mCount;
+
+  /** True if events should also be written to logcat as they happen. */
+  private volatile boolean mMirrorToLogcat;
+
+  public EventLog() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public EventLog(int capacity) {
+    mCapacity = capacity;
+    mTimes = new long[capacity];
+    mTypes = new int[capacity];
+    mEndpointIds = new String[capacity];
+    mNames = new String[capacity];
+    mFields = new long[capacity * FIELDS];
+    mMirrorToLogcat = Log.isLoggable(TAG, Log.DEBUG);
+  }
+
+  /** Turns the logcat mirror on or off. While on, every event is formatted as it's recorded. */
+  public void setMirrorToLogcat(boolean mirrorToLogcat) {
+    mMirrorToLogcat = mirrorToLogcat;
+  }
+
+  public void onEndpointFound(String endpointId, String endpointName) {
+    record(ENDPOINT_FOUND, endpointId, endpointName, 0, 0, 0, 0);
+  }
+
+  public void onEndpointLost(String endpointId) {
+    record(ENDPOINT_LOST, endpointId, null, 0, 0, 0, 0);
+  }
+
+  public void onConnectionInitiated(String endpointId, String endpointName) {
+    record(CONNECTION_INITIATED, endpointId, endpointName, 0, 0, 0, 0);
+  }
+
+  public void onConnectionResult(String endpointId, int statusCode) {
+    record(CONNECTION_RESULT, endpointId, null, statusCode, 0, 0, 0);
+  }
+
+  public void onDisconnected(String endpointId) {
+    record(DISCONNECTED, endpointId, null, 0, 0, 0, 0);
+  }
+
+  public void onPayloadSent(String endpointId, long payloadId, int payloadType) {
+    record(PAYLOAD_SENT, endpointId, null, payloadId, payloadType, 0, 0);
+  }
+
+  public void onPayloadReceived(String endpointId, long payloadId, int payloadType) {
+    record(PAYLOAD_RECEIVED, endpointId, null, payloadId, payloadType, 0, 0);
+  }
+
+  public void onPayloadTransferUpdate(String endpointId, PayloadTransferUpdate update) {
+    record(
+        PAYLOAD_TRANSFER_UPDATE,
+        endpointId,
+        null,
+        update.getPayloadId(),
+        update.getStatus(),
+        update.getBytesTransferred(),
+        update.getTotalBytes());
+  }
+
+  /** Returns the number of events recorded, including ones since overwritten. */
+  public synchronized long getCount() {
+    return mCount;
+  }
+
+  /** Formats every event we still have, oldest first. */
+  public void dump(String prefix, PrintWriter writer) {
+    SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+    Date date = new Date();
+    synchronized (this) {
+      writer.print(prefix);
+      writer.println(
+          String.format(
+              Locale.US,
+              "EventLog{count=%d, dropped=%d}",
+              mCount,
+              Math.max(0, mCount - mCapacity)));
+      for (long i = Math.max(0, mCount - mCapacity); i < mCount; i++) {
+        int index = (int) (i % mCapacity);
+        date.setTime(mTimes[index]);
+        writer.print(prefix);
+        writer.print("  ");
+        writer.print(dateFormat.format(date));
+        writer.print(' ');
+        writer.println(format(index));
+      }
+    }
+  }
+
+  private synchronized void record(
+      int type,
+      String endpointId,
+      @Nullable String name,
+      long field0,
+      long field1,
+      long field2,
+      long field3) {
+    int index = (int) (mCount % mCapacity);
+    mTimes[index] = System.currentTimeMillis();
+    mTypes[index] = type;
+    mEndpointIds[index] = endpointId;
+    mNames[index] = name;
+    mFields[index * FIELDS] = field0;
+    mFields[index * FIELDS + 1] = field1;
+    mFields[index * FIELDS + 2] = field2;
+    mFields[index * FIELDS + 3] = field3;
+    mCount++;
+
+    if (mMirrorToLogcat) {
+      Log.d(TAG, format(index));
+    }
+  }
+
+  /** Turns the event at {@code index} into text. */
+  private String format(int index) {
+    String endpointId = mEndpointIds[index];
+    String name = mNames[index];
+    int base = index * FIELDS;
+    switch (mTypes[index]) {
+      case ENDPOINT_FOUND:
+        return String.format("onEndpointFound(endpointId=%s, endpointName=%s)", endpointId, name);
+      case ENDPOINT_LOST:
+        return String.format("onEndpointLost(endpointId=%s)", endpointId);
+      case CONNECTION_INITIATED:
+        return String.format(
+            "onConnectionInitiated(endpointId=%s, endpointName=%s)", endpointId, name);
+      case CONNECTION_RESULT:
+        return String.format(
+            Locale.US,
+            "onConnectionResult(endpointId=%s, statusCode=%d)",
+            endpointId,
+            mFields[base]);
+      case DISCONNECTED:
+        return String.format("onDisconnected(endpointId=%s)", endpointId);
+      case PAYLOAD_SENT:
+        return String.format(
+            Locale.US,
+            "sendPayload(endpointId=%s, payloadId=%d, type=%d)",
+            endpointId,
+            mFields[base],
+            mFields[base + 1]);
+      case PAYLOAD_RECEIVED:
+        return String.format(
+            Locale.US,
+            "onPayloadReceived(endpointId=%s, payloadId=%d, type=%d)",
+            endpointId,
+            mFields[base],
+            mFields[base + 1]);
+      case PAYLOAD_TRANSFER_UPDATE:
+        return String.format(
+            Locale.US,
+            "onPayloadTransferUpdate(endpointId=%s, payloadId=%d, status=%d, bytes=%d/%d)",
+            endpointId,
+            mFields[base],
+            mFields[base + 1],
+            mFields[base + 2],
+            mFields[base + 3]);
+      default:
+        return "Unknown event " + mTypes[index];
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.support.annotation.Nullable;
+import android.support.v4.content.ContextCompat;
+import android.support.v4.view.ViewCompat;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * A horizontal bar showing the level of an {@link AudioLevelMeter}. While it's on screen, it
+ * samples the meter once per display frame and only redraws when the level has visibly changed.
+ */
+public class LevelMeterView extends View {
+  /** How much of the bar the level must move by before we bother redrawing. */
+  private static final float REDRAW_THRESHOLD = 0.01f;
+
+  /** Levels below this are treated as silence, so the bar settles at empty. */
+  private static final float SILENCE = 0.0005f;
+
+  /** How quickly the displayed level falls back down, per frame. Rises are instant. */
+  private static final float DECAY = 0.85f;
+
+  private final Paint mLevelPaint = new Paint();
+  private final Paint mPeakPaint = new Paint();
+  private final Paint mBackgroundPaint = new Paint();
+
+  @Nullable private AudioLevelMeter mMeter;
+
+  /** The levels we're displaying, including decay. */
+  private float mRms;
+  private float mPeak;
+
+  /** The levels as of our last redraw. */
+  private float mDrawnRms;
+  private float mDrawnPeak;
+
+  /** True while we're sampling the meter every frame. */
+  private boolean mPolling;
+
+  private final Runnable mPollRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          if (!mPolling) {
+            return;
+          }
+          poll();
+          ViewCompat.postOnAnimation(LevelMeterView.this, this);
+        }
+      };
+
+  public LevelMeterView(Context context) {
+    this(context, null);
+  }
+
+  public LevelMeterView(Context context, @Nullable AttributeSet attrs) {
+    super(context, attrs);
+    mLevelPaint.setColor(ContextCompat.getColor(context, R.color.level_meter));
+    mPeakPaint.setColor(ContextCompat.getColor(context, R.color.level_meter_peak));
+    mBackgroundPaint.setColor(ContextCompat.getColor(context, R.color.level_meter_background));
+  }
+
+  /** Sets the meter to display. Pass null to show silence. */
+  public void setMeter(@Nullable AudioLevelMeter meter) {
+    mMeter = meter;
+  }
+
+  @Override
+  protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    updatePolling();
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    // We may still look shown while being detached, so stop explicitly.
+    mPolling = false;
+    removeCallbacks(mPollRunnable);
+    super.onDetachedFromWindow();
+  }
+
+  /** Called when we, or any of our ancestors, are shown or hidden. */
+  @Override
+  protected void onVisibilityChanged(View changedView, int visibility) {
+    super.onVisibilityChanged(changedView, visibility);
+    updatePolling();
+  }
+
+  @Override
+  protected void onWindowVisibilityChanged(int visibility) {
+    super.onWindowVisibilityChanged(visibility);
+    updatePolling();
+  }
+
+  /** Polls only while we're actually on screen: we, our ancestors and our window are visible. */
+  private void updatePolling() {
+    boolean shouldPoll = isShown() && getWindowVisibility() == VISIBLE;
+    if (shouldPoll && !mPolling) {
+      mPolling = true;
+      ViewCompat.postOnAnimation(this, mPollRunnable);
+    } else if (!shouldPoll && mPolling) {
+      mPolling = false;
+      removeCallbacks(mPollRunnable);
+    }
+  }
+
+  private void poll() {
+    float rms = 0;
+    float peak = 0;
+    if (mMeter != null) {
+      mMeter.poll();
+      rms = mMeter.getRms();
+      peak = mMeter.getPeak();
+    }
+    mRms = decay(rms, mRms);
+    mPeak = decay(peak, mPeak);
+    if (needsRedraw(mRms, mDrawnRms) || needsRedraw(mPeak, mDrawnPeak)) {
+      mDrawnRms = mRms;
+      mDrawnPeak = mPeak;
+      invalidate();
+    }
+  }
+
+  private static float decay(float level, float previous) {
+    level = Math.max(level, previous * DECAY);
+    return level < SILENCE ? 0 : level;
+  }
+
+  private static boolean needsRedraw(float level, float drawn) {
+    return Math.abs(toDisplay(level) - toDisplay(drawn)) > REDRAW_THRESHOLD
+        || (level == 0 && drawn != 0);
+  }
+
+  @Override
+  protected void onDraw(Canvas canvas) {
+    float left = getPaddingLeft();
+    float top = getPaddingTop();
+    float right = getWidth() - getPaddingRight();
+    float bottom = getHeight() - getPaddingBottom();
+    float width = right - left;
+
+    canvas.drawRect(left, top, right, bottom, mBackgroundPaint);
+    canvas.drawRect(left, top, left + width * toDisplay(mDrawnRms), bottom, mLevelPaint);
+
+    float peakX = left + width * toDisplay(mDrawnPeak);
+    canvas.drawRect(Math.max(left, peakX - 4), top, peakX, bottom, mPeakPaint);
+  }
+
+  /** Maps a linear level onto the bar. Speech sits far below full scale, so we stretch it out. */
+  private static float toDisplay(float level) {
+    return Math.min(1f, (float) Math.sqrt(level));
+  }
+}
@@ -0,0 +1,258 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Floods messages across a mesh of devices, so they reach devices beyond radio range of the sender.
+ * This only makes sense with {@link com.google.android.gms.nearby.connection.Strategy#P2P_CLUSTER},
+ * where every device may connect to several others.
+ *
+ * <p>A flooded message wraps an ordinary typed message with the id of the device it came from, a
+ * sequence number and a time-to-live. Every device delivers a message the first time it sees it,
+ * and passes it on to its other neighbors while the time-to-live lasts. Duplicates are recognized
+ * with a sliding window of sequence numbers for each origin, so each device sends each message at
+ * most once, to each neighbor.
+ */
+@MainThread
+public class MeshRouter {
+  /** How many hops a message goes, unless the sender says otherwise. */
+  public static final int DEFAULT_TTL = 4;
+
+  /** How many origins we remember. The least recently heard from is forgotten first. */
+  private static final int MAX_ORIGINS = 256;
+
+  /** How far behind the newest message from an origin a message may be, and still be delivered. */
+  static final int WINDOW = 64;
+
+  private static final int TAG_FLOOD = 0x50;
+
+  /** Sends to our neighbors. */
+  public interface Transport {
+    void send(Endpoint endpoint, byte[] message);
+
+    /** Returns the devices we're directly connected to. */
+    Collection<Endpoint> getNeighbors();
+  }
+
+  private final MessageCodec mCodec;
+  private final Transport mTransport;
+
+  /** Our id. Picked at random every time we start, so our sequence numbers can start over. */
+  private final long mOrigin;
+
+  private long mNextSequence;
+
+  /** The sequence numbers we've seen from each origin. */
+  private final Map<Long, SequenceWindow> mSeen =
+      new LinkedHashMap<Long, SequenceWindow>(16, 0.75f, /* accessOrder= */ true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, SequenceWindow> eldest) {
+          return size() > MAX_ORIGINS;
+        }
+      };
+
+  /** The origin of the message being delivered, while its handler runs. */
+  private long mCurrentOrigin;
+
+  // Metrics
+  private long mOriginated;
+  private long mDelivered;
+  private long mForwarded;
+  private long mDuplicates;
+  private long mExpired;
+  private long mTransmissions;
+
+  public MeshRouter(MessageCodec codec, Transport transport) {
+    this(codec, transport, new Random());
+  }
+
+  /** @param random Picks our id. Pass a seeded one to make a simulation repeatable. */
+  public MeshRouter(MessageCodec codec, Transport transport, Random random) {
+    mCodec = codec;
+    mTransport = transport;
+    mOrigin = random.nextLong();
+    codec.register(
+        FLOOD,
+        new MessageCodec.Handler<Flood>() {
+          @Override
+          public void onMessage(Endpoint endpoint, int channel, Flood flood) {
+            onFlood(endpoint, flood);
+          }
+        });
+  }
+
+  /** Returns our id, as other devices see it. */
+  public long getOrigin() {
+    return mOrigin;
+  }
+
+  /**
+   * Returns the id of the device a flooded message came from, while its handler runs. The endpoint
+   * handed to the handler is only the neighbor that passed it on to us.
+   */
+  public long getCurrentOrigin() {
+    return mCurrentOrigin;
+  }
+
+  /** Floods a message to every device within {@code ttl} hops. */
+  public <T> void broadcast(MessageCodec.MessageType<T> type, T message, int ttl) {
+    Flood flood = new Flood();
+    flood.mOrigin = mOrigin;
+    flood.mSequence = mNextSequence++;
+    flood.mTtl = ttl;
+    flood.mMessage = mCodec.encode(type, message);
+    // We don't want our own message back.
+    seen(flood.mOrigin, flood.mSequence);
+    mOriginated++;
+    forward(null, flood);
+  }
+
+  /** Writes how much flooding has cost us, in a human readable form. */
+  public void dump(String prefix, PrintWriter writer) {
+    writer.print(prefix);
+    writer.println(
+        String.format(
+            Locale.US,
+            "MeshRouter{origin=%x, origins=%d, originated=%d, delivered=%d, forwarded=%d, "
+                + "duplicates=%d, expired=%d, transmissions=%d}",
+            mOrigin,
+            mSeen.size(),
+            mOriginated,
+            mDelivered,
+            mForwarded,
+            mDuplicates,
+            mExpired,
+            mTransmissions));
+  }
+
+  /** Returns how many messages we've sent to neighbors, our own and forwarded ones. */
+  public long getTransmissionCount() {
+    return mTransmissions;
+  }
+
+  /** Returns how many messages reached us again after we'd already seen them. */
+  public long getDuplicateCount() {
+    return mDuplicates;
+  }
+
+  /** Returns how many messages from others were delivered to us. */
+  public long getDeliveredCount() {
+    return mDelivered;
+  }
+
+  private void onFlood(Endpoint from, Flood flood) {
+    if (!seen(flood.mOrigin, flood.mSequence)) {
+      mDuplicates++;
+      return;
+    }
+
+    mDelivered++;
+    mCurrentOrigin = flood.mOrigin;
+    mCodec.dispatch(from, flood.mMessage);
+    mCurrentOrigin = 0;
+
+    if (flood.mTtl <= 1) {
+      mExpired++;
+      return;
+    }
+    flood.mTtl--;
+    mForwarded++;
+    forward(from, flood);
+  }
+
+  /** Sends the message to every neighbor but the one it came from. */
+  private void forward(@Nullable Endpoint from, Flood flood) {
+    byte[] bytes = mCodec.encode(FLOOD, flood);
+    for (Endpoint neighbor : mTransport.getNeighbors()) {
+      if (!neighbor.equals(from)) {
+        mTransmissions++;
+        mTransport.send(neighbor, bytes);
+      }
+    }
+  }
+
+  /** Records that we've seen the message. Returns false if we already had. */
+  private boolean seen(long origin, long sequence) {
+    SequenceWindow window = mSeen.get(origin);
+    if (window == null) {
+      mSeen.put(origin, new SequenceWindow(sequence));
+      return true;
+    }
+    return window.add(sequence);
+  }
+
+  /** The newest sequence number from an origin, and which of the ones before it we've seen. */
+  static class SequenceWindow {
+    long mNewest;
+
+    /** Bit i is set if we've seen {@code mNewest - i}. */
+    long mBits;
+
+    SequenceWindow(long first) {
+      mNewest = first;
+      mBits = 1;
+    }
+
+    /** Records that we've seen the sequence number. Returns false if we already had. */
+    boolean add(long sequence) {
+      if (sequence > mNewest) {
+        long shift = sequence - mNewest;
+        mBits = shift >= WINDOW ? 1 : (mBits << shift) | 1;
+        mNewest = sequence;
+        return true;
+      }
+      long age = mNewest - sequence;
+      if (age >= WINDOW) {
+        // Too old to tell. Assume it's a duplicate; the flood has long since passed by.
+        return false;
+      }
+      long bit = 1L << age;
+      if ((mBits & bit) != 0) {
+        return false;
+      }
+      mBits |= bit;
+      return true;
+    }
+  }
+
+  /** A message being flooded. */
+  private static class Flood {
+    long mOrigin;
+    long mSequence;
+    int mTtl;
+    byte[] mMessage;
+  }
+
+  private static final MessageCodec.MessageType<Flood> FLOOD =
+      new MessageCodec.MessageType<Flood>() {
+        @Override
+        public int getTag() {
+          return TAG_FLOOD;
+        }
+
+        @Override
+        public void encode(Flood flood, MessageWriter writer) {
+          writer.writeFixed64(flood.mOrigin);
+          writer.writeVarint(flood.mSequence);
+          writer.writeVarint(flood.mTtl);
+          writer.writeBytes(flood.mMessage);
+        }
+
+        @Override
+        public Flood decode(MessageReader reader, @Nullable Flood reuse) {
+          Flood flood = new Flood();
+          flood.mOrigin = reader.readFixed64();
+          flood.mSequence = reader.readVarint();
+          flood.mTtl = reader.readVarintInt();
+          flood.mMessage = reader.readBytes();
+          return flood;
+        }
+      };
+}
@@ -0,0 +1,287 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.MainThread;
+import android.util.Log;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Coalesces small messages to the same endpoint into a single BYTES payload, Nagle style, so that a
+ * burst of control messages pays Nearby Connections' per-payload overhead once. A batch is sent
+ * once it holds {@link #DEFAULT_MAX_BATCH_BYTES}, or once its oldest message has waited {@link
+ * #DEFAULT_MAX_DELAY_MS}, whichever comes first. Real-time messages skip the wait: whatever is
+ * batched for the endpoint goes first, to keep messages in order, and then the message goes on its
+ * own.
+ *
+ * <p>On the wire, a batch is a marker byte followed by each message, prefixed with its length as a
+ * varint. A batch holding a single message is sent as just the message. {@link #demultiplex} splits
+ * a batch back up on the receiving side.
+ */
+@MainThread
+public class MessageBatcher {
+  /** The first byte of every batch. Differs from the marker of a single message. */
+  static final byte MARKER = (byte) 0xC6;
+
+  /** How large a batch may grow before it's sent. */
+  private static final int DEFAULT_MAX_BATCH_BYTES = 1024;
+
+  /** How long a message may wait for others to join it. */
+  private static final long DEFAULT_MAX_DELAY_MS = 20;
+
+  /** The most room a message's length prefix can take. */
+  static final int MAX_PREFIX_BYTES = 5;
+
+  /** Sends a payload's worth of bytes. */
+  public interface Sender {
+    void send(Endpoint endpoint, byte[] bytes);
+  }
+
+  private final Sender mSender;
+  private final Scheduler mScheduler;
+  private final Map<Endpoint, Batch> mBatches = new HashMap<>();
+  private final MessageReader mReader = new MessageReader();
+
+  private int mMaxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+  private long mMaxDelayMillis = DEFAULT_MAX_DELAY_MS;
+
+  /** True if a flush is already scheduled. */
+  private boolean mFlushScheduled;
+
+  // Metrics
+  private long mMessages;
+  private long mPayloads;
+  private long mBypassed;
+  private long mDropped;
+  private long mDelayMillis;
+  private long mMaxObservedDelayMillis;
+  private long mReceivedBatches;
+  private long mReceivedMessages;
+
+  private final Runnable mFlushRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          mFlushScheduled = false;
+          flushAll();
+        }
+      };
+
+  public MessageBatcher(Sender sender) {
+    this(sender, Scheduler.MAIN_THREAD);
+  }
+
+  MessageBatcher(Sender sender, Scheduler scheduler) {
+    mSender = sender;
+    mScheduler = scheduler;
+  }
+
+  /** Sets how large a batch may grow, and how long a message may wait, before it's sent. */
+  public void setPolicy(int maxBatchBytes, long maxDelayMillis) {
+    mMaxBatchBytes = maxBatchBytes;
+    mMaxDelayMillis = maxDelayMillis;
+  }
+
+  /**
+   * Sends an encoded message to the endpoint, possibly along with others.
+   *
+   * @param realTime True to send the message right away, rather than wait for others.
+   */
+  public void send(Endpoint endpoint, byte[] message, boolean realTime) {
+    mMessages++;
+    Batch batch = mBatches.get(endpoint);
+    if (realTime || message.length + MAX_PREFIX_BYTES > mMaxBatchBytes) {
+      if (batch != null) {
+        flush(endpoint, batch);
+      }
+      mBypassed++;
+      mPayloads++;
+      mSender.send(endpoint, message);
+      return;
+    }
+
+    if (batch == null) {
+      batch = new Batch();
+      mBatches.put(endpoint, batch);
+    } else if (batch.mWriter.length() + message.length + MAX_PREFIX_BYTES > mMaxBatchBytes) {
+      flush(endpoint, batch);
+    }
+    if (batch.mCount == 0) {
+      batch.mFirstQueuedAtMillis = mScheduler.elapsedRealtime();
+      batch.mWriter.writeByte(MARKER);
+    }
+    batch.mWriter.writeBytes(message);
+    batch.mCount++;
+    batch.mLastMessageOffset = batch.mWriter.length() - message.length;
+
+    if (!mFlushScheduled) {
+      mFlushScheduled = true;
+      mScheduler.postDelayed(mFlushRunnable, mMaxDelayMillis);
+    }
+  }
+
+  /** Sends everything that's waiting, right away. */
+  public void flushAll() {
+    for (Map.Entry<Endpoint, Batch> entry : mBatches.entrySet()) {
+      flush(entry.getKey(), entry.getValue());
+    }
+    mScheduler.removeCallbacks(mFlushRunnable);
+    mFlushScheduled = false;
+  }
+
+  /** Drops whatever is waiting for the endpoint. */
+  public void remove(Endpoint endpoint) {
+    Batch batch = mBatches.remove(endpoint);
+    if (batch != null) {
+      mDropped += batch.mCount;
+    }
+  }
+
+  /** Drops whatever is waiting for anyone. */
+  public void clear() {
+    mDropped += waitingCount();
+    mBatches.clear();
+    mScheduler.removeCallbacks(mFlushRunnable);
+    mFlushScheduled = false;
+  }
+
+  /** Returns true if the bytes are a batch of messages. */
+  public static boolean isBatch(byte[] bytes) {
+    return bytes != null && bytes.length > 1 && bytes[0] == MARKER;
+  }
+
+  /**
+   * Splits a batch back up into its messages, and hands each to the codec.
+   *
+   * @return The number of messages the codec handled.
+   */
+  public int demultiplex(Endpoint endpoint, byte[] bytes, MessageCodec codec) {
+    mReceivedBatches++;
+    int handled = 0;
+    try {
+      mReader.reset(bytes, 1, bytes.length - 1);
+      while (mReader.remaining() > 0) {
+        int length = mReader.readVarintInt();
+        int offset = bytes.length - mReader.remaining();
+        mReader.skip(length);
+        mReceivedMessages++;
+        if (codec.dispatch(endpoint, bytes, offset, length)) {
+          handled++;
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      Log.w(TAG, "Dropping the rest of a malformed batch from " + endpoint, e);
+    }
+    return handled;
+  }
+
+  /**
+   * Splits a batch back up into its messages, and decodes each with the codec, without handing
+   * them to their handlers. None of our state is touched, so this may be called from any thread.
+   * Pass the batch's size to {@link #onBatchReceived(int)} on the main thread, and the messages to
+   * {@link MessageCodec#deliver}.
+   *
+   * @param out Receives the decoded messages.
+   */
+  @AnyThread
+  public static void split(
+      Endpoint endpoint, byte[] bytes, MessageCodec codec, List<MessageCodec.Decoded> out) {
+    MessageReader reader = new MessageReader();
+    try {
+      reader.reset(bytes, 1, bytes.length - 1);
+      while (reader.remaining() > 0) {
+        int length = reader.readVarintInt();
+        int offset = bytes.length - reader.remaining();
+        reader.skip(length);
+        out.add(codec.decode(endpoint, bytes, offset, length));
+      }
+    } catch (IllegalArgumentException e) {
+      Log.w(TAG, "Dropping the rest of a malformed batch from " + endpoint, e);
+    }
+  }
+
+  /** Counts a batch split up with {@link #split}. */
+  public void onBatchReceived(int messageCount) {
+    mReceivedBatches++;
+    mReceivedMessages += messageCount;
+  }
+
+  /** Returns the average number of messages per payload sent. */
+  public float getBatchingFactor() {
+    return mPayloads == 0 ? 0 : (float) mMessages / mPayloads;
+  }
+
+  /**
+   * Returns the average time, in milliseconds, a batched message waited before being sent. Each
+   * message is charged the wait of the oldest message in its batch, so this is an upper bound.
+   */
+  public long getAverageDelayMillis() {
+    long batched = mMessages - mBypassed - mDropped - waitingCount();
+    return batched <= 0 ? 0 : mDelayMillis / batched;
+  }
+
+  /** Writes how much batching has saved us, and what it has cost, in a human readable form. */
+  public void dump(String prefix, PrintWriter writer) {
+    writer.print(prefix);
+    writer.println(
+        String.format(
+            Locale.US,
+            "MessageBatcher{messages=%d, payloads=%d, batchingFactor=%.2f, bypassed=%d, "
+                + "dropped=%d, avgDelayMs=%d, maxDelayMs=%d, receivedBatches=%d, "
+                + "receivedMessages=%d}",
+            mMessages,
+            mPayloads,
+            getBatchingFactor(),
+            mBypassed,
+            mDropped,
+            getAverageDelayMillis(),
+            mMaxObservedDelayMillis,
+            mReceivedBatches,
+            mReceivedMessages));
+  }
+
+  private int waitingCount() {
+    int count = 0;
+    for (Batch batch : mBatches.values()) {
+      count += batch.mCount;
+    }
+    return count;
+  }
+
+  private void flush(Endpoint endpoint, Batch batch) {
+    if (batch.mCount == 0) {
+      return;
+    }
+    long delayMillis = mScheduler.elapsedRealtime() - batch.mFirstQueuedAtMillis;
+    mDelayMillis += delayMillis * batch.mCount;
+    mMaxObservedDelayMillis = Math.max(mMaxObservedDelayMillis, delayMillis);
+
+    byte[] bytes;
+    if (batch.mCount == 1) {
+      // Framing a lone message would only cost us bytes.
+      bytes =
+          Arrays.copyOfRange(
+              batch.mWriter.getBuffer(), batch.mLastMessageOffset, batch.mWriter.length());
+    } else {
+      bytes = batch.mWriter.toByteArray();
+    }
+    batch.mWriter.reset();
+    batch.mCount = 0;
+    mPayloads++;
+    mSender.send(endpoint, bytes);
+  }
+
+  /** The messages waiting for one endpoint. */
+  private static class Batch {
+    final MessageWriter mWriter = new MessageWriter();
+    int mCount;
+    int mLastMessageOffset;
+    long mFirstQueuedAtMillis;
+  }
+}
@@ -0,0 +1,331 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Carries typed messages over {@link com.google.android.gms.nearby.connection.Payload.Type#BYTES}
+ * payloads. Each message type has a tag and knows how to write and read its own fields, and each
+ * tag has a handler that receives the decoded messages.
+ *
+ * <p>On the wire, a message is a marker byte, a varint header holding the tag and whether a channel
+ * id follows, the channel id (a varint) if it does, and then the message's fields. Channels let
+ * several conversations share a message type, eg. one per group.
+ *
+ * <p>Types may reuse the message instance handed to {@link MessageType#decode}, in which case
+ * decoding messages with only numeric fields doesn't allocate at all. Handlers must therefore not
+ * hold on to messages after they return.
+ *
+ * <p>Decoding can also be done ahead of time, off the main thread, with {@link #decode}, and the
+ * result handed to its handler later with {@link #deliver}. The registered types are published as
+ * an immutable snapshot, so they may change while other threads decode; a message decoded before
+ * its type was registered is simply counted as unknown.
+ */
+@MainThread
+public class MessageCodec {
+  /** The first byte of every message, so that other BYTES payloads aren't mistaken for one. */
+  private static final byte MARKER = (byte) 0xC5;
+
+  /** The lowest bit of the header is set if a channel id follows. */
+  private static final int HAS_CHANNEL = 1;
+
+  /** The channel of messages sent without one. */
+  public static final int NO_CHANNEL = -1;
+
+  /** Knows how to encode and decode one type of message. */
+  public interface MessageType<T> {
+    /** Returns the tag identifying this type on the wire. Must be unique, and 0 or more. */
+    int getTag();
+
+    void encode(T message, MessageWriter writer);
+
+    /**
+     * Reads a message.
+     *
+     * @param reuse The message returned by the previous call, if any, which may be filled in and
+     *     returned again rather than allocating a new one.
+     */
+    T decode(MessageReader reader, @Nullable T reuse);
+  }
+
+  /** Receives the messages of one type. */
+  public interface Handler<T> {
+    /**
+     * @param channel The channel the message was sent on, or {@link MessageCodec#NO_CHANNEL}.
+     */
+    void onMessage(Endpoint endpoint, int channel, T message);
+  }
+
+  /** The registered types, keyed by tag. Replaced, never changed, so any thread may read it. */
+  private volatile RegistrationTable mRegistrations = RegistrationTable.EMPTY;
+
+  private final MessageWriter mWriter = new MessageWriter();
+  private final MessageReader mReader = new MessageReader();
+
+  // Metrics
+  private long mEncoded;
+  private long mDecoded;
+  private long mUnknown;
+  private long mMalformed;
+
+  /** Starts handing messages of this type to {@code handler}, replacing any previous handler. */
+  public <T> void register(MessageType<T> type, Handler<T> handler) {
+    if (type.getTag() < 0) {
+      throw new IllegalArgumentException("Negative tag " + type.getTag());
+    }
+    mRegistrations = mRegistrations.with(type.getTag(), new Registration<>(type, handler));
+  }
+
+  /** Stops handling messages of this type. They'll be counted as unknown from now on. */
+  public void unregister(MessageType<?> type) {
+    mRegistrations = mRegistrations.without(type.getTag());
+  }
+
+  /** Encodes a message without a channel. */
+  public <T> byte[] encode(MessageType<T> type, T message) {
+    return encode(type, NO_CHANNEL, message);
+  }
+
+  /**
+   * Encodes a message.
+   *
+   * @param channel A channel id of 0 or more, or {@link #NO_CHANNEL}.
+   */
+  public <T> byte[] encode(MessageType<T> type, int channel, T message) {
+    if (channel < 0 && channel != NO_CHANNEL) {
+      throw new IllegalArgumentException("Negative channel " + channel);
+    }
+    mWriter.reset();
+    mWriter.writeByte(MARKER);
+    long header = (long) type.getTag() << 1;
+    if (channel == NO_CHANNEL) {
+      mWriter.writeVarint(header);
+    } else {
+      mWriter.writeVarint(header | HAS_CHANNEL);
+      mWriter.writeVarint(channel);
+    }
+    type.encode(message, mWriter);
+    mEncoded++;
+    return mWriter.toByteArray();
+  }
+
+  /** Returns true if the bytes look like a message, rather than some other BYTES payload. */
+  public static boolean isMessage(@Nullable byte[] bytes) {
+    return bytes != null && bytes.length > 1 && bytes[0] == MARKER;
+  }
+
+  /**
+   * Decodes a message and hands it to its handler.
+   *
+   * @return False if the bytes weren't a message of a type we know, or couldn't be decoded.
+   */
+  public boolean dispatch(Endpoint endpoint, byte[] bytes) {
+    return dispatch(endpoint, bytes, 0, bytes.length);
+  }
+
+  /** Decodes a message found in part of a larger buffer and hands it to its handler. */
+  public boolean dispatch(Endpoint endpoint, byte[] bytes, int offset, int length) {
+    if (length < 2 || bytes[offset] != MARKER) {
+      return false;
+    }
+    try {
+      mReader.reset(bytes, offset + 1, length - 1);
+      long header = mReader.readVarint();
+      int channel = (header & HAS_CHANNEL) != 0 ? mReader.readVarintInt() : NO_CHANNEL;
+      Registration<?> registration = mRegistrations.get((int) (header >>> 1));
+      if (registration == null) {
+        mUnknown++;
+        return false;
+      }
+      registration.dispatch(endpoint, channel, mReader);
+      mDecoded++;
+      return true;
+    } catch (IllegalArgumentException e) {
+      mMalformed++;
+      Log.w(TAG, "Dropping a malformed message from " + endpoint, e);
+      return false;
+    }
+  }
+
+  /**
+   * Decodes a message found in part of a larger buffer, without handing it to its handler. Message
+   * instances aren't reused, and none of our state is touched, so this may be called from any
+   * thread. Pass the result to {@link #deliver} on the main thread.
+   */
+  @AnyThread
+  public Decoded decode(Endpoint endpoint, byte[] bytes, int offset, int length) {
+    if (length < 2 || bytes[offset] != MARKER) {
+      return new Decoded(endpoint, null, NO_CHANNEL, null, /* malformed= */ false);
+    }
+    try {
+      MessageReader reader = new MessageReader();
+      reader.reset(bytes, offset + 1, length - 1);
+      long header = reader.readVarint();
+      int channel = (header & HAS_CHANNEL) != 0 ? reader.readVarintInt() : NO_CHANNEL;
+      Registration<?> registration = mRegistrations.get((int) (header >>> 1));
+      if (registration == null) {
+        return new Decoded(endpoint, null, channel, null, /* malformed= */ false);
+      }
+      Object message = registration.mType.decode(reader, null);
+      return new Decoded(endpoint, registration, channel, message, /* malformed= */ false);
+    } catch (IllegalArgumentException e) {
+      Log.w(TAG, "Dropping a malformed message from " + endpoint, e);
+      return new Decoded(endpoint, null, NO_CHANNEL, null, /* malformed= */ true);
+    }
+  }
+
+  /**
+   * Hands a message from {@link #decode} to its handler.
+   *
+   * @return False if the bytes weren't a message of a type we know, or couldn't be decoded.
+   */
+  public boolean deliver(Decoded decoded) {
+    if (decoded.mMalformed) {
+      mMalformed++;
+      return false;
+    }
+    if (decoded.mRegistration == null) {
+      mUnknown++;
+      return false;
+    }
+    // The handler may have been replaced since, eg. by a recreated Activity. Use the new one.
+    Registration<?> registration = mRegistrations.get(decoded.mRegistration.mType.getTag());
+    if (registration == null) {
+      mUnknown++;
+      return false;
+    }
+    registration.deliver(decoded.mEndpoint, decoded.mChannel, decoded.mMessage);
+    mDecoded++;
+    return true;
+  }
+
+  /** Writes how many messages we've handled, in a human readable form. */
+  public void dump(String prefix, PrintWriter writer) {
+    writer.print(prefix);
+    writer.println(
+        String.format(
+            Locale.US,
+            "MessageCodec{types=%d, encoded=%d, decoded=%d, unknown=%d, malformed=%d}",
+            mRegistrations.size(),
+            mEncoded,
+            mDecoded,
+            mUnknown,
+            mMalformed));
+  }
+
+  /**
+   * The registered types, sorted by tag, so looking one up is a binary search that doesn't box the
+   * tag. Like a SparseArray, but plain Java, so the codec runs on a plain JVM too. Immutable:
+   * changes return a new table, which is cheap since types are only registered once in a while.
+   */
+  private static class RegistrationTable {
+    static final RegistrationTable EMPTY =
+        new RegistrationTable(new int[0], new Registration<?>[0]);
+
+    private final int[] mTags;
+    private final Registration<?>[] mValues;
+
+    private RegistrationTable(int[] tags, Registration<?>[] values) {
+      mTags = tags;
+      mValues = values;
+    }
+
+    @Nullable
+    Registration<?> get(int tag) {
+      int index = Arrays.binarySearch(mTags, tag);
+      return index < 0 ? null : mValues[index];
+    }
+
+    /** Returns a table with the registration added, or replacing the one with the same tag. */
+    RegistrationTable with(int tag, Registration<?> registration) {
+      int index = Arrays.binarySearch(mTags, tag);
+      if (index >= 0) {
+        Registration<?>[] values = mValues.clone();
+        values[index] = registration;
+        return new RegistrationTable(mTags, values);
+      }
+      index = ~index;
+      int size = mTags.length;
+      int[] tags = new int[size + 1];
+      Registration<?>[] values = new Registration<?>[size + 1];
+      System.arraycopy(mTags, 0, tags, 0, index);
+      System.arraycopy(mValues, 0, values, 0, index);
+      tags[index] = tag;
+      values[index] = registration;
+      System.arraycopy(mTags, index, tags, index + 1, size - index);
+      System.arraycopy(mValues, index, values, index + 1, size - index);
+      return new RegistrationTable(tags, values);
+    }
+
+    /** Returns a table without the registration with this tag. */
+    RegistrationTable without(int tag) {
+      int index = Arrays.binarySearch(mTags, tag);
+      if (index < 0) {
+        return this;
+      }
+      int size = mTags.length;
+      int[] tags = new int[size - 1];
+      Registration<?>[] values = new Registration<?>[size - 1];
+      System.arraycopy(mTags, 0, tags, 0, index);
+      System.arraycopy(mValues, 0, values, 0, index);
+      System.arraycopy(mTags, index + 1, tags, index, size - index - 1);
+      System.arraycopy(mValues, index + 1, values, index, size - index - 1);
+      return new RegistrationTable(tags, values);
+    }
+
+    int size() {
+      return mTags.length;
+    }
+  }
+
+  /** A type, its handler, and the last message it decoded, for reuse. */
+  private static class Registration<T> {
+    final MessageType<T> mType;
+    final Handler<T> mHandler;
+    @Nullable T mLastMessage;
+
+    Registration(MessageType<T> type, Handler<T> handler) {
+      mType = type;
+      mHandler = handler;
+    }
+
+    void dispatch(Endpoint endpoint, int channel, MessageReader reader) {
+      mLastMessage = mType.decode(reader, mLastMessage);
+      mHandler.onMessage(endpoint, channel, mLastMessage);
+    }
+
+    @SuppressWarnings("unchecked")
+    void deliver(Endpoint endpoint, int channel, Object message) {
+      mHandler.onMessage(endpoint, channel, (T) message);
+    }
+  }
+
+  /** A message decoded by {@link #decode}, waiting to be handed to its handler. */
+  public static class Decoded {
+    final Endpoint mEndpoint;
+    @Nullable final Registration<?> mRegistration;
+    final int mChannel;
+    @Nullable final Object mMessage;
+    final boolean mMalformed;
+
+    Decoded(
+        Endpoint endpoint,
+        @Nullable Registration<?> registration,
+        int channel,
+        @Nullable Object message,
+        boolean malformed) {
+      mEndpoint = endpoint;
+      mRegistration = registration;
+      mChannel = channel;
+      mMessage = message;
+      mMalformed = malformed;
+    }
+  }
+}
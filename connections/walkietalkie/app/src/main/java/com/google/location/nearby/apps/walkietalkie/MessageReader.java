@@ -0,0 +1,113 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Decodes the fields written by a {@link MessageWriter}, in the same order. A reader can be {@link
+ * #reset} onto a new buffer and reused, and reading numbers never allocates.
+ *
+ * <p>Reading past the end of the message, or a malformed varint, throws an {@link
+ * IllegalArgumentException}.
+ */
+public class MessageReader {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private byte[] mBuffer;
+  private int mPosition;
+  private int mLimit;
+
+  public MessageReader() {
+    reset(new byte[0], 0, 0);
+  }
+
+  /** Starts reading {@code length} bytes of {@code buffer}, from {@code offset}. */
+  public void reset(byte[] buffer, int offset, int length) {
+    mBuffer = buffer;
+    mPosition = offset;
+    mLimit = offset + length;
+  }
+
+  /** Returns the number of bytes left to read. */
+  public int remaining() {
+    return mLimit - mPosition;
+  }
+
+  /** Reads an unsigned varint. */
+  public long readVarint() {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = readByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint");
+  }
+
+  /** Reads an unsigned varint that must fit in an int. */
+  public int readVarintInt() {
+    long value = readVarint();
+    if (value < 0 || value > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Varint out of range: " + value);
+    }
+    return (int) value;
+  }
+
+  /** Reads a zig-zag encoded signed varint. */
+  public long readSignedVarint() {
+    long value = readVarint();
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  public boolean readBoolean() {
+    return readByte() != 0;
+  }
+
+  public byte readByte() {
+    require(1);
+    return mBuffer[mPosition++];
+  }
+
+  /** Reads 8 fixed bytes, little endian. */
+  public long readFixed64() {
+    require(8);
+    long value = 0;
+    for (int i = 0; i < 8; i++) {
+      value |= (mBuffer[mPosition++] & 0xFFL) << (8 * i);
+    }
+    return value;
+  }
+
+  /** Reads a length prefixed array of bytes. */
+  public byte[] readBytes() {
+    int length = readVarintInt();
+    require(length);
+    byte[] value = Arrays.copyOfRange(mBuffer, mPosition, mPosition + length);
+    mPosition += length;
+    return value;
+  }
+
+  /** Reads a length prefixed UTF-8 string. */
+  public String readString() {
+    int length = readVarintInt();
+    require(length);
+    String value = new String(mBuffer, mPosition, length, UTF_8);
+    mPosition += length;
+    return value;
+  }
+
+  /** Skips over {@code length} bytes. */
+  public void skip(int length) {
+    require(length);
+    mPosition += length;
+  }
+
+  private void require(int length) {
+    if (length < 0 || length > mLimit - mPosition) {
+      throw new IllegalArgumentException(
+          "Message truncated: needed " + length + " bytes, had " + (mLimit - mPosition));
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Encodes the fields of a message into a growable buffer. Integers are written as varints (7 bits
+ * per byte, least significant first), so small values take a single byte. Signed values that are
+ * often negative should use {@link #writeSignedVarint(long)}, which zig-zag encodes them first.
+ *
+ * <p>A writer can be {@link #reset()} and reused, so encoding doesn't allocate once the buffer has
+ * grown large enough.
+ */
+public class MessageWriter {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private byte[] mBuffer;
+  private int mLength;
+
+  public MessageWriter() {
+    this(64);
+  }
+
+  public MessageWriter(int initialCapacity) {
+    mBuffer = new byte[Math.max(16, initialCapacity)];
+  }
+
+  /** Discards everything written so far. */
+  public void reset() {
+    mLength = 0;
+  }
+
+  /** Returns the number of bytes written so far. */
+  public int length() {
+    return mLength;
+  }
+
+  /** Returns the buffer. Only the first {@link #length()} bytes are valid. */
+  public byte[] getBuffer() {
+    return mBuffer;
+  }
+
+  /** Returns a copy of everything written so far. */
+  public byte[] toByteArray() {
+    return Arrays.copyOf(mBuffer, mLength);
+  }
+
+  /** Writes an unsigned varint. Negative values take the full 10 bytes. */
+  public void writeVarint(long value) {
+    ensureCapacity(10);
+    while ((value & ~0x7FL) != 0) {
+      mBuffer[mLength++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    mBuffer[mLength++] = (byte) value;
+  }
+
+  /** Writes a signed varint, zig-zag encoded so that small negative values stay small. */
+  public void writeSignedVarint(long value) {
+    writeVarint((value << 1) ^ (value >> 63));
+  }
+
+  public void writeBoolean(boolean value) {
+    writeByte(value ? 1 : 0);
+  }
+
+  public void writeByte(int value) {
+    ensureCapacity(1);
+    mBuffer[mLength++] = (byte) value;
+  }
+
+  /** Writes 8 fixed bytes, little endian. Cheaper than a varint for large values. */
+  public void writeFixed64(long value) {
+    ensureCapacity(8);
+    for (int i = 0; i < 8; i++) {
+      mBuffer[mLength++] = (byte) (value >>> (8 * i));
+    }
+  }
+
+  /** Writes a length prefixed array of bytes. */
+  public void writeBytes(byte[] value) {
+    writeBytes(value, 0, value.length);
+  }
+
+  /** Writes a length prefixed range of bytes. */
+  public void writeBytes(byte[] value, int offset, int length) {
+    writeVarint(length);
+    writeRaw(value, offset, length);
+  }
+
+  /** Writes a length prefixed UTF-8 string. */
+  public void writeString(String value) {
+    writeBytes(value.getBytes(UTF_8));
+  }
+
+  /** Writes bytes as they are, without a length prefix. */
+  public void writeRaw(byte[] value, int offset, int length) {
+    ensureCapacity(length);
+    System.arraycopy(value, offset, mBuffer, mLength, length);
+    mLength += length;
+  }
+
+  private void ensureCapacity(int extra) {
+    if (mLength + extra > mBuffer.length) {
+      mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mLength + extra));
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.MainThread;
+import android.util.Log;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Periodically writes a {@link MetricsRegistry} to disk, on a background thread. Each export
+ * overwrites a JSON file with the latest values, and appends them to a CSV file so they can be
+ * graphed over time. The CSV file is rotated once it grows too large, keeping one old copy.
+ *
+ * <p>Pull them with {@code adb shell run-as com.google.location.nearby.apps.walkietalkie cat
+ * files/metrics/metrics.csv}.
+ */
+public class MetricsExporter {
+  /** How often we export, while started. */
+  private static final long EXPORT_INTERVAL_MS = 60 * 1000;
+
+  /** The CSV file is rotated once it grows past this. */
+  private static final long MAX_CSV_BYTES = 1024 * 1024;
+
+  private static final String JSON_FILE = "metrics.json";
+  private static final String CSV_FILE = "metrics.csv";
+  private static final String OLD_CSV_FILE = "metrics.csv.1";
+
+  private final MetricsRegistry mMetrics;
+  private final File mDirectory;
+  private final Handler mHandler;
+
+  /** True while we're exporting periodically. */
+  private boolean mStarted;
+
+  // Metrics
+  private volatile long mExports;
+  private volatile long mFailures;
+
+  private final Runnable mExportRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          export();
+          mHandler.postDelayed(this, EXPORT_INTERVAL_MS);
+        }
+      };
+
+  private final Runnable mFinalExportRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          export();
+        }
+      };
+
+  public MetricsExporter(MetricsRegistry metrics, File directory) {
+    mMetrics = metrics;
+    mDirectory = directory;
+    HandlerThread thread = new HandlerThread("MetricsExporter", THREAD_PRIORITY_BACKGROUND);
+    thread.start();
+    mHandler = new Handler(thread.getLooper());
+  }
+
+  /** Starts exporting periodically. */
+  @MainThread
+  public void start() {
+    if (mStarted) {
+      return;
+    }
+    mStarted = true;
+    mHandler.postDelayed(mExportRunnable, EXPORT_INTERVAL_MS);
+  }
+
+  /** Stops exporting periodically, after one last export so nothing recorded since is lost. */
+  @MainThread
+  public void stop() {
+    if (!mStarted) {
+      return;
+    }
+    mStarted = false;
+    mHandler.removeCallbacks(mExportRunnable);
+    mHandler.post(mFinalExportRunnable);
+  }
+
+  /** Returns how many times we've exported. */
+  public long getExportCount() {
+    return mExports;
+  }
+
+  /** Returns how many exports failed. */
+  public long getFailureCount() {
+    return mFailures;
+  }
+
+  /** Runs on our background thread. */
+  private void export() {
+    long now = System.currentTimeMillis();
+    try {
+      if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+        throw new IOException("Unable to create " + mDirectory);
+      }
+
+      File json = new File(mDirectory, JSON_FILE);
+      File tmp = new File(mDirectory, JSON_FILE + ".tmp");
+      Writer writer = new BufferedWriter(new FileWriter(tmp));
+      try {
+        mMetrics.writeJson(writer, now);
+      } finally {
+        writer.close();
+      }
+      if (!tmp.renameTo(json)) {
+        throw new IOException("Unable to rename " + tmp + " to " + json);
+      }
+
+      File csv = new File(mDirectory, CSV_FILE);
+      if (csv.length() > MAX_CSV_BYTES) {
+        File old = new File(mDirectory, OLD_CSV_FILE);
+        if (!old.delete() && old.exists()) {
+          throw new IOException("Unable to delete " + old);
+        }
+        if (!csv.renameTo(old)) {
+          throw new IOException("Unable to rename " + csv + " to " + old);
+        }
+      }
+      boolean isNew = !csv.exists();
+      writer = new BufferedWriter(new FileWriter(csv, /* append= */ true));
+      try {
+        if (isNew) {
+          MetricsRegistry.writeCsvHeader(writer);
+        }
+        mMetrics.writeCsv(writer, now);
+      } finally {
+        writer.close();
+      }
+      mExports++;
+    } catch (IOException e) {
+      mFailures++;
+      Log.w(TAG, "Failed to export metrics.", e);
+    }
+  }
+}
@@ -0,0 +1,292 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small set of named metrics: counters, gauges and histograms. Metrics are created once, and the
+ * caller keeps hold of them, so recording a value is a field update and never a map lookup.
+ * Everything can be read from any thread, eg. to {@link #dump} or export it.
+ */
+public class MetricsRegistry {
+  /** A number that only goes up. */
+  public static class Counter {
+    private final AtomicLong mValue = new AtomicLong();
+
+    public void increment() {
+      mValue.incrementAndGet();
+    }
+
+    public void add(long delta) {
+      mValue.addAndGet(delta);
+    }
+
+    public long get() {
+      return mValue.get();
+    }
+  }
+
+  /** A number that's read when the metrics are, rather than recorded. */
+  public interface Gauge {
+    long get();
+  }
+
+  /**
+   * Counts values in buckets whose width grows with the value, like an HDR histogram: every power
+   * of two is split into {@link #SUB_BUCKETS} linear buckets, so percentiles are accurate to within
+   * about 12%, across the whole range of a long, in a fixed 4KB of counts.
+   */
+  public static class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] mCounts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private long mCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = Long.MIN_VALUE;
+
+    /** Records a value. Negative values are counted as 0. */
+    public synchronized void record(long value) {
+      value = Math.max(0, value);
+      mCounts[indexOf(value)]++;
+      mCount++;
+      mSum += value;
+      mMin = Math.min(mMin, value);
+      mMax = Math.max(mMax, value);
+    }
+
+    public synchronized long getCount() {
+      return mCount;
+    }
+
+    public synchronized long getMin() {
+      return mCount == 0 ? 0 : mMin;
+    }
+
+    public synchronized long getMax() {
+      return mCount == 0 ? 0 : mMax;
+    }
+
+    public synchronized long getMean() {
+      return mCount == 0 ? 0 : mSum / mCount;
+    }
+
+    /** Returns (an upper bound on) the value below which {@code percentile}% of values fall. */
+    public synchronized long getPercentile(double percentile) {
+      if (mCount == 0) {
+        return 0;
+      }
+      long target = Math.max(1, (long) Math.ceil(mCount * percentile / 100));
+      long seen = 0;
+      for (int i = 0; i < mCounts.length; i++) {
+        seen += mCounts[i];
+        if (seen >= target) {
+          // The very last bucket's bound overflows, but mMax is in it anyway.
+          long bound = upperBoundOf(i);
+          return bound < 0 ? mMax : Math.min(mMax, bound);
+        }
+      }
+      return mMax;
+    }
+
+    /**
+     * Values below {@link #SUB_BUCKETS} get a bucket each. Above that, the bucket is picked by the
+     * value's highest set bit, and then by the {@link #SUB_BUCKET_BITS} bits below it.
+     */
+    private static int indexOf(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+      int shift = 64 - Long.numberOfLeadingZeros(value) - 1 - SUB_BUCKET_BITS;
+      return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    private static long upperBoundOf(int index) {
+      if (index < SUB_BUCKETS) {
+        return index;
+      }
+      int shift = index / SUB_BUCKETS - 1;
+      long subBucket = index % SUB_BUCKETS;
+      return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+  }
+
+  private final Map<String, Counter> mCounters = new LinkedHashMap<>();
+  private final Map<String, Gauge> mGauges = new LinkedHashMap<>();
+  private final Map<String, Histogram> mHistograms = new LinkedHashMap<>();
+
+  /** Returns the counter with this name, creating it if needed. */
+  public synchronized Counter counter(String name) {
+    Counter counter = mCounters.get(name);
+    if (counter == null) {
+      counter = new Counter();
+      mCounters.put(name, counter);
+    }
+    return counter;
+  }
+
+  /** Registers a gauge, replacing any gauge with the same name. */
+  public synchronized void gauge(String name, Gauge gauge) {
+    mGauges.put(name, gauge);
+  }
+
+  /** Returns the histogram with this name, creating it if needed. */
+  public synchronized Histogram histogram(String name) {
+    Histogram histogram = mHistograms.get(name);
+    if (histogram == null) {
+      histogram = new Histogram();
+      mHistograms.put(name, histogram);
+    }
+    return histogram;
+  }
+
+  /** Writes every metric, in a human readable form. */
+  public void dump(String prefix, PrintWriter writer) {
+    writer.print(prefix);
+    writer.println("Metrics:");
+    for (Row row : snapshot()) {
+      writer.print(prefix);
+      writer.print("  ");
+      writer.println(row.toString());
+    }
+  }
+
+  /** Writes the header line for {@link #writeCsv}. */
+  public static void writeCsvHeader(Writer writer) throws IOException {
+    writer.write("time,name,type,count,value,min,mean,p50,p90,p99,max\n");
+  }
+
+  /** Writes one CSV line per metric, all stamped with {@code timeMillis}. */
+  public void writeCsv(Writer writer, long timeMillis) throws IOException {
+    for (Row row : snapshot()) {
+      writer.write(
+          String.format(
+              Locale.US,
+              "%d,%s,%s,%d,%d,%d,%d,%d,%d,%d,%d\n",
+              timeMillis,
+              row.mName,
+              row.mType,
+              row.mCount,
+              row.mValue,
+              row.mMin,
+              row.mMean,
+              row.mP50,
+              row.mP90,
+              row.mP99,
+              row.mMax));
+    }
+  }
+
+  /** Writes every metric as a single JSON object, keyed by name. */
+  public void writeJson(Writer writer, long timeMillis) throws IOException {
+    writer.write("{\"time\":" + timeMillis + ",\"metrics\":{");
+    boolean first = true;
+    for (Row row : snapshot()) {
+      if (!first) {
+        writer.write(',');
+      }
+      first = false;
+      writer.write('"' + row.mName.replace("\\", "\\\\").replace("\"", "\\\"") + "\":");
+      if (row.mType.equals("histogram")) {
+        writer.write(
+            String.format(
+                Locale.US,
+                "{\"count\":%d,\"min\":%d,\"mean\":%d,\"p50\":%d,\"p90\":%d,\"p99\":%d,"
+                    + "\"max\":%d}",
+                row.mCount,
+                row.mMin,
+                row.mMean,
+                row.mP50,
+                row.mP90,
+                row.mP99,
+                row.mMax));
+      } else {
+        writer.write(Long.toString(row.mValue));
+      }
+    }
+    writer.write("}}\n");
+  }
+
+  /** Reads every metric. */
+  private List<Row> snapshot() {
+    List<Row> rows = new ArrayList<>();
+    Map<String, Counter> counters;
+    Map<String, Gauge> gauges;
+    Map<String, Histogram> histograms;
+    synchronized (this) {
+      counters = new LinkedHashMap<>(mCounters);
+      gauges = new LinkedHashMap<>(mGauges);
+      histograms = new LinkedHashMap<>(mHistograms);
+    }
+    for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+      Row row = new Row(entry.getKey(), "counter");
+      row.mValue = entry.getValue().get();
+      rows.add(row);
+    }
+    for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+      Row row = new Row(entry.getKey(), "gauge");
+      row.mValue = entry.getValue().get();
+      rows.add(row);
+    }
+    for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+      Histogram histogram = entry.getValue();
+      Row row = new Row(entry.getKey(), "histogram");
+      synchronized (histogram) {
+        row.mCount = histogram.getCount();
+        row.mMin = histogram.getMin();
+        row.mMean = histogram.getMean();
+        row.mP50 = histogram.getPercentile(50);
+        row.mP90 = histogram.getPercentile(90);
+        row.mP99 = histogram.getPercentile(99);
+        row.mMax = histogram.getMax();
+      }
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  /** One metric, as read at one point in time. */
+  private static class Row {
+    final String mName;
+    final String mType;
+    long mValue;
+    long mCount;
+    long mMin;
+    long mMean;
+    long mP50;
+    long mP90;
+    long mP99;
+    long mMax;
+
+    Row(String name, String type) {
+      mName = name;
+      mType = type;
+    }
+
+    @Override
+    public String toString() {
+      if (mType.equals("histogram")) {
+        return String.format(
+            Locale.US,
+            "%s: count=%d, min=%d, mean=%d, p50=%d, p90=%d, p99=%d, max=%d",
+            mName,
+            mCount,
+            mMin,
+            mMean,
+            mP50,
+            mP90,
+            mP99,
+            mMax);
+      }
+      return mName + ": " + mValue;
+    }
+  }
+}
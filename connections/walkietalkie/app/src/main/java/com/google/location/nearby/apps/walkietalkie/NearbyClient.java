@@ -0,0 +1,116 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import com.google.android.gms.nearby.connection.AdvertisingOptions;
+import com.google.android.gms.nearby.connection.ConnectionLifecycleCallback;
+import com.google.android.gms.nearby.connection.ConnectionsClient;
+import com.google.android.gms.nearby.connection.DiscoveryOptions;
+import com.google.android.gms.nearby.connection.EndpointDiscoveryCallback;
+import com.google.android.gms.nearby.connection.Payload;
+import com.google.android.gms.nearby.connection.PayloadCallback;
+import com.google.android.gms.tasks.Task;
+import java.util.List;
+
+/**
+ * The calls {@link NearbyConnectionManager} makes to Nearby Connections. It's normally just {@link
+ * ConnectionsClient}, which can't be implemented outside of Google Play services; this lets a
+ * {@link TraceRecorder} listen in, or a {@link TraceReplayClient} stand in for it.
+ */
+public interface NearbyClient {
+  Task<Void> startAdvertising(
+      String name,
+      String serviceId,
+      ConnectionLifecycleCallback callback,
+      AdvertisingOptions options);
+
+  void stopAdvertising();
+
+  Task<Void> startDiscovery(
+      String serviceId, EndpointDiscoveryCallback callback, DiscoveryOptions options);
+
+  void stopDiscovery();
+
+  Task<Void> requestConnection(
+      String name, String endpointId, ConnectionLifecycleCallback callback);
+
+  Task<Void> acceptConnection(String endpointId, PayloadCallback callback);
+
+  Task<Void> rejectConnection(String endpointId);
+
+  Task<Void> sendPayload(String endpointId, Payload payload);
+
+  Task<Void> sendPayload(List<String> endpointIds, Payload payload);
+
+  void disconnectFromEndpoint(String endpointId);
+
+  void stopAllEndpoints();
+
+  /** Passes every call straight through to Google Play services. */
+  class Default implements NearbyClient {
+    private final ConnectionsClient mClient;
+
+    public Default(ConnectionsClient client) {
+      mClient = client;
+    }
+
+    @Override
+    public Task<Void> startAdvertising(
+        String name,
+        String serviceId,
+        ConnectionLifecycleCallback callback,
+        AdvertisingOptions options) {
+      return mClient.startAdvertising(name, serviceId, callback, options);
+    }
+
+    @Override
+    public void stopAdvertising() {
+      mClient.stopAdvertising();
+    }
+
+    @Override
+    public Task<Void> startDiscovery(
+        String serviceId, EndpointDiscoveryCallback callback, DiscoveryOptions options) {
+      return mClient.startDiscovery(serviceId, callback, options);
+    }
+
+    @Override
+    public void stopDiscovery() {
+      mClient.stopDiscovery();
+    }
+
+    @Override
+    public Task<Void> requestConnection(
+        String name, String endpointId, ConnectionLifecycleCallback callback) {
+      return mClient.requestConnection(name, endpointId, callback);
+    }
+
+    @Override
+    public Task<Void> acceptConnection(String endpointId, PayloadCallback callback) {
+      return mClient.acceptConnection(endpointId, callback);
+    }
+
+    @Override
+    public Task<Void> rejectConnection(String endpointId) {
+      return mClient.rejectConnection(endpointId);
+    }
+
+    @Override
+    public Task<Void> sendPayload(String endpointId, Payload payload) {
+      return mClient.sendPayload(endpointId, payload);
+    }
+
+    @Override
+    public Task<Void> sendPayload(List<String> endpointIds, Payload payload) {
+      return mClient.sendPayload(endpointIds, payload);
+    }
+
+    @Override
+    public void disconnectFromEndpoint(String endpointId) {
+      mClient.disconnectFromEndpoint(endpointId);
+    }
+
+    @Override
+    public void stopAllEndpoints() {
+      mClient.stopAllEndpoints();
+    }
+  }
+}
@@ -0,0 +1,1053 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.nearby.Nearby;
+import com.google.android.gms.nearby.connection.AdvertisingOptions;
+import com.google.android.gms.nearby.connection.ConnectionInfo;
+import com.google.android.gms.nearby.connection.ConnectionLifecycleCallback;
+import com.google.android.gms.nearby.connection.ConnectionResolution;
+import com.google.android.gms.nearby.connection.ConnectionsStatusCodes;
+import com.google.android.gms.nearby.connection.DiscoveredEndpointInfo;
+import com.google.android.gms.nearby.connection.DiscoveryOptions;
+import com.google.android.gms.nearby.connection.EndpointDiscoveryCallback;
+import com.google.android.gms.nearby.connection.Payload;
+import com.google.android.gms.nearby.connection.PayloadCallback;
+import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
+import com.google.android.gms.nearby.connection.Strategy;
+import com.google.android.gms.tasks.OnFailureListener;
+import com.google.android.gms.tasks.OnSuccessListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Owns our connection to Nearby Connections: advertising, discovery, the endpoints we know about
+ * and the payloads sent to us. It lives for as long as our process does, so an Activity being
+ * recreated (eg. on rotation, or after granting permissions) doesn't cost us our connections.
+ * Activities {@link #addListener(Listener) subscribe} to events while they're started.
+ *
+ * <p>Events that come up while nobody is listening, eg. while an Activity is being recreated, are
+ * held on to and replayed to the next listener, so a pending connection still gets accepted or
+ * rejected, and a stream still gets read.
+ *
+ * <p>Once the last listener goes away for good, we wait {@link #IDLE_SHUTDOWN_MS} in case the user
+ * comes right back, and then reset all state in Nearby Connections.
+ *
+ * <p>All methods must be called on the main thread, which is also where all events are delivered.
+ */
+@MainThread
+public class NearbyConnectionManager {
+  /** How long we stay connected with nobody listening, before we reset everything. */
+  private static final long IDLE_SHUTDOWN_MS = 30000;
+
+  /** How many bytes we let Nearby Connections hold on to for any one endpoint. */
+  private static final long MAX_OUTSTANDING_BYTES = 256 * 1024;
+
+  /** How many payloads may wait for an endpoint before the send policy kicks in. */
+  private static final int MAX_WAITING_PAYLOADS = 32;
+
+  /**
+   * How many connection requests we send at once, when the strategy lets us connect to many
+   * devices. Other strategies only ever connect to one, so they send one request at a time.
+   */
+  private static final int MAX_CONCURRENT_CONNECTIONS = 4;
+
+  /** How many events we hold on to while nobody is listening. The oldest are dropped first. */
+  private static final int MAX_PENDING_EVENTS = 256;
+
+  private static NearbyConnectionManager sInstance;
+
+  /** Returns the manager for this process. */
+  public static synchronized NearbyConnectionManager getInstance(Context context) {
+    if (sInstance == null) {
+      sInstance = new NearbyConnectionManager(context.getApplicationContext());
+    }
+    return sInstance;
+  }
+
+  /**
+   * Replaces the manager for this process, eg. with one built on a {@link TraceReplayClient}. Must
+   * be called before anyone asks for it.
+   */
+  @VisibleForTesting
+  public static synchronized void setInstance(NearbyConnectionManager manager) {
+    sInstance = manager;
+  }
+
+  /** Events from Nearby Connections. */
+  public interface Listener {
+    /** Advertising successfully started. */
+    void onAdvertisingStarted();
+
+    /** Advertising failed to start. */
+    void onAdvertisingFailed();
+
+    /** Discovery successfully started. */
+    void onDiscoveryStarted();
+
+    /** Discovery failed to start. */
+    void onDiscoveryFailed();
+
+    /**
+     * A remote endpoint was discovered. Peers we're already reconnecting to on our own aren't
+     * reported.
+     */
+    void onEndpointDiscovered(Endpoint endpoint);
+
+    /** A pending connection with a remote endpoint was created. */
+    void onConnectionInitiated(Endpoint endpoint, ConnectionInfo connectionInfo);
+
+    /** A connection with this endpoint has failed. */
+    void onConnectionFailed(Endpoint endpoint);
+
+    /** Someone has connected to us. */
+    void onEndpointConnected(Endpoint endpoint);
+
+    /** Someone has disconnected. */
+    void onEndpointDisconnected(Endpoint endpoint);
+
+    /** Someone connected to us has sent us data. */
+    void onReceive(Endpoint endpoint, Payload payload);
+  }
+
+  /** An event for our listeners, which may have to wait for one to come along. */
+  private abstract static class PendingEvent {
+    abstract void deliverTo(Listener listener);
+
+    /** Called instead of {@link #deliverTo}, if nobody came along in time. */
+    void discard() {}
+  }
+
+  private static final PendingEvent ADVERTISING_STARTED =
+      new PendingEvent() {
+        @Override
+        void deliverTo(Listener listener) {
+          listener.onAdvertisingStarted();
+        }
+      };
+
+  private static final PendingEvent ADVERTISING_FAILED =
+      new PendingEvent() {
+        @Override
+        void deliverTo(Listener listener) {
+          listener.onAdvertisingFailed();
+        }
+      };
+
+  private static final PendingEvent DISCOVERY_STARTED =
+      new PendingEvent() {
+        @Override
+        void deliverTo(Listener listener) {
+          listener.onDiscoveryStarted();
+        }
+      };
+
+  private static final PendingEvent DISCOVERY_FAILED =
+      new PendingEvent() {
+        @Override
+        void deliverTo(Listener listener) {
+          listener.onDiscoveryFailed();
+        }
+      };
+
+  /** Our handler to Nearby Connections. */
+  private final NearbyClient mConnectionsClient;
+
+  /** Listens in on {@link #mConnectionsClient}, while asked to record a trace. */
+  private final TraceRecorder mTraceRecorder;
+
+  /** Everyone interested in our events. */
+  private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+  /** Events that came up while nobody was listening, in order, waiting for the next listener. */
+  private final ArrayDeque<PendingEvent> mPendingEvents = new ArrayDeque<>();
+
+  /** Records what Nearby Connections tells us, without formatting it until someone asks. */
+  private final EventLog mEventLog = new EventLog();
+
+  /** Measures the connection lifecycle. */
+  private final ConnectionMetrics mMetrics = new ConnectionMetrics(new MetricsRegistry());
+
+  /** Writes {@link #mMetrics} to disk every so often. */
+  private final MetricsExporter mMetricsExporter;
+
+  /** Keeps statistics on how long payloads take to send and receive. */
+  private final PayloadTracker mTracker = new PayloadTracker();
+
+  /** Limits how much we have in flight to each endpoint. */
+  private final PayloadSendQueue mSendQueue =
+      new PayloadSendQueue(
+          new PayloadSendQueue.Sender() {
+            @Override
+            public void sendPayload(final String endpointId, final Payload payload) {
+              mEventLog.onPayloadSent(endpointId, payload.getId(), payload.getType());
+              mTracker.onPayloadSent(endpointId, payload);
+              mConnectionsClient
+                  .sendPayload(endpointId, payload)
+                  .addOnFailureListener(
+                      new OnFailureListener() {
+                        @Override
+                        public void onFailure(@NonNull Exception e) {
+                          Log.w(TAG, "sendPayload() failed.", e);
+                          mSendQueue.onSendFailed(endpointId, payload.getId());
+                          mTracker.onSendFailed(endpointId, payload.getId());
+                        }
+                      });
+            }
+
+            @Override
+            public void sendPayload(final List<String> endpointIds, final Payload payload) {
+              for (String endpointId : endpointIds) {
+                mEventLog.onPayloadSent(endpointId, payload.getId(), payload.getType());
+                mTracker.onPayloadSent(endpointId, payload);
+              }
+              mConnectionsClient
+                  .sendPayload(endpointIds, payload)
+                  .addOnFailureListener(
+                      new OnFailureListener() {
+                        @Override
+                        public void onFailure(@NonNull Exception e) {
+                          Log.w(TAG, "sendPayload() failed.", e);
+                          for (String endpointId : endpointIds) {
+                            mSendQueue.onSendFailed(endpointId, payload.getId());
+                            mTracker.onSendFailed(endpointId, payload.getId());
+                          }
+                        }
+                      });
+            }
+          },
+          PayloadSendQueue.Policy.WAIT,
+          MAX_OUTSTANDING_BYTES,
+          MAX_WAITING_PAYLOADS);
+
+  /** Remembers the peers we've recently connected to, across restarts. */
+  private final PeerCache mPeerCache;
+
+  /** Gets us back to peers we lost unexpectedly. */
+  private final ReconnectionEngine mReconnectionEngine =
+      new ReconnectionEngine(
+          new ReconnectionEngine.Connector() {
+            @Override
+            public boolean connect(String endpointName) {
+              if (mLocalEndpointName == null) {
+                return false;
+              }
+              for (Endpoint endpoint : mDiscoveredEndpoints.getEndpoints()) {
+                if (endpoint.getName().equals(endpointName)) {
+                  Log.v(TAG, "Reconnecting to " + endpoint);
+                  mConnectionScheduler.schedule(
+                      endpoint, ConnectionScheduler.PRIORITY_RECONNECT);
+                  return true;
+                }
+              }
+              return false;
+            }
+          });
+
+  /** Everything we know about the session beyond the connections, once someone asks for it. */
+  @Nullable private ConnectionSession mSession;
+
+  /** Where {@link #mSession} keeps partial file transfers. */
+  private final File mTransferDirectory;
+
+  /** Lets us delay shutting down when nobody is listening. */
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+  /** The devices we've discovered near us. */
+  private final DiscoveredEndpointTable mDiscoveredEndpoints =
+      new DiscoveredEndpointTable(
+          new DiscoveredEndpointTable.Callback() {
+            @Override
+            public void onEndpointExpired(Endpoint endpoint) {
+              Log.v(TAG, "Haven't seen " + endpoint + " in a while. Forgetting it.");
+              mConnectionScheduler.remove(endpoint.getId());
+            }
+          });
+
+  /**
+   * The devices we have pending connections to. They will stay pending until we call {@link
+   * #acceptConnection(Endpoint)} or {@link #rejectConnection(Endpoint)}.
+   */
+  private final EndpointRegistry mPendingConnections = new EndpointRegistry();
+
+  /**
+   * The devices we are currently connected to. For advertisers, this may be large. For discoverers,
+   * there will only be one entry in this map.
+   */
+  private final EndpointRegistry mEstablishedConnections = new EndpointRegistry();
+
+  /** Decides which discovered devices we ask to connect to us, and when. */
+  private final ConnectionScheduler mConnectionScheduler =
+      new ConnectionScheduler(
+          new ConnectionScheduler.Connector() {
+            @Override
+            public void requestConnection(Endpoint endpoint) {
+              NearbyConnectionManager.this.requestConnection(endpoint);
+            }
+
+            @Override
+            public void cancelConnection(Endpoint endpoint) {
+              mConnectionsClient.disconnectFromEndpoint(endpoint.getId());
+              mPendingConnections.remove(endpoint.getId());
+            }
+          },
+          new ConnectionScheduler.Callback() {
+            @Override
+            public void onGaveUp(Endpoint endpoint) {
+              mReconnectionEngine.onConnectionFailed(endpoint.getName());
+              dispatchConnectionFailed(endpoint);
+            }
+          });
+
+  /** True if the strategy we're discovering with lets us connect to more than one device. */
+  private boolean mCanConnectToMany = false;
+
+  /** True if we are discovering. */
+  private boolean mIsDiscovering = false;
+
+  /** True if we are advertising. */
+  private boolean mIsAdvertising = false;
+
+  /** The name we last advertised or connected under, or null if we haven't yet. */
+  private String mLocalEndpointName;
+
+  /** The service id we last advertised or discovered. */
+  private String mServiceId = "";
+
+  /** How many events were dropped, rather than waiting any longer for a listener. */
+  private final MetricsRegistry.Counter mDroppedEvents;
+
+  /** When the last listener left, or -1 if someone is listening. */
+  private long mDetachedAtMillis = -1;
+
+  /** True if we had connections when the last listener left. */
+  private boolean mConnectedWhenDetached;
+
+  /** How long it took, the last time a listener came back, to find our connections intact. */
+  private long mLastReattachMillis = -1;
+
+  /**
+   * When a listener came back to find the connections it left behind gone, or -1 if that isn't
+   * the case. Cleared once we're connected again.
+   */
+  private long mRebuildingSinceMillis = -1;
+
+  /**
+   * How long a returning listener waited to be connected again: right away, when we kept our
+   * connections, or after discovering and connecting all over again, as every listener did before
+   * we kept them. Compare the two to see what keeping them is worth.
+   */
+  private final MetricsRegistry.Histogram mReattachKeptMillis;
+
+  private final MetricsRegistry.Histogram mReattachRebuiltMillis;
+
+  /** Hands the events that waited for a listener to the listeners we now have. */
+  private final Runnable mReplayRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          PendingEvent event;
+          while (!mListeners.isEmpty() && (event = mPendingEvents.poll()) != null) {
+            for (Listener listener : mListeners) {
+              event.deliverTo(listener);
+            }
+          }
+        }
+      };
+
+  /** Resets everything once we've been idle for too long. */
+  private final Runnable mShutdownRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          Log.v(TAG, "Nobody is listening. Shutting down Nearby Connections.");
+          discardPendingEvents();
+          stopAllEndpoints();
+        }
+      };
+
+  /** Callbacks for connections to other devices. */
+  private final ConnectionLifecycleCallback mConnectionLifecycleCallback =
+      new ConnectionLifecycleCallback() {
+        @Override
+        public void onConnectionInitiated(
+            String endpointId, final ConnectionInfo connectionInfo) {
+          mEventLog.onConnectionInitiated(endpointId, connectionInfo.getEndpointName());
+          final Endpoint endpoint = new Endpoint(endpointId, connectionInfo.getEndpointName());
+          mPendingConnections.put(endpoint);
+          dispatch(
+              new PendingEvent() {
+                @Override
+                void deliverTo(Listener listener) {
+                  listener.onConnectionInitiated(endpoint, connectionInfo);
+                }
+
+                @Override
+                void discard() {
+                  // Nobody came back to decide, so don't leave the other side hanging.
+                  mPendingConnections.remove(endpoint.getId());
+                  rejectConnection(endpoint);
+                }
+              });
+        }
+
+        @Override
+        public void onConnectionResult(String endpointId, ConnectionResolution result) {
+          mEventLog.onConnectionResult(endpointId, result.getStatus().getStatusCode());
+          if (!result.getStatus().isSuccess()) {
+            Log.w(
+                TAG,
+                String.format(
+                    "Connection failed. Received status %s.",
+                    NearbyConnectionManager.toString(result.getStatus())));
+            Endpoint endpoint = mPendingConnections.remove(endpointId);
+            if (mConnectionScheduler.isScheduled(endpointId)) {
+              // We asked for this connection. The scheduler will retry, or tell listeners.
+              mConnectionScheduler.onConnectionFailed(endpointId);
+              return;
+            }
+            if (endpoint == null) {
+              // We'd already given up on it, eg. in stopAllEndpoints(). Nobody is waiting to hear.
+              return;
+            }
+            dispatchConnectionFailed(endpoint);
+            return;
+          }
+          mConnectionScheduler.onConnected(endpointId);
+          Endpoint endpoint = mPendingConnections.remove(endpointId);
+          if (endpoint == null) {
+            Log.w(TAG, "Connected to endpoint " + endpointId + " after we'd given up on it.");
+            mConnectionsClient.disconnectFromEndpoint(endpointId);
+            return;
+          }
+          connectedToEndpoint(endpoint);
+        }
+
+        @Override
+        public void onDisconnected(String endpointId) {
+          mEventLog.onDisconnected(endpointId);
+          if (!mEstablishedConnections.containsKey(endpointId)) {
+            Log.w(TAG, "Unexpected disconnection from endpoint " + endpointId);
+            return;
+          }
+          Endpoint endpoint = mEstablishedConnections.get(endpointId);
+          disconnectedFromEndpoint(endpoint);
+
+          // We didn't ask for this, so try to get them back.
+          mReconnectionEngine.onDisconnected(endpoint.getName());
+        }
+      };
+
+  /** Callbacks for payloads (bytes of data) sent from another device to us. */
+  private final PayloadCallback mPayloadCallback =
+      new PayloadCallback() {
+        @Override
+        public void onPayloadReceived(String endpointId, final Payload payload) {
+          mEventLog.onPayloadReceived(endpointId, payload.getId(), payload.getType());
+          mTracker.onPayloadReceived(endpointId, payload);
+          final Endpoint endpoint = mEstablishedConnections.get(endpointId);
+          dispatch(
+              new PendingEvent() {
+                @Override
+                void deliverTo(Listener listener) {
+                  listener.onReceive(endpoint, payload);
+                }
+
+                @Override
+                void discard() {
+                  if (payload.getType() == Payload.Type.STREAM) {
+                    // Otherwise the sender blocks on a stream nobody will ever read.
+                    try {
+                      payload.asStream().asInputStream().close();
+                    } catch (IOException e) {
+                      Log.w(TAG, "Unable to close a stream nobody read.", e);
+                    }
+                  }
+                }
+              });
+        }
+
+        @Override
+        public void onPayloadTransferUpdate(String endpointId, PayloadTransferUpdate update) {
+          mEventLog.onPayloadTransferUpdate(endpointId, update);
+          mSendQueue.onTransferUpdate(endpointId, update);
+          mTracker.onTransferUpdate(endpointId, update);
+        }
+      };
+
+  /** Callbacks for finding devices while discovering. */
+  private final EndpointDiscoveryCallback mEndpointDiscoveryCallback =
+      new EndpointDiscoveryCallback() {
+        @Override
+        public void onEndpointFound(String endpointId, DiscoveredEndpointInfo info) {
+          mEventLog.onEndpointFound(endpointId, info.getEndpointName());
+
+          if (mDiscoveryServiceId.equals(info.getServiceId())) {
+            mMetrics.onEndpointFound();
+            Endpoint endpoint = new Endpoint(endpointId, info.getEndpointName());
+            mDiscoveredEndpoints.put(endpoint);
+            if (mReconnectionEngine.onEndpointDiscovered(endpoint.getName())) {
+              // It's someone we were connected to a moment ago. We're already reconnecting.
+              return;
+            }
+            dispatchEndpointDiscovered(endpoint);
+          }
+        }
+
+        @Override
+        public void onEndpointLost(String endpointId) {
+          mEventLog.onEndpointLost(endpointId);
+
+          // There's no point asking them to connect anymore.
+          mDiscoveredEndpoints.onLost(endpointId);
+          mConnectionScheduler.remove(endpointId);
+        }
+      };
+
+  /** The service id we're discovering. Only endpoints with this service id are reported. */
+  private String mDiscoveryServiceId = "";
+
+  private NearbyConnectionManager(Context context) {
+    this(context, new NearbyClient.Default(Nearby.getConnectionsClient(context)));
+  }
+
+  @VisibleForTesting
+  public NearbyConnectionManager(Context context, NearbyClient client) {
+    mTraceRecorder = new TraceRecorder(client);
+    mConnectionsClient = mTraceRecorder;
+    mPeerCache = new PeerCache(context);
+    mSendQueue.setLoadMonitor(
+        new PayloadSendQueue.LoadMonitor() {
+          @Override
+          public boolean isRealTimeFallingBehind(String endpointId) {
+            return mTracker.isStreamFallingBehind(endpointId);
+          }
+        });
+    mMetricsExporter =
+        new MetricsExporter(mMetrics.getRegistry(), new File(context.getFilesDir(), "metrics"));
+    mTransferDirectory = new File(context.getFilesDir(), "transfers");
+    mDroppedEvents = mMetrics.getRegistry().counter("listener.dropped_events");
+    mReattachKeptMillis = mMetrics.getRegistry().histogram("listener.reattach_ms.kept");
+    mReattachRebuiltMillis = mMetrics.getRegistry().histogram("listener.reattach_ms.rebuilt");
+  }
+
+  /**
+   * Returns the session that goes with our connections, creating it the first time. Like us, it
+   * outlives any one Activity.
+   *
+   * @param strategy The strategy to start out with. Ignored once the session exists.
+   * @param canSwitch True if a busy one to one session may be switched to a faster strategy.
+   *     Ignored once the session exists.
+   */
+  public ConnectionSession getSession(Strategy strategy, boolean canSwitch) {
+    if (mSession == null) {
+      mSession = new ConnectionSession(this, strategy, canSwitch, mTransferDirectory);
+    }
+    return mSession;
+  }
+
+  /**
+   * Starts delivering events to the listener. If we already have connections, they're still there
+   * and the listener can pick up where the last one left off, starting with the events that came
+   * up while nobody was listening. Those are replayed once the caller's current message is done.
+   */
+  public void addListener(Listener listener) {
+    mHandler.removeCallbacks(mShutdownRunnable);
+    if (mDetachedAtMillis >= 0 && !mEstablishedConnections.isEmpty()) {
+      mLastReattachMillis = SystemClock.elapsedRealtime() - mDetachedAtMillis;
+      mReattachKeptMillis.record(mLastReattachMillis);
+      Log.v(
+          TAG,
+          String.format(
+              Locale.US,
+              "Reattached to %d connected endpoints after %dms",
+              mEstablishedConnections.size(),
+              mLastReattachMillis));
+    } else if (mDetachedAtMillis >= 0 && mConnectedWhenDetached) {
+      // Timed from now, not from when we were left, which may have been long ago.
+      mRebuildingSinceMillis = SystemClock.elapsedRealtime();
+    }
+    mDetachedAtMillis = -1;
+    mListeners.add(listener);
+    if (!mPendingEvents.isEmpty()) {
+      mHandler.removeCallbacks(mReplayRunnable);
+      mHandler.post(mReplayRunnable);
+    }
+  }
+
+  /**
+   * Stops delivering events to the listener.
+   *
+   * @param changingConfigurations True if the listener is going away only to be immediately
+   *     recreated. Otherwise, once nobody is listening, we'll shut down after a short delay.
+   */
+  public void removeListener(Listener listener, boolean changingConfigurations) {
+    mListeners.remove(listener);
+    if (mListeners.isEmpty()) {
+      mDetachedAtMillis = SystemClock.elapsedRealtime();
+      mConnectedWhenDetached = !mEstablishedConnections.isEmpty();
+      mRebuildingSinceMillis = -1;
+      if (!changingConfigurations) {
+        mHandler.postDelayed(mShutdownRunnable, IDLE_SHUTDOWN_MS);
+      }
+    }
+  }
+
+  /**
+   * Returns how long, in milliseconds, it took the last time a listener came back and found our
+   * connections intact. Returns -1 if that hasn't happened yet.
+   */
+  public long getLastReattachMillis() {
+    return mLastReattachMillis;
+  }
+
+  /**
+   * Sets the device to advertising mode. It will broadcast to other devices in discovery mode.
+   * Either {@link Listener#onAdvertisingStarted()} or {@link Listener#onAdvertisingFailed()} will
+   * be called once we've found out if we successfully entered this mode. If we're already
+   * advertising, listeners are told so right away.
+   */
+  public void startAdvertising(
+      final String localEndpointName, String serviceId, Strategy strategy) {
+    if (mIsAdvertising) {
+      dispatch(ADVERTISING_STARTED);
+      return;
+    }
+    mIsAdvertising = true;
+    mLocalEndpointName = localEndpointName;
+    mServiceId = serviceId;
+
+    AdvertisingOptions.Builder advertisingOptions = new AdvertisingOptions.Builder();
+    advertisingOptions.setStrategy(strategy);
+
+    mConnectionsClient
+        .startAdvertising(
+            localEndpointName, serviceId, mConnectionLifecycleCallback, advertisingOptions.build())
+        .addOnSuccessListener(
+            new OnSuccessListener<Void>() {
+              @Override
+              public void onSuccess(Void unusedResult) {
+                Log.v(TAG, "Now advertising endpoint " + localEndpointName);
+                dispatch(ADVERTISING_STARTED);
+              }
+            })
+        .addOnFailureListener(
+            new OnFailureListener() {
+              @Override
+              public void onFailure(@NonNull Exception e) {
+                mIsAdvertising = false;
+                Log.w(TAG, "startAdvertising() failed.", e);
+                dispatch(ADVERTISING_FAILED);
+              }
+            });
+  }
+
+  /** Stops advertising. */
+  public void stopAdvertising() {
+    mIsAdvertising = false;
+    mConnectionsClient.stopAdvertising();
+  }
+
+  /** Returns {@code true} if currently advertising. */
+  public boolean isAdvertising() {
+    return mIsAdvertising;
+  }
+
+  /** Accepts a connection request. */
+  public void acceptConnection(final Endpoint endpoint) {
+    mConnectionsClient
+        .acceptConnection(endpoint.getId(), mPayloadCallback)
+        .addOnFailureListener(
+            new OnFailureListener() {
+              @Override
+              public void onFailure(@NonNull Exception e) {
+                Log.w(TAG, "acceptConnection() failed.", e);
+              }
+            });
+  }
+
+  /** Rejects a connection request. */
+  public void rejectConnection(Endpoint endpoint) {
+    mConnectionsClient
+        .rejectConnection(endpoint.getId())
+        .addOnFailureListener(
+            new OnFailureListener() {
+              @Override
+              public void onFailure(@NonNull Exception e) {
+                Log.w(TAG, "rejectConnection() failed.", e);
+              }
+            });
+  }
+
+  /**
+   * Sets the device to discovery mode. It will now listen for devices in advertising mode. Either
+   * {@link Listener#onDiscoveryStarted()} or {@link Listener#onDiscoveryFailed()} will be called
+   * once we've found out if we successfully entered this mode. If we're already discovering,
+   * listeners are told so right away, along with everything we've discovered so far.
+   */
+  public void startDiscovering(String serviceId, Strategy strategy) {
+    if (mIsDiscovering && mDiscoveryServiceId.equals(serviceId)) {
+      dispatch(DISCOVERY_STARTED);
+      for (Endpoint endpoint : getDiscoveredEndpoints()) {
+        dispatchEndpointDiscovered(endpoint);
+      }
+      return;
+    }
+    mIsDiscovering = true;
+    mMetrics.onDiscoveryStarted();
+    mDiscoveryServiceId = serviceId;
+    mServiceId = serviceId;
+    mCanConnectToMany = Strategy.P2P_CLUSTER.equals(strategy);
+    mConnectionScheduler.setMaxConcurrent(mCanConnectToMany ? MAX_CONCURRENT_CONNECTIONS : 1);
+    mDiscoveredEndpoints.clear();
+    DiscoveryOptions.Builder discoveryOptions = new DiscoveryOptions.Builder();
+    discoveryOptions.setStrategy(strategy);
+    mConnectionsClient
+        .startDiscovery(serviceId, mEndpointDiscoveryCallback, discoveryOptions.build())
+        .addOnSuccessListener(
+            new OnSuccessListener<Void>() {
+              @Override
+              public void onSuccess(Void unusedResult) {
+                dispatch(DISCOVERY_STARTED);
+              }
+            })
+        .addOnFailureListener(
+            new OnFailureListener() {
+              @Override
+              public void onFailure(@NonNull Exception e) {
+                mIsDiscovering = false;
+                mMetrics.onDiscoveryStopped();
+                Log.w(TAG, "startDiscovering() failed.", e);
+                dispatch(DISCOVERY_FAILED);
+              }
+            });
+  }
+
+  /** Stops discovery. */
+  public void stopDiscovering() {
+    mIsDiscovering = false;
+    mMetrics.onDiscoveryStopped();
+    mConnectionsClient.stopDiscovery();
+  }
+
+  /** Returns {@code true} if currently discovering. */
+  public boolean isDiscovering() {
+    return mIsDiscovering;
+  }
+
+  /** Disconnects from the given endpoint. */
+  public void disconnect(Endpoint endpoint) {
+    mConnectionsClient.disconnectFromEndpoint(endpoint.getId());
+    if (mEstablishedConnections.remove(endpoint.getId()) != null) {
+      mMetrics.onLocalDisconnect(1);
+    }
+    mSendQueue.removeEndpoint(endpoint.getId());
+    mTracker.onEndpointDisconnected(endpoint.getId());
+  }
+
+  /** Disconnects from all currently connected endpoints. */
+  public void disconnectFromAllEndpoints() {
+    for (Endpoint endpoint : mEstablishedConnections.getEndpoints()) {
+      mConnectionsClient.disconnectFromEndpoint(endpoint.getId());
+      mTracker.onEndpointDisconnected(endpoint.getId());
+    }
+    mMetrics.onLocalDisconnect(mEstablishedConnections.size());
+    mEstablishedConnections.clear();
+    mSendQueue.clear();
+    mReconnectionEngine.cancelAll();
+  }
+
+  /** Resets and clears all state in Nearby Connections. */
+  public void stopAllEndpoints() {
+    mConnectionsClient.stopAllEndpoints();
+    mMetrics.onReset(mEstablishedConnections.size());
+    for (String endpointId : mEstablishedConnections.getIds()) {
+      mTracker.onEndpointDisconnected(endpointId);
+    }
+    mIsAdvertising = false;
+    mIsDiscovering = false;
+    mConnectionScheduler.clear();
+    mDiscoveredEndpoints.clear();
+    mPendingConnections.clear();
+    mEstablishedConnections.clear();
+    mSendQueue.clear();
+    mReconnectionEngine.cancelAll();
+  }
+
+  /**
+   * Schedules a connection request to the endpoint. Devices we've been connected to before go to
+   * the front of the queue. Either {@link Listener#onConnectionInitiated} or {@link
+   * Listener#onConnectionFailed(Endpoint)} will be called once we've found out if we successfully
+   * reached the device, although the latter only once we've run out of retries.
+   */
+  public void connectToEndpoint(String localEndpointName, Endpoint endpoint) {
+    mLocalEndpointName = localEndpointName;
+    mConnectionScheduler.schedule(
+        endpoint,
+        mPeerCache.contains(endpoint.getName())
+            ? ConnectionScheduler.PRIORITY_KNOWN
+            : ConnectionScheduler.PRIORITY_DEFAULT);
+  }
+
+  /** Sets how many connection requests we may send at once. */
+  public void setMaxConcurrentConnections(int maxConcurrent) {
+    mConnectionScheduler.setMaxConcurrent(maxConcurrent);
+  }
+
+  /** Returns {@code true} if we're currently attempting to connect to another device. */
+  public boolean isConnecting() {
+    return mConnectionScheduler.isConnecting();
+  }
+
+  /**
+   * Returns the {@link SystemClock#elapsedRealtime()} we last saw a discovered endpoint at, or -1
+   * if it's been lost or has expired.
+   */
+  public long getLastSeenMillis(Endpoint endpoint) {
+    return mDiscoveredEndpoints.getLastSeenMillis(endpoint.getId());
+  }
+
+  /** Returns the scheduler for our connection requests, for inspecting its metrics. */
+  public ConnectionScheduler getConnectionScheduler() {
+    return mConnectionScheduler;
+  }
+
+  /** Sends a connection request. Called by the scheduler, once it's the endpoint's turn. */
+  private void requestConnection(final Endpoint endpoint) {
+    mConnectionsClient
+        .requestConnection(mLocalEndpointName, endpoint.getId(), mConnectionLifecycleCallback)
+        .addOnFailureListener(
+            new OnFailureListener() {
+              @Override
+              public void onFailure(@NonNull Exception e) {
+                Log.w(TAG, "requestConnection() failed.", e);
+                mConnectionScheduler.onConnectionFailed(endpoint.getId());
+              }
+            });
+  }
+
+  private void connectedToEndpoint(final Endpoint endpoint) {
+    mEstablishedConnections.put(endpoint);
+    if (mRebuildingSinceMillis >= 0) {
+      mReattachRebuiltMillis.record(SystemClock.elapsedRealtime() - mRebuildingSinceMillis);
+      mRebuildingSinceMillis = -1;
+    }
+    if (!mCanConnectToMany) {
+      // We can't connect to anyone else, so there's no point asking.
+      mConnectionScheduler.clearQueue();
+    }
+    mPeerCache.onConnected(endpoint.getName(), mServiceId);
+    mReconnectionEngine.onConnected(endpoint.getName());
+    dispatch(
+        new PendingEvent() {
+          @Override
+          void deliverTo(Listener listener) {
+            listener.onEndpointConnected(endpoint);
+          }
+        });
+  }
+
+  private void disconnectedFromEndpoint(final Endpoint endpoint) {
+    mEstablishedConnections.remove(endpoint.getId());
+    mSendQueue.removeEndpoint(endpoint.getId());
+    mTracker.onEndpointDisconnected(endpoint.getId());
+    dispatch(
+        new PendingEvent() {
+          @Override
+          void deliverTo(Listener listener) {
+            listener.onEndpointDisconnected(endpoint);
+          }
+        });
+  }
+
+  private void dispatchConnectionFailed(final Endpoint endpoint) {
+    dispatch(
+        new PendingEvent() {
+          @Override
+          void deliverTo(Listener listener) {
+            listener.onConnectionFailed(endpoint);
+          }
+        });
+  }
+
+  private void dispatchEndpointDiscovered(final Endpoint endpoint) {
+    dispatch(
+        new PendingEvent() {
+          @Override
+          void deliverTo(Listener listener) {
+            listener.onEndpointDiscovered(endpoint);
+          }
+        });
+  }
+
+  /**
+   * Hands an event to our listeners. While nobody is listening, or earlier events are still waiting
+   * to be replayed, it waits its turn in {@link #mPendingEvents} instead.
+   */
+  private void dispatch(PendingEvent event) {
+    if (mListeners.isEmpty() || !mPendingEvents.isEmpty()) {
+      if (mPendingEvents.size() == MAX_PENDING_EVENTS) {
+        mPendingEvents.poll().discard();
+        mDroppedEvents.increment();
+      }
+      mPendingEvents.add(event);
+      return;
+    }
+    for (Listener listener : mListeners) {
+      event.deliverTo(listener);
+    }
+  }
+
+  /** Drops every event still waiting for a listener. */
+  private void discardPendingEvents() {
+    PendingEvent event;
+    while ((event = mPendingEvents.poll()) != null) {
+      event.discard();
+      mDroppedEvents.increment();
+    }
+  }
+
+  /**
+   * Returns an immutable snapshot of the currently discovered endpoints. Endpoints that were lost,
+   * or that we haven't seen in a while, aren't included. Safe on any thread.
+   */
+  public Set<Endpoint> getDiscoveredEndpoints() {
+    return mDiscoveredEndpoints.getEndpoints();
+  }
+
+  /** Returns an immutable snapshot of the currently connected endpoints. Safe on any thread. */
+  public Set<Endpoint> getConnectedEndpoints() {
+    return mEstablishedConnections.getEndpoints();
+  }
+
+  /**
+   * Sends a {@link Payload} to all currently connected endpoints.
+   *
+   * <p>Payloads go through a per-endpoint {@link PayloadSendQueue}. {@link Payload.Type#BYTES}
+   * payloads are copied for each endpoint so they can be tracked separately. Streams and files can
+   * only be read once, so they wait their turn with every endpoint, and are then handed to Nearby
+   * Connections for everyone in a single request.
+   *
+   * @param payload The data you want to send.
+   * @return False if any endpoint was too backed up to accept the payload.
+   */
+  public boolean send(Payload payload) {
+    return send(payload, PayloadSendQueue.Priority.INTERACTIVE);
+  }
+
+  /**
+   * Sends a {@link Payload} to all currently connected endpoints, ahead of waiting payloads with a
+   * lower priority. Our audio goes out this way as {@link PayloadSendQueue.Priority#REAL_TIME}.
+   *
+   * @return False if any endpoint was too backed up to accept the payload.
+   */
+  public boolean send(Payload payload, PayloadSendQueue.Priority priority) {
+    if (payload.getType() != Payload.Type.BYTES) {
+      return mSendQueue.enqueue(mEstablishedConnections.getIds(), payload, priority);
+    }
+
+    boolean accepted = true;
+    boolean first = true;
+    for (String endpointId : mEstablishedConnections.getIds()) {
+      Payload copy = first ? payload : Payload.fromBytes(payload.asBytes());
+      first = false;
+      accepted &= mSendQueue.enqueue(endpointId, copy, priority);
+    }
+    return accepted;
+  }
+
+  /**
+   * Sends a {@link Payload} to a single endpoint, through its {@link PayloadSendQueue}.
+   *
+   * @return False if the endpoint was too backed up to accept the payload.
+   */
+  public boolean send(Endpoint endpoint, Payload payload) {
+    return mSendQueue.enqueue(endpoint.getId(), payload);
+  }
+
+  /**
+   * Sends a {@link Payload} to a single endpoint, through its {@link PayloadSendQueue}, ahead of
+   * waiting payloads with a lower priority.
+   *
+   * @return False if the endpoint was too backed up to accept the payload.
+   */
+  public boolean send(Endpoint endpoint, Payload payload, PayloadSendQueue.Priority priority) {
+    return mSendQueue.enqueue(endpoint.getId(), payload, priority);
+  }
+
+  /** Changes what happens to new payloads once an endpoint is backed up. */
+  public void setSendPolicy(PayloadSendQueue.Policy policy) {
+    mSendQueue.setPolicy(policy);
+  }
+
+  /** Returns the queues of payloads waiting to be sent, for inspecting their depth and delay. */
+  public PayloadSendQueue getSendQueue() {
+    return mSendQueue;
+  }
+
+  /** Returns the peers we've recently connected to. */
+  public PeerCache getPeerCache() {
+    return mPeerCache;
+  }
+
+  /** Returns the engine that reconnects to peers we lost unexpectedly. */
+  public ReconnectionEngine getReconnectionEngine() {
+    return mReconnectionEngine;
+  }
+
+  /** Returns the log of events from Nearby Connections. */
+  public EventLog getEventLog() {
+    return mEventLog;
+  }
+
+  /** Returns the measurements of the connection lifecycle. */
+  public ConnectionMetrics getMetrics() {
+    return mMetrics;
+  }
+
+  /** Returns what writes our metrics to disk. */
+  public MetricsExporter getMetricsExporter() {
+    return mMetricsExporter;
+  }
+
+  /** Returns the statistics on how long payloads take to send and receive. */
+  public PayloadTracker getPayloadTracker() {
+    return mTracker;
+  }
+
+  /** Returns what records our callbacks into a trace, when asked to. */
+  public TraceRecorder getTraceRecorder() {
+    return mTraceRecorder;
+  }
+
+  /**
+   * Transforms a {@link Status} into a English-readable message for logging.
+   *
+   * @param status The current status
+   * @return A readable String. eg. [404]File not found.
+   */
+  private static String toString(Status status) {
+    return String.format(
+        Locale.US,
+        "[%d]%s",
+        status.getStatusCode(),
+        status.getStatusMessage() != null
+            ? status.getStatusMessage()
+            : ConnectionsStatusCodes.getStatusCodeString(status.getStatusCode()));
+  }
+}
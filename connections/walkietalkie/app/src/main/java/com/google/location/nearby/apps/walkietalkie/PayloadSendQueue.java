@@ -0,0 +1,516 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import android.os.SystemClock;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import com.google.android.gms.nearby.connection.Payload;
+import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Limits how much data we have in flight to each endpoint. Payloads are handed to Nearby
+ * Connections until an endpoint has {@code maxOutstandingBytes} in flight, and then wait here until
+ * {@link #onTransferUpdate} tells us earlier payloads have finished. This keeps a slow peer from
+ * making Play Services buffer an unbounded amount of data on our behalf.
+ *
+ * <p>Waiting payloads are sent in {@link Priority} order, and real-time payloads don't wait for
+ * room at all. While real-time traffic to an endpoint is falling behind, as judged by the {@link
+ * LoadMonitor}, bulk payloads are paced to one in flight at a time, so a file transfer can't crowd
+ * out the walkie-talkie stream.
+ *
+ * <p>Streams and files can only be read once, so one sent to several endpoints is a single
+ * payload that waits its turn in each of their queues, and goes out to all of them at once when it
+ * reaches the front of the last one.
+ *
+ * <p>What happens once too many payloads are waiting is decided by the {@link Policy}.
+ */
+@MainThread
+public class PayloadSendQueue {
+  /** What to do with a new payload when an endpoint is backed up. */
+  public enum Policy {
+    /** Refuse the new payload. The caller finds out through the return value of enqueue(). */
+    REJECT,
+    /** Accept the new payload, and throw away the oldest payload still waiting. */
+    DROP_OLDEST,
+    /**
+     * Accept the new payload and let it wait for as long as it takes, unless {@link
+     * #WAIT_LIMIT_FACTOR} times as many as usual are already waiting. Past that, the endpoint has
+     * stalled, and new payloads are refused rather than buffered without bound.
+     */
+    WAIT
+  }
+
+  /** How many times {@code maxWaitingPayloads} may wait under {@link Policy#WAIT}. */
+  public static final int WAIT_LIMIT_FACTOR = 8;
+
+  /** How urgently a payload needs to go out. */
+  public enum Priority {
+    /** Late is as bad as never, eg. audio. */
+    REAL_TIME,
+    /** Someone is waiting on it, eg. a control message. */
+    INTERACTIVE,
+    /** Nobody minds if it takes a while, eg. a file transfer. */
+    BULK
+  }
+
+  /** Tells us whether real-time traffic to an endpoint is keeping up. */
+  public interface LoadMonitor {
+    boolean isRealTimeFallingBehind(String endpointId);
+  }
+
+  /** Hands payloads to Nearby Connections. */
+  public interface Sender {
+    void sendPayload(String endpointId, Payload payload);
+
+    /** Sends a stream or file, which can only be read once, to several endpoints at once. */
+    void sendPayload(List<String> endpointIds, Payload payload);
+  }
+
+  private final Sender mSender;
+  private Policy mPolicy;
+  private LoadMonitor mLoadMonitor;
+  private final long mMaxOutstandingBytes;
+  private final int mMaxWaitingPayloads;
+
+  /** One queue per endpoint we've sent to. */
+  private final Map<String, EndpointQueue> mQueues = new HashMap<>();
+
+  /**
+   * @param sender Where payloads go once there's room for them.
+   * @param policy What to do once an endpoint is backed up.
+   * @param maxOutstandingBytes How many bytes may be in flight to an endpoint at once. A single
+   *     payload larger than this is still sent, on its own.
+   * @param maxWaitingPayloads How many payloads may wait per endpoint before the policy kicks in.
+   *     {@link Policy#WAIT} lets {@link #WAIT_LIMIT_FACTOR} times as many wait.
+   */
+  public PayloadSendQueue(
+      Sender sender, Policy policy, long maxOutstandingBytes, int maxWaitingPayloads) {
+    mSender = sender;
+    mPolicy = policy;
+    mMaxOutstandingBytes = maxOutstandingBytes;
+    mMaxWaitingPayloads = maxWaitingPayloads;
+  }
+
+  /** Changes what happens to new payloads once an endpoint is backed up. */
+  public void setPolicy(Policy policy) {
+    mPolicy = policy;
+  }
+
+  /** Sets what tells us whether real-time traffic is keeping up. Without one, bulk isn't paced. */
+  public void setLoadMonitor(LoadMonitor loadMonitor) {
+    mLoadMonitor = loadMonitor;
+  }
+
+  /**
+   * Sends the payload to the endpoint as soon as there's room, as an {@link Priority#INTERACTIVE}
+   * payload.
+   *
+   * @return False if the payload was rejected because the endpoint is backed up.
+   */
+  public boolean enqueue(String endpointId, Payload payload) {
+    return enqueue(endpointId, payload, Priority.INTERACTIVE);
+  }
+
+  /**
+   * Sends the payload to the endpoint as soon as there's room, after any waiting payloads of a
+   * higher priority.
+   *
+   * @return False if the payload was rejected because the endpoint is backed up.
+   */
+  public boolean enqueue(String endpointId, Payload payload, Priority priority) {
+    EndpointQueue queue = getQueue(endpointId);
+    if (!queue.admit(sizeOf(payload), priority)) {
+      return false;
+    }
+    queue.add(new Entry(payload, priority, null));
+    return true;
+  }
+
+  /**
+   * Sends the payload to several endpoints as soon as there's room for it in all of their queues.
+   * Meant for streams and files, which can only be read once. Each endpoint's later payloads wait
+   * until it's gone out.
+   *
+   * @return False if the payload was rejected because any of the endpoints is backed up.
+   */
+  public boolean enqueue(List<String> endpointIds, Payload payload, Priority priority) {
+    if (endpointIds.isEmpty()) {
+      return true;
+    }
+    if (endpointIds.size() == 1) {
+      return enqueue(endpointIds.get(0), payload, priority);
+    }
+    long size = sizeOf(payload);
+    for (String endpointId : endpointIds) {
+      if (!getQueue(endpointId).admit(size, priority)) {
+        return false;
+      }
+    }
+    Entry entry = new Entry(payload, priority, new Group(endpointIds));
+    for (String endpointId : endpointIds) {
+      getQueue(endpointId).add(entry);
+    }
+    return true;
+  }
+
+  /**
+   * Releases a payload's bytes once Nearby Connections is done with it, one way or another. Updates
+   * on payloads still in progress give paced bulk payloads another chance to go.
+   */
+  public void onTransferUpdate(String endpointId, PayloadTransferUpdate update) {
+    EndpointQueue queue = mQueues.get(endpointId);
+    if (queue == null) {
+      return;
+    }
+    if (update.getStatus() == PayloadTransferUpdate.Status.IN_PROGRESS) {
+      if (!queue.mWaiting.get(Priority.BULK.ordinal()).isEmpty()) {
+        queue.drain();
+      }
+      return;
+    }
+    queue.release(update.getPayloadId());
+  }
+
+  /** Releases a payload that Nearby Connections refused to send. */
+  public void onSendFailed(String endpointId, long payloadId) {
+    EndpointQueue queue = mQueues.get(endpointId);
+    if (queue != null) {
+      queue.release(payloadId);
+    }
+  }
+
+  /** Forgets everything queued for an endpoint, eg. because it disconnected. */
+  public void removeEndpoint(String endpointId) {
+    EndpointQueue queue = mQueues.remove(endpointId);
+    if (queue == null) {
+      return;
+    }
+    // Payloads shared with other endpoints no longer wait for this one.
+    for (ArrayDeque<Entry> waiting : queue.mWaiting) {
+      for (Entry entry : waiting) {
+        if (entry.mGroup != null) {
+          entry.mGroup.mEndpointIds.remove(endpointId);
+          entry.mGroup.mWaitingFor.remove(endpointId);
+          sendIfReady(entry);
+        }
+      }
+    }
+    if (queue.mHeldBy != null) {
+      queue.mHeldBy.mGroup.mEndpointIds.remove(endpointId);
+      sendIfReady(queue.mHeldBy);
+    }
+  }
+
+  /** Forgets everything queued for every endpoint. */
+  public void clear() {
+    mQueues.clear();
+  }
+
+  /** Returns the number of payloads waiting to be sent to the endpoint. */
+  public int getQueueDepth(String endpointId) {
+    EndpointQueue queue = mQueues.get(endpointId);
+    return queue == null ? 0 : queue.waitingCount();
+  }
+
+  /** Returns the number of bytes currently in flight to the endpoint. */
+  public long getOutstandingBytes(String endpointId) {
+    EndpointQueue queue = mQueues.get(endpointId);
+    return queue == null ? 0 : queue.mOutstandingBytes;
+  }
+
+  /** Returns how many bulk payloads to the endpoint were held back for real-time traffic. */
+  public long getBulkHeldBack(String endpointId) {
+    EndpointQueue queue = mQueues.get(endpointId);
+    return queue == null ? 0 : queue.mBulkHeldBack;
+  }
+
+  private EndpointQueue getQueue(String endpointId) {
+    EndpointQueue queue = mQueues.get(endpointId);
+    if (queue == null) {
+      queue = new EndpointQueue(endpointId);
+      mQueues.put(endpointId, queue);
+    }
+    return queue;
+  }
+
+  /** Sends a shared payload once every endpoint it's for has reached it, and lets them move on. */
+  private void sendIfReady(Entry entry) {
+    Group group = entry.mGroup;
+    if (!group.mWaitingFor.isEmpty() || group.mSent) {
+      return;
+    }
+    group.mSent = true;
+    if (group.mEndpointIds.isEmpty()) {
+      return;
+    }
+    mSender.sendPayload(new ArrayList<>(group.mEndpointIds), entry.mPayload);
+    for (String endpointId : group.mEndpointIds) {
+      EndpointQueue queue = mQueues.get(endpointId);
+      if (queue != null && queue.mHeldBy == entry) {
+        queue.mHeldBy = null;
+        queue.drain();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("PayloadSendQueue{policy=").append(mPolicy);
+    for (EndpointQueue queue : mQueues.values()) {
+      sb.append(", ").append(queue);
+    }
+    return sb.append('}').toString();
+  }
+
+  /** Returns how many bytes we count a payload as, while it's in flight. */
+  private static long sizeOf(Payload payload) {
+    switch (payload.getType()) {
+      case Payload.Type.BYTES:
+        return payload.asBytes().length;
+      case Payload.Type.FILE:
+        return payload.asFile().getSize();
+      default:
+        // Streams have no known size. They still count towards having something in flight.
+        return 0;
+    }
+  }
+
+  /** A payload, its priority, and how long it's been waiting. */
+  private static class Entry {
+    final Payload mPayload;
+    final Priority mPriority;
+    final long mSize;
+    final long mEnqueuedAtMillis;
+
+    /** The endpoints it's shared with, or null if it's for a single endpoint. */
+    @Nullable final Group mGroup;
+
+    /** Whether it's been held back to make way for real-time traffic, so it's counted once. */
+    boolean mHeldBack;
+
+    Entry(Payload payload, Priority priority, @Nullable Group group) {
+      mPayload = payload;
+      mPriority = priority;
+      mSize = sizeOf(payload);
+      mEnqueuedAtMillis = SystemClock.elapsedRealtime();
+      mGroup = group;
+    }
+  }
+
+  /** The endpoints a single payload goes out to together. */
+  private static class Group {
+    /** Every endpoint still connected that it's for. */
+    final Set<String> mEndpointIds;
+
+    /** The endpoints whose queues haven't reached it yet. */
+    final Set<String> mWaitingFor;
+
+    boolean mSent;
+
+    Group(List<String> endpointIds) {
+      mEndpointIds = new LinkedHashSet<>(endpointIds);
+      mWaitingFor = new HashSet<>(endpointIds);
+    }
+  }
+
+  /** The payloads waiting for, and in flight to, a single endpoint. */
+  private class EndpointQueue {
+    final String mEndpointId;
+
+    /** The payloads waiting, one queue per priority, indexed by {@link Priority#ordinal()}. */
+    final List<ArrayDeque<Entry>> mWaiting = new ArrayList<>(Priority.values().length);
+
+    final Map<Long, Entry> mInFlight = new HashMap<>();
+    long mOutstandingBytes;
+    int mBulkInFlight;
+
+    /** A shared payload we've reached, waiting for the other endpoints' queues to reach it too. */
+    @Nullable Entry mHeldBy;
+
+    // Metrics
+    int mMaxDepth;
+    long mSent;
+    long mDropped;
+    long mRejected;
+    long mTotalWaitMillis;
+    long mMaxWaitMillis;
+    long mBulkHeldBack;
+
+    EndpointQueue(String endpointId) {
+      mEndpointId = endpointId;
+      for (int i = 0; i < Priority.values().length; i++) {
+        mWaiting.add(new ArrayDeque<Entry>());
+      }
+    }
+
+    /**
+     * Applies the policy to a new payload of this size and priority. Returns false if it's refused;
+     * otherwise there's now room for it to wait.
+     */
+    boolean admit(long size, Priority priority) {
+      if (priority == Priority.REAL_TIME && mHeldBy == null) {
+        // It goes out right away, whatever else is waiting.
+        return true;
+      }
+      if (waitingCount() == 0 && hasRoomFor(size)) {
+        return true;
+      }
+      switch (mPolicy) {
+        case REJECT:
+          if (waitingCount() >= mMaxWaitingPayloads) {
+            mRejected++;
+            return false;
+          }
+          return true;
+        case DROP_OLDEST:
+          if (waitingCount() >= mMaxWaitingPayloads && !dropOldest()) {
+            mRejected++;
+            return false;
+          }
+          return true;
+        case WAIT:
+        default:
+          if (waitingCount() >= mMaxWaitingPayloads * WAIT_LIMIT_FACTOR) {
+            mRejected++;
+            return false;
+          }
+          return true;
+      }
+    }
+
+    void add(Entry entry) {
+      mWaiting.get(entry.mPriority.ordinal()).add(entry);
+      mMaxDepth = Math.max(mMaxDepth, waitingCount());
+      drain();
+    }
+
+    void release(long payloadId) {
+      Entry entry = mInFlight.remove(payloadId);
+      if (entry != null) {
+        mOutstandingBytes -= entry.mSize;
+        if (entry.mPriority == Priority.BULK) {
+          mBulkInFlight--;
+        }
+        drain();
+      }
+    }
+
+    int waitingCount() {
+      int count = 0;
+      for (ArrayDeque<Entry> waiting : mWaiting) {
+        count += waiting.size();
+      }
+      return count;
+    }
+
+    /**
+     * Drops the oldest payload of the lowest priority that has any waiting. Payloads shared with
+     * other endpoints can't be taken back from them, so they're never dropped.
+     *
+     * @return False if there was nothing we could drop.
+     */
+    private boolean dropOldest() {
+      for (int i = mWaiting.size() - 1; i >= 0; i--) {
+        for (Iterator<Entry> it = mWaiting.get(i).iterator(); it.hasNext(); ) {
+          if (it.next().mGroup == null) {
+            it.remove();
+            mDropped++;
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    private boolean hasRoomFor(long size) {
+      return mInFlight.isEmpty() || mOutstandingBytes + size <= mMaxOutstandingBytes;
+    }
+
+    /** Returns the next payload to send, or null if nothing may go right now. */
+    private Entry peekNext() {
+      if (mHeldBy != null) {
+        // Nothing may overtake a shared payload that's still waiting for the other endpoints.
+        return null;
+      }
+      for (ArrayDeque<Entry> waiting : mWaiting) {
+        Entry entry = waiting.peek();
+        if (entry == null) {
+          continue;
+        }
+        if (entry.mPriority == Priority.REAL_TIME) {
+          // Late is as bad as never, so real-time payloads don't wait for room. Streams count as
+          // zero bytes anyway; this lets them past a single large payload, too.
+          return entry;
+        }
+        if (entry.mPriority == Priority.BULK
+            && mBulkInFlight > 0
+            && mLoadMonitor != null
+            && mLoadMonitor.isRealTimeFallingBehind(mEndpointId)) {
+          // Real-time traffic needs the bandwidth more. Let one bulk payload through at a time.
+          if (!entry.mHeldBack) {
+            entry.mHeldBack = true;
+            mBulkHeldBack++;
+          }
+          return null;
+        }
+        // Higher priorities never wait behind lower ones, even if they don't fit yet.
+        return hasRoomFor(entry.mSize) ? entry : null;
+      }
+      return null;
+    }
+
+    void drain() {
+      Entry entry;
+      while ((entry = peekNext()) != null) {
+        mWaiting.get(entry.mPriority.ordinal()).poll();
+        long waitMillis = SystemClock.elapsedRealtime() - entry.mEnqueuedAtMillis;
+        mTotalWaitMillis += waitMillis;
+        mMaxWaitMillis = Math.max(mMaxWaitMillis, waitMillis);
+        mSent++;
+
+        mInFlight.put(entry.mPayload.getId(), entry);
+        mOutstandingBytes += entry.mSize;
+        if (entry.mPriority == Priority.BULK) {
+          mBulkInFlight++;
+        }
+        if (entry.mGroup == null) {
+          mSender.sendPayload(mEndpointId, entry.mPayload);
+          continue;
+        }
+        entry.mGroup.mWaitingFor.remove(mEndpointId);
+        mHeldBy = entry;
+        sendIfReady(entry);
+        return;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "%s{depth=%d, maxDepth=%d, inFlight=%d, bulkInFlight=%d, outstandingBytes=%d, "
+              + "sent=%d, dropped=%d, rejected=%d, bulkHeldBack=%d, avgWaitMs=%d, maxWaitMs=%d}",
+          mEndpointId,
+          waitingCount(),
+          mMaxDepth,
+          mInFlight.size(),
+          mBulkInFlight,
+          mOutstandingBytes,
+          mSent,
+          mDropped,
+          mRejected,
+          mBulkHeldBack,
+          mSent == 0 ? 0 : mTotalWaitMillis / mSent,
+          mMaxWaitMillis);
+    }
+  }
+}
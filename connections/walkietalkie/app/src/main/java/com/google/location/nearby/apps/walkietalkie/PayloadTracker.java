@@ -0,0 +1,387 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import android.support.annotation.MainThread;
+import com.google.android.gms.nearby.connection.Payload;
+import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Follows payloads from the moment they're sent (or start arriving) until Nearby Connections tells
+ * us they've finished, and keeps statistics on how long that took. For every endpoint, in each
+ * direction, we track throughput, time to first byte and completion latency as exponentially
+ * weighted moving averages, along with success and failure counts for each type of payload.
+ */
+@MainThread
+public class PayloadTracker {
+  /** How much weight a new sample gets in the moving averages. */
+  private static final double EWMA_ALPHA = 0.2;
+
+  /**
+   * How much weight a new sample gets in the short and long term averages of a stream's rate. A
+   * stream is falling behind once its short term rate drops well below its long term rate.
+   */
+  private static final double STREAM_SHORT_ALPHA = 0.5;
+
+  private static final double STREAM_LONG_ALPHA = 0.05;
+
+  /** How far the short term rate may drop, relative to the long term rate, before we worry. */
+  private static final double STREAM_BEHIND_RATIO = 0.75;
+
+  /** How many samples a stream needs before its averages mean anything. */
+  private static final int STREAM_MIN_SAMPLES = 4;
+
+  /** A stream with no progress for this long has stalled. */
+  private static final long STREAM_STALL_NANOS = 250 * 1000000L;
+
+  /** Which way a payload was travelling. */
+  public enum Direction {
+    SENT,
+    RECEIVED
+  }
+
+  /**
+   * Statistics for every endpoint we're exchanging payloads with. Endpoint ids are new every
+   * session, so endpoints are removed once they disconnect.
+   */
+  private final Map<String, EndpointStats> mEndpoints = new HashMap<>();
+
+  /** The totals of every endpoint that has disconnected, so our counts don't go backwards. */
+  private final EndpointStats mDeparted = new EndpointStats();
+
+  /** Call when a payload is handed to Nearby Connections for the endpoint. */
+  public void onPayloadSent(String endpointId, Payload payload) {
+    getOrCreate(endpointId).mSent.start(payload);
+  }
+
+  /** Call when a payload starts arriving from the endpoint. */
+  public void onPayloadReceived(String endpointId, Payload payload) {
+    getOrCreate(endpointId).mReceived.start(payload);
+  }
+
+  /** Call for every transfer update. Updates for payloads we aren't tracking are ignored. */
+  public void onTransferUpdate(String endpointId, PayloadTransferUpdate update) {
+    EndpointStats stats = mEndpoints.get(endpointId);
+    if (stats == null) {
+      return;
+    }
+    if (!stats.mSent.update(update)) {
+      stats.mReceived.update(update);
+    }
+  }
+
+  /** Call when Nearby Connections refused to send a payload. */
+  public void onSendFailed(String endpointId, long payloadId) {
+    EndpointStats stats = mEndpoints.get(endpointId);
+    if (stats != null) {
+      stats.mSent.fail(payloadId);
+    }
+  }
+
+  /**
+   * Call when the endpoint disconnects. Transfers still in progress are forgotten, but the
+   * endpoint's statistics are kept.
+   */
+  public void onEndpointDisconnected(String endpointId) {
+    EndpointStats stats = mEndpoints.remove(endpointId);
+    if (stats != null) {
+      mDeparted.mSent.add(stats.mSent);
+      mDeparted.mReceived.add(stats.mReceived);
+    }
+  }
+
+  /** Returns the average throughput to or from the endpoint, in bytes per second. */
+  public double getThroughput(String endpointId, Direction direction) {
+    Stats stats = getStats(endpointId, direction);
+    return stats == null ? 0 : stats.mThroughput;
+  }
+
+  /** Returns the average time until the first byte of a payload was transferred, in millis. */
+  public double getTimeToFirstByteMillis(String endpointId, Direction direction) {
+    Stats stats = getStats(endpointId, direction);
+    return stats == null ? 0 : stats.mTimeToFirstByteMillis;
+  }
+
+  /** Returns the average time until a payload was completely transferred, in millis. */
+  public double getCompletionMillis(String endpointId, Direction direction) {
+    Stats stats = getStats(endpointId, direction);
+    return stats == null ? 0 : stats.mCompletionMillis;
+  }
+
+  /** Returns the number of payloads of the given {@link Payload.Type} that succeeded. */
+  public long getSuccessCount(Direction direction, int payloadType) {
+    long count = mDeparted.get(direction).mSuccesses[payloadType];
+    for (EndpointStats stats : mEndpoints.values()) {
+      count += stats.get(direction).mSuccesses[payloadType];
+    }
+    return count;
+  }
+
+  /** Returns the number of payloads of the given {@link Payload.Type} that failed. */
+  public long getFailureCount(Direction direction, int payloadType) {
+    long count = mDeparted.get(direction).mFailures[payloadType];
+    for (EndpointStats stats : mEndpoints.values()) {
+      count += stats.get(direction).mFailures[payloadType];
+    }
+    return count;
+  }
+
+  /** Returns the recent rate of streams to or from the endpoint, in bytes per second. */
+  public double getStreamThroughput(String endpointId, Direction direction) {
+    Stats stats = getStats(endpointId, direction);
+    return stats == null ? 0 : stats.mStreamRateShort;
+  }
+
+  /**
+   * Returns true if a stream we're sending to the endpoint is falling behind: it has stalled, or
+   * it's recently been moving much more slowly than it usually does.
+   */
+  public boolean isStreamFallingBehind(String endpointId) {
+    Stats stats = getStats(endpointId, Direction.SENT);
+    if (stats == null) {
+      return false;
+    }
+    long now = System.nanoTime();
+    for (Transfer transfer : stats.mTransfers.values()) {
+      if (transfer.mType == Payload.Type.STREAM
+          && transfer.mFirstByteNanos != 0
+          && now - transfer.mLastUpdateNanos > STREAM_STALL_NANOS) {
+        return true;
+      }
+    }
+    return stats.mStreamSamples >= STREAM_MIN_SAMPLES
+        && stats.hasStreamInProgress()
+        && stats.mStreamRateShort < STREAM_BEHIND_RATIO * stats.mStreamRateLong;
+  }
+
+  /** Returns true if a stream is being sent to, or received from, the endpoint. */
+  public boolean isStreaming(String endpointId) {
+    EndpointStats stats = mEndpoints.get(endpointId);
+    return stats != null
+        && (stats.mSent.hasStreamInProgress() || stats.mReceived.hasStreamInProgress());
+  }
+
+  /**
+   * Returns how many bytes we've sent to, and received from, every endpoint so far. Streams still
+   * in progress count what's been transferred of them.
+   */
+  public long getTotalBytes() {
+    long bytes = mDeparted.mSent.mBytes + mDeparted.mReceived.mBytes;
+    for (EndpointStats stats : mEndpoints.values()) {
+      bytes += stats.mSent.getTotalBytes() + stats.mReceived.getTotalBytes();
+    }
+    return bytes;
+  }
+
+  /** Returns the number of payloads to or from the endpoint that are still being transferred. */
+  public int getInProgressCount(String endpointId, Direction direction) {
+    Stats stats = getStats(endpointId, direction);
+    return stats == null ? 0 : stats.mTransfers.size();
+  }
+
+  /** Writes the statistics for every endpoint, in a human readable form. */
+  public void dump(String prefix, PrintWriter writer) {
+    writer.print(prefix);
+    writer.println("PayloadTracker:");
+    for (Map.Entry<String, EndpointStats> entry : mEndpoints.entrySet()) {
+      for (Direction direction : Direction.values()) {
+        writer.print(prefix);
+        writer.print("  ");
+        writer.print(entry.getKey());
+        writer.print(' ');
+        writer.println(entry.getValue().get(direction).toString(direction));
+      }
+    }
+    for (Direction direction : Direction.values()) {
+      writer.print(prefix);
+      writer.print("  departed ");
+      writer.println(mDeparted.get(direction).toString(direction));
+    }
+  }
+
+  /** Returns how many endpoints we're keeping statistics for. */
+  public int getEndpointCount() {
+    return mEndpoints.size();
+  }
+
+  private EndpointStats getOrCreate(String endpointId) {
+    EndpointStats stats = mEndpoints.get(endpointId);
+    if (stats == null) {
+      stats = new EndpointStats();
+      mEndpoints.put(endpointId, stats);
+    }
+    return stats;
+  }
+
+  private Stats getStats(String endpointId, Direction direction) {
+    EndpointStats stats = mEndpoints.get(endpointId);
+    return stats == null ? null : stats.get(direction);
+  }
+
+  private static double ewma(double average, double sample, long samples) {
+    return ewma(average, sample, samples, EWMA_ALPHA);
+  }
+
+  private static double ewma(double average, double sample, long samples, double alpha) {
+    return samples == 0 ? sample : average + alpha * (sample - average);
+  }
+
+  /** A payload that's being transferred. */
+  private static class Transfer {
+    final int mType;
+    final long mStartNanos;
+    long mFirstByteNanos;
+    long mLastBytes;
+    long mLastUpdateNanos;
+
+    Transfer(int type, long startNanos) {
+      mType = type;
+      mStartNanos = startNanos;
+      mLastUpdateNanos = startNanos;
+    }
+  }
+
+  /** Statistics for one endpoint. */
+  private static class EndpointStats {
+    final Stats mSent = new Stats();
+    final Stats mReceived = new Stats();
+
+    Stats get(Direction direction) {
+      return direction == Direction.SENT ? mSent : mReceived;
+    }
+  }
+
+  /** Statistics for one endpoint, in one direction. */
+  private static class Stats {
+    /** Transfers in progress, keyed by payload id. */
+    final Map<Long, Transfer> mTransfers = new HashMap<>();
+
+    // Indexed by Payload.Type, which starts at 1.
+    final long[] mSuccesses = new long[Payload.Type.STREAM + 1];
+    final long[] mFailures = new long[Payload.Type.STREAM + 1];
+
+    long mBytes;
+    double mThroughput;
+    double mTimeToFirstByteMillis;
+    long mTimeToFirstByteSamples;
+    double mCompletionMillis;
+    long mCompletionSamples;
+    double mStreamRateShort;
+    double mStreamRateLong;
+    long mStreamSamples;
+
+    void start(Payload payload) {
+      mTransfers.put(payload.getId(), new Transfer(payload.getType(), System.nanoTime()));
+    }
+
+    /** Returns false if the update isn't for a payload we're tracking. */
+    boolean update(PayloadTransferUpdate update) {
+      Transfer transfer = mTransfers.get(update.getPayloadId());
+      if (transfer == null) {
+        return false;
+      }
+
+      long now = System.nanoTime();
+      if (transfer.mFirstByteNanos == 0 && update.getBytesTransferred() > 0) {
+        transfer.mFirstByteNanos = now;
+        mTimeToFirstByteMillis =
+            ewma(
+                mTimeToFirstByteMillis,
+                (now - transfer.mStartNanos) / 1e6,
+                mTimeToFirstByteSamples++);
+      }
+
+      if (transfer.mType == Payload.Type.STREAM
+          && update.getStatus() == PayloadTransferUpdate.Status.IN_PROGRESS
+          && update.getBytesTransferred() > transfer.mLastBytes) {
+        double rate =
+            (update.getBytesTransferred() - transfer.mLastBytes)
+                * 1e9
+                / Math.max(1, now - transfer.mLastUpdateNanos);
+        mStreamRateShort = ewma(mStreamRateShort, rate, mStreamSamples, STREAM_SHORT_ALPHA);
+        mStreamRateLong = ewma(mStreamRateLong, rate, mStreamSamples, STREAM_LONG_ALPHA);
+        mStreamSamples++;
+        transfer.mLastBytes = update.getBytesTransferred();
+        transfer.mLastUpdateNanos = now;
+      }
+
+      switch (update.getStatus()) {
+        case PayloadTransferUpdate.Status.SUCCESS:
+          mTransfers.remove(update.getPayloadId());
+          mSuccesses[transfer.mType]++;
+          long elapsedNanos = Math.max(1, now - transfer.mStartNanos);
+          mBytes += update.getBytesTransferred();
+          double throughput = update.getBytesTransferred() * 1e9 / elapsedNanos;
+          mThroughput = ewma(mThroughput, throughput, mCompletionSamples);
+          mCompletionMillis = ewma(mCompletionMillis, elapsedNanos / 1e6, mCompletionSamples++);
+          break;
+        case PayloadTransferUpdate.Status.FAILURE:
+        case PayloadTransferUpdate.Status.CANCELED:
+          mTransfers.remove(update.getPayloadId());
+          mFailures[transfer.mType]++;
+          break;
+        default:
+          break;
+      }
+      return true;
+    }
+
+    boolean hasStreamInProgress() {
+      for (Transfer transfer : mTransfers.values()) {
+        if (transfer.mType == Payload.Type.STREAM) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    long getTotalBytes() {
+      long bytes = mBytes;
+      for (Transfer transfer : mTransfers.values()) {
+        bytes += transfer.mLastBytes;
+      }
+      return bytes;
+    }
+
+    /**
+     * Adds another endpoint's totals to ours. Its transfers in progress are abandoned, but what
+     * they had transferred still counts.
+     */
+    void add(Stats other) {
+      mBytes += other.getTotalBytes();
+      for (int i = 0; i < mSuccesses.length; i++) {
+        mSuccesses[i] += other.mSuccesses[i];
+        mFailures[i] += other.mFailures[i];
+      }
+    }
+
+    void fail(long payloadId) {
+      Transfer transfer = mTransfers.remove(payloadId);
+      if (transfer != null) {
+        mFailures[transfer.mType]++;
+      }
+    }
+
+    String toString(Direction direction) {
+      return String.format(
+          Locale.US,
+          "%s{totalBytes=%d, throughput=%.0fB/s, streamRate=%.0fB/s, ttfb=%.1fms, "
+              + "completion=%.1fms, inProgress=%d, bytes=%d/%d, file=%d/%d, stream=%d/%d}",
+          direction,
+          mBytes,
+          mThroughput,
+          mStreamRateShort,
+          mTimeToFirstByteMillis,
+          mCompletionMillis,
+          mTransfers.size(),
+          mSuccesses[Payload.Type.BYTES],
+          mFailures[Payload.Type.BYTES],
+          mSuccesses[Payload.Type.FILE],
+          mFailures[Payload.Type.FILE],
+          mSuccesses[Payload.Type.STREAM],
+          mFailures[Payload.Type.STREAM]);
+    }
+  }
+}
@@ -0,0 +1,318 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * Remembers the peers we've recently been connected to, across restarts of the app: their name,
+ * the service id we found them on, and when we last connected. Nearby Connections hands out new
+ * endpoint ids every session, so peers are identified by name. This lets us recognize a familiar
+ * peer as soon as we discover it again, and connect to it ahead of strangers.
+ *
+ * <p>It also remembers our own name, so that our peers can recognize us in return.
+ *
+ * <p>Peers are loaded, and expired ones pruned from storage, on a thread of our own, and kept in
+ * memory from then on. Lookups never touch the disk, and changes are written in the background.
+ */
+public class PeerCache {
+  private static final String PREFERENCES_NAME = "peers";
+
+  /** Peer entries are stored under this prefix, followed by the peer's name. */
+  private static final String KEY_PEER_PREFIX = "peer:";
+
+  private static final String KEY_LOCAL_NAME = "local_name";
+
+  /** How many peers we remember. Once full, the one we connected to longest ago is forgotten. */
+  static final int MAX_PEERS = 16;
+
+  /** Peers we haven't connected to for this long are no longer considered familiar. */
+  static final long MAX_AGE_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+  /** Opens the preferences we keep our peers in. */
+  interface PreferencesOpener {
+    /** Called once, on our background thread. */
+    SharedPreferences open();
+  }
+
+  private final PreferencesOpener mOpener;
+
+  /** Where we keep our peers. Only ever touched on {@link #mExecutor}'s thread. */
+  private SharedPreferences mPreferences;
+
+  /**
+   * Reads and writes {@link #mPreferences}, one task at a time, so the main thread never waits on
+   * the disk.
+   */
+  private final Executor mExecutor;
+
+  /** Our copy of the peers in {@link #mPreferences}, by name, from the moment they're loaded. */
+  private final Map<String, Peer> mPeers = new ConcurrentHashMap<>();
+
+  /** The name we advertise under, once it's been loaded, or null if we haven't picked one yet. */
+  @Nullable private volatile String mLocalName;
+
+  /** Counts down once {@link #mPeers} and {@link #mLocalName} have been loaded. */
+  private final CountDownLatch mLoaded = new CountDownLatch(1);
+
+  /** Starts loading our peers in the background. Until they're loaded, we know nobody. */
+  public PeerCache(final Context context) {
+    this(
+        new PreferencesOpener() {
+          @Override
+          public SharedPreferences open() {
+            return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+          }
+        },
+        newBackgroundExecutor());
+  }
+
+  /** @param executor Must run tasks one at a time, in order. */
+  PeerCache(PreferencesOpener opener, Executor executor) {
+    mOpener = opener;
+    mExecutor = executor;
+    mExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            load();
+          }
+        });
+  }
+
+  private static Executor newBackgroundExecutor() {
+    HandlerThread thread = new HandlerThread("PeerCache", THREAD_PRIORITY_BACKGROUND);
+    thread.start();
+    final Handler handler = new Handler(thread.getLooper());
+    return new Executor() {
+      @Override
+      public void execute(Runnable runnable) {
+        handler.post(runnable);
+      }
+    };
+  }
+
+  /** A peer we've connected to before. */
+  public static class Peer {
+    private final String mName;
+    private final String mServiceId;
+    private final long mLastConnectedMillis;
+
+    Peer(String name, String serviceId, long lastConnectedMillis) {
+      mName = name;
+      mServiceId = serviceId;
+      mLastConnectedMillis = lastConnectedMillis;
+    }
+
+    public String getName() {
+      return mName;
+    }
+
+    public String getServiceId() {
+      return mServiceId;
+    }
+
+    /** Returns the wall clock time we last connected to the peer. */
+    public long getLastConnectedMillis() {
+      return mLastConnectedMillis;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "Peer{name=%s, serviceId=%s, lastConnected=%d}",
+          mName,
+          mServiceId,
+          mLastConnectedMillis);
+    }
+  }
+
+  /**
+   * Returns the name we advertise under. The first time this is called, {@code defaultName} is
+   * saved and used from then on. This is the one call that waits for us to finish loading, which
+   * we started when the app did.
+   */
+  public String getLocalName(final String defaultName) {
+    awaitLoaded();
+    String name = mLocalName;
+    if (name == null) {
+      name = defaultName;
+      mLocalName = name;
+      mExecutor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              mPreferences.edit().putString(KEY_LOCAL_NAME, defaultName).apply();
+            }
+          });
+    }
+    return name;
+  }
+
+  /** Records that we just connected to the peer. */
+  public void onConnected(final String name, String serviceId) {
+    final Peer peer = new Peer(name, serviceId, System.currentTimeMillis());
+    mPeers.put(name, peer);
+
+    // Make room, if we need to.
+    List<Peer> peers = getPeers();
+    final List<String> forgotten = new ArrayList<>();
+    for (int i = MAX_PEERS; i < peers.size(); i++) {
+      forgotten.add(peers.get(i).getName());
+      mPeers.remove(peers.get(i).getName());
+    }
+
+    mExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            SharedPreferences.Editor editor = mPreferences.edit();
+            editor.putString(KEY_PEER_PREFIX + name, format(peer));
+            for (String forgottenName : forgotten) {
+              editor.remove(KEY_PEER_PREFIX + forgottenName);
+            }
+            editor.apply();
+          }
+        });
+  }
+
+  /** Returns the peer with the given name, or null if we haven't connected to it recently. */
+  @Nullable
+  public Peer get(String name) {
+    Peer peer = mPeers.get(name);
+    return peer == null || isExpired(peer) ? null : peer;
+  }
+
+  /** Returns true if we've recently connected to a peer with this name. */
+  public boolean contains(String name) {
+    return get(name) != null;
+  }
+
+  /** Returns the peers we've recently connected to, most recent first. */
+  public List<Peer> getPeers() {
+    List<Peer> peers = new ArrayList<>();
+    for (Peer peer : mPeers.values()) {
+      if (!isExpired(peer)) {
+        peers.add(peer);
+      }
+    }
+    sort(peers);
+    return peers;
+  }
+
+  /**
+   * Reads our peers from disk, and prunes the ones that have expired, or that no longer fit, from
+   * storage as well.
+   */
+  @WorkerThread
+  private void load() {
+    mPreferences = mOpener.open();
+    SharedPreferences.Editor editor = mPreferences.edit();
+    boolean pruned = false;
+    List<Peer> peers = new ArrayList<>();
+    for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+      if (!entry.getKey().startsWith(KEY_PEER_PREFIX)) {
+        continue;
+      }
+      Peer peer =
+          entry.getValue() instanceof String
+              ? parse(entry.getKey().substring(KEY_PEER_PREFIX.length()), (String) entry.getValue())
+              : null;
+      if (peer == null || isExpired(peer)) {
+        editor.remove(entry.getKey());
+        pruned = true;
+      } else {
+        peers.add(peer);
+      }
+    }
+    sort(peers);
+    for (int i = 0; i < peers.size(); i++) {
+      Peer peer = peers.get(i);
+      if (i < MAX_PEERS) {
+        // Peers we've connected to since we started loading are newer.
+        if (!mPeers.containsKey(peer.getName())) {
+          mPeers.put(peer.getName(), peer);
+        }
+      } else {
+        editor.remove(KEY_PEER_PREFIX + peer.getName());
+        pruned = true;
+      }
+    }
+    if (pruned) {
+      editor.apply();
+    }
+    if (mLocalName == null) {
+      mLocalName = mPreferences.getString(KEY_LOCAL_NAME, null);
+    }
+    mLoaded.countDown();
+  }
+
+  private void awaitLoaded() {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        mLoaded.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static boolean isExpired(Peer peer) {
+    return System.currentTimeMillis() - peer.getLastConnectedMillis() > MAX_AGE_MILLIS;
+  }
+
+  /** Sorts peers most recent first. */
+  private static void sort(List<Peer> peers) {
+    Collections.sort(
+        peers,
+        new Comparator<Peer>() {
+          @Override
+          public int compare(Peer a, Peer b) {
+            long difference = b.getLastConnectedMillis() - a.getLastConnectedMillis();
+            return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+          }
+        });
+  }
+
+  private static String format(Peer peer) {
+    return peer.getLastConnectedMillis() + ":" + peer.getServiceId();
+  }
+
+  @Nullable
+  private static Peer parse(String name, @Nullable String value) {
+    if (value == null) {
+      return null;
+    }
+    int separator = value.indexOf(':');
+    if (separator < 0) {
+      return null;
+    }
+    long lastConnectedMillis;
+    try {
+      lastConnectedMillis = Long.parseLong(value.substring(0, separator));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    return new Peer(name, value.substring(separator + 1), lastConnectedMillis);
+  }
+}
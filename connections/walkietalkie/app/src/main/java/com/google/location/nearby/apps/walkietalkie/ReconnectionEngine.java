@@ -0,0 +1,261 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.support.annotation.MainThread;
+import android.util.Log;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Gets us back to peers we lost unexpectedly. When a connection drops, we remember the peer by
+ * name (endpoint ids don't survive a reconnection) and try to reach it again, with jittered
+ * exponential backoff between attempts, until we succeed or {@link #MAX_RECONNECT_MILLIS} has
+ * passed. An attempt only goes out once the peer has been rediscovered, and a rediscovery is
+ * acted on immediately, without waiting for the next attempt.
+ *
+ * <p>We keep a histogram of how long reconnecting took, and how often we gave up.
+ */
+@MainThread
+public class ReconnectionEngine {
+  /** How long we wait before the first attempt. */
+  static final long INITIAL_BACKOFF_MILLIS = 500;
+
+  /** The longest we'll wait between two attempts. */
+  static final long MAX_BACKOFF_MILLIS = 16000;
+
+  /** How long we keep trying before giving up on a peer. */
+  static final long MAX_RECONNECT_MILLIS = 60000;
+
+  /** The upper bounds of the reconnection time histogram buckets. The last bucket is unbounded. */
+  private static final long[] HISTOGRAM_BOUNDS_MILLIS = {500, 1000, 2000, 5000, 10000, 30000};
+
+  /** Connects to peers on our behalf. */
+  public interface Connector {
+    /**
+     * Sends a connection request to a discovered endpoint with the given name.
+     *
+     * @return False if no such endpoint has been discovered, or we're busy connecting to another.
+     */
+    boolean connect(String endpointName);
+  }
+
+  private final Connector mConnector;
+  private final Scheduler mScheduler;
+  private final Random mRandom;
+
+  /** Peers we're trying to get back to, by name. */
+  private final Map<String, Attempt> mAttempts = new HashMap<>();
+
+  /** Peers we've been told not to come back to, by name, until we next connect to them. */
+  private final Set<String> mForgotten = new HashSet<>();
+
+  private boolean mEnabled = true;
+
+  // Metrics
+  private final long[] mHistogram = new long[HISTOGRAM_BOUNDS_MILLIS.length + 1];
+  private long mReconnections;
+  private long mTotalReconnectMillis;
+  private long mMaxReconnectMillis;
+  private long mGiveUps;
+
+  public ReconnectionEngine(Connector connector) {
+    this(connector, Scheduler.MAIN_THREAD, new Random());
+  }
+
+  /** @param random Jitters the backoff. Pass a seeded one to make the delays repeatable. */
+  ReconnectionEngine(Connector connector, Scheduler scheduler, Random random) {
+    mConnector = connector;
+    mScheduler = scheduler;
+    mRandom = random;
+  }
+
+  /** Turns automatic reconnection on or off. Turning it off cancels any attempts in progress. */
+  public void setEnabled(boolean enabled) {
+    mEnabled = enabled;
+    if (!enabled) {
+      cancelAll();
+    }
+  }
+
+  public boolean isEnabled() {
+    return mEnabled;
+  }
+
+  /** Call when we lose a connection we didn't ask to lose. */
+  public void onDisconnected(String endpointName) {
+    if (mForgotten.contains(endpointName)) {
+      return;
+    }
+    if (!mEnabled || mAttempts.containsKey(endpointName)) {
+      return;
+    }
+    Attempt attempt = new Attempt(endpointName);
+    mAttempts.put(endpointName, attempt);
+    attempt.schedule();
+  }
+
+  /** Call when a connection is established, so we can stop trying and record how long it took. */
+  public void onConnected(String endpointName) {
+    mForgotten.remove(endpointName);
+    Attempt attempt = mAttempts.remove(endpointName);
+    if (attempt == null) {
+      return;
+    }
+    mScheduler.removeCallbacks(attempt);
+
+    long elapsedMillis = mScheduler.elapsedRealtime() - attempt.mDisconnectedAtMillis;
+    int bucket = 0;
+    while (bucket < HISTOGRAM_BOUNDS_MILLIS.length
+        && elapsedMillis > HISTOGRAM_BOUNDS_MILLIS[bucket]) {
+      bucket++;
+    }
+    mHistogram[bucket]++;
+    mReconnections++;
+    mTotalReconnectMillis += elapsedMillis;
+    mMaxReconnectMillis = Math.max(mMaxReconnectMillis, elapsedMillis);
+    Log.v(
+        TAG,
+        String.format(
+            Locale.US,
+            "Reconnected to %s after %dms and %d attempts",
+            endpointName,
+            elapsedMillis,
+            attempt.mCount));
+  }
+
+  /** Call when a connection request fails. If we were reconnecting, we'll back off and retry. */
+  public void onConnectionFailed(String endpointName) {
+    Attempt attempt = mAttempts.get(endpointName);
+    if (attempt != null) {
+      attempt.schedule();
+    }
+  }
+
+  /**
+   * Call when an endpoint is discovered. If it's a peer we're trying to get back to, we connect to
+   * it right away.
+   *
+   * @return True if we've taken care of connecting to the endpoint.
+   */
+  public boolean onEndpointDiscovered(String endpointName) {
+    Attempt attempt = mAttempts.get(endpointName);
+    if (attempt == null) {
+      return false;
+    }
+    mScheduler.removeCallbacks(attempt);
+    attempt.run();
+    return true;
+  }
+
+  /**
+   * Stops trying to get back to a peer, and doesn't start again when it disconnects, eg. because it
+   * told us it's busy and is letting us go. Lasts until we next connect to it.
+   */
+  public void forget(String endpointName) {
+    mForgotten.add(endpointName);
+    Attempt attempt = mAttempts.remove(endpointName);
+    if (attempt != null) {
+      mScheduler.removeCallbacks(attempt);
+    }
+  }
+
+  /** Returns true if we're trying to get back to a peer with this name. */
+  public boolean isReconnecting(String endpointName) {
+    return mAttempts.containsKey(endpointName);
+  }
+
+  /** Stops trying to reconnect to anyone. */
+  public void cancelAll() {
+    for (Attempt attempt : mAttempts.values()) {
+      mScheduler.removeCallbacks(attempt);
+    }
+    mAttempts.clear();
+    mForgotten.clear();
+  }
+
+  /** Returns how many times we successfully reconnected. */
+  public long getReconnectionCount() {
+    return mReconnections;
+  }
+
+  /** Returns how many times we gave up on reconnecting. */
+  public long getGiveUpCount() {
+    return mGiveUps;
+  }
+
+  /**
+   * Returns how many reconnections took at most {@code HISTOGRAM_BOUNDS_MILLIS[bucket]}, and more
+   * than the bound of the bucket before. The last bucket has no upper bound.
+   */
+  public long[] getReconnectionHistogram() {
+    return mHistogram.clone();
+  }
+
+  /** Writes the reconnection statistics, in a human readable form. */
+  public void dump(String prefix, PrintWriter writer) {
+    writer.print(prefix);
+    writer.println(
+        String.format(
+            Locale.US,
+            "ReconnectionEngine{enabled=%s, pending=%s, forgotten=%s, reconnections=%d, "
+                + "giveUps=%d, avgMs=%d, maxMs=%d}",
+            mEnabled,
+            mAttempts.keySet(),
+            mForgotten,
+            mReconnections,
+            mGiveUps,
+            mReconnections == 0 ? 0 : mTotalReconnectMillis / mReconnections,
+            mMaxReconnectMillis));
+    for (int i = 0; i < mHistogram.length; i++) {
+      writer.print(prefix);
+      writer.print("  ");
+      writer.print(i < HISTOGRAM_BOUNDS_MILLIS.length ? "<=" + HISTOGRAM_BOUNDS_MILLIS[i] : ">");
+      writer.print("ms: ");
+      writer.println(mHistogram[i]);
+    }
+  }
+
+  /** Our efforts to get back to a single peer. Runs an attempt when posted. */
+  private class Attempt implements Runnable {
+    final String mEndpointName;
+    final long mDisconnectedAtMillis = mScheduler.elapsedRealtime();
+    long mBackoffMillis = INITIAL_BACKOFF_MILLIS;
+    int mCount;
+
+    Attempt(String endpointName) {
+      mEndpointName = endpointName;
+    }
+
+    /** Schedules the next attempt, or gives up if we've been at it for too long. */
+    void schedule() {
+      mScheduler.removeCallbacks(this);
+      if (mScheduler.elapsedRealtime() - mDisconnectedAtMillis > MAX_RECONNECT_MILLIS) {
+        Log.v(TAG, "Giving up on reconnecting to " + mEndpointName);
+        mAttempts.remove(mEndpointName);
+        mGiveUps++;
+        return;
+      }
+
+      // Wait somewhere between half and all of the backoff, so that both sides of a dropped
+      // connection don't keep trying at the same moment.
+      long delayMillis = mBackoffMillis / 2 + (long) (mRandom.nextDouble() * mBackoffMillis / 2);
+      mBackoffMillis = Math.min(MAX_BACKOFF_MILLIS, mBackoffMillis * 2);
+      mScheduler.postDelayed(this, delayMillis);
+    }
+
+    @Override
+    public void run() {
+      mCount++;
+      if (!mConnector.connect(mEndpointName)) {
+        // They haven't shown up yet, or we're busy. Check again later.
+        schedule();
+      }
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Runs tasks after a delay, and tells the time those delays are measured against. Components that
+ * keep timers take one of these rather than making a {@link Handler} and reading {@link
+ * SystemClock} themselves, so unit tests can hand them a fake clock and run their timers by hand.
+ */
+public interface Scheduler {
+  /** Runs tasks on the main thread, and tells the time with {@link SystemClock}. */
+  Scheduler MAIN_THREAD =
+      new Scheduler() {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public long elapsedRealtime() {
+          return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void postDelayed(Runnable runnable, long delayMillis) {
+          mHandler.postDelayed(runnable, delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable runnable) {
+          mHandler.removeCallbacks(runnable);
+        }
+      };
+
+  /** Returns the time, in millis, on a clock that never goes backwards. */
+  long elapsedRealtime();
+
+  /** Runs the task once {@code delayMillis} have passed. May be called from any thread. */
+  void postDelayed(Runnable runnable, long delayMillis);
+
+  /** Forgets every pending run of the task. */
+  void removeCallbacks(Runnable runnable);
+}
@@ -0,0 +1,396 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import com.google.android.gms.nearby.connection.Strategy;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Picks a {@link Strategy} from how many devices we expect to talk to, and what we'll send them.
+ * {@link Strategy#P2P_POINT_TO_POINT} has by far the most bandwidth, but only allows a single
+ * connection, so it's only picked up front for a pair of devices that stream. Everyone else starts
+ * with {@link Strategy#P2P_STAR}, or {@link Strategy#P2P_CLUSTER} for a mesh.
+ *
+ * <p>While a {@link Strategy#P2P_STAR} session runs, we sample how many bytes it moves. Once it's
+ * turned out to be a single connection with heavy traffic, we wait for a moment without a stream in
+ * flight, ask the other device to switch with us, and both devices reconnect under {@link
+ * Strategy#P2P_POINT_TO_POINT}. If that doesn't work out, both fall back to the original strategy.
+ * The traffic before and after the switch is measured, so we know what it was worth.
+ */
+@MainThread
+public class StrategySelector {
+  /** How often we sample the traffic. */
+  private static final long SAMPLE_INTERVAL_MILLIS = 2000;
+
+  /** How much traffic counts as heavy. Roughly a single uncompressed voice, both ways. */
+  private static final double HEAVY_BYTES_PER_SECOND = 32 * 1024;
+
+  /** How many samples in a row must be heavy before we switch. */
+  private static final int HEAVY_SAMPLES = 3;
+
+  /** How many samples with traffic we average, after switching. */
+  private static final int GAIN_SAMPLES = 3;
+
+  /** How long we give our switch request to reach the other device, before we disconnect. */
+  private static final long SWITCH_DELAY_MILLIS = 500;
+
+  /** How long we give the other device to reconnect under a new strategy. */
+  private static final long SWITCH_TIMEOUT_MILLIS = 20000;
+
+  private static final int TAG_SWITCH = 0x60;
+
+  /** What a session mostly sends. */
+  public enum Workload {
+    /** Small, occasional messages. */
+    MESSAGING,
+    /** Audio, or large files. */
+    STREAMING,
+    /** Messages flooded across many devices. */
+    MESH
+  }
+
+  /** Measures our traffic, and switches strategies for us. */
+  public interface Host {
+    /** Returns how many bytes we've sent and received so far. */
+    long getTotalBytes();
+
+    /** Returns the endpoint we're connected to, or null if we're connected to none, or several. */
+    @Nullable
+    Endpoint getOnlyPeer();
+
+    /** Returns true if a stream is being sent to, or received from, the endpoint. */
+    boolean isStreaming(Endpoint endpoint);
+
+    /** Asks the peer to switch to the strategy with us. */
+    void requestSwitch(Endpoint peer, Strategy strategy);
+
+    /**
+     * Drops our connections, and reconnects to the peer under {@link
+     * StrategySelector#getStrategy()}.
+     */
+    void reconnect();
+
+    /** We couldn't reconnect to the peer, even under our original strategy. */
+    void onSwitchAbandoned();
+  }
+
+  /**
+   * Returns the strategy for a session. {@code expectedGroupSize} counts ourselves, or is 0 if we
+   * don't know.
+   */
+  public static Strategy select(int expectedGroupSize, Workload workload) {
+    if (workload == Workload.MESH) {
+      return Strategy.P2P_CLUSTER;
+    }
+    if (expectedGroupSize == 2 && workload == Workload.STREAMING) {
+      return Strategy.P2P_POINT_TO_POINT;
+    }
+    // A third device couldn't join a point to point session, and light traffic has no use for the
+    // extra bandwidth anyway.
+    return Strategy.P2P_STAR;
+  }
+
+  /** Asks the other device to switch strategies with us. */
+  public static final MessageCodec.MessageType<Strategy> SWITCH =
+      new MessageCodec.MessageType<Strategy>() {
+        @Override
+        public int getTag() {
+          return TAG_SWITCH;
+        }
+
+        @Override
+        public void encode(Strategy strategy, MessageWriter writer) {
+          writer.writeVarint(toCode(strategy));
+        }
+
+        @Override
+        public Strategy decode(MessageReader reader, @Nullable Strategy reuse) {
+          return fromCode(reader.readVarintInt());
+        }
+      };
+
+  private final Host mHost;
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+  /** The strategy the session started with. */
+  private final Strategy mOriginalStrategy;
+
+  /** False if more devices may yet join, so we mustn't switch to a single connection. */
+  private final boolean mCanSwitch;
+
+  /** The strategy we're using now. */
+  private Strategy mStrategy;
+
+  private boolean mStarted;
+  private long mLastBytes;
+  private long mLastSampleMillis;
+
+  /** How many heavy samples we've seen in a row, and their total rate. */
+  private int mHeavySamples;
+
+  private double mHeavyRateTotal;
+
+  /** True from the moment we decide to switch until we've reconnected, or given up. */
+  private boolean mReconnecting;
+
+  /** True if switching failed this session, so we shouldn't try again. */
+  private boolean mGaveUp;
+
+  /** How many samples with traffic we've taken since switching, and their total rate. */
+  private int mGainSamples = -1;
+
+  private double mGainRateTotal;
+
+  // Metrics
+  private long mSwitches;
+  private long mFailedSwitches;
+  private double mRateBeforeSwitch;
+  private double mRateAfterSwitch;
+
+  private final Runnable mSampleRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          sample();
+          mHandler.postDelayed(this, SAMPLE_INTERVAL_MILLIS);
+        }
+      };
+
+  private final Runnable mReconnectRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          mHost.reconnect();
+        }
+      };
+
+  private final Runnable mTimeoutRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          onTimeout();
+        }
+      };
+
+  /**
+   * @param canSwitch False if more devices may yet join the session, so it shouldn't be switched to
+   *     a strategy that only allows a single connection.
+   */
+  public StrategySelector(Strategy strategy, boolean canSwitch, Host host) {
+    mOriginalStrategy = strategy;
+    mCanSwitch = canSwitch;
+    mStrategy = strategy;
+    mHost = host;
+  }
+
+  /** Returns the strategy we're using now, which may not be the one we started with. */
+  public Strategy getStrategy() {
+    return mStrategy;
+  }
+
+  /** Returns true while we're reconnecting to our peer under a new strategy. */
+  public boolean isReconnecting() {
+    return mReconnecting;
+  }
+
+  /** Starts watching our traffic. */
+  public void start() {
+    if (mStarted) {
+      return;
+    }
+    mStarted = true;
+    mLastBytes = mHost.getTotalBytes();
+    mLastSampleMillis = SystemClock.elapsedRealtime();
+    mHandler.postDelayed(mSampleRunnable, SAMPLE_INTERVAL_MILLIS);
+  }
+
+  /** Stops watching our traffic. A switch that's under way carries on. */
+  public void stop() {
+    mStarted = false;
+    mHandler.removeCallbacks(mSampleRunnable);
+  }
+
+  /**
+   * Call when our peer asks us to switch strategies. Returns false if we're already switching, eg.
+   * because we asked at the same time.
+   */
+  public boolean onSwitchRequested(Strategy strategy) {
+    if (mReconnecting || strategy.equals(mStrategy)) {
+      return false;
+    }
+    beginSwitch(strategy, mHeavySamples == 0 ? 0 : mHeavyRateTotal / mHeavySamples);
+    mHost.reconnect();
+    return true;
+  }
+
+  /** Call when we've reconnected to our peer. */
+  public void onReconnected() {
+    if (!mReconnecting) {
+      return;
+    }
+    mReconnecting = false;
+    mHandler.removeCallbacks(mTimeoutRunnable);
+    if (!mStrategy.equals(mOriginalStrategy)) {
+      mSwitches++;
+      mGainSamples = 0;
+      mGainRateTotal = 0;
+      Log.i(TAG, "Switched to strategy " + toCode(mStrategy) + "; measuring the difference");
+    }
+  }
+
+  /** Call when the session is over. The next one starts under the original strategy. */
+  public void reset() {
+    mHandler.removeCallbacks(mReconnectRunnable);
+    mHandler.removeCallbacks(mTimeoutRunnable);
+    mStrategy = mOriginalStrategy;
+    mReconnecting = false;
+    mGaveUp = false;
+    mHeavySamples = 0;
+    mHeavyRateTotal = 0;
+    mGainSamples = -1;
+  }
+
+  /** Returns how many times we've switched strategies. */
+  public long getSwitchCount() {
+    return mSwitches;
+  }
+
+  /** Returns how many times we've had to fall back to the original strategy. */
+  public long getFailedSwitchCount() {
+    return mFailedSwitches;
+  }
+
+  /** Returns the traffic, in bytes per second, that made us switch last time. */
+  public double getRateBeforeSwitch() {
+    return mRateBeforeSwitch;
+  }
+
+  /** Returns the traffic, in bytes per second, after we last switched. 0 until it's measured. */
+  public double getRateAfterSwitch() {
+    return mRateAfterSwitch;
+  }
+
+  /** Writes our strategy and what switching has gained us, in a human readable form. */
+  public void dump(String prefix, PrintWriter writer) {
+    writer.print(prefix);
+    writer.println(
+        String.format(
+            Locale.US,
+            "StrategySelector{strategy=%d, original=%d, reconnecting=%b, switches=%d, failed=%d, "
+                + "before=%.0fB/s, after=%.0fB/s}",
+            toCode(mStrategy),
+            toCode(mOriginalStrategy),
+            mReconnecting,
+            mSwitches,
+            mFailedSwitches,
+            mRateBeforeSwitch,
+            mRateAfterSwitch));
+  }
+
+  private void sample() {
+    long now = SystemClock.elapsedRealtime();
+    long bytes = mHost.getTotalBytes();
+    // Transfers still in progress are forgotten when an endpoint disconnects, so this may go down.
+    double rate = Math.max(0, bytes - mLastBytes) * 1000.0 / Math.max(1, now - mLastSampleMillis);
+    mLastBytes = bytes;
+    mLastSampleMillis = now;
+    if (mReconnecting) {
+      return;
+    }
+
+    if (mGainSamples >= 0 && rate > 0) {
+      mGainRateTotal += rate;
+      if (++mGainSamples == GAIN_SAMPLES) {
+        mRateAfterSwitch = mGainRateTotal / GAIN_SAMPLES;
+        mGainSamples = -1;
+        Log.i(
+            TAG,
+            String.format(
+                Locale.US,
+                "Traffic went from %.0fB/s to %.0fB/s after switching strategies",
+                mRateBeforeSwitch,
+                mRateAfterSwitch));
+      }
+    }
+
+    Endpoint peer = mHost.getOnlyPeer();
+    if (peer == null || !mCanSwitch || mGaveUp || !Strategy.P2P_STAR.equals(mStrategy)) {
+      mHeavySamples = 0;
+      mHeavyRateTotal = 0;
+      return;
+    }
+    if (rate >= HEAVY_BYTES_PER_SECOND) {
+      mHeavySamples++;
+      mHeavyRateTotal += rate;
+    } else if (mHeavySamples < HEAVY_SAMPLES) {
+      mHeavySamples = 0;
+      mHeavyRateTotal = 0;
+    }
+
+    // Switching drops our connection, so wait for a pause rather than cut someone off mid-sentence.
+    if (mHeavySamples >= HEAVY_SAMPLES && !mHost.isStreaming(peer)) {
+      Log.i(TAG, "Busy one to one session with " + peer + "; switching to point to point");
+      beginSwitch(Strategy.P2P_POINT_TO_POINT, mHeavyRateTotal / mHeavySamples);
+      mHost.requestSwitch(peer, mStrategy);
+      mHandler.postDelayed(mReconnectRunnable, SWITCH_DELAY_MILLIS);
+    }
+  }
+
+  private void beginSwitch(Strategy strategy, double rateBefore) {
+    mStrategy = strategy;
+    mReconnecting = true;
+    mRateBeforeSwitch = rateBefore;
+    mRateAfterSwitch = 0;
+    mHeavySamples = 0;
+    mHeavyRateTotal = 0;
+    mGainSamples = -1;
+    mHandler.postDelayed(mTimeoutRunnable, SWITCH_TIMEOUT_MILLIS);
+  }
+
+  private void onTimeout() {
+    if (!mReconnecting) {
+      return;
+    }
+    if (!mStrategy.equals(mOriginalStrategy)) {
+      Log.w(TAG, "Unable to reconnect under strategy " + toCode(mStrategy) + "; falling back");
+      mFailedSwitches++;
+      mGaveUp = true;
+      mStrategy = mOriginalStrategy;
+      mHost.reconnect();
+      mHandler.postDelayed(mTimeoutRunnable, SWITCH_TIMEOUT_MILLIS);
+      return;
+    }
+    Log.w(TAG, "Unable to reconnect under the original strategy; giving up");
+    mReconnecting = false;
+    mHost.onSwitchAbandoned();
+  }
+
+  /** Strategies have no name or id of their own, so we number them for the wire and for logs. */
+  private static int toCode(Strategy strategy) {
+    if (Strategy.P2P_CLUSTER.equals(strategy)) {
+      return 1;
+    }
+    if (Strategy.P2P_POINT_TO_POINT.equals(strategy)) {
+      return 2;
+    }
+    return 0;
+  }
+
+  private static Strategy fromCode(int code) {
+    switch (code) {
+      case 1:
+        return Strategy.P2P_CLUSTER;
+      case 2:
+        return Strategy.P2P_POINT_TO_POINT;
+      default:
+        return Strategy.P2P_STAR;
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+/**
+ * Plays 16bit mono PCM slightly faster than real time without changing its pitch, using WSOLA
+ * (waveform similarity overlap-add). We use this to drain audio that piled up during a hiccup in
+ * the connection, instead of playing it late for the rest of the talk-spurt.
+ *
+ * <p>At a speed of 1.0, audio passes straight through. Above 1.0, the input is cut into overlapping
+ * sequences. Each new sequence is taken from roughly where the speed says it should be, nudged
+ * within a small seek window to wherever it best lines up with the end of the previous sequence,
+ * and then cross-faded in. All buffers are allocated up front, so {@link #process} never allocates.
+ */
+public class TimeStretcher {
+  /** The length of each sequence we copy from the input. */
+  private static final int SEQUENCE_MS = 40;
+
+  /** The length of the cross-fade between sequences. */
+  private static final int OVERLAP_MS = 8;
+
+  /** How far we'll look for a better matching place to start the next sequence. */
+  private static final int SEEK_MS = 15;
+
+  /** How much faster than real time we're willing to play. */
+  public static final float MAX_SPEED = 1.1f;
+
+  private final int mSequenceLength;
+  private final int mOverlapLength;
+  private final int mSeekLength;
+
+  /** Input samples we haven't consumed yet. */
+  private final short[] mInput;
+  private int mInputCount;
+
+  /** Streams don't always split on sample boundaries. Holds a leftover low byte, or -1. */
+  private int mOddByte = -1;
+
+  /** The tail of the previous sequence, which gets cross-faded into the next one. */
+  private final short[] mMid;
+
+  /** True while we're stretching, and {@link #mMid} holds audio that hasn't been played yet. */
+  private boolean mActive;
+
+  /** The speed we're currently playing at. 1.0 is real time. */
+  private float mSpeed = 1f;
+
+  /** The fractional part of how far we should have skipped in the input, carried over. */
+  private double mSkipFraction;
+
+  /** Time spent in {@link #process}, for measuring our CPU cost. */
+  private long mProcessingNanos;
+
+  /** Input samples that were skipped to catch up. */
+  private long mSamplesSkipped;
+
+  /**
+   * @param sampleRate The sample rate of the audio.
+   * @param maxInputBytes The largest number of bytes that will be passed to {@link #process} at
+   *     once.
+   */
+  public TimeStretcher(int sampleRate, int maxInputBytes) {
+    mSequenceLength = sampleRate * SEQUENCE_MS / 1000;
+    mOverlapLength = sampleRate * OVERLAP_MS / 1000;
+    mSeekLength = sampleRate * SEEK_MS / 1000;
+    mMid = new short[mOverlapLength];
+
+    // We need to be able to hold a full search window, plus whatever's left from the previous call
+    // and a new input buffer on top.
+    mInput = new short[2 * (mSeekLength + mSequenceLength) + maxInputBytes / 2];
+  }
+
+  /** Sets the playback speed, between 1.0 (real time) and {@link #MAX_SPEED}. */
+  public void setSpeed(float speed) {
+    mSpeed = Math.max(1f, Math.min(MAX_SPEED, speed));
+  }
+
+  /** Returns the speed we're currently playing at. */
+  public float getSpeed() {
+    return mSpeed;
+  }
+
+  /** Returns the total time spent processing audio, in nanoseconds. */
+  public long getProcessingNanos() {
+    return mProcessingNanos;
+  }
+
+  /** Returns the number of input samples dropped to catch up. */
+  public long getSamplesSkipped() {
+    return mSamplesSkipped;
+  }
+
+  /**
+   * Returns the size of the output buffer that {@link #process} needs. We never produce more than
+   * we're given, except for audio held over from previous calls.
+   */
+  public int getMaxOutputBytes() {
+    return 2 * (mInput.length + mOverlapLength);
+  }
+
+  /**
+   * Time-stretches a buffer of audio.
+   *
+   * @param in Little endian 16bit mono PCM.
+   * @param length The number of bytes in {@code in}.
+   * @param out Where to write the stretched audio. Must be at least {@link #getMaxOutputBytes()}.
+   * @return The number of bytes written to {@code out}.
+   */
+  public int process(byte[] in, int length, byte[] out) {
+    long start = System.nanoTime();
+
+    int i = 0;
+    if (mOddByte >= 0 && length > 0) {
+      mInput[mInputCount++] = (short) (mOddByte | (in[0] << 8));
+      mOddByte = -1;
+      i = 1;
+    }
+    for (; i + 1 < length; i += 2) {
+      mInput[mInputCount++] = (short) ((in[i] & 0xFF) | (in[i + 1] << 8));
+    }
+    if (i < length) {
+      mOddByte = in[i] & 0xFF;
+    }
+
+    int written = 0;
+    int consumed = 0;
+
+    if (!mActive && mSpeed > 1f && mInputCount >= mOverlapLength) {
+      // Start stretching. The first few samples become the tail we fade out of.
+      System.arraycopy(mInput, 0, mMid, 0, mOverlapLength);
+      consumed = mOverlapLength;
+      mActive = true;
+      mSkipFraction = 0;
+    }
+
+    while (mActive && mInputCount - consumed >= mSeekLength + mSequenceLength) {
+      int best = consumed + findBestOffset(consumed);
+
+      if (mSpeed <= 1f) {
+        // We've caught up. Fade into the input one last time, and then go back to passing it
+        // straight through.
+        written = crossFade(best, out, written);
+        mSamplesSkipped += best - consumed;
+        consumed = best + mOverlapLength;
+        mActive = false;
+        break;
+      }
+
+      written = crossFade(best, out, written);
+      written =
+          writeSamples(best + mOverlapLength, mSequenceLength - 2 * mOverlapLength, out, written);
+      System.arraycopy(
+          mInput, best + mSequenceLength - mOverlapLength, mMid, 0, mOverlapLength);
+
+      // Output advanced by (sequence - overlap), so the input advances by that times our speed.
+      double skip = (mSequenceLength - mOverlapLength) * (double) mSpeed + mSkipFraction;
+      int skipInt = (int) skip;
+      mSkipFraction = skip - skipInt;
+      mSamplesSkipped += skipInt - (mSequenceLength - mOverlapLength);
+      consumed += skipInt;
+    }
+
+    if (!mActive) {
+      written = writeSamples(consumed, mInputCount - consumed, out, written);
+      consumed = mInputCount;
+    }
+
+    // Shift whatever's left to the front, ready for next time.
+    consumed = Math.min(consumed, mInputCount);
+    System.arraycopy(mInput, consumed, mInput, 0, mInputCount - consumed);
+    mInputCount -= consumed;
+
+    mProcessingNanos += System.nanoTime() - start;
+    return written;
+  }
+
+  /** Discards all buffered audio. */
+  public void reset() {
+    mInputCount = 0;
+    mOddByte = -1;
+    mActive = false;
+    mSkipFraction = 0;
+  }
+
+  /**
+   * Finds the offset, within the seek window starting at {@code base}, where the input best lines
+   * up with {@link #mMid}. Uses normalized cross-correlation.
+   */
+  private int findBestOffset(int base) {
+    int bestOffset = 0;
+    double bestScore = -Double.MAX_VALUE;
+    for (int offset = 0; offset < mSeekLength; offset++) {
+      long correlation = 0;
+      long energy = 0;
+      int start = base + offset;
+      for (int i = 0; i < mOverlapLength; i++) {
+        int sample = mInput[start + i];
+        correlation += mMid[i] * sample;
+        energy += sample * sample;
+      }
+      double score = correlation / Math.sqrt(energy + 1);
+      if (score > bestScore) {
+        bestScore = score;
+        bestOffset = offset;
+      }
+    }
+    return bestOffset;
+  }
+
+  /** Cross-fades from {@link #mMid} into the input at {@code start}. */
+  private int crossFade(int start, byte[] out, int written) {
+    for (int i = 0; i < mOverlapLength; i++) {
+      int sample =
+          (mMid[i] * (mOverlapLength - i) + mInput[start + i] * i) / mOverlapLength;
+      out[written++] = (byte) sample;
+      out[written++] = (byte) (sample >> 8);
+    }
+    return written;
+  }
+
+  private int writeSamples(int start, int count, byte[] out, int written) {
+    for (int i = start; i < start + count; i++) {
+      out[written++] = (byte) mInput[i];
+      out[written++] = (byte) (mInput[i] >> 8);
+    }
+    return written;
+  }
+}
@@ -0,0 +1,289 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import com.google.android.gms.nearby.connection.AdvertisingOptions;
+import com.google.android.gms.nearby.connection.ConnectionInfo;
+import com.google.android.gms.nearby.connection.ConnectionLifecycleCallback;
+import com.google.android.gms.nearby.connection.ConnectionResolution;
+import com.google.android.gms.nearby.connection.DiscoveredEndpointInfo;
+import com.google.android.gms.nearby.connection.DiscoveryOptions;
+import com.google.android.gms.nearby.connection.EndpointDiscoveryCallback;
+import com.google.android.gms.nearby.connection.Payload;
+import com.google.android.gms.nearby.connection.PayloadCallback;
+import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
+import com.google.android.gms.tasks.Task;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Sits between us and Nearby Connections and, while started, records every callback we get and
+ * every payload we send into a {@link CallbackTrace}. While stopped, it only passes calls through.
+ * The trace can be replayed later with a {@link TraceReplayClient}.
+ *
+ * <p>Record one with {@code adb shell dumpsys activity
+ * com.google.location.nearby.apps.walkietalkie/.MainActivity --trace-start}, and {@code
+ * --trace-stop} once done.
+ */
+@MainThread
+public class TraceRecorder implements NearbyClient {
+  /** A trace is cut off once it grows past this, in case someone forgets to stop it. */
+  private static final int MAX_TRACE_BYTES = 8 * 1024 * 1024;
+
+  private final NearbyClient mClient;
+
+  /** The trace being recorded, or null if we're stopped. */
+  @Nullable private CallbackTrace mTrace;
+
+  /** True if {@link #mTrace} has grown too large to take any more events. */
+  private boolean mFull;
+
+  // Metrics
+  private long mTraces;
+  private long mTruncated;
+
+  public TraceRecorder(NearbyClient client) {
+    mClient = client;
+  }
+
+  /** Starts recording a new trace, discarding the one being recorded, if any. */
+  public void start() {
+    mTrace = new CallbackTrace();
+    mFull = false;
+  }
+
+  public boolean isRecording() {
+    return mTrace != null;
+  }
+
+  /**
+   * Stops recording, and writes what was recorded to the file.
+   *
+   * @return The number of events written, or -1 if we weren't recording.
+   */
+  public int stop(File file) throws IOException {
+    CallbackTrace trace = mTrace;
+    mTrace = null;
+    if (trace == null) {
+      return -1;
+    }
+    trace.save(file);
+    mTraces++;
+    return trace.getEventCount();
+  }
+
+  /** Writes whether we're recording, and how much, in a human readable form. */
+  public void dump(String prefix, PrintWriter writer) {
+    writer.print(prefix);
+    writer.println(
+        String.format(
+            Locale.US,
+            "TraceRecorder{recording=%b, events=%d, bytes=%d, traces=%d, truncated=%d}",
+            mTrace != null,
+            mTrace == null ? 0 : mTrace.getEventCount(),
+            mTrace == null ? 0 : mTrace.length(),
+            mTraces,
+            mTruncated));
+  }
+
+  @Override
+  public Task<Void> startAdvertising(
+      String name,
+      String serviceId,
+      ConnectionLifecycleCallback callback,
+      AdvertisingOptions options) {
+    return mClient.startAdvertising(name, serviceId, wrap(callback), options);
+  }
+
+  @Override
+  public void stopAdvertising() {
+    mClient.stopAdvertising();
+  }
+
+  @Override
+  public Task<Void> startDiscovery(
+      String serviceId, EndpointDiscoveryCallback callback, DiscoveryOptions options) {
+    return mClient.startDiscovery(serviceId, wrap(callback), options);
+  }
+
+  @Override
+  public void stopDiscovery() {
+    mClient.stopDiscovery();
+  }
+
+  @Override
+  public Task<Void> requestConnection(
+      String name, String endpointId, ConnectionLifecycleCallback callback) {
+    return mClient.requestConnection(name, endpointId, wrap(callback));
+  }
+
+  @Override
+  public Task<Void> acceptConnection(String endpointId, PayloadCallback callback) {
+    return mClient.acceptConnection(endpointId, wrap(callback));
+  }
+
+  @Override
+  public Task<Void> rejectConnection(String endpointId) {
+    return mClient.rejectConnection(endpointId);
+  }
+
+  @Override
+  public Task<Void> sendPayload(String endpointId, Payload payload) {
+    recordPayload(EventLog.PAYLOAD_SENT, endpointId, payload);
+    return mClient.sendPayload(endpointId, payload);
+  }
+
+  @Override
+  public Task<Void> sendPayload(List<String> endpointIds, Payload payload) {
+    for (String endpointId : endpointIds) {
+      recordPayload(EventLog.PAYLOAD_SENT, endpointId, payload);
+    }
+    return mClient.sendPayload(endpointIds, payload);
+  }
+
+  @Override
+  public void disconnectFromEndpoint(String endpointId) {
+    mClient.disconnectFromEndpoint(endpointId);
+  }
+
+  @Override
+  public void stopAllEndpoints() {
+    mClient.stopAllEndpoints();
+  }
+
+  private ConnectionLifecycleCallback wrap(final ConnectionLifecycleCallback callback) {
+    return new ConnectionLifecycleCallback() {
+      @Override
+      public void onConnectionInitiated(String endpointId, ConnectionInfo connectionInfo) {
+        CallbackTrace.Event event = newEvent(EventLog.CONNECTION_INITIATED, endpointId);
+        if (event != null) {
+          event.mName = connectionInfo.getEndpointName();
+          event.mAuthenticationToken = nonNull(connectionInfo.getAuthenticationToken());
+          event.mIncoming = connectionInfo.isIncomingConnection();
+          write(event);
+        }
+        callback.onConnectionInitiated(endpointId, connectionInfo);
+      }
+
+      @Override
+      public void onConnectionResult(String endpointId, ConnectionResolution result) {
+        CallbackTrace.Event event = newEvent(EventLog.CONNECTION_RESULT, endpointId);
+        if (event != null) {
+          event.mStatusCode = result.getStatus().getStatusCode();
+          write(event);
+        }
+        callback.onConnectionResult(endpointId, result);
+      }
+
+      @Override
+      public void onDisconnected(String endpointId) {
+        CallbackTrace.Event event = newEvent(EventLog.DISCONNECTED, endpointId);
+        if (event != null) {
+          write(event);
+        }
+        callback.onDisconnected(endpointId);
+      }
+    };
+  }
+
+  private EndpointDiscoveryCallback wrap(final EndpointDiscoveryCallback callback) {
+    return new EndpointDiscoveryCallback() {
+      @Override
+      public void onEndpointFound(String endpointId, DiscoveredEndpointInfo info) {
+        CallbackTrace.Event event = newEvent(EventLog.ENDPOINT_FOUND, endpointId);
+        if (event != null) {
+          event.mServiceId = info.getServiceId();
+          event.mName = info.getEndpointName();
+          write(event);
+        }
+        callback.onEndpointFound(endpointId, info);
+      }
+
+      @Override
+      public void onEndpointLost(String endpointId) {
+        CallbackTrace.Event event = newEvent(EventLog.ENDPOINT_LOST, endpointId);
+        if (event != null) {
+          write(event);
+        }
+        callback.onEndpointLost(endpointId);
+      }
+    };
+  }
+
+  private PayloadCallback wrap(final PayloadCallback callback) {
+    return new PayloadCallback() {
+      @Override
+      public void onPayloadReceived(String endpointId, Payload payload) {
+        recordPayload(EventLog.PAYLOAD_RECEIVED, endpointId, payload);
+        callback.onPayloadReceived(endpointId, payload);
+      }
+
+      @Override
+      public void onPayloadTransferUpdate(String endpointId, PayloadTransferUpdate update) {
+        CallbackTrace.Event event = newEvent(EventLog.PAYLOAD_TRANSFER_UPDATE, endpointId);
+        if (event != null) {
+          event.mPayloadId = update.getPayloadId();
+          event.mTransferStatus = update.getStatus();
+          event.mTotalBytes = update.getTotalBytes();
+          event.mBytesTransferred = update.getBytesTransferred();
+          write(event);
+        }
+        callback.onPayloadTransferUpdate(endpointId, update);
+      }
+    };
+  }
+
+  private void recordPayload(int type, String endpointId, Payload payload) {
+    CallbackTrace.Event event = newEvent(type, endpointId);
+    if (event == null) {
+      return;
+    }
+    event.mPayloadId = payload.getId();
+    event.mPayloadType = payload.getType();
+    switch (payload.getType()) {
+      case Payload.Type.BYTES:
+        byte[] bytes = payload.asBytes();
+        event.mSize = bytes.length;
+        if (bytes.length <= CallbackTrace.MAX_RECORDED_BYTES) {
+          event.mBytes = bytes;
+        }
+        break;
+      case Payload.Type.FILE:
+        event.mSize = payload.asFile().getSize();
+        break;
+      default:
+        // A stream's size is only known once it's over.
+        break;
+    }
+    write(event);
+  }
+
+  /** Returns a new event, or null if we aren't recording. */
+  @Nullable
+  private CallbackTrace.Event newEvent(int type, String endpointId) {
+    if (mTrace == null || mFull) {
+      return null;
+    }
+    return new CallbackTrace.Event(type, System.nanoTime() / 1000, endpointId);
+  }
+
+  private void write(CallbackTrace.Event event) {
+    mTrace.write(event);
+    if (mTrace.length() > MAX_TRACE_BYTES) {
+      // Keep what we have, but stop growing it.
+      Log.w(TAG, "Trace is too large; dropping events until it's stopped.");
+      mFull = true;
+      mTruncated++;
+    }
+  }
+
+  private static String nonNull(@Nullable String value) {
+    return value == null ? "" : value;
+  }
+}
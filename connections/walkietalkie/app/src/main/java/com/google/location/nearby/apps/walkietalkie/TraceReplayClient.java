@@ -0,0 +1,476 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.nearby.connection.AdvertisingOptions;
+import com.google.android.gms.nearby.connection.ConnectionInfo;
+import com.google.android.gms.nearby.connection.ConnectionLifecycleCallback;
+import com.google.android.gms.nearby.connection.ConnectionResolution;
+import com.google.android.gms.nearby.connection.DiscoveredEndpointInfo;
+import com.google.android.gms.nearby.connection.DiscoveryOptions;
+import com.google.android.gms.nearby.connection.EndpointDiscoveryCallback;
+import com.google.android.gms.nearby.connection.Payload;
+import com.google.android.gms.nearby.connection.PayloadCallback;
+import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Stands in for Nearby Connections, and plays back a {@link CallbackTrace} recorded in the field.
+ * Playback starts once we first advertise or discover, and events are delivered to the callbacks
+ * we've been handed, as they were recorded, at the original pace or faster. Events for callbacks we
+ * don't have, eg. payloads from an endpoint we never accepted, are skipped.
+ *
+ * <p>Received payloads are rebuilt from the trace: small BYTES payloads with their original
+ * contents, larger ones and streams as zeros of the original size. FILE payloads are skipped. The
+ * payloads we send never go anywhere; they complete after the average delay seen in the trace, and
+ * streams once we've read them to the end.
+ *
+ * <p>To benchmark a {@link ConnectionsActivity} against a trace, hand a {@link
+ * NearbyConnectionManager} built with this client to {@link NearbyConnectionManager#setInstance}
+ * before the Activity is created. How late events were delivered, compared to the trace, shows how
+ * well the main thread kept up. On the JVM, build it with a fake {@link Scheduler} instead, and the
+ * trace plays back as fast as the clock is moved.
+ */
+@MainThread
+public class TraceReplayClient implements NearbyClient {
+  /** Replays events at the pace they were recorded. */
+  public static final double REAL_TIME = 1;
+
+  /** Replays events one after another, as fast as the main thread takes them. */
+  public static final double AS_FAST_AS_POSSIBLE = Double.POSITIVE_INFINITY;
+
+  /** How many events we deliver in one go before letting the main thread do something else. */
+  private static final int MAX_EVENTS_PER_RUN = 64;
+
+  /** How long our sent payloads take, if the trace has none to go by. */
+  private static final long DEFAULT_SEND_MICROS = 10 * 1000;
+
+  private final List<CallbackTrace.Event> mEvents;
+  private final double mSpeed;
+  private final Scheduler mScheduler;
+
+  /** Reads the streams we send. Each may block until its sender closes it. */
+  private final Executor mDrainExecutor;
+
+  /** How large each stream in the trace turned out to be, keyed by its recorded payload id. */
+  private final Map<Long, Long> mStreamSizes = new HashMap<>();
+
+  /** How long, on average, our payloads took to send when the trace was recorded. */
+  private final long mSendMicros;
+
+  @Nullable private ConnectionLifecycleCallback mLifecycleCallback;
+  @Nullable private EndpointDiscoveryCallback mDiscoveryCallback;
+  private final Map<String, PayloadCallback> mPayloadCallbacks = new HashMap<>();
+
+  /** The ids of the payloads we've rebuilt, keyed by their ids in the trace. */
+  private final Map<Long, Long> mPayloadIds = new HashMap<>();
+
+  /** The next event to deliver. */
+  private int mNext;
+
+  /** When playback started, on the scheduler's clock, or -1 if it hasn't. */
+  private long mStartMillis = -1;
+
+  // Metrics
+  private long mDelivered;
+  private long mSkipped;
+  private long mTotalLagMillis;
+  private long mMaxLagMillis;
+  private long mSent;
+
+  private final Runnable mReplayRunnable =
+      new Runnable() {
+        @Override
+        public void run() {
+          replay();
+        }
+      };
+
+  /**
+   * @param speed How many times faster than recorded to play back, eg. {@link #REAL_TIME} or
+   *     {@link #AS_FAST_AS_POSSIBLE}.
+   */
+  public TraceReplayClient(List<CallbackTrace.Event> events, double speed) {
+    this(events, speed, Scheduler.MAIN_THREAD, newDrainExecutor());
+  }
+
+  /**
+   * @param scheduler Plays events back, and completes the payloads we send.
+   * @param drainExecutor Reads the streams we send, and must be able to read several at once.
+   */
+  TraceReplayClient(
+      List<CallbackTrace.Event> events,
+      double speed,
+      Scheduler scheduler,
+      Executor drainExecutor) {
+    if (!(speed > 0)) {
+      throw new IllegalArgumentException("Speed must be positive, not " + speed);
+    }
+    mEvents = events;
+    mSpeed = speed;
+    mScheduler = scheduler;
+    mDrainExecutor = drainExecutor;
+
+    Map<Long, Long> sentAt = new HashMap<>();
+    long totalSendMicros = 0;
+    int sends = 0;
+    for (CallbackTrace.Event event : events) {
+      if (event.mType == EventLog.PAYLOAD_SENT) {
+        sentAt.put(event.mPayloadId, event.mTimeMicros);
+      } else if (event.mType == EventLog.PAYLOAD_TRANSFER_UPDATE) {
+        mStreamSizes.put(event.mPayloadId, event.mBytesTransferred);
+        Long start = sentAt.remove(event.mPayloadId);
+        if (start != null && event.mTransferStatus == PayloadTransferUpdate.Status.SUCCESS) {
+          totalSendMicros += event.mTimeMicros - start;
+          sends++;
+        }
+      }
+    }
+    mSendMicros = sends == 0 ? DEFAULT_SEND_MICROS : totalSendMicros / sends;
+  }
+
+  /** Returns an executor that gives every stream a thread of its own, since streams can block. */
+  private static Executor newDrainExecutor() {
+    return new Executor() {
+      @Override
+      public void execute(Runnable runnable) {
+        new Thread(runnable, "TraceReplayClient-drain").start();
+      }
+    };
+  }
+
+  /** Returns true once every event in the trace has been delivered, or skipped. */
+  public boolean isFinished() {
+    return mNext == mEvents.size();
+  }
+
+  /** Returns how late, on average, events were delivered compared to the trace, in millis. */
+  public double getAverageLagMillis() {
+    return mDelivered == 0 ? 0 : (double) mTotalLagMillis / mDelivered;
+  }
+
+  /** Returns the latest an event was delivered, compared to the trace, in millis. */
+  public double getMaxLagMillis() {
+    return mMaxLagMillis;
+  }
+
+  /** Returns how many events were handed to our callbacks. */
+  public long getDeliveredCount() {
+    return mDelivered;
+  }
+
+  /** Returns how many events were skipped, since we had no callback for them. */
+  public long getSkippedCount() {
+    return mSkipped;
+  }
+
+  /** Writes how far along playback is, and how well it's keeping up, in a human readable form. */
+  public void dump(String prefix, PrintWriter writer) {
+    writer.print(prefix);
+    writer.println(
+        String.format(
+            Locale.US,
+            "TraceReplayClient{speed=%.1f, events=%d/%d, delivered=%d, skipped=%d, sent=%d, "
+                + "avgLagMs=%.2f, maxLagMs=%.2f}",
+            mSpeed,
+            mNext,
+            mEvents.size(),
+            mDelivered,
+            mSkipped,
+            mSent,
+            getAverageLagMillis(),
+            getMaxLagMillis()));
+  }
+
+  @Override
+  public Task<Void> startAdvertising(
+      String name,
+      String serviceId,
+      ConnectionLifecycleCallback callback,
+      AdvertisingOptions options) {
+    mLifecycleCallback = callback;
+    start();
+    return Tasks.forResult(null);
+  }
+
+  @Override
+  public void stopAdvertising() {}
+
+  @Override
+  public Task<Void> startDiscovery(
+      String serviceId, EndpointDiscoveryCallback callback, DiscoveryOptions options) {
+    mDiscoveryCallback = callback;
+    start();
+    return Tasks.forResult(null);
+  }
+
+  @Override
+  public void stopDiscovery() {
+    mDiscoveryCallback = null;
+  }
+
+  @Override
+  public Task<Void> requestConnection(
+      String name, String endpointId, ConnectionLifecycleCallback callback) {
+    // The trace already holds the outcome.
+    mLifecycleCallback = callback;
+    return Tasks.forResult(null);
+  }
+
+  @Override
+  public Task<Void> acceptConnection(String endpointId, PayloadCallback callback) {
+    mPayloadCallbacks.put(endpointId, callback);
+    return Tasks.forResult(null);
+  }
+
+  @Override
+  public Task<Void> rejectConnection(String endpointId) {
+    return Tasks.forResult(null);
+  }
+
+  @Override
+  public Task<Void> sendPayload(String endpointId, Payload payload) {
+    mSent++;
+    final PayloadCallback callback = mPayloadCallbacks.get(endpointId);
+    if (callback == null) {
+      return Tasks.forException(new IOException("Not connected to " + endpointId));
+    }
+    if (payload.getType() == Payload.Type.STREAM) {
+      drain(endpointId, payload, callback);
+    } else {
+      long size =
+          payload.getType() == Payload.Type.BYTES
+              ? payload.asBytes().length
+              : payload.asFile().getSize();
+      complete(endpointId, payload.getId(), size, callback, delayMillis(mSendMicros));
+    }
+    return Tasks.forResult(null);
+  }
+
+  @Override
+  public Task<Void> sendPayload(List<String> endpointIds, Payload payload) {
+    for (String endpointId : endpointIds) {
+      sendPayload(endpointId, payload);
+    }
+    return Tasks.forResult(null);
+  }
+
+  @Override
+  public void disconnectFromEndpoint(String endpointId) {
+    mPayloadCallbacks.remove(endpointId);
+  }
+
+  @Override
+  public void stopAllEndpoints() {
+    mLifecycleCallback = null;
+    mDiscoveryCallback = null;
+    mPayloadCallbacks.clear();
+  }
+
+  private void start() {
+    if (mStartMillis >= 0) {
+      return;
+    }
+    mStartMillis = mScheduler.elapsedRealtime();
+    Log.v(TAG, String.format(Locale.US, "Replaying %d events", mEvents.size()));
+    schedule();
+  }
+
+  private void schedule() {
+    if (isFinished()) {
+      Log.v(TAG, "Finished replaying. " + mDelivered + " events delivered.");
+      return;
+    }
+    long dueMillis = dueMillis(mEvents.get(mNext));
+    mScheduler.postDelayed(
+        mReplayRunnable, Math.max(0, dueMillis - mScheduler.elapsedRealtime()));
+  }
+
+  private void replay() {
+    for (int i = 0; i < MAX_EVENTS_PER_RUN && !isFinished(); i++) {
+      CallbackTrace.Event event = mEvents.get(mNext);
+      long lagMillis = mScheduler.elapsedRealtime() - dueMillis(event);
+      if (lagMillis < 0) {
+        break;
+      }
+      mNext++;
+      if (deliver(event)) {
+        mDelivered++;
+        mTotalLagMillis += lagMillis;
+        mMaxLagMillis = Math.max(mMaxLagMillis, lagMillis);
+      } else {
+        mSkipped++;
+      }
+    }
+    schedule();
+  }
+
+  /** When the event should be delivered, on the scheduler's clock. */
+  private long dueMillis(CallbackTrace.Event event) {
+    if (mSpeed == AS_FAST_AS_POSSIBLE) {
+      return mStartMillis;
+    }
+    long offsetMicros = event.mTimeMicros - mEvents.get(0).mTimeMicros;
+    return mStartMillis + (long) (offsetMicros / 1000.0 / mSpeed);
+  }
+
+  /** Returns false if we had nobody to deliver the event to. */
+  private boolean deliver(CallbackTrace.Event event) {
+    String endpointId = event.mEndpointId;
+    switch (event.mType) {
+      case EventLog.ENDPOINT_FOUND:
+        if (mDiscoveryCallback == null) {
+          return false;
+        }
+        mDiscoveryCallback.onEndpointFound(
+            endpointId, new DiscoveredEndpointInfo(event.mServiceId, event.mName));
+        return true;
+      case EventLog.ENDPOINT_LOST:
+        if (mDiscoveryCallback == null) {
+          return false;
+        }
+        mDiscoveryCallback.onEndpointLost(endpointId);
+        return true;
+      case EventLog.CONNECTION_INITIATED:
+        if (mLifecycleCallback == null) {
+          return false;
+        }
+        mLifecycleCallback.onConnectionInitiated(
+            endpointId,
+            new ConnectionInfo(event.mName, event.mAuthenticationToken, event.mIncoming));
+        return true;
+      case EventLog.CONNECTION_RESULT:
+        if (mLifecycleCallback == null) {
+          return false;
+        }
+        mLifecycleCallback.onConnectionResult(
+            endpointId, new ConnectionResolution(new Status(event.mStatusCode)));
+        return true;
+      case EventLog.DISCONNECTED:
+        if (mLifecycleCallback == null) {
+          return false;
+        }
+        mPayloadCallbacks.remove(endpointId);
+        mLifecycleCallback.onDisconnected(endpointId);
+        return true;
+      case EventLog.PAYLOAD_RECEIVED:
+        return deliverPayload(event);
+      case EventLog.PAYLOAD_TRANSFER_UPDATE:
+        return deliverUpdate(event);
+      default:
+        // The payloads we sent are our own business now.
+        return false;
+    }
+  }
+
+  private boolean deliverPayload(CallbackTrace.Event event) {
+    PayloadCallback callback = mPayloadCallbacks.get(event.mEndpointId);
+    if (callback == null) {
+      return false;
+    }
+    Payload payload;
+    switch (event.mPayloadType) {
+      case Payload.Type.BYTES:
+        payload =
+            Payload.fromBytes(event.mBytes != null ? event.mBytes : new byte[(int) event.mSize]);
+        break;
+      case Payload.Type.STREAM:
+        // Sized from the updates that follow it in the trace.
+        Long size = mStreamSizes.get(event.mPayloadId);
+        byte[] zeros = new byte[size == null ? 0 : (int) (long) size];
+        payload = Payload.fromStream(new ByteArrayInputStream(zeros));
+        break;
+      default:
+        return false;
+    }
+    mPayloadIds.put(event.mPayloadId, payload.getId());
+    callback.onPayloadReceived(event.mEndpointId, payload);
+    return true;
+  }
+
+  private boolean deliverUpdate(CallbackTrace.Event event) {
+    Long payloadId = mPayloadIds.get(event.mPayloadId);
+    PayloadCallback callback = mPayloadCallbacks.get(event.mEndpointId);
+    if (payloadId == null || callback == null) {
+      // Updates for payloads we sent are made up in sendPayload() instead.
+      return false;
+    }
+    if (event.mTransferStatus != PayloadTransferUpdate.Status.IN_PROGRESS) {
+      mPayloadIds.remove(event.mPayloadId);
+    }
+    callback.onPayloadTransferUpdate(
+        event.mEndpointId,
+        new PayloadTransferUpdate.Builder()
+            .setPayloadId(payloadId)
+            .setStatus(event.mTransferStatus)
+            .setTotalBytes(event.mTotalBytes)
+            .setBytesTransferred(event.mBytesTransferred)
+            .build());
+    return true;
+  }
+
+  /** Reads a stream we're sending to the end, on the drain executor, and then completes it. */
+  private void drain(
+      final String endpointId, final Payload payload, final PayloadCallback callback) {
+    mDrainExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            long size = 0;
+            byte[] buffer = new byte[4096];
+            InputStream in = payload.asStream().asInputStream();
+            try {
+              for (int read; (read = in.read(buffer)) != -1; ) {
+                size += read;
+              }
+              in.close();
+            } catch (IOException e) {
+              Log.w(TAG, "Unable to read a stream we sent", e);
+            }
+            // The scheduler takes tasks from any thread, and runs them on its own.
+            complete(endpointId, payload.getId(), size, callback, 0);
+          }
+        });
+  }
+
+  private void complete(
+      final String endpointId,
+      final long payloadId,
+      final long size,
+      final PayloadCallback callback,
+      long delayMillis) {
+    mScheduler.postDelayed(
+        new Runnable() {
+          @Override
+          public void run() {
+            callback.onPayloadTransferUpdate(
+                endpointId,
+                new PayloadTransferUpdate.Builder()
+                    .setPayloadId(payloadId)
+                    .setStatus(PayloadTransferUpdate.Status.SUCCESS)
+                    .setTotalBytes(size)
+                    .setBytesTransferred(size)
+                    .build());
+          }
+        },
+        delayMillis);
+  }
+
+  private long delayMillis(long traceMicros) {
+    return mSpeed == AS_FAST_AS_POSSIBLE ? 0 : (long) (traceMicros / 1000 / mSpeed);
+  }
+}
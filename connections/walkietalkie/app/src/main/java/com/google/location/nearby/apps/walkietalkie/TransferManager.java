@@ -0,0 +1,908 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+import static com.google.location.nearby.apps.walkietalkie.Constants.TAG;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Moves files too large for a single payload. A file is split into {@link #CHUNK_SIZE} chunks, well
+ * under Nearby Connections' limit for a BYTES payload, and each chunk carries a SHA-256 digest that
+ * the receiver checks before acknowledging it. The sender keeps a few chunks in flight at a time.
+ *
+ * <p>The receiver writes chunks straight into a partial file and records the chunks it has
+ * verified in a {@link ChunkBitmap} next to it. If the connection drops, the sender offers the file
+ * again once we're reconnected, the receiver answers with its bitmap, and only the missing chunks
+ * are sent. Transfer ids are derived from the file, so this works across restarts too.
+ *
+ * <p>Nearby Connections delivers payloads reliably while connected, so the only losses we expect
+ * are to disconnects, which the resume covers.
+ *
+ * <p>Everything travels as typed messages, so it can share a connection with other traffic, and
+ * goes through a {@link Transport}, so it can be run against a fake one. Reading, writing and
+ * hashing chunks happens on a background thread, one task at a time, and only the bookkeeping
+ * happens on the main thread.
+ */
+@MainThread
+public class TransferManager {
+  /** The size of each chunk. */
+  private static final int CHUNK_SIZE = 16 * 1024;
+
+  /** How many chunks the sender may have unacknowledged at once. */
+  private static final int WINDOW = 4;
+
+  /**
+   * How many chunks we receive between saving the bitmap. A crash costs us at most this many
+   * chunks, which are simply sent again.
+   */
+  private static final int SAVE_INTERVAL = 8;
+
+  /** How many times a chunk may fail verification before the transfer is abandoned. */
+  private static final int MAX_CHUNK_RETRIES = 3;
+
+  private static final String PARTIAL_EXTENSION = ".part";
+  private static final String BITMAP_EXTENSION = ".bitmap";
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  // The tags of our messages.
+  private static final int TAG_OFFER = 0x40;
+  private static final int TAG_STATUS = 0x41;
+  private static final int TAG_CHUNK = 0x42;
+  private static final int TAG_ACK = 0x43;
+
+  /** What became of a chunk we received. */
+  private enum ChunkResult {
+    WRITTEN,
+    /** Its digest didn't match. */
+    REJECTED,
+    /** It was fine, but we couldn't write it. */
+    FAILED
+  }
+
+  /** Sends our encoded messages. Chunks are sent as {@link PayloadSendQueue.Priority#BULK}. */
+  public interface Transport {
+    void send(Endpoint endpoint, byte[] message, PayloadSendQueue.Priority priority);
+  }
+
+  /** Hears how transfers are going. */
+  public interface Listener {
+    void onTransferProgress(long transferId, long bytesDone, long totalBytes);
+
+    /** A file we were receiving has arrived, and every chunk of it was verified. */
+    void onFileReceived(Endpoint endpoint, File file);
+
+    /** A file we were sending has been received and verified. */
+    void onFileSent(Endpoint endpoint, long transferId);
+
+    void onTransferFailed(long transferId);
+  }
+
+  private final Transport mTransport;
+  private final Listener mListener;
+  private final File mDirectory;
+  private final MessageCodec mCodec;
+
+  /** Runs file access and chunk hashing, one task at a time, in the order they were posted. */
+  private final Executor mIoExecutor;
+
+  /** Brings the results of {@link #mIoExecutor} back to the main thread. */
+  private final Executor mMainExecutor;
+
+  /** Derives transfer ids. Only used on the main thread. */
+  private final MessageDigest mDigest;
+
+  /** Hashes chunks. Only used on {@link #mIoExecutor}. */
+  private final MessageDigest mChunkDigest;
+
+  /** Files we're sending, keyed by transfer id. */
+  private final Map<Long, Outgoing> mOutgoing = new HashMap<>();
+
+  /** Files we're receiving, keyed by transfer id. */
+  private final Map<Long, Incoming> mIncoming = new HashMap<>();
+
+  /** Chunk-sized buffers, handed to the I/O thread to read into and reused once they're sent. */
+  private final ArrayDeque<byte[]> mChunkBuffers = new ArrayDeque<>();
+
+  // Metrics
+  private long mChunksSent;
+  private long mChunksResent;
+  private long mChunksSkipped;
+  private long mChunksReceived;
+  private long mChunksRejected;
+  private long mBytesSent;
+  private long mSendNanos;
+
+  /**
+   * @param codec Our message types are registered with this codec, and encoded by it.
+   * @param directory Where files being received are kept, along with their bitmaps.
+   */
+  public TransferManager(
+      MessageCodec codec, File directory, Transport transport, Listener listener) {
+    this(
+        codec,
+        directory,
+        transport,
+        listener,
+        newIoExecutor(),
+        ConnectionEventStream.MAIN_THREAD);
+  }
+
+  /**
+   * @param ioExecutor Runs file access and hashing. Must run tasks one at a time, in order.
+   * @param mainExecutor Runs the rest on the thread that calls us.
+   */
+  TransferManager(
+      MessageCodec codec,
+      File directory,
+      Transport transport,
+      Listener listener,
+      Executor ioExecutor,
+      Executor mainExecutor) {
+    mCodec = codec;
+    mDirectory = directory;
+    mTransport = transport;
+    mListener = listener;
+    mIoExecutor = ioExecutor;
+    mMainExecutor = mainExecutor;
+    try {
+      mDigest = MessageDigest.getInstance("SHA-256");
+      mChunkDigest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is missing", e);
+    }
+
+    codec.register(
+        OFFER,
+        new MessageCodec.Handler<Offer>() {
+          @Override
+          public void onMessage(Endpoint endpoint, int channel, Offer offer) {
+            onOffer(endpoint, offer);
+          }
+        });
+    codec.register(
+        STATUS,
+        new MessageCodec.Handler<Status>() {
+          @Override
+          public void onMessage(Endpoint endpoint, int channel, Status status) {
+            onStatus(endpoint, status);
+          }
+        });
+    codec.register(
+        CHUNK,
+        new MessageCodec.Handler<Chunk>() {
+          @Override
+          public void onMessage(Endpoint endpoint, int channel, Chunk chunk) {
+            onChunk(endpoint, chunk);
+          }
+        });
+    codec.register(
+        ACK,
+        new MessageCodec.Handler<Ack>() {
+          @Override
+          public void onMessage(Endpoint endpoint, int channel, Ack ack) {
+            onAck(endpoint, ack);
+          }
+        });
+  }
+
+  private static Executor newIoExecutor() {
+    HandlerThread thread = new HandlerThread("TransferManager", THREAD_PRIORITY_BACKGROUND);
+    thread.start();
+    final Handler handler = new Handler(thread.getLooper());
+    return new Executor() {
+      @Override
+      public void execute(Runnable runnable) {
+        handler.post(runnable);
+      }
+    };
+  }
+
+  /**
+   * Starts sending a file. If the receiver already has some of it, from an earlier attempt, only
+   * the rest is sent.
+   *
+   * @return The transfer's id.
+   */
+  public long send(Endpoint endpoint, File file) throws IOException {
+    if (!file.isFile()) {
+      throw new FileNotFoundException(file.toString());
+    }
+    long transferId = transferIdOf(file);
+    Outgoing outgoing = mOutgoing.get(transferId);
+    if (outgoing == null) {
+      outgoing = new Outgoing(transferId, file);
+      mOutgoing.put(transferId, outgoing);
+    }
+    outgoing.mEndpoint = endpoint;
+    offer(outgoing);
+    return transferId;
+  }
+
+  /** Picks up any transfers to the endpoint that a disconnect interrupted. */
+  public void onEndpointConnected(Endpoint endpoint) {
+    for (Outgoing outgoing : mOutgoing.values()) {
+      if (outgoing.mEndpoint != null && outgoing.mEndpoint.getName().equals(endpoint.getName())) {
+        outgoing.mEndpoint = endpoint;
+        offer(outgoing);
+      }
+    }
+  }
+
+  /** Pauses any transfers to or from the endpoint, until it reconnects. */
+  public void onEndpointDisconnected(Endpoint endpoint) {
+    for (Outgoing outgoing : mOutgoing.values()) {
+      if (endpoint.equals(outgoing.mEndpoint)) {
+        outgoing.mBitmap = null;
+        outgoing.mInFlight = 0;
+        outgoing.mGeneration++;
+      }
+    }
+    for (Incoming incoming : mIncoming.values()) {
+      if (incoming.mUnsavedChunks > 0) {
+        save(incoming);
+      }
+    }
+  }
+
+  /** Abandons every transfer. Partial files are kept, so they can still be resumed. */
+  public void clear() {
+    for (Outgoing outgoing : mOutgoing.values()) {
+      close(outgoing);
+    }
+    mOutgoing.clear();
+    for (Incoming incoming : mIncoming.values()) {
+      save(incoming);
+      close(incoming);
+    }
+    mIncoming.clear();
+  }
+
+  /** Returns how many chunks we didn't need to send because the receiver already had them. */
+  public long getChunksSkipped() {
+    return mChunksSkipped;
+  }
+
+  /** Returns how many chunks we've sent, including any sent again. */
+  public long getChunksSent() {
+    return mChunksSent;
+  }
+
+  /** Returns our average send throughput, in bytes per second, while transfers were running. */
+  public long getThroughput() {
+    return mSendNanos == 0 ? 0 : mBytesSent * 1000000000L / mSendNanos;
+  }
+
+  /** Writes how transfers are going, in a human readable form. */
+  public void dump(String prefix, PrintWriter writer) {
+    writer.print(prefix);
+    writer.println(
+        String.format(
+            Locale.US,
+            "TransferManager{outgoing=%d, incoming=%d, chunksSent=%d, chunksResent=%d, "
+                + "chunksSkipped=%d, chunksReceived=%d, chunksRejected=%d, throughput=%dB/s}",
+            mOutgoing.size(),
+            mIncoming.size(),
+            mChunksSent,
+            mChunksResent,
+            mChunksSkipped,
+            mChunksReceived,
+            mChunksRejected,
+            getThroughput()));
+  }
+
+  private void offer(Outgoing outgoing) {
+    Offer offer = new Offer();
+    offer.mTransferId = outgoing.mTransferId;
+    offer.mName = outgoing.mName;
+    offer.mTotalBytes = outgoing.mTotalBytes;
+    outgoing.mBitmap = null;
+    outgoing.mInFlight = 0;
+    outgoing.mGeneration++;
+    mTransport.send(
+        outgoing.mEndpoint,
+        mCodec.encode(OFFER, offer),
+        PayloadSendQueue.Priority.INTERACTIVE);
+  }
+
+  /** The receiver told us what it already has. */
+  private void onStatus(Endpoint endpoint, Status status) {
+    Outgoing outgoing = mOutgoing.get(status.mTransferId);
+    if (outgoing == null) {
+      return;
+    }
+    outgoing.mEndpoint = endpoint;
+    outgoing.mBitmap = ChunkBitmap.fromByteArray(outgoing.mChunkCount, status.mBitmap);
+    outgoing.mNextChunk = 0;
+    outgoing.mResend.clear();
+    outgoing.mInFlight = 0;
+    outgoing.mGeneration++;
+    outgoing.mStartNanos = System.nanoTime();
+    mChunksSkipped += outgoing.mBitmap.getSetCount();
+    if (outgoing.mBitmap.getSetCount() > 0) {
+      Log.v(
+          TAG,
+          String.format(
+              Locale.US,
+              "Resuming transfer %x with %d of %d chunks already received",
+              outgoing.mTransferId,
+              outgoing.mBitmap.getSetCount(),
+              outgoing.mChunkCount));
+    }
+    pump(outgoing);
+  }
+
+  /** The receiver verified, or rejected, a chunk. */
+  private void onAck(Endpoint endpoint, Ack ack) {
+    Outgoing outgoing = mOutgoing.get(ack.mTransferId);
+    if (outgoing == null || outgoing.mBitmap == null) {
+      return;
+    }
+    outgoing.mInFlight = Math.max(0, outgoing.mInFlight - 1);
+    if (ack.mOk) {
+      outgoing.mBitmap.set(ack.mIndex);
+      mListener.onTransferProgress(
+          outgoing.mTransferId,
+          Math.min(outgoing.mTotalBytes, (long) outgoing.mBitmap.getSetCount() * CHUNK_SIZE),
+          outgoing.mTotalBytes);
+    } else if (++outgoing.mRetries > MAX_CHUNK_RETRIES) {
+      Log.w(TAG, "Giving up on transfer " + Long.toHexString(outgoing.mTransferId));
+      fail(outgoing);
+      return;
+    } else {
+      // Send it again, ahead of the rest.
+      mChunksResent++;
+      outgoing.mResend.add(ack.mIndex);
+    }
+
+    if (outgoing.mBitmap.isComplete()) {
+      mSendNanos += System.nanoTime() - outgoing.mStartNanos;
+      mOutgoing.remove(outgoing.mTransferId);
+      close(outgoing);
+      mListener.onFileSent(endpoint, outgoing.mTransferId);
+      return;
+    }
+    pump(outgoing);
+  }
+
+  /** Reads chunks the receiver doesn't have, until the window is full. They're sent once read. */
+  private void pump(Outgoing outgoing) {
+    while (outgoing.mInFlight < WINDOW) {
+      Integer resend = outgoing.mResend.poll();
+      int index;
+      if (resend != null) {
+        index = resend;
+      } else {
+        index = outgoing.mBitmap.nextClear(outgoing.mNextChunk);
+        if (index < 0) {
+          return;
+        }
+        outgoing.mNextChunk = index + 1;
+      }
+      outgoing.mInFlight++;
+      read(outgoing, index);
+    }
+  }
+
+  private void read(final Outgoing outgoing, int index) {
+    final Chunk chunk = new Chunk();
+    chunk.mTransferId = outgoing.mTransferId;
+    chunk.mIndex = index;
+    chunk.mData = mChunkBuffers.isEmpty() ? new byte[CHUNK_SIZE] : mChunkBuffers.pop();
+    chunk.mLength = (int) Math.min(CHUNK_SIZE, outgoing.mTotalBytes - (long) index * CHUNK_SIZE);
+    final int generation = outgoing.mGeneration;
+    mIoExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            final boolean read = readChunk(outgoing, chunk);
+            mMainExecutor.execute(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    onChunkRead(outgoing, generation, chunk, read);
+                  }
+                });
+          }
+        });
+  }
+
+  /** Reads the chunk's data from the file, and hashes it. */
+  @WorkerThread
+  private boolean readChunk(Outgoing outgoing, Chunk chunk) {
+    try {
+      if (outgoing.mFile == null) {
+        outgoing.mFile = new RandomAccessFile(outgoing.mSource, "r");
+      }
+      outgoing.mFile.seek((long) chunk.mIndex * CHUNK_SIZE);
+      outgoing.mFile.readFully(chunk.mData, 0, chunk.mLength);
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to read " + outgoing.mName, e);
+      return false;
+    }
+    chunk.mDigest = digestChunk(chunk.mData, chunk.mLength);
+    return true;
+  }
+
+  private void onChunkRead(Outgoing outgoing, int generation, Chunk chunk, boolean read) {
+    if (mOutgoing.get(outgoing.mTransferId) != outgoing || outgoing.mGeneration != generation) {
+      // The transfer was interrupted, or abandoned, while we were reading.
+      recycle(chunk.mData);
+      return;
+    }
+    if (!read) {
+      recycle(chunk.mData);
+      fail(outgoing);
+      return;
+    }
+    mTransport.send(
+        outgoing.mEndpoint, mCodec.encode(CHUNK, chunk), PayloadSendQueue.Priority.BULK);
+    recycle(chunk.mData);
+    mChunksSent++;
+    mBytesSent += chunk.mLength;
+  }
+
+  private void recycle(byte[] buffer) {
+    if (mChunkBuffers.size() < WINDOW) {
+      mChunkBuffers.push(buffer);
+    }
+  }
+
+  private void fail(Outgoing outgoing) {
+    mOutgoing.remove(outgoing.mTransferId);
+    close(outgoing);
+    mListener.onTransferFailed(outgoing.mTransferId);
+  }
+
+  /** Someone wants to send us a file. Tell them what we already have. */
+  private void onOffer(final Endpoint endpoint, Offer offer) {
+    Incoming incoming = mIncoming.get(offer.mTransferId);
+    if (incoming != null) {
+      sendStatus(endpoint, incoming);
+      return;
+    }
+    String base = Long.toHexString(offer.mTransferId);
+    final Incoming opening = new Incoming();
+    opening.mTransferId = offer.mTransferId;
+    opening.mName = sanitize(offer.mName);
+    opening.mTotalBytes = offer.mTotalBytes;
+    opening.mPartialFile = new File(mDirectory, base + PARTIAL_EXTENSION);
+    opening.mBitmapFile = new File(mDirectory, base + BITMAP_EXTENSION);
+    mIoExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            final boolean opened = open(opening);
+            mMainExecutor.execute(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    onOpened(endpoint, opening, opened);
+                  }
+                });
+          }
+        });
+  }
+
+  /** Opens the partial file, and loads what we already have of it. */
+  @WorkerThread
+  private boolean open(Incoming incoming) {
+    try {
+      if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+        throw new IOException("Unable to create " + mDirectory);
+      }
+      incoming.mBitmap =
+          ChunkBitmap.load(incoming.mBitmapFile, chunkCountOf(incoming.mTotalBytes));
+      incoming.mFile = new RandomAccessFile(incoming.mPartialFile, "rw");
+      return true;
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to receive " + incoming.mName, e);
+      return false;
+    }
+  }
+
+  private void onOpened(Endpoint endpoint, Incoming opened, boolean success) {
+    if (!success) {
+      return;
+    }
+    Incoming incoming = mIncoming.get(opened.mTransferId);
+    if (incoming == null) {
+      incoming = opened;
+      mIncoming.put(incoming.mTransferId, incoming);
+    } else {
+      // The offer was repeated while we were opening the file the first time.
+      close(opened);
+    }
+    sendStatus(endpoint, incoming);
+  }
+
+  private void sendStatus(Endpoint endpoint, Incoming incoming) {
+    Status status = new Status();
+    status.mTransferId = incoming.mTransferId;
+    status.mBitmap = incoming.mBitmap.toByteArray();
+    mTransport.send(endpoint, mCodec.encode(STATUS, status), PayloadSendQueue.Priority.INTERACTIVE);
+  }
+
+  /** A chunk arrived. Verify it and write it, then tell the sender. */
+  private void onChunk(final Endpoint endpoint, final Chunk chunk) {
+    final Incoming incoming = mIncoming.get(chunk.mTransferId);
+    if (incoming == null || chunk.mIndex < 0 || chunk.mIndex >= incoming.mBitmap.getChunkCount()) {
+      return;
+    }
+    if (incoming.mBitmap.get(chunk.mIndex)) {
+      // We already have it. The ack must have been lost.
+      onChunkWritten(endpoint, incoming, chunk, ChunkResult.WRITTEN);
+      return;
+    }
+    mIoExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            final ChunkResult result = writeChunk(incoming, chunk);
+            mMainExecutor.execute(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    onChunkWritten(endpoint, incoming, chunk, result);
+                  }
+                });
+          }
+        });
+  }
+
+  @WorkerThread
+  private ChunkResult writeChunk(Incoming incoming, Chunk chunk) {
+    if (!Arrays.equals(chunk.mDigest, digestChunk(chunk.mData, chunk.mLength))) {
+      return ChunkResult.REJECTED;
+    }
+    try {
+      incoming.mFile.seek((long) chunk.mIndex * CHUNK_SIZE);
+      incoming.mFile.write(chunk.mData, 0, chunk.mLength);
+      return ChunkResult.WRITTEN;
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to write " + incoming.mName, e);
+      return ChunkResult.FAILED;
+    }
+  }
+
+  private void onChunkWritten(
+      Endpoint endpoint, Incoming incoming, Chunk chunk, ChunkResult result) {
+    if (mIncoming.get(incoming.mTransferId) != incoming) {
+      // Finished, or abandoned, while we were writing.
+      return;
+    }
+    if (result == ChunkResult.WRITTEN && !incoming.mBitmap.get(chunk.mIndex)) {
+      incoming.mBitmap.set(chunk.mIndex);
+      mChunksReceived++;
+      if (++incoming.mUnsavedChunks >= SAVE_INTERVAL) {
+        save(incoming);
+      }
+    } else if (result == ChunkResult.REJECTED) {
+      mChunksRejected++;
+    }
+    Ack ack = new Ack();
+    ack.mTransferId = chunk.mTransferId;
+    ack.mIndex = chunk.mIndex;
+    ack.mOk = result == ChunkResult.WRITTEN;
+    mTransport.send(endpoint, mCodec.encode(ACK, ack), PayloadSendQueue.Priority.INTERACTIVE);
+
+    mListener.onTransferProgress(
+        incoming.mTransferId,
+        Math.min(incoming.mTotalBytes, (long) incoming.mBitmap.getSetCount() * CHUNK_SIZE),
+        incoming.mTotalBytes);
+    if (incoming.mBitmap.isComplete()) {
+      finish(endpoint, incoming);
+    }
+  }
+
+  private void finish(final Endpoint endpoint, final Incoming incoming) {
+    mIncoming.remove(incoming.mTransferId);
+    final File file = new File(mDirectory, incoming.mName);
+    mIoExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            closeQuietly(incoming.mFile);
+            final boolean renamed = incoming.mPartialFile.renameTo(file);
+            if (!renamed) {
+              Log.w(TAG, "Unable to rename " + incoming.mPartialFile + " to " + file);
+            } else if (!incoming.mBitmapFile.delete()) {
+              Log.w(TAG, "Unable to delete " + incoming.mBitmapFile);
+            }
+            mMainExecutor.execute(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    if (renamed) {
+                      mListener.onFileReceived(endpoint, file);
+                    } else {
+                      mListener.onTransferFailed(incoming.mTransferId);
+                    }
+                  }
+                });
+          }
+        });
+  }
+
+  /**
+   * Remembers the chunks we've received so far. The bitmap is saved after every chunk written
+   * before now, and only once their data is safely on disk.
+   */
+  private void save(final Incoming incoming) {
+    final ChunkBitmap bitmap = incoming.mBitmap.copy();
+    incoming.mUnsavedChunks = 0;
+    mIoExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              incoming.mFile.getFD().sync();
+              bitmap.save(incoming.mBitmapFile);
+            } catch (IOException e) {
+              Log.w(TAG, "Unable to save the progress of " + incoming.mName, e);
+            }
+          }
+        });
+  }
+
+  /** Closes the file, once everything already posted for it is done. */
+  private void close(final Outgoing outgoing) {
+    mIoExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            closeQuietly(outgoing.mFile);
+          }
+        });
+  }
+
+  /** Closes the file, once everything already posted for it is done. */
+  private void close(final Incoming incoming) {
+    mIoExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            closeQuietly(incoming.mFile);
+          }
+        });
+  }
+
+  @WorkerThread
+  private byte[] digestChunk(byte[] data, int length) {
+    mChunkDigest.reset();
+    mChunkDigest.update(data, 0, length);
+    return mChunkDigest.digest();
+  }
+
+  /** Derives a stable id from the file, so an interrupted transfer is recognized later. */
+  private long transferIdOf(File file) {
+    mDigest.reset();
+    mDigest.update(
+        (file.getAbsolutePath() + '|' + file.length() + '|' + file.lastModified()).getBytes(UTF_8));
+    byte[] hash = mDigest.digest();
+    long id = 0;
+    for (int i = 0; i < 8; i++) {
+      id = (id << 8) | (hash[i] & 0xFF);
+    }
+    return id;
+  }
+
+  private static int chunkCountOf(long totalBytes) {
+    return (int) ((totalBytes + CHUNK_SIZE - 1) / CHUNK_SIZE);
+  }
+
+  /** Keeps a sender's file name from reaching outside our directory. */
+  private static String sanitize(String name) {
+    String sanitized = new File(name).getName().replaceAll("[^A-Za-z0-9._-]", "_");
+    return sanitized.isEmpty() || sanitized.startsWith(".") ? "transfer" + sanitized : sanitized;
+  }
+
+  private static void closeQuietly(@Nullable RandomAccessFile file) {
+    if (file == null) {
+      return;
+    }
+    try {
+      file.close();
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to close a transfer file.", e);
+    }
+  }
+
+  /** A file we're sending. */
+  private static class Outgoing {
+    final long mTransferId;
+    final File mSource;
+    final String mName;
+    final long mTotalBytes;
+    final int mChunkCount;
+    Endpoint mEndpoint;
+
+    /** Opened when the first chunk is read. Only touched on the I/O thread. */
+    @Nullable RandomAccessFile mFile;
+
+    /** What the receiver has, or null until it tells us. */
+    @Nullable ChunkBitmap mBitmap;
+
+    int mNextChunk;
+
+    /** Chunks the receiver rejected, to send again before moving on. */
+    final ArrayDeque<Integer> mResend = new ArrayDeque<>();
+
+    int mInFlight;
+    int mRetries;
+    long mStartNanos;
+
+    /** Bumped whenever the transfer restarts, so chunks read before then aren't sent. */
+    int mGeneration;
+
+    Outgoing(long transferId, File file) {
+      mTransferId = transferId;
+      mSource = file;
+      mName = file.getName();
+      mTotalBytes = file.length();
+      mChunkCount = chunkCountOf(mTotalBytes);
+    }
+  }
+
+  /** A file we're receiving. */
+  private static class Incoming {
+    long mTransferId;
+    String mName;
+    long mTotalBytes;
+    File mPartialFile;
+    File mBitmapFile;
+
+    /** Loaded on the I/O thread, and only touched on the main thread after that. */
+    ChunkBitmap mBitmap;
+
+    /** Only touched on the I/O thread. */
+    RandomAccessFile mFile;
+
+    int mUnsavedChunks;
+  }
+
+  /** "I'd like to send you this file." */
+  private static class Offer {
+    long mTransferId;
+    String mName;
+    long mTotalBytes;
+  }
+
+  /** "This is what I have of it already." */
+  private static class Status {
+    long mTransferId;
+    byte[] mBitmap;
+  }
+
+  /** A piece of the file, and its digest. */
+  private static class Chunk {
+    long mTransferId;
+    int mIndex;
+    byte[] mDigest;
+    byte[] mData;
+    int mLength;
+  }
+
+  /** "I have, or couldn't verify, this chunk." */
+  private static class Ack {
+    long mTransferId;
+    int mIndex;
+    boolean mOk;
+  }
+
+  private static final MessageCodec.MessageType<Offer> OFFER =
+      new MessageCodec.MessageType<Offer>() {
+        @Override
+        public int getTag() {
+          return TAG_OFFER;
+        }
+
+        @Override
+        public void encode(Offer offer, MessageWriter writer) {
+          writer.writeFixed64(offer.mTransferId);
+          writer.writeString(offer.mName);
+          writer.writeVarint(offer.mTotalBytes);
+        }
+
+        @Override
+        public Offer decode(MessageReader reader, @Nullable Offer reuse) {
+          Offer offer = new Offer();
+          offer.mTransferId = reader.readFixed64();
+          offer.mName = reader.readString();
+          offer.mTotalBytes = reader.readVarint();
+          return offer;
+        }
+      };
+
+  private static final MessageCodec.MessageType<Status> STATUS =
+      new MessageCodec.MessageType<Status>() {
+        @Override
+        public int getTag() {
+          return TAG_STATUS;
+        }
+
+        @Override
+        public void encode(Status status, MessageWriter writer) {
+          writer.writeFixed64(status.mTransferId);
+          writer.writeBytes(status.mBitmap);
+        }
+
+        @Override
+        public Status decode(MessageReader reader, @Nullable Status reuse) {
+          Status status = new Status();
+          status.mTransferId = reader.readFixed64();
+          status.mBitmap = reader.readBytes();
+          return status;
+        }
+      };
+
+  private static final MessageCodec.MessageType<Chunk> CHUNK =
+      new MessageCodec.MessageType<Chunk>() {
+        @Override
+        public int getTag() {
+          return TAG_CHUNK;
+        }
+
+        @Override
+        public void encode(Chunk chunk, MessageWriter writer) {
+          writer.writeFixed64(chunk.mTransferId);
+          writer.writeVarint(chunk.mIndex);
+          writer.writeBytes(chunk.mDigest);
+          writer.writeBytes(chunk.mData, 0, chunk.mLength);
+        }
+
+        @Override
+        public Chunk decode(MessageReader reader, @Nullable Chunk reuse) {
+          Chunk chunk = new Chunk();
+          chunk.mTransferId = reader.readFixed64();
+          chunk.mIndex = reader.readVarintInt();
+          chunk.mDigest = reader.readBytes();
+          chunk.mData = reader.readBytes();
+          chunk.mLength = chunk.mData.length;
+          return chunk;
+        }
+      };
+
+  private static final MessageCodec.MessageType<Ack> ACK =
+      new MessageCodec.MessageType<Ack>() {
+        @Override
+        public int getTag() {
+          return TAG_ACK;
+        }
+
+        @Override
+        public void encode(Ack ack, MessageWriter writer) {
+          writer.writeFixed64(ack.mTransferId);
+          writer.writeVarint(ack.mIndex);
+          writer.writeBoolean(ack.mOk);
+        }
+
+        @Override
+        public Ack decode(MessageReader reader, @Nullable Ack reuse) {
+          Ack ack = reuse != null ? reuse : new Ack();
+          ack.mTransferId = reader.readFixed64();
+          ack.mIndex = reader.readVarintInt();
+          ack.mOk = reader.readBoolean();
+          return ack;
+        }
+      };
+}
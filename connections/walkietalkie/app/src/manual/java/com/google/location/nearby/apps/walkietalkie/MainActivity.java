@@ -21,10 +21,7 @@ import android.support.annotation.UiThread;
 import android.support.annotation.WorkerThread;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.view.ViewCompat;
-import android.text.SpannableString;
-import android.text.format.DateFormat;
-import android.text.method.ScrollingMovementMethod;
-import android.text.style.ForegroundColorSpan;
+import android.util.Log;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.ViewAnimationUtils;
@@ -32,8 +29,10 @@ import android.widget.TextView;
 import android.widget.Toast;
 import com.google.android.gms.nearby.connection.ConnectionInfo;
 import com.google.android.gms.nearby.connection.Payload;
-import com.google.android.gms.nearby.connection.Strategy;
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Random;
@@ -59,12 +58,6 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
   /** If true, debug logs are shown on the device. */
   private static final boolean DEBUG = true;
 
-  /**
-   * The connection strategy we'll use for Nearby Connections. In this case, we've decided on
-   * P2P_STAR, which is a combination of Bluetooth Classic and WiFi Hotspots.
-   */
-  private static final Strategy STRATEGY = Strategy.P2P_STAR;
-
   /** Acceleration required to detect a shake. In multiples of Earth's gravity. */
   private static final float SHAKE_THRESHOLD_GRAVITY = 2;
 
@@ -80,6 +73,9 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
   /** Length of state change animations. */
   private static final long ANIMATION_DURATION = 600;
 
+  /** The directory, inside our private files, where sent and received audio is archived. */
+  private static final String ARCHIVE_DIRECTORY = "archive";
+
   /**
    * This service id lets us find other nearby devices that are interested in the same thing. Our
    * sample does exactly one thing, so we hardcode the ID.
@@ -105,8 +101,17 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
   /** An animator that controls the animation from previous state to current state. */
   @Nullable private Animator mCurrentAnimator;
 
+  /** Shows how loud we are, and how loud the people talking to us are. Only while connected. */
+  private View mLevelMetersView;
+
+  /** Shows the level of our microphone while we're talking. */
+  private LevelMeterView mOutgoingLevelView;
+
+  /** Shows the level of the audio we're receiving. */
+  private LevelMeterView mIncomingLevelView;
+
   /** A running log of debug messages. Only visible when DEBUG=true. */
-  private TextView mDebugLogView;
+  private DebugLogView mDebugLogView;
 
   /** The SensorManager gives us access to sensors on the device. */
   private SensorManager mSensorManager;
@@ -136,6 +141,9 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
   /** For playing audio from other users nearby. */
   private final Set<AudioPlayer> mAudioPlayers = new HashSet<>();
 
+  /** Keeps a record on disk of everything said, both by us and to us. */
+  private AudioArchiver mArchiver;
+
   /** The phone's original media volume. */
   private int mOriginalVolume;
 
@@ -167,11 +175,16 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     mPreviousStateView = (TextView) findViewById(R.id.previous_state);
     mCurrentStateView = (TextView) findViewById(R.id.current_state);
 
-    mDebugLogView = (TextView) findViewById(R.id.debug_log);
+    mLevelMetersView = findViewById(R.id.level_meters);
+    mOutgoingLevelView = (LevelMeterView) findViewById(R.id.level_meter_outgoing);
+    mIncomingLevelView = (LevelMeterView) findViewById(R.id.level_meter_incoming);
+
+    mDebugLogView = (DebugLogView) findViewById(R.id.debug_log);
     mDebugLogView.setVisibility(DEBUG ? View.VISIBLE : View.GONE);
-    mDebugLogView.setMovementMethod(new ScrollingMovementMethod());
 
-    mName = generateRandomName();
+    mName = getPersistentName(generateRandomName());
+
+    mArchiver = new AudioArchiver(new File(getFilesDir(), ARCHIVE_DIRECTORY));
 
     ((TextView) findViewById(R.id.name)).setText(mName);
   }
@@ -196,7 +209,10 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     audioManager.setStreamVolume(
         AudioManager.STREAM_MUSIC, audioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC), 0);
 
-    setState(State.DISCOVERING);
+    mArchiver.start();
+
+    // Our connections survive us being recreated, so we may already be connected.
+    setState(getConnectedEndpoints().isEmpty() ? State.DISCOVERING : State.CONNECTED);
   }
 
   @Override
@@ -214,6 +230,7 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     if (isPlaying()) {
       stopPlaying();
     }
+    mArchiver.stop();
 
     setState(State.UNKNOWN);
 
@@ -237,15 +254,14 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
 
   @Override
   protected void onEndpointDiscovered(Endpoint endpoint) {
-    // We found an advertiser!
-    if (!isConnecting()) {
-      connectToEndpoint(endpoint);
-    }
+    // We found an advertiser! If we're busy connecting to someone else, it waits its turn.
+    connectToEndpoint(endpoint);
   }
 
   @Override
   protected void onConnectionInitiated(Endpoint endpoint, ConnectionInfo connectionInfo) {
-    // A connection to another device has been initiated! We'll accept the connection immediately.
+    // A connection to another device has been initiated! ConnectionsActivity has already turned
+    // away anyone we don't have room for, so we'll accept the connection immediately.
     acceptConnection(endpoint);
   }
 
@@ -272,9 +288,11 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
 
   @Override
   protected void onConnectionFailed(Endpoint endpoint) {
-    // Let's try someone else.
-    if (getState() == State.DISCOVERING && !getDiscoveredEndpoints().isEmpty()) {
-      connectToEndpoint(pickRandomElem(getDiscoveredEndpoints()));
+    // Let's try someone else. Only devices that are still around are discovered.
+    Set<Endpoint> candidates = new HashSet<>(getDiscoveredEndpoints());
+    candidates.remove(endpoint);
+    if (getState() == State.DISCOVERING && !candidates.isEmpty()) {
+      connectToEndpoint(pickEndpoint(candidates));
     }
   }
 
@@ -292,6 +310,7 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     logD("State set to " + state);
     State oldState = mState;
     mState = state;
+    recordStateChange(state.name());
     onStateChanged(oldState, state);
   }
 
@@ -337,7 +356,8 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
         }
         break;
       case UNKNOWN:
-        stopAllEndpoints();
+        // Our connections are kept by NearbyConnectionManager, in case we're only being
+        // recreated. It shuts them down on its own if we don't come back.
         break;
       default:
         // no-op
@@ -345,6 +365,7 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     }
 
     // Update the UI.
+    mLevelMetersView.setVisibility(newState == State.CONNECTED ? View.VISIBLE : View.GONE);
     switch (oldState) {
       case UNKNOWN:
         // Unknown is our initial state. Whatever state we move to,
@@ -554,6 +575,8 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
                   });
             }
           };
+      player.setArchiver(mArchiver);
+      mIncomingLevelView.setMeter(player.getLevelMeter());
       mAudioPlayers.add(player);
       player.start();
     }
@@ -579,11 +602,14 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     try {
       ParcelFileDescriptor[] payloadPipe = ParcelFileDescriptor.createPipe();
 
-      // Send the first half of the payload (the read side) to Nearby Connections.
-      send(Payload.fromStream(payloadPipe[0]));
+      // Send the first half of the payload (the read side) to Nearby Connections, ahead of
+      // anything less urgent.
+      send(Payload.fromStream(payloadPipe[0]), PayloadSendQueue.Priority.REAL_TIME);
 
       // Use the second half of the payload (the write side) in AudioRecorder.
       mRecorder = new AudioRecorder(payloadPipe[1]);
+      mRecorder.setArchiver(mArchiver);
+      mOutgoingLevelView.setMeter(mRecorder.getLevelMeter());
       mRecorder.start();
     } catch (IOException e) {
       logE("startRecording() failed", e);
@@ -635,10 +661,23 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     return SERVICE_ID;
   }
 
-  /** {@see ConnectionsActivity#getStrategy()} */
+  /**
+   * We stream audio, but anyone may join an advertiser, so {@link ConnectionsActivity} starts out
+   * with P2P_STAR. A session that stays one to one is switched to P2P_POINT_TO_POINT.
+   */
+  @Override
+  protected StrategySelector.Workload getWorkload() {
+    return StrategySelector.Workload.STREAMING;
+  }
+
+  /** Our busiest player decides whether we have room for anyone else. */
   @Override
-  public Strategy getStrategy() {
-    return STRATEGY;
+  protected float getAudioUnderrunRate() {
+    float rate = 0;
+    for (AudioPlayer player : mAudioPlayers) {
+      rate = Math.max(rate, player.getUnderrunRate());
+    }
+    return rate;
   }
 
   /** {@see Handler#post()} */
@@ -656,46 +695,40 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     mUiHandler.removeCallbacks(r);
   }
 
+  @Override
+  public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+    super.dump(prefix, fd, writer, args);
+    mDebugLogView.dump(prefix, writer);
+  }
+
   @Override
   protected void logV(String msg) {
     super.logV(msg);
-    appendToLogs(toColor(msg, getResources().getColor(R.color.log_verbose)));
+    mDebugLogView.log(Log.VERBOSE, msg);
   }
 
   @Override
   protected void logD(String msg) {
     super.logD(msg);
-    appendToLogs(toColor(msg, getResources().getColor(R.color.log_debug)));
+    mDebugLogView.log(Log.DEBUG, msg);
   }
 
   @Override
   protected void logW(String msg) {
     super.logW(msg);
-    appendToLogs(toColor(msg, getResources().getColor(R.color.log_warning)));
+    mDebugLogView.log(Log.WARN, msg);
   }
 
   @Override
   protected void logW(String msg, Throwable e) {
     super.logW(msg, e);
-    appendToLogs(toColor(msg, getResources().getColor(R.color.log_warning)));
+    mDebugLogView.log(Log.WARN, msg);
   }
 
   @Override
   protected void logE(String msg, Throwable e) {
     super.logE(msg, e);
-    appendToLogs(toColor(msg, getResources().getColor(R.color.log_error)));
-  }
-
-  private void appendToLogs(CharSequence msg) {
-    mDebugLogView.append("\n");
-    mDebugLogView.append(DateFormat.format("hh:mm", System.currentTimeMillis()) + ": ");
-    mDebugLogView.append(msg);
-  }
-
-  private static CharSequence toColor(String msg, int color) {
-    SpannableString spannable = new SpannableString(msg);
-    spannable.setSpan(new ForegroundColorSpan(color), 0, msg.length(), 0);
-    return spannable;
+    mDebugLogView.log(Log.ERROR, msg);
   }
 
   private static String generateRandomName() {
@@ -707,6 +740,16 @@ public class MainActivity extends ConnectionsActivity implements SensorEventList
     return name;
   }
 
+  /** Picks a device we've been connected to before, if there is one, or else a random device. */
+  private Endpoint pickEndpoint(Collection<Endpoint> endpoints) {
+    for (Endpoint endpoint : endpoints) {
+      if (isKnownPeer(endpoint)) {
+        return endpoint;
+      }
+    }
+    return pickRandomElem(endpoints);
+  }
+
   @SuppressWarnings("unchecked")
   private static <T> T pickRandomElem(Collection<T> collection) {
     return (T) collection.toArray()[new Random().nextInt(collection.size())];
@@ -0,0 +1,279 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import org.junit.Test;
+
+public class AdmissionControllerTest {
+  private static final int CORES = 2;
+
+  /** The CPU time we'd use in a sample interval if we kept every core busy. */
+  private static final long CPU_CAPACITY_MILLIS =
+      AdmissionController.SAMPLE_INTERVAL_MILLIS * CORES;
+
+  private static final Endpoint HUB = new Endpoint("hub", "Other hub");
+
+  private final FakeScheduler mScheduler = new FakeScheduler();
+  private final MetricsRegistry mMetrics = new MetricsRegistry();
+
+  private final List<Endpoint> mConnected = new ArrayList<>();
+  private final List<Endpoint> mDiscovered = new ArrayList<>();
+  private long mTotalBytes;
+  private float mUnderrunsPerMinute;
+  private long mCpuMillis;
+
+  /** The devices we shed, each followed by the hub we suggested, or "". */
+  private final List<String> mShed = new ArrayList<>();
+
+  private final AdmissionController mController =
+      new AdmissionController(
+          new AdmissionController.Host() {
+            @Override
+            public Collection<Endpoint> getConnectedEndpoints() {
+              return mConnected;
+            }
+
+            @Override
+            public Collection<Endpoint> getDiscoveredEndpoints() {
+              return mDiscovered;
+            }
+
+            @Override
+            public long getTotalBytes() {
+              return mTotalBytes;
+            }
+
+            @Override
+            public float getUnderrunsPerMinute() {
+              return mUnderrunsPerMinute;
+            }
+
+            @Override
+            public void shed(Endpoint endpoint, Endpoint hub) {
+              mShed.add(endpoint.getId());
+              mShed.add(hub == null ? "" : hub.getId());
+              mConnected.remove(endpoint);
+            }
+          },
+          mMetrics,
+          mScheduler,
+          new AdmissionController.CpuSource() {
+            @Override
+            public long getElapsedCpuMillis() {
+              return mCpuMillis;
+            }
+
+            @Override
+            public int getCoreCount() {
+              return CORES;
+            }
+          });
+
+  @Test
+  public void admit_upToExactlyMaxConnections() {
+    mController.setLimits(new AdmissionController.Limits().setMaxConnections(3));
+    connect(2);
+
+    assertEquals(AdmissionController.Decision.ADMIT, mController.admit(endpoint(2)));
+    connect(1);
+
+    // There's no connection to spare, even to steer it away.
+    assertEquals(AdmissionController.Decision.REJECT, mController.admit(endpoint(3)));
+    assertEquals(1, mMetrics.counter("admission.admitted").get());
+    assertEquals(1, mMetrics.counter("admission.rejected").get());
+  }
+
+  @Test
+  public void admit_beforeTheFirstSampleOnlyCountsConnections() {
+    mController.start();
+
+    assertEquals(AdmissionController.Decision.ADMIT, mController.admit(endpoint(0)));
+  }
+
+  @Test
+  public void admit_steersWhenOverTheCpuLimit() {
+    mController.setLimits(new AdmissionController.Limits().setMaxCpuLoad(0.75f));
+    connect(1);
+    mController.start();
+
+    sample(/* bytes= */ 0, CPU_CAPACITY_MILLIS * 3 / 4);
+    assertEquals(AdmissionController.Decision.ADMIT, mController.admit(endpoint(1)));
+
+    sample(/* bytes= */ 0, CPU_CAPACITY_MILLIS * 3 / 4 + 1);
+    assertEquals(AdmissionController.Decision.STEER, mController.admit(endpoint(2)));
+    assertEquals(1, mMetrics.counter("admission.steered").get());
+  }
+
+  @Test
+  public void admit_predictsThroughputWithOneMoreDevice() {
+    connect(2);
+    mController.start();
+    // 1000 bytes per second, from two devices.
+    sample(2 * 1000, /* cpuMillis= */ 0);
+
+    mController.setLimits(new AdmissionController.Limits().setMaxBytesPerSecond(1500));
+    assertEquals(AdmissionController.Decision.ADMIT, mController.admit(endpoint(2)));
+
+    mController.setLimits(new AdmissionController.Limits().setMaxBytesPerSecond(1499));
+    assertEquals(AdmissionController.Decision.STEER, mController.admit(endpoint(3)));
+  }
+
+  @Test
+  public void admit_steersWhenAudioRunsDry() {
+    mController.setLimits(new AdmissionController.Limits().setMaxUnderrunsPerMinute(6));
+    connect(1);
+    mController.start();
+
+    mUnderrunsPerMinute = 6;
+    sample(0, 0);
+    assertEquals(AdmissionController.Decision.ADMIT, mController.admit(endpoint(1)));
+
+    mUnderrunsPerMinute = 6.5f;
+    sample(0, 0);
+    assertEquals(AdmissionController.Decision.STEER, mController.admit(endpoint(2)));
+  }
+
+  @Test
+  public void admit_rejectsWhenOverloadedWithNoConnectionToSpare() {
+    mController.setLimits(new AdmissionController.Limits().setMaxConnections(2));
+    connect(2);
+    mController.start();
+    sample(0, CPU_CAPACITY_MILLIS);
+
+    assertEquals(AdmissionController.Decision.REJECT, mController.admit(endpoint(2)));
+  }
+
+  @Test
+  public void shedding_dropsTheLastAdmittedAfterEnoughOverloadedSamples() {
+    mController.setLimits(new AdmissionController.Limits().setShedding(true));
+    admitAndConnect(3);
+    mDiscovered.add(HUB);
+    mDiscovered.add(endpoint(1));
+    mController.start();
+
+    for (int i = 1; i < AdmissionController.OVERLOAD_SAMPLES; i++) {
+      sample(0, CPU_CAPACITY_MILLIS);
+    }
+    assertTrue(mShed.isEmpty());
+
+    sample(0, CPU_CAPACITY_MILLIS);
+    assertEquals(Arrays.asList("2", "hub"), mShed);
+    assertEquals(1, mMetrics.counter("admission.shed").get());
+
+    // The count starts over.
+    for (int i = 0; i < AdmissionController.OVERLOAD_SAMPLES; i++) {
+      sample(0, CPU_CAPACITY_MILLIS);
+    }
+    assertEquals(Arrays.asList("2", "hub", "1", "hub"), mShed);
+  }
+
+  @Test
+  public void shedding_needsOverloadedSamplesInARow() {
+    mController.setLimits(new AdmissionController.Limits().setShedding(true));
+    admitAndConnect(2);
+    mController.start();
+
+    for (int i = 1; i < AdmissionController.OVERLOAD_SAMPLES; i++) {
+      sample(0, CPU_CAPACITY_MILLIS);
+    }
+    sample(0, 0);
+    for (int i = 1; i < AdmissionController.OVERLOAD_SAMPLES; i++) {
+      sample(0, CPU_CAPACITY_MILLIS);
+    }
+
+    assertTrue(mShed.isEmpty());
+  }
+
+  @Test
+  public void shedding_skipsDevicesThatAlreadyLeft() {
+    mController.setLimits(new AdmissionController.Limits().setShedding(true));
+    admitAndConnect(2);
+    mController.onDisconnected(mConnected.remove(1));
+    mController.start();
+
+    for (int i = 0; i < AdmissionController.OVERLOAD_SAMPLES; i++) {
+      sample(0, CPU_CAPACITY_MILLIS);
+    }
+
+    assertEquals(Arrays.asList("0", ""), mShed);
+  }
+
+  @Test
+  public void shedding_isOffByDefault() {
+    admitAndConnect(2);
+    mController.start();
+
+    for (int i = 0; i < 2 * AdmissionController.OVERLOAD_SAMPLES; i++) {
+      sample(0, CPU_CAPACITY_MILLIS);
+    }
+
+    assertTrue(mShed.isEmpty());
+  }
+
+  @Test
+  public void stop_stopsSampling() {
+    mController.start();
+    mController.stop();
+
+    assertEquals(0, mScheduler.getPendingCount());
+  }
+
+  @Test
+  public void busyHubs_areLeftAloneForTheCooldown() {
+    mDiscovered.add(HUB);
+    mController.onBusy(HUB);
+    assertTrue(mController.isBusy(HUB));
+    assertNull(mController.findOtherHub(endpoint(0)));
+
+    mScheduler.advance(AdmissionController.BUSY_COOLDOWN_MILLIS - 1);
+    assertTrue(mController.isBusy(HUB));
+
+    mScheduler.advance(1);
+    assertFalse(mController.isBusy(HUB));
+    assertEquals(HUB, mController.findOtherHub(endpoint(0)));
+  }
+
+  @Test
+  public void findOtherHub_skipsTheDeviceItselfAndThoseConnectedToUs() {
+    connect(1);
+    mDiscovered.add(endpoint(0));
+    mDiscovered.add(endpoint(1));
+    assertNull(mController.findOtherHub(endpoint(1)));
+
+    mDiscovered.add(HUB);
+    assertEquals(HUB, mController.findOtherHub(endpoint(1)));
+  }
+
+  /** Moves and uses this much over the next sample interval, then takes the sample. */
+  private void sample(long bytes, long cpuMillis) {
+    mTotalBytes += bytes;
+    mCpuMillis += cpuMillis;
+    mScheduler.advance(AdmissionController.SAMPLE_INTERVAL_MILLIS);
+  }
+
+  /** Connects this many more devices, numbered on from those already connected. */
+  private void connect(int count) {
+    for (int i = 0; i < count; i++) {
+      mConnected.add(endpoint(mConnected.size()));
+    }
+  }
+
+  private void admitAndConnect(int count) {
+    for (int i = 0; i < count; i++) {
+      Endpoint endpoint = endpoint(mConnected.size());
+      assertEquals(AdmissionController.Decision.ADMIT, mController.admit(endpoint));
+      mConnected.add(endpoint);
+    }
+  }
+
+  private static Endpoint endpoint(int id) {
+    return new Endpoint(Integer.toString(id), "Device " + id);
+  }
+}
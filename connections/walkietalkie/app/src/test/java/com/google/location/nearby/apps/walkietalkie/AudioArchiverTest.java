@@ -0,0 +1,93 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AudioArchiverTest {
+  private static final int SAMPLE_RATE = 8000;
+  private static final int FRAME_SIZE = 320;
+
+  @Rule public final TemporaryFolder mFolder = new TemporaryFolder();
+
+  @Test
+  public void stop_closesTracksStillOpen() throws Exception {
+    File directory = new File(mFolder.getRoot(), "archive");
+    AudioArchiver archiver = new AudioArchiver(directory);
+    AudioRingBuffer ring = new AudioRingBuffer(64, FRAME_SIZE);
+    archiver.start();
+    archiver.openTrack("sent", SAMPLE_RATE, ring.openReader());
+
+    byte[] frame = new byte[FRAME_SIZE];
+    for (int i = 0; i < 10; i++) {
+      ring.write(frame, 0, frame.length);
+    }
+    // Stopped mid talk-spurt, without anyone closing the track.
+    archiver.stop();
+
+    File[] files = directory.listFiles();
+    assertEquals(1, files.length);
+    assertEquals(10 * FRAME_SIZE, archiver.getBytesWritten());
+    assertEquals(44 + 10 * FRAME_SIZE, files[0].length());
+    assertEquals(10 * FRAME_SIZE, readDataSize(files[0]));
+  }
+
+  @Test
+  public void close_patchesHeaderWithEverythingPublished() throws Exception {
+    File directory = new File(mFolder.getRoot(), "archive");
+    AudioArchiver archiver = new AudioArchiver(directory);
+    AudioRingBuffer ring = new AudioRingBuffer(64, FRAME_SIZE);
+    archiver.start();
+    AudioArchiver.Track track = archiver.openTrack("received", SAMPLE_RATE, ring.openReader());
+
+    byte[] frame = new byte[FRAME_SIZE];
+    for (int i = 0; i < 5; i++) {
+      ring.write(frame, 0, frame.length);
+    }
+    track.close();
+    archiver.stop();
+
+    File[] files = directory.listFiles();
+    assertEquals(1, files.length);
+    assertEquals(5 * FRAME_SIZE, readDataSize(files[0]));
+  }
+
+  @Test
+  public void start_withoutDirectory_disablesArchiving() throws Exception {
+    // A directory can't be created underneath a plain file.
+    File directory = new File(mFolder.newFile("not-a-directory"), "archive");
+    AudioArchiver archiver = new AudioArchiver(directory);
+    AudioRingBuffer ring = new AudioRingBuffer(64, FRAME_SIZE);
+    archiver.start();
+    archiver.stop();
+
+    archiver.openTrack("sent", SAMPLE_RATE, ring.openReader());
+    ring.write(new byte[FRAME_SIZE], 0, FRAME_SIZE);
+    archiver.start();
+    archiver.stop();
+
+    assertFalse(directory.exists());
+    assertEquals(0, archiver.getBytesWritten());
+    assertTrue(archiver.toString().contains("disabled=true"));
+  }
+
+  /** Reads the data chunk's size from a WAV header. */
+  private static int readDataSize(File file) throws Exception {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      byte[] header = new byte[44];
+      raf.readFully(header);
+      return ByteBuffer.wrap(header, 40, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    } finally {
+      raf.close();
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class AudioRingBufferTest {
+  private static final int FRAME_SIZE = 64;
+
+  @Test
+  public void read_returnsFramesInOrder() {
+    AudioRingBuffer ring = new AudioRingBuffer(4, FRAME_SIZE);
+    AudioRingBuffer.Reader reader = ring.openReader();
+    for (long seq = 0; seq < 3; seq++) {
+      write(ring, seq, FRAME_SIZE);
+    }
+
+    byte[] dst = new byte[FRAME_SIZE];
+    for (long seq = 0; seq < 3; seq++) {
+      assertEquals(FRAME_SIZE, reader.read(dst));
+      assertArrayEquals(frame(seq, FRAME_SIZE), dst);
+    }
+    assertEquals(0, reader.read(dst));
+    assertEquals(3, reader.getFramesRead());
+    assertEquals(0, reader.getDroppedFrames());
+  }
+
+  @Test
+  public void read_handlesLengthsThatArentWholeWords() {
+    AudioRingBuffer ring = new AudioRingBuffer(4, FRAME_SIZE);
+    AudioRingBuffer.Reader reader = ring.openReader();
+    byte[] dst = new byte[FRAME_SIZE];
+    for (int length = 1; length <= 7; length++) {
+      write(ring, length, length);
+      assertEquals(length, reader.read(dst));
+      assertArrayEquals(frame(length, length), Arrays.copyOf(dst, length));
+    }
+  }
+
+  @Test
+  public void openReader_startsAtTheNextFrame() {
+    AudioRingBuffer ring = new AudioRingBuffer(4, FRAME_SIZE);
+    write(ring, 0, FRAME_SIZE);
+    AudioRingBuffer.Reader reader = ring.openReader();
+    write(ring, 1, FRAME_SIZE);
+
+    byte[] dst = new byte[FRAME_SIZE];
+    assertEquals(FRAME_SIZE, reader.read(dst));
+    assertArrayEquals(frame(1, FRAME_SIZE), dst);
+    assertEquals(0, reader.read(dst));
+  }
+
+  @Test
+  public void read_afterBeingLapped_skipsToTheOldestFrame() {
+    AudioRingBuffer ring = new AudioRingBuffer(4, FRAME_SIZE);
+    AudioRingBuffer.Reader reader = ring.openReader();
+    for (long seq = 0; seq < 10; seq++) {
+      write(ring, seq, FRAME_SIZE);
+    }
+
+    byte[] dst = new byte[FRAME_SIZE];
+    for (long seq = 6; seq < 10; seq++) {
+      assertEquals(FRAME_SIZE, reader.read(dst));
+      assertArrayEquals(frame(seq, FRAME_SIZE), dst);
+    }
+    assertEquals(6, reader.getDroppedFrames());
+    assertEquals(10, reader.getMaxLag());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void write_frameTooLarge_throws() {
+    new AudioRingBuffer(4, FRAME_SIZE).write(new byte[FRAME_SIZE + 1], 0, FRAME_SIZE + 1);
+  }
+
+  /**
+   * Hammers a small ring from one producer and several readers, some of which are slow enough to
+   * be lapped constantly. No reader may ever see a frame that mixes two writes, see frames out of
+   * order, or lose track of what it missed.
+   */
+  @Test
+  public void stress_readersNeverSeeTornFrames() throws Exception {
+    final int frames = 200000;
+    final AudioRingBuffer ring = new AudioRingBuffer(8, FRAME_SIZE);
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    final List<AudioRingBuffer.Reader> readers = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+
+    for (int i = 0; i < 4; i++) {
+      final AudioRingBuffer.Reader reader = ring.openReader();
+      final boolean slow = i % 2 == 1;
+      readers.add(reader);
+      threads.add(
+          new Thread() {
+            @Override
+            public void run() {
+              try {
+                byte[] dst = new byte[FRAME_SIZE];
+                long last = -1;
+                while (last < frames - 1 && failure.get() == null) {
+                  int len = reader.read(dst);
+                  if (len == 0) {
+                    Thread.yield();
+                    continue;
+                  }
+                  long seq = check(dst, len);
+                  assertTrue("Frame " + seq + " came after " + last, seq > last);
+                  last = seq;
+                  if (slow) {
+                    Thread.yield();
+                  }
+                }
+              } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+              }
+            }
+          });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+
+    for (long seq = 0; seq < frames && failure.get() == null; seq++) {
+      write(ring, seq, 8 + (int) (seq % (FRAME_SIZE - 7)));
+    }
+    for (Thread thread : threads) {
+      thread.join(30000);
+    }
+
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+    for (AudioRingBuffer.Reader reader : readers) {
+      assertEquals(frames, reader.getFramesRead() + reader.getDroppedFrames());
+    }
+  }
+
+  private static void write(AudioRingBuffer ring, long seq, int length) {
+    ring.write(frame(seq, length), 0, length);
+  }
+
+  /** A frame that starts with its sequence number, and is filled with bytes derived from it. */
+  private static byte[] frame(long seq, int length) {
+    byte[] frame = new byte[length];
+    for (int i = 0; i < length; i++) {
+      frame[i] = i < 8 ? (byte) (seq >>> (8 * i)) : (byte) (seq * 31 + i);
+    }
+    return frame;
+  }
+
+  /** Checks that a frame written by {@link #frame} is intact, and returns its sequence number. */
+  private static long check(byte[] data, int length) {
+    long seq = 0;
+    for (int i = 0; i < 8; i++) {
+      seq |= (data[i] & 0xFFL) << (8 * i);
+    }
+    assertEquals("Wrong length for frame " + seq, 8 + seq % (FRAME_SIZE - 7), length);
+    assertArrayEquals(
+        "Torn frame " + seq, frame(seq, length), Arrays.copyOf(data, length));
+    return seq;
+  }
+}
@@ -0,0 +1,176 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.android.gms.nearby.connection.Payload;
+import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CallbackTraceTest {
+  /** The magic number and version, before the first event. */
+  private static final int HEADER_SIZE = 5;
+
+  @Rule public TemporaryFolder mFolder = new TemporaryFolder();
+
+  @Test
+  public void writeThenRead_keepsEveryEventType() throws IOException {
+    CallbackTrace trace = new CallbackTrace();
+    CallbackTrace.Event found = new CallbackTrace.Event(EventLog.ENDPOINT_FOUND, 1000, "abcd");
+    found.mServiceId = "walkietalkie";
+    found.mName = "Alice";
+    CallbackTrace.Event initiated =
+        new CallbackTrace.Event(EventLog.CONNECTION_INITIATED, 1500, "abcd");
+    initiated.mName = "Alice";
+    initiated.mAuthenticationToken = "1234";
+    initiated.mIncoming = true;
+    CallbackTrace.Event result = new CallbackTrace.Event(EventLog.CONNECTION_RESULT, 2000, "abcd");
+    result.mStatusCode = -13;
+    CallbackTrace.Event sent = new CallbackTrace.Event(EventLog.PAYLOAD_SENT, 2500, "abcd");
+    sent.mPayloadId = Long.MIN_VALUE + 1;
+    sent.mPayloadType = Payload.Type.BYTES;
+    sent.mSize = 3;
+    sent.mBytes = new byte[] {1, 2, 3};
+    CallbackTrace.Event received = new CallbackTrace.Event(EventLog.PAYLOAD_RECEIVED, 3000, "efgh");
+    received.mPayloadId = 42;
+    received.mPayloadType = Payload.Type.STREAM;
+    CallbackTrace.Event update =
+        new CallbackTrace.Event(EventLog.PAYLOAD_TRANSFER_UPDATE, 3000, "efgh");
+    update.mPayloadId = 42;
+    update.mTransferStatus = PayloadTransferUpdate.Status.IN_PROGRESS;
+    update.mTotalBytes = -1;
+    update.mBytesTransferred = 1L << 40;
+    CallbackTrace.Event disconnected =
+        new CallbackTrace.Event(EventLog.DISCONNECTED, 4000, "efgh");
+    CallbackTrace.Event lost = new CallbackTrace.Event(EventLog.ENDPOINT_LOST, 9000, "abcd");
+    for (CallbackTrace.Event event :
+        Arrays.asList(found, initiated, result, sent, received, update, disconnected, lost)) {
+      trace.write(event);
+    }
+
+    List<CallbackTrace.Event> events = saveAndLoad(trace);
+
+    assertEquals(8, trace.getEventCount());
+    assertEquals(8, events.size());
+    assertEvent(events.get(0), EventLog.ENDPOINT_FOUND, 0, "abcd");
+    assertEquals("walkietalkie", events.get(0).mServiceId);
+    assertEquals("Alice", events.get(0).mName);
+    assertEvent(events.get(1), EventLog.CONNECTION_INITIATED, 500, "abcd");
+    assertEquals("Alice", events.get(1).mName);
+    assertEquals("1234", events.get(1).mAuthenticationToken);
+    assertTrue(events.get(1).mIncoming);
+    assertEvent(events.get(2), EventLog.CONNECTION_RESULT, 1000, "abcd");
+    assertEquals(-13, events.get(2).mStatusCode);
+    assertEvent(events.get(3), EventLog.PAYLOAD_SENT, 1500, "abcd");
+    assertEquals(Long.MIN_VALUE + 1, events.get(3).mPayloadId);
+    assertEquals(Payload.Type.BYTES, events.get(3).mPayloadType);
+    assertEquals(3, events.get(3).mSize);
+    assertArrayEquals(new byte[] {1, 2, 3}, events.get(3).mBytes);
+    assertEvent(events.get(4), EventLog.PAYLOAD_RECEIVED, 2000, "efgh");
+    assertEquals(42, events.get(4).mPayloadId);
+    assertEquals(Payload.Type.STREAM, events.get(4).mPayloadType);
+    assertEquals(-1, events.get(4).mSize);
+    assertEvent(events.get(5), EventLog.PAYLOAD_TRANSFER_UPDATE, 2000, "efgh");
+    assertEquals(PayloadTransferUpdate.Status.IN_PROGRESS, events.get(5).mTransferStatus);
+    assertEquals(-1, events.get(5).mTotalBytes);
+    assertEquals(1L << 40, events.get(5).mBytesTransferred);
+    assertEvent(events.get(6), EventLog.DISCONNECTED, 3000, "efgh");
+    assertEvent(events.get(7), EventLog.ENDPOINT_LOST, 8000, "abcd");
+  }
+
+  @Test
+  public void writeThenRead_keepsPayloadsWithoutContents() throws IOException {
+    CallbackTrace trace = new CallbackTrace();
+    CallbackTrace.Event large = new CallbackTrace.Event(EventLog.PAYLOAD_RECEIVED, 0, "abcd");
+    large.mPayloadType = Payload.Type.BYTES;
+    large.mSize = CallbackTrace.MAX_RECORDED_BYTES + 1;
+    CallbackTrace.Event empty = new CallbackTrace.Event(EventLog.PAYLOAD_SENT, 0, "abcd");
+    empty.mPayloadType = Payload.Type.BYTES;
+    empty.mSize = 0;
+    trace.write(large);
+    trace.write(empty);
+
+    List<CallbackTrace.Event> events = saveAndLoad(trace);
+
+    assertNull(events.get(0).mBytes);
+    assertEquals(CallbackTrace.MAX_RECORDED_BYTES + 1, events.get(0).mSize);
+    assertNull(events.get(1).mBytes);
+    assertEquals(0, events.get(1).mSize);
+  }
+
+  @Test
+  public void read_rejectsUnknownEventTypes() throws IOException {
+    CallbackTrace trace = new CallbackTrace();
+    trace.write(new CallbackTrace.Event(EventLog.ENDPOINT_LOST, 0, "abcd"));
+    byte[] bytes = toByteArray(trace);
+
+    for (int type : new int[] {0, EventLog.PAYLOAD_TRANSFER_UPDATE + 1, 0x80, 0xFF}) {
+      bytes[HEADER_SIZE] = (byte) type;
+      try {
+        CallbackTrace.read(bytes);
+        fail("Read an event of type " + type);
+      } catch (IOException expected) {
+        assertTrue(expected.getMessage(), expected.getMessage().contains("" + type));
+      }
+    }
+  }
+
+  @Test
+  public void read_rejectsOtherFilesAndTruncatedTraces() throws IOException {
+    CallbackTrace trace = new CallbackTrace();
+    CallbackTrace.Event found = new CallbackTrace.Event(EventLog.ENDPOINT_FOUND, 0, "abcd");
+    trace.write(found);
+    byte[] bytes = toByteArray(trace);
+
+    assertFalse(isReadable("hello".getBytes()));
+    assertFalse(isReadable(Arrays.copyOf(bytes, bytes.length - 1)));
+    assertTrue(isReadable(bytes));
+  }
+
+  private List<CallbackTrace.Event> saveAndLoad(CallbackTrace trace) throws IOException {
+    File file = new File(mFolder.getRoot(), "trace.nct");
+    trace.save(file);
+    assertEquals(trace.length(), file.length());
+    return CallbackTrace.load(file);
+  }
+
+  private byte[] toByteArray(CallbackTrace trace) throws IOException {
+    File file = new File(mFolder.getRoot(), "trace.nct");
+    trace.save(file);
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      byte[] bytes = new byte[(int) in.length()];
+      in.readFully(bytes);
+      return bytes;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static boolean isReadable(byte[] bytes) {
+    try {
+      CallbackTrace.read(bytes);
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static void assertEvent(
+      CallbackTrace.Event event, int type, long timeMicros, String endpointId) {
+    assertEquals(type, event.mType);
+    assertEquals(timeMicros, event.mTimeMicros);
+    assertEquals(endpointId, event.mEndpointId);
+  }
+}
@@ -0,0 +1,115 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChunkBitmapTest {
+  @Rule public TemporaryFolder mFolder = new TemporaryFolder();
+
+  @Test
+  public void set_countsEachChunkOnce() {
+    ChunkBitmap bitmap = new ChunkBitmap(3);
+    bitmap.set(1);
+    bitmap.set(1);
+
+    assertTrue(bitmap.get(1));
+    assertFalse(bitmap.get(0));
+    assertEquals(1, bitmap.getSetCount());
+    assertFalse(bitmap.isComplete());
+
+    bitmap.set(0);
+    bitmap.set(2);
+    assertTrue(bitmap.isComplete());
+  }
+
+  @Test
+  public void nextClear_skipsOverFullWords() {
+    ChunkBitmap bitmap = new ChunkBitmap(200);
+    for (int i = 0; i < 130; i++) {
+      bitmap.set(i);
+    }
+    bitmap.set(131);
+
+    assertEquals(130, bitmap.nextClear(0));
+    assertEquals(132, bitmap.nextClear(131));
+    assertEquals(199, bitmap.nextClear(199));
+  }
+
+  @Test
+  public void nextClear_returnsMinusOneWhenComplete() {
+    ChunkBitmap bitmap = new ChunkBitmap(70);
+    for (int i = 0; i < 70; i++) {
+      bitmap.set(i);
+    }
+
+    assertEquals(-1, bitmap.nextClear(0));
+    assertEquals(-1, new ChunkBitmap(0).nextClear(0));
+  }
+
+  @Test
+  public void byteArray_roundTrips() {
+    ChunkBitmap bitmap = new ChunkBitmap(77);
+    bitmap.set(0);
+    bitmap.set(8);
+    bitmap.set(63);
+    bitmap.set(64);
+    bitmap.set(76);
+
+    ChunkBitmap copy = ChunkBitmap.fromByteArray(77, bitmap.toByteArray());
+
+    assertEquals(10, bitmap.toByteArray().length);
+    assertEquals(5, copy.getSetCount());
+    assertArrayEquals(bitmap.toByteArray(), copy.toByteArray());
+  }
+
+  @Test
+  public void fromByteArray_toleratesShortInput() {
+    ChunkBitmap bitmap = ChunkBitmap.fromByteArray(100, new byte[] {(byte) 0xFF});
+
+    assertEquals(8, bitmap.getSetCount());
+    assertEquals(8, bitmap.nextClear(0));
+  }
+
+  @Test
+  public void copy_doesntChangeWithTheOriginal() {
+    ChunkBitmap bitmap = new ChunkBitmap(10);
+    bitmap.set(3);
+    ChunkBitmap copy = bitmap.copy();
+    bitmap.set(4);
+
+    assertEquals(1, copy.getSetCount());
+    assertFalse(copy.get(4));
+  }
+
+  @Test
+  public void save_thenLoad_roundTrips() throws Exception {
+    File file = new File(mFolder.getRoot(), "transfer.bitmap");
+    ChunkBitmap bitmap = new ChunkBitmap(100);
+    bitmap.set(5);
+    bitmap.set(99);
+    bitmap.save(file);
+
+    ChunkBitmap loaded = ChunkBitmap.load(file, 100);
+
+    assertArrayEquals(bitmap.toByteArray(), loaded.toByteArray());
+    assertEquals(2, loaded.getSetCount());
+  }
+
+  @Test
+  public void load_startsOverIfMissingOrForADifferentSize() throws Exception {
+    File file = new File(mFolder.getRoot(), "transfer.bitmap");
+    assertEquals(0, ChunkBitmap.load(file, 10).getSetCount());
+
+    ChunkBitmap bitmap = new ChunkBitmap(10);
+    bitmap.set(1);
+    bitmap.save(file);
+    assertEquals(0, ChunkBitmap.load(file, 11).getSetCount());
+  }
+}
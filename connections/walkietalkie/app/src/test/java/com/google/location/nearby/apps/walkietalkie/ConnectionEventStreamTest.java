@@ -0,0 +1,306 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class ConnectionEventStreamTest {
+  /** Runs everything right away, on the publishing thread. */
+  private static final Executor DIRECT =
+      new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+          runnable.run();
+        }
+      };
+
+  /** Runs things only when asked to, like a busy thread. */
+  private static class QueuedExecutor implements Executor {
+    final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+
+    @Override
+    public void execute(Runnable runnable) {
+      mTasks.add(runnable);
+    }
+
+    void runAll() {
+      Runnable task;
+      while ((task = mTasks.poll()) != null) {
+        task.run();
+      }
+    }
+  }
+
+  /** Remembers the ids of the endpoints in the events it's handed. */
+  private static class RecordingSubscriber implements ConnectionEventStream.Subscriber {
+    final List<String> mIds = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    public void onEvent(ConnectionEventStream.Event event) {
+      mIds.add(event.getEndpoint() == null ? event.getType().name() : event.getEndpoint().getId());
+    }
+  }
+
+  private final ConnectionEventStream mStream = new ConnectionEventStream();
+
+  @Test
+  public void publish_reachesEverySubscriberInOrder() {
+    RecordingSubscriber first = new RecordingSubscriber();
+    RecordingSubscriber second = new RecordingSubscriber();
+    mStream.subscribe(first, DIRECT);
+    mStream.subscribe(second, DIRECT);
+
+    publish(0, 3);
+
+    assertEquals(Arrays.asList("0", "1", "2"), first.mIds);
+    assertEquals(Arrays.asList("0", "1", "2"), second.mIds);
+  }
+
+  @Test
+  public void subscribe_onlyDeliversTheTypesAskedFor() {
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    mStream.subscribe(
+        subscriber,
+        DIRECT,
+        EnumSet.of(ConnectionEventStream.Type.DISCOVERY_STARTED),
+        ConnectionEventStream.DEFAULT_CAPACITY,
+        ConnectionEventStream.Overflow.DROP_NEWEST);
+
+    mStream.publish(ConnectionEventStream.Type.ADVERTISING_STARTED);
+    mStream.publish(ConnectionEventStream.Type.DISCOVERY_STARTED);
+    publish(0, 1);
+
+    assertEquals(Arrays.asList("DISCOVERY_STARTED"), subscriber.mIds);
+  }
+
+  @Test
+  public void dropNewest_keepsWhatWasAlreadyBuffered() {
+    QueuedExecutor executor = new QueuedExecutor();
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    ConnectionEventStream.Subscription subscription =
+        subscribe(subscriber, executor, ConnectionEventStream.Overflow.DROP_NEWEST);
+
+    publish(0, 6);
+    assertEquals(4, subscription.getPendingCount());
+    executor.runAll();
+
+    assertEquals(Arrays.asList("0", "1", "2", "3"), subscriber.mIds);
+    assertEquals(2, subscription.getDroppedCount());
+    assertEquals(4, subscription.getDeliveredCount());
+  }
+
+  @Test
+  public void dropOldest_keepsTheLatest() {
+    QueuedExecutor executor = new QueuedExecutor();
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    ConnectionEventStream.Subscription subscription =
+        subscribe(subscriber, executor, ConnectionEventStream.Overflow.DROP_OLDEST);
+
+    publish(0, 6);
+    executor.runAll();
+
+    assertEquals(Arrays.asList("2", "3", "4", "5"), subscriber.mIds);
+    assertEquals(2, subscription.getDroppedCount());
+  }
+
+  /** A slow subscriber only loses its own events, and never holds up the others. */
+  @Test
+  public void slowSubscriber_doesntAffectOthers() {
+    QueuedExecutor slowExecutor = new QueuedExecutor();
+    RecordingSubscriber slow = new RecordingSubscriber();
+    RecordingSubscriber fast = new RecordingSubscriber();
+    ConnectionEventStream.Subscription slowSubscription =
+        subscribe(slow, slowExecutor, ConnectionEventStream.Overflow.DROP_NEWEST);
+    mStream.subscribe(fast, DIRECT);
+
+    publish(0, 100);
+
+    assertEquals(100, fast.mIds.size());
+    assertEquals(96, slowSubscription.getDroppedCount());
+  }
+
+  @Test
+  public void drain_givesTheExecutorBackBetweenBatches() {
+    QueuedExecutor executor = new QueuedExecutor();
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    mStream.subscribe(subscriber, executor);
+    publish(0, 100);
+
+    executor.mTasks.poll().run();
+
+    assertEquals(64, subscriber.mIds.size());
+    assertEquals(1, executor.mTasks.size());
+    executor.runAll();
+    assertEquals(100, subscriber.mIds.size());
+  }
+
+  @Test
+  public void cancel_stopsDelivery() {
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    ConnectionEventStream.Subscription subscription = mStream.subscribe(subscriber, DIRECT);
+    publish(0, 1);
+
+    subscription.cancel();
+    publish(1, 1);
+
+    assertEquals(Arrays.asList("0"), subscriber.mIds);
+    assertEquals(0, mStream.getSubscriberCount());
+  }
+
+  @Test
+  public void clear_cancelsEverySubscription() {
+    QueuedExecutor executor = new QueuedExecutor();
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    mStream.subscribe(subscriber, executor);
+    mStream.subscribe(new RecordingSubscriber(), DIRECT);
+    publish(0, 1);
+
+    mStream.clear();
+    executor.runAll();
+
+    assertEquals(0, mStream.getSubscriberCount());
+    assertTrue(subscriber.mIds.isEmpty());
+  }
+
+  @Test
+  public void failingSubscriber_keepsGettingEvents() {
+    final List<String> ids = new ArrayList<>();
+    mStream.subscribe(
+        new ConnectionEventStream.Subscriber() {
+          @Override
+          public void onEvent(ConnectionEventStream.Event event) {
+            ids.add(event.getEndpoint().getId());
+            throw new IllegalStateException("Oops");
+          }
+        },
+        DIRECT);
+
+    publish(0, 2);
+
+    assertEquals(Arrays.asList("0", "1"), ids);
+  }
+
+  @Test
+  public void rejectingExecutor_isTriedAgainOnTheNextEvent() {
+    final boolean[] reject = {true};
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    mStream.subscribe(
+        subscriber,
+        new Executor() {
+          @Override
+          public void execute(Runnable runnable) {
+            if (reject[0]) {
+              throw new RejectedExecutionException();
+            }
+            runnable.run();
+          }
+        });
+    publish(0, 1);
+
+    reject[0] = false;
+    publish(1, 1);
+
+    assertEquals(Arrays.asList("0", "1"), subscriber.mIds);
+  }
+
+  /**
+   * Subscribers on a pool of threads, some slower than others, while the main thread publishes as
+   * fast as it can. Each must see its events in order, without duplicates, and account for every
+   * event it didn't see.
+   */
+  @Test
+  public void stress_eventsStayInOrderOnAThreadPool() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    final int events = 50000;
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<ConnectionEventStream.Subscription> subscriptions = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      final boolean slow = i % 2 == 1;
+      subscriptions.add(
+          mStream.subscribe(
+              new ConnectionEventStream.Subscriber() {
+                private int mLast = -1;
+
+                @Override
+                public void onEvent(ConnectionEventStream.Event event) {
+                  int id = Integer.parseInt(event.getEndpoint().getId());
+                  if (id <= mLast) {
+                    failure.compareAndSet(null, new AssertionError(id + " after " + mLast));
+                  }
+                  mLast = id;
+                  if (slow) {
+                    Thread.yield();
+                  }
+                }
+              },
+              pool,
+              EnumSet.allOf(ConnectionEventStream.Type.class),
+              64,
+              i < 2
+                  ? ConnectionEventStream.Overflow.DROP_OLDEST
+                  : ConnectionEventStream.Overflow.DROP_NEWEST));
+    }
+
+    publish(0, events);
+    // Wait until every event has been either delivered or dropped.
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    for (ConnectionEventStream.Subscription subscription : subscriptions) {
+      while ((subscription.getPendingCount() > 0
+              || subscription.getDeliveredCount() + subscription.getDroppedCount() < events)
+          && System.nanoTime() < deadline) {
+        Thread.sleep(1);
+      }
+    }
+    pool.shutdown();
+    assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+    for (ConnectionEventStream.Subscription subscription : subscriptions) {
+      assertEquals(events, subscription.getDeliveredCount() + subscription.getDroppedCount());
+    }
+  }
+
+  /** A short run of the benchmark, to keep it working. It isn't meant to measure anything here. */
+  @Test
+  public void benchmark_accountsForEveryEvent() {
+    EventStreamBenchmark benchmark = new EventStreamBenchmark(2, 1000, 16);
+
+    EventStreamBenchmark.Result lockFree = benchmark.measureLockFree();
+    EventStreamBenchmark.Result naive = benchmark.measureNaive();
+
+    assertTrue(lockFree.toString(), lockFree.mFinished);
+    assertEquals(2 * 1000, lockFree.mReceived + lockFree.mDropped);
+    assertTrue(naive.toString(), naive.mFinished);
+    assertEquals(2 * 1000, naive.mReceived);
+  }
+
+  private ConnectionEventStream.Subscription subscribe(
+      RecordingSubscriber subscriber, Executor executor, ConnectionEventStream.Overflow overflow) {
+    return mStream.subscribe(
+        subscriber, executor, EnumSet.allOf(ConnectionEventStream.Type.class), 4, overflow);
+  }
+
+  /** Publishes {@code count} discoveries, of endpoints numbered from {@code first}. */
+  private void publish(int first, int count) {
+    for (int i = first; i < first + count; i++) {
+      mStream.publish(
+          ConnectionEventStream.Type.ENDPOINT_DISCOVERED,
+          new Endpoint(Integer.toString(i), "Endpoint " + i));
+    }
+  }
+}
@@ -0,0 +1,261 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class ConnectionSchedulerTest {
+  private final FakeScheduler mScheduler = new FakeScheduler();
+  private final long mStartMillis = mScheduler.elapsedRealtime();
+
+  /** The ids of the endpoints we asked to connect to, in order. */
+  private final List<String> mRequested = new ArrayList<>();
+
+  /** When each request went out, since the test started. */
+  private final List<Long> mRequestedAt = new ArrayList<>();
+
+  private final List<String> mCancelled = new ArrayList<>();
+  private final List<String> mGaveUp = new ArrayList<>();
+
+  private final ConnectionScheduler mConnections =
+      new ConnectionScheduler(
+          new ConnectionScheduler.Connector() {
+            @Override
+            public void requestConnection(Endpoint endpoint) {
+              mRequested.add(endpoint.getId());
+              mRequestedAt.add(mScheduler.elapsedRealtime() - mStartMillis);
+            }
+
+            @Override
+            public void cancelConnection(Endpoint endpoint) {
+              mCancelled.add(endpoint.getId());
+            }
+          },
+          new ConnectionScheduler.Callback() {
+            @Override
+            public void onGaveUp(Endpoint endpoint) {
+              mGaveUp.add(endpoint.getId());
+            }
+          },
+          mScheduler);
+
+  @Test
+  public void concurrencyLimit_holdsBackTheRest() {
+    mConnections.setMaxConcurrent(2);
+    schedule("a", "b", "c", "d");
+
+    assertEquals(Arrays.asList("a", "b"), mRequested);
+    assertEquals(2, mConnections.getQueueLength());
+
+    mConnections.onConnected("a");
+    assertEquals(Arrays.asList("a", "b", "c"), mRequested);
+
+    mConnections.onConnectionFailed("b");
+    assertEquals(Arrays.asList("a", "b", "c", "d"), mRequested);
+    assertEquals(0, mConnections.getQueueLength());
+  }
+
+  @Test
+  public void concurrencyLimit_raisingItSendsMoreRightAway() {
+    schedule("a", "b", "c");
+    assertEquals(Arrays.asList("a"), mRequested);
+
+    mConnections.setMaxConcurrent(3);
+
+    assertEquals(Arrays.asList("a", "b", "c"), mRequested);
+  }
+
+  @Test
+  public void priority_highestFirstThenFirstComeFirstServed() {
+    mConnections.schedule(endpoint("a"), ConnectionScheduler.PRIORITY_DEFAULT);
+    mConnections.schedule(endpoint("b"), ConnectionScheduler.PRIORITY_DEFAULT);
+    mConnections.schedule(endpoint("c"), ConnectionScheduler.PRIORITY_KNOWN);
+    mConnections.schedule(endpoint("d"), ConnectionScheduler.PRIORITY_RECONNECT);
+    mConnections.schedule(endpoint("e"), ConnectionScheduler.PRIORITY_KNOWN);
+
+    connectEach("a", "d", "c", "e");
+
+    assertEquals(Arrays.asList("a", "d", "c", "e", "b"), mRequested);
+  }
+
+  @Test
+  public void priority_schedulingAgainRaisesIt() {
+    mConnections.schedule(endpoint("a"), ConnectionScheduler.PRIORITY_DEFAULT);
+    mConnections.schedule(endpoint("b"), ConnectionScheduler.PRIORITY_DEFAULT);
+    mConnections.schedule(endpoint("c"), ConnectionScheduler.PRIORITY_KNOWN);
+
+    mConnections.schedule(endpoint("b"), ConnectionScheduler.PRIORITY_RECONNECT);
+    // A lower priority doesn't demote it.
+    mConnections.schedule(endpoint("c"), ConnectionScheduler.PRIORITY_DEFAULT);
+    connectEach("a", "b");
+
+    assertEquals(Arrays.asList("a", "b", "c"), mRequested);
+  }
+
+  @Test
+  public void timeout_cancelsTheAttemptAndRetries() {
+    schedule("a");
+
+    mScheduler.advance(ConnectionScheduler.ATTEMPT_TIMEOUT_MS - 1);
+    assertTrue(mCancelled.isEmpty());
+    assertTrue(mConnections.isConnecting());
+
+    mScheduler.advance(1);
+    assertEquals(Arrays.asList("a"), mCancelled);
+    assertFalse(mConnections.isConnecting());
+    assertTrue(mConnections.isScheduled("a"));
+
+    mScheduler.advance(ConnectionScheduler.RETRY_DELAY_MS);
+    long retriedAt = ConnectionScheduler.ATTEMPT_TIMEOUT_MS + ConnectionScheduler.RETRY_DELAY_MS;
+    assertEquals(Arrays.asList(0L, retriedAt), mRequestedAt);
+  }
+
+  @Test
+  public void timeout_freesTheSlotForTheNextCandidate() {
+    schedule("a", "b");
+
+    mScheduler.advance(ConnectionScheduler.ATTEMPT_TIMEOUT_MS);
+
+    assertEquals(Arrays.asList("a", "b"), mRequested);
+    assertEquals(Arrays.asList(0L, ConnectionScheduler.ATTEMPT_TIMEOUT_MS), mRequestedAt);
+  }
+
+  @Test
+  public void timeout_isForgottenOnceConnected() {
+    schedule("a");
+    mConnections.onConnected("a");
+
+    mScheduler.advance(ConnectionScheduler.ATTEMPT_TIMEOUT_MS);
+
+    assertTrue(mCancelled.isEmpty());
+    assertEquals(0, mScheduler.getPendingCount());
+  }
+
+  @Test
+  public void retryBudget_givesUpAfterMaxAttempts() {
+    schedule("a");
+    for (int attempt = 1; attempt <= ConnectionScheduler.MAX_ATTEMPTS; attempt++) {
+      assertEquals(attempt, mRequested.size());
+      assertTrue(mGaveUp.isEmpty());
+      mConnections.onConnectionFailed("a");
+      mScheduler.advance(ConnectionScheduler.RETRY_DELAY_MS * attempt);
+    }
+
+    assertEquals(Collections.nCopies(ConnectionScheduler.MAX_ATTEMPTS, "a"), mRequested);
+    // Each retry waits a little longer than the last: 1000ms, then 2000ms.
+    assertEquals(Arrays.asList(0L, 1000L, 3000L), mRequestedAt);
+    assertEquals(Arrays.asList("a"), mGaveUp);
+    assertFalse(mConnections.isScheduled("a"));
+
+    mScheduler.advance(ConnectionScheduler.ATTEMPT_TIMEOUT_MS);
+    assertEquals(ConnectionScheduler.MAX_ATTEMPTS, mRequested.size());
+  }
+
+  @Test
+  public void retryBudget_timeoutsAndFailuresShareIt() {
+    schedule("a");
+
+    mConnections.onConnectionFailed("a");
+    mScheduler.advance(ConnectionScheduler.RETRY_DELAY_MS);
+    mScheduler.advance(ConnectionScheduler.ATTEMPT_TIMEOUT_MS);
+    mScheduler.advance(ConnectionScheduler.RETRY_DELAY_MS * 2);
+    mConnections.onConnectionFailed("a");
+
+    assertEquals(3, mRequested.size());
+    assertEquals(Arrays.asList("a"), mGaveUp);
+  }
+
+  @Test
+  public void retry_waitsBehindHigherPriorities() {
+    mConnections.schedule(endpoint("a"), ConnectionScheduler.PRIORITY_DEFAULT);
+    mConnections.onConnectionFailed("a");
+    mConnections.schedule(endpoint("b"), ConnectionScheduler.PRIORITY_KNOWN);
+    mConnections.schedule(endpoint("c"), ConnectionScheduler.PRIORITY_KNOWN);
+
+    mScheduler.advance(ConnectionScheduler.RETRY_DELAY_MS);
+    connectEach("b", "c");
+
+    assertEquals(Arrays.asList("a", "b", "c", "a"), mRequested);
+  }
+
+  @Test
+  public void lateCallbacks_areIgnored() {
+    schedule("a");
+    mScheduler.advance(ConnectionScheduler.ATTEMPT_TIMEOUT_MS);
+
+    // The cancelled attempt reports back while we wait to retry.
+    mConnections.onConnected("a");
+    mConnections.onConnectionFailed("a");
+    mScheduler.advance(ConnectionScheduler.RETRY_DELAY_MS);
+
+    assertEquals(2, mRequested.size());
+    assertTrue(mConnections.isConnecting());
+    assertEquals(0, mConnections.getAverageConnectMillis());
+  }
+
+  @Test
+  public void remove_forgetsWaitingCandidatesButNotThoseInFlight() {
+    schedule("a", "b");
+    mConnections.onConnectionFailed("a");
+
+    mConnections.remove("a");
+    mScheduler.advance(ConnectionScheduler.RETRY_DELAY_MS);
+    mConnections.remove("b");
+
+    assertEquals(Arrays.asList("a", "b"), mRequested);
+    assertFalse(mConnections.isScheduled("a"));
+    assertTrue(mConnections.isScheduled("b"));
+  }
+
+  @Test
+  public void clearQueue_leavesRequestsInFlight() {
+    schedule("a", "b", "c");
+
+    mConnections.clearQueue();
+
+    assertEquals(0, mConnections.getQueueLength());
+    assertTrue(mConnections.isScheduled("a"));
+    assertFalse(mConnections.isScheduled("b"));
+    mConnections.onConnected("a");
+    assertEquals(Arrays.asList("a"), mRequested);
+  }
+
+  @Test
+  public void metrics_measureConnectAndFormationTimes() {
+    mConnections.setMaxConcurrent(2);
+    schedule("a", "b");
+    assertEquals(-1, mConnections.getLastFormationMillis());
+
+    mScheduler.advance(300);
+    mConnections.onConnected("a");
+    mScheduler.advance(200);
+    mConnections.onConnected("b");
+
+    assertEquals(400, mConnections.getAverageConnectMillis());
+    assertEquals(500, mConnections.getLastFormationMillis());
+  }
+
+  /** Schedules the endpoints, in order, at the default priority. */
+  private void schedule(String... ids) {
+    for (String id : ids) {
+      mConnections.schedule(endpoint(id), ConnectionScheduler.PRIORITY_DEFAULT);
+    }
+  }
+
+  /** Reports that each endpoint connected, in order. */
+  private void connectEach(String... ids) {
+    for (String id : ids) {
+      mConnections.onConnected(id);
+    }
+  }
+
+  private static Endpoint endpoint(String id) {
+    return new Endpoint(id, "Endpoint " + id);
+  }
+}
@@ -0,0 +1,209 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class DiscoveredEndpointTableTest {
+  private static final Endpoint ALICE = new Endpoint("a", "Alice");
+  private static final Endpoint BOB = new Endpoint("b", "Bob");
+
+  private final FakeScheduler mScheduler = new FakeScheduler();
+
+  /** The ids of the endpoints that expired, in order. */
+  private final List<String> mExpired = new ArrayList<>();
+
+  private final DiscoveredEndpointTable mTable =
+      new DiscoveredEndpointTable(
+          new DiscoveredEndpointTable.Callback() {
+            @Override
+            public void onEndpointExpired(Endpoint endpoint) {
+              mExpired.add(endpoint.getId());
+            }
+          },
+          mScheduler);
+
+  @Test
+  public void expiry_happensAtTheTimeToLive() {
+    mTable.put(ALICE);
+
+    mScheduler.advance(DiscoveredEndpointTable.DEFAULT_TTL_MS - 1);
+    assertTrue(mTable.containsKey("a"));
+    assertTrue(mExpired.isEmpty());
+
+    mScheduler.advance(1);
+    assertFalse(mTable.containsKey("a"));
+    assertEquals(Arrays.asList("a"), mExpired);
+    assertEquals(1, mTable.getExpiredCount());
+    assertEquals(-1, mTable.getLastSeenMillis("a"));
+  }
+
+  @Test
+  public void expiry_isWithinATickWhenPutBetweenTicks() {
+    mScheduler.advance(DiscoveredEndpointTable.TICK_MS / 2);
+    mTable.setTtlMillis(5000);
+    mTable.put(ALICE);
+
+    mScheduler.advance(5000 - DiscoveredEndpointTable.TICK_MS);
+    assertTrue(mTable.containsKey("a"));
+
+    mScheduler.advance(DiscoveredEndpointTable.TICK_MS);
+    assertFalse(mTable.containsKey("a"));
+  }
+
+  @Test
+  public void expiry_roundsPartialTicksUp() {
+    mTable.setTtlMillis(DiscoveredEndpointTable.TICK_MS + 1);
+    mTable.put(ALICE);
+
+    mScheduler.advance(DiscoveredEndpointTable.TICK_MS);
+    assertTrue(mTable.containsKey("a"));
+
+    mScheduler.advance(DiscoveredEndpointTable.TICK_MS);
+    assertFalse(mTable.containsKey("a"));
+  }
+
+  /** Bob's time-to-live is a whole trip around the wheel shorter, so they share a slot. */
+  @Test
+  public void expiry_skipsEndpointsDueOnALaterTripAroundTheWheel() {
+    long shortTtl = 10 * DiscoveredEndpointTable.TICK_MS;
+    long longTtl = shortTtl + DiscoveredEndpointTable.WHEEL_SIZE * DiscoveredEndpointTable.TICK_MS;
+    mTable.setTtlMillis(longTtl);
+    mTable.put(ALICE);
+    mTable.setTtlMillis(shortTtl);
+    mTable.put(BOB);
+
+    mScheduler.advance(shortTtl);
+    assertEquals(Arrays.asList("b"), mExpired);
+    assertTrue(mTable.containsKey("a"));
+
+    mScheduler.advance(longTtl - shortTtl - 1);
+    assertTrue(mTable.containsKey("a"));
+    mScheduler.advance(1);
+    assertEquals(Arrays.asList("b", "a"), mExpired);
+  }
+
+  @Test
+  public void expiry_ofAVeryLongTimeToLiveDoesntWrapAround() {
+    mTable.setTtlMillis(Long.MAX_VALUE);
+    mTable.put(ALICE);
+
+    mScheduler.advance(60 * 60 * 1000);
+
+    assertTrue(mTable.containsKey("a"));
+    assertTrue(mExpired.isEmpty());
+  }
+
+  /** The device sleeps for several trips around the wheel, and the tick runs late. */
+  @Test
+  public void expiry_catchesUpAfterTheDeviceSleeps() {
+    long tick = DiscoveredEndpointTable.TICK_MS;
+    long gap = 3 * DiscoveredEndpointTable.WHEEL_SIZE * tick;
+    mTable.setTtlMillis(3 * tick);
+    mTable.put(ALICE);
+    mTable.setTtlMillis(gap + 5 * tick);
+    mTable.put(BOB);
+
+    mScheduler.sleep(gap);
+    mScheduler.advance(tick);
+    assertEquals(Arrays.asList("a"), mExpired);
+
+    mScheduler.advance(3 * tick);
+    assertTrue(mTable.containsKey("b"));
+    mScheduler.advance(tick);
+    assertEquals(Arrays.asList("a", "b"), mExpired);
+  }
+
+  @Test
+  public void put_refreshesLastSeenAndPushesBackExpiry() {
+    long start = mScheduler.elapsedRealtime();
+    mTable.put(ALICE);
+    assertEquals(start, mTable.getLastSeenMillis("a"));
+
+    long half = DiscoveredEndpointTable.DEFAULT_TTL_MS / 2;
+    mScheduler.advance(half);
+    mTable.put(ALICE);
+    assertEquals(start + half, mTable.getLastSeenMillis("a"));
+
+    mScheduler.advance(half);
+    assertTrue(mTable.containsKey("a"));
+
+    mScheduler.advance(half);
+    assertEquals(Arrays.asList("a"), mExpired);
+  }
+
+  /** A refresh a whole number of trips around the wheel later lands in the same slot. */
+  @Test
+  public void put_refreshIntoTheSameSlot() {
+    mTable.put(ALICE);
+
+    long trip = DiscoveredEndpointTable.WHEEL_SIZE * DiscoveredEndpointTable.TICK_MS;
+    mScheduler.advance(trip);
+    mTable.put(ALICE);
+    mScheduler.advance(DiscoveredEndpointTable.DEFAULT_TTL_MS - 1);
+    assertTrue(mTable.containsKey("a"));
+
+    mScheduler.advance(1);
+    assertEquals(Arrays.asList("a"), mExpired);
+  }
+
+  @Test
+  public void onLost_removesTheEndpointWithoutExpiringIt() {
+    mTable.put(ALICE);
+    mTable.put(BOB);
+
+    assertEquals(ALICE, mTable.onLost("a"));
+    assertNull(mTable.onLost("a"));
+    assertNull(mTable.get("a"));
+    assertEquals(-1, mTable.getLastSeenMillis("a"));
+    assertEquals(1, mTable.getLostCount());
+    assertEquals(1, mTable.getEndpoints().size());
+
+    mScheduler.advance(DiscoveredEndpointTable.DEFAULT_TTL_MS);
+    assertEquals(Arrays.asList("b"), mExpired);
+  }
+
+  @Test
+  public void onLost_ofTheLastEndpointStopsTheWheel() {
+    mTable.put(ALICE);
+    assertEquals(1, mScheduler.getPendingCount());
+
+    mTable.onLost("a");
+
+    assertEquals(0, mScheduler.getPendingCount());
+  }
+
+  @Test
+  public void wheel_stopsWhenEmptyAndRestartsOnPut() {
+    mTable.setTtlMillis(DiscoveredEndpointTable.TICK_MS);
+    mTable.put(ALICE);
+    mScheduler.advance(DiscoveredEndpointTable.TICK_MS);
+    assertEquals(0, mScheduler.getPendingCount());
+
+    // Idle for a while, then put again. The wheel catches up rather than replaying the gap.
+    mScheduler.advance(10 * DiscoveredEndpointTable.WHEEL_SIZE * DiscoveredEndpointTable.TICK_MS);
+    mTable.put(BOB);
+    mScheduler.advance(DiscoveredEndpointTable.TICK_MS);
+
+    assertEquals(Arrays.asList("a", "b"), mExpired);
+  }
+
+  @Test
+  public void clear_forgetsEverythingAndStopsTheWheel() {
+    mTable.put(ALICE);
+    mTable.put(BOB);
+
+    mTable.clear();
+    mScheduler.advance(DiscoveredEndpointTable.DEFAULT_TTL_MS);
+
+    assertTrue(mTable.getEndpoints().isEmpty());
+    assertTrue(mExpired.isEmpty());
+    assertEquals(0, mScheduler.getPendingCount());
+  }
+}
@@ -0,0 +1,137 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class EndpointRegistryTest {
+  @Test
+  public void put_replacesEndpointWithTheSameId() {
+    EndpointRegistry registry = new EndpointRegistry();
+    registry.put(new Endpoint("a", "Alice"));
+    registry.put(new Endpoint("a", "Alicia"));
+
+    assertEquals(1, registry.size());
+    assertEquals("Alicia", registry.get("a").getName());
+  }
+
+  @Test
+  public void remove_returnsWhatWasRemoved() {
+    EndpointRegistry registry = new EndpointRegistry();
+    Endpoint alice = new Endpoint("a", "Alice");
+    registry.put(alice);
+    registry.put(new Endpoint("b", "Bob"));
+
+    assertSame(alice, registry.remove("a"));
+    assertNull(registry.remove("a"));
+    assertFalse(registry.containsKey("a"));
+    assertEquals(Arrays.asList("b"), registry.getIds());
+  }
+
+  @Test
+  public void clear_removesEverything() {
+    EndpointRegistry registry = new EndpointRegistry();
+    registry.put(new Endpoint("a", "Alice"));
+    registry.clear();
+
+    assertTrue(registry.isEmpty());
+    assertTrue(registry.getEndpoints().isEmpty());
+    assertTrue(registry.getIds().isEmpty());
+  }
+
+  @Test
+  public void snapshots_dontChangeAfterwards() {
+    EndpointRegistry registry = new EndpointRegistry();
+    registry.put(new Endpoint("a", "Alice"));
+    Set<Endpoint> endpoints = registry.getEndpoints();
+    List<String> ids = registry.getIds();
+
+    registry.put(new Endpoint("b", "Bob"));
+    registry.remove("a");
+
+    assertEquals(new HashSet<>(Arrays.asList(new Endpoint("a", "Alice"))), endpoints);
+    assertEquals(Arrays.asList("a"), ids);
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void snapshots_areImmutable() {
+    EndpointRegistry registry = new EndpointRegistry();
+    registry.getEndpoints().add(new Endpoint("a", "Alice"));
+  }
+
+  /** Reads happen for every payload we send, so they must not copy anything. */
+  @Test
+  public void reads_betweenChanges_returnTheSameSnapshot() {
+    EndpointRegistry registry = new EndpointRegistry();
+    registry.put(new Endpoint("a", "Alice"));
+    registry.put(new Endpoint("b", "Bob"));
+
+    assertSame(registry.getEndpoints(), registry.getEndpoints());
+    assertSame(registry.getIds(), registry.getIds());
+  }
+
+  /**
+   * A writer adds and removes endpoints while readers iterate over snapshots. Readers must never
+   * see a ConcurrentModificationException, a half-built endpoint, or the same id twice.
+   */
+  @Test
+  public void stress_readersAlwaysSeeConsistentSnapshots() throws Exception {
+    final EndpointRegistry registry = new EndpointRegistry();
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    final int changes = 20000;
+    Thread[] readers = new Thread[4];
+    final AtomicBoolean done = new AtomicBoolean();
+
+    for (int i = 0; i < readers.length; i++) {
+      readers[i] =
+          new Thread() {
+            @Override
+            public void run() {
+              try {
+                while (failure.get() == null && !done.get()) {
+                  Set<Endpoint> endpoints = registry.getEndpoints();
+                  for (Endpoint endpoint : endpoints) {
+                    assertEquals("Endpoint " + endpoint.getId(), endpoint.getName());
+                  }
+                  Set<String> ids = new HashSet<>();
+                  for (Endpoint endpoint : endpoints) {
+                    assertTrue("Seen twice: " + endpoint, ids.add(endpoint.getId()));
+                  }
+                  assertTrue(ids.size() <= 8);
+                }
+              } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+              }
+            }
+          };
+      readers[i].start();
+    }
+
+    for (int i = 0; i < changes && failure.get() == null; i++) {
+      String id = Integer.toString(i % 8);
+      if (registry.containsKey(id)) {
+        registry.remove(id);
+      } else {
+        registry.put(new Endpoint(id, "Endpoint " + id));
+      }
+    }
+    done.set(true);
+    for (Thread reader : readers) {
+      reader.join(30000);
+    }
+
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+  }
+}
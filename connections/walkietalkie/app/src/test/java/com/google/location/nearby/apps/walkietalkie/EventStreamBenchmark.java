@@ -0,0 +1,256 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares {@link ConnectionEventStream} with the simplest fan-out that would do: a synchronized
+ * list of subscribers, and an executor task for every event and every subscriber. Each subscriber
+ * gets a thread of its own, and does nothing but count. We measure what publishing costs the
+ * calling thread, how long events take to reach subscribers, and how long until every subscriber
+ * has seen, or lost, every event.
+ *
+ * <p>Run it from the unit test classpath, with {@code java
+ * com.google.location.nearby.apps.walkietalkie.EventStreamBenchmark [subscribers] [events]
+ * [capacity]}.
+ */
+class EventStreamBenchmark {
+  /** Events published, and thrown away, before measuring, so both are measured once compiled. */
+  private static final int WARMUP_EVENTS = 20000;
+
+  /** How long we wait for subscribers to catch up before giving up on them. */
+  private static final long TIMEOUT_NANOS = 10L * 1000 * 1000 * 1000;
+
+  private final int mSubscribers;
+  private final int mEvents;
+  private final int mCapacity;
+
+  /** What one fan-out cost. */
+  static class Result {
+    String mName;
+    int mSubscribers;
+    int mEvents;
+    double mPublishNanos;
+    long mReceived;
+    long mDropped;
+    double mAverageLatencyMicros;
+    double mMaxLatencyMicros;
+    double mTotalMillis;
+
+    /** False if the subscribers hadn't seen, or lost, every event before we gave up on them. */
+    boolean mFinished;
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "%s{subscribers=%d, events=%d, publishNs=%.0f, received=%d, dropped=%d, "
+              + "avgLatencyUs=%.1f, maxLatencyUs=%.1f, totalMs=%.1f, finished=%b}",
+          mName,
+          mSubscribers,
+          mEvents,
+          mPublishNanos,
+          mReceived,
+          mDropped,
+          mAverageLatencyMicros,
+          mMaxLatencyMicros,
+          mTotalMillis,
+          mFinished);
+    }
+  }
+
+  EventStreamBenchmark(int subscribers, int events, int capacity) {
+    mSubscribers = subscribers;
+    mEvents = events;
+    mCapacity = capacity;
+  }
+
+  public static void main(String[] args) {
+    int subscribers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    int events = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+    int capacity = args.length > 2 ? Integer.parseInt(args[2]) : events;
+    EventStreamBenchmark benchmark = new EventStreamBenchmark(subscribers, events, capacity);
+    benchmark.warmUp();
+    System.out.println(benchmark.measureLockFree());
+    System.out.println(benchmark.measureNaive());
+  }
+
+  /** Runs both fan-outs for a while, so both are compiled before we measure them. */
+  void warmUp() {
+    measure(new LockFreeFanOut(), WARMUP_EVENTS);
+    measure(new NaiveFanOut(), WARMUP_EVENTS);
+  }
+
+  Result measureLockFree() {
+    return measure(new LockFreeFanOut(), mEvents);
+  }
+
+  Result measureNaive() {
+    return measure(new NaiveFanOut(), mEvents);
+  }
+
+  private Result measure(FanOut fanOut, int events) {
+    List<ExecutorService> executors = new ArrayList<>();
+    List<CountingSubscriber> subscribers = new ArrayList<>();
+    for (int i = 0; i < mSubscribers; i++) {
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      CountingSubscriber subscriber = new CountingSubscriber();
+      executors.add(executor);
+      subscribers.add(subscriber);
+      fanOut.subscribe(subscriber, executor);
+    }
+
+    Endpoint endpoint = new Endpoint("bench", "bench");
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < events; i++) {
+      fanOut.publish(
+          new ConnectionEventStream.Event(
+              ConnectionEventStream.Type.ENDPOINT_DISCOVERED, endpoint, null, null));
+    }
+    long publishedNanos = System.nanoTime();
+
+    boolean finished = false;
+    while (!finished && System.nanoTime() - publishedNanos < TIMEOUT_NANOS) {
+      finished = true;
+      for (int i = 0; i < mSubscribers; i++) {
+        if (subscribers.get(i).mReceived.get() + fanOut.getDroppedCount(i) < events) {
+          finished = false;
+          Thread.yield();
+          break;
+        }
+      }
+    }
+    long doneNanos = System.nanoTime();
+    for (ExecutorService executor : executors) {
+      executor.shutdownNow();
+    }
+
+    long received = 0;
+    long dropped = 0;
+    long totalLatencyNanos = 0;
+    long maxLatencyNanos = 0;
+    for (int i = 0; i < mSubscribers; i++) {
+      CountingSubscriber subscriber = subscribers.get(i);
+      received += subscriber.mReceived.get();
+      dropped += fanOut.getDroppedCount(i);
+      totalLatencyNanos += subscriber.mTotalLatencyNanos.get();
+      maxLatencyNanos = Math.max(maxLatencyNanos, subscriber.mMaxLatencyNanos.get());
+    }
+    Result result = new Result();
+    result.mName = fanOut.getName();
+    result.mSubscribers = mSubscribers;
+    result.mEvents = events;
+    result.mPublishNanos = (double) (publishedNanos - startNanos) / Math.max(1, events);
+    result.mReceived = received;
+    result.mDropped = dropped;
+    result.mAverageLatencyMicros = received == 0 ? 0 : totalLatencyNanos / 1000.0 / received;
+    result.mMaxLatencyMicros = maxLatencyNanos / 1000.0;
+    result.mTotalMillis = (doneNanos - startNanos) / 1000000.0;
+    result.mFinished = finished;
+    return result;
+  }
+
+  /** Counts what it receives, and how long it took to arrive. */
+  private static class CountingSubscriber implements ConnectionEventStream.Subscriber {
+    final AtomicLong mReceived = new AtomicLong();
+    final AtomicLong mTotalLatencyNanos = new AtomicLong();
+    final AtomicLong mMaxLatencyNanos = new AtomicLong();
+
+    @Override
+    public void onEvent(ConnectionEventStream.Event event) {
+      long latencyNanos = System.nanoTime() - event.getTimeNanos();
+      mTotalLatencyNanos.addAndGet(latencyNanos);
+      // Only ever written from our own executor's thread.
+      if (latencyNanos > mMaxLatencyNanos.get()) {
+        mMaxLatencyNanos.set(latencyNanos);
+      }
+      mReceived.incrementAndGet();
+    }
+  }
+
+  private interface FanOut {
+    String getName();
+
+    void subscribe(ConnectionEventStream.Subscriber subscriber, Executor executor);
+
+    void publish(ConnectionEventStream.Event event);
+
+    long getDroppedCount(int subscriber);
+  }
+
+  private class LockFreeFanOut implements FanOut {
+    private final ConnectionEventStream mStream = new ConnectionEventStream();
+    private final List<ConnectionEventStream.Subscription> mSubscriptions = new ArrayList<>();
+
+    @Override
+    public String getName() {
+      return "ConnectionEventStream";
+    }
+
+    @Override
+    public void subscribe(ConnectionEventStream.Subscriber subscriber, Executor executor) {
+      mSubscriptions.add(
+          mStream.subscribe(
+              subscriber,
+              executor,
+              EnumSet.allOf(ConnectionEventStream.Type.class),
+              mCapacity,
+              ConnectionEventStream.Overflow.DROP_NEWEST));
+    }
+
+    @Override
+    public void publish(ConnectionEventStream.Event event) {
+      mStream.publish(event);
+    }
+
+    @Override
+    public long getDroppedCount(int subscriber) {
+      return mSubscriptions.get(subscriber).getDroppedCount();
+    }
+  }
+
+  private static class NaiveFanOut implements FanOut {
+    private final List<ConnectionEventStream.Subscriber> mSubscribers = new ArrayList<>();
+    private final List<Executor> mExecutors = new ArrayList<>();
+
+    @Override
+    public String getName() {
+      return "NaiveFanOut";
+    }
+
+    @Override
+    public synchronized void subscribe(
+        ConnectionEventStream.Subscriber subscriber, Executor executor) {
+      mSubscribers.add(subscriber);
+      mExecutors.add(executor);
+    }
+
+    @Override
+    public synchronized void publish(final ConnectionEventStream.Event event) {
+      for (int i = 0; i < mSubscribers.size(); i++) {
+        final ConnectionEventStream.Subscriber subscriber = mSubscribers.get(i);
+        mExecutors
+            .get(i)
+            .execute(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    subscriber.onEvent(event);
+                  }
+                });
+      }
+    }
+
+    @Override
+    public long getDroppedCount(int subscriber) {
+      // Nothing is ever dropped; the executors' queues grow without bound instead.
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/** A {@link Scheduler} whose clock only moves when the test says so. */
+class FakeScheduler implements Scheduler {
+  private final PriorityQueue<Task> mTasks = new PriorityQueue<>();
+  private long mNow;
+  private long mNextSequence;
+
+  /** A task waiting to run. Tasks due at the same time run in the order they were posted. */
+  private static class Task implements Comparable<Task> {
+    final long mDueMillis;
+    final long mSequence;
+    final Runnable mRunnable;
+
+    Task(long dueMillis, long sequence, Runnable runnable) {
+      mDueMillis = dueMillis;
+      mSequence = sequence;
+      mRunnable = runnable;
+    }
+
+    @Override
+    public int compareTo(Task other) {
+      if (mDueMillis != other.mDueMillis) {
+        return mDueMillis < other.mDueMillis ? -1 : 1;
+      }
+      return mSequence < other.mSequence ? -1 : mSequence == other.mSequence ? 0 : 1;
+    }
+  }
+
+  FakeScheduler() {
+    // Far from zero, so nothing mistakes the start of the test for "never".
+    this(1000000);
+  }
+
+  FakeScheduler(long now) {
+    mNow = now;
+  }
+
+  @Override
+  public long elapsedRealtime() {
+    return mNow;
+  }
+
+  @Override
+  public synchronized void postDelayed(Runnable runnable, long delayMillis) {
+    mTasks.add(new Task(mNow + Math.max(0, delayMillis), mNextSequence++, runnable));
+  }
+
+  @Override
+  public synchronized void removeCallbacks(Runnable runnable) {
+    for (Iterator<Task> it = mTasks.iterator(); it.hasNext(); ) {
+      if (it.next().mRunnable == runnable) {
+        it.remove();
+      }
+    }
+  }
+
+  /** Returns how many tasks are waiting to run. */
+  synchronized int getPendingCount() {
+    return mTasks.size();
+  }
+
+  /** Runs whatever is due now, including tasks those tasks post without a delay. */
+  void runDue() {
+    advance(0);
+  }
+
+  /** Moves the clock forward, running every task that comes due on the way, when it comes due. */
+  void advance(long millis) {
+    long until = mNow + millis;
+    Task task;
+    while ((task = pollDue(until)) != null) {
+      mNow = Math.max(mNow, task.mDueMillis);
+      task.mRunnable.run();
+    }
+    mNow = until;
+  }
+
+  /**
+   * Moves the clock forward without running anything, and holds every pending task back by as
+   * long. Like a {@link android.os.Handler}, whose clock stops while the device is asleep.
+   */
+  synchronized void sleep(long millis) {
+    Task[] tasks = mTasks.toArray(new Task[mTasks.size()]);
+    mTasks.clear();
+    for (Task task : tasks) {
+      mTasks.add(new Task(task.mDueMillis + millis, task.mSequence, task.mRunnable));
+    }
+    mNow += millis;
+  }
+
+  private synchronized Task pollDue(long until) {
+    Task next = mTasks.peek();
+    return next != null && next.mDueMillis <= until ? mTasks.poll() : null;
+  }
+}
@@ -0,0 +1,153 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import android.content.SharedPreferences;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/** {@link SharedPreferences} kept in memory. Edits are applied as soon as they're committed. */
+class FakeSharedPreferences implements SharedPreferences {
+  final Map<String, Object> mValues = new HashMap<>();
+
+  @Override
+  public synchronized Map<String, ?> getAll() {
+    return new HashMap<>(mValues);
+  }
+
+  @Override
+  public synchronized String getString(String key, String defaultValue) {
+    Object value = mValues.get(key);
+    return value instanceof String ? (String) value : defaultValue;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public synchronized Set<String> getStringSet(String key, Set<String> defaultValues) {
+    Object value = mValues.get(key);
+    return value instanceof Set ? new HashSet<>((Set<String>) value) : defaultValues;
+  }
+
+  @Override
+  public synchronized int getInt(String key, int defaultValue) {
+    Object value = mValues.get(key);
+    return value instanceof Integer ? (Integer) value : defaultValue;
+  }
+
+  @Override
+  public synchronized long getLong(String key, long defaultValue) {
+    Object value = mValues.get(key);
+    return value instanceof Long ? (Long) value : defaultValue;
+  }
+
+  @Override
+  public synchronized float getFloat(String key, float defaultValue) {
+    Object value = mValues.get(key);
+    return value instanceof Float ? (Float) value : defaultValue;
+  }
+
+  @Override
+  public synchronized boolean getBoolean(String key, boolean defaultValue) {
+    Object value = mValues.get(key);
+    return value instanceof Boolean ? (Boolean) value : defaultValue;
+  }
+
+  @Override
+  public synchronized boolean contains(String key) {
+    return mValues.containsKey(key);
+  }
+
+  @Override
+  public Editor edit() {
+    return new FakeEditor();
+  }
+
+  @Override
+  public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void unregisterOnSharedPreferenceChangeListener(
+      OnSharedPreferenceChangeListener listener) {
+    throw new UnsupportedOperationException();
+  }
+
+  private class FakeEditor implements Editor {
+    private final Map<String, Object> mChanges = new HashMap<>();
+    private final Set<String> mRemovals = new HashSet<>();
+    private boolean mClear;
+
+    @Override
+    public Editor putString(String key, String value) {
+      return put(key, value);
+    }
+
+    @Override
+    public Editor putStringSet(String key, Set<String> values) {
+      return put(key, values == null ? null : new HashSet<>(values));
+    }
+
+    @Override
+    public Editor putInt(String key, int value) {
+      return put(key, value);
+    }
+
+    @Override
+    public Editor putLong(String key, long value) {
+      return put(key, value);
+    }
+
+    @Override
+    public Editor putFloat(String key, float value) {
+      return put(key, value);
+    }
+
+    @Override
+    public Editor putBoolean(String key, boolean value) {
+      return put(key, value);
+    }
+
+    @Override
+    public Editor remove(String key) {
+      mRemovals.add(key);
+      return this;
+    }
+
+    @Override
+    public Editor clear() {
+      mClear = true;
+      return this;
+    }
+
+    @Override
+    public boolean commit() {
+      synchronized (FakeSharedPreferences.this) {
+        if (mClear) {
+          mValues.clear();
+        }
+        for (String key : mRemovals) {
+          mValues.remove(key);
+        }
+        for (Map.Entry<String, Object> change : mChanges.entrySet()) {
+          if (change.getValue() == null) {
+            mValues.remove(change.getKey());
+          } else {
+            mValues.put(change.getKey(), change.getValue());
+          }
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public void apply() {
+      commit();
+    }
+
+    private Editor put(String key, Object value) {
+      mChanges.put(key, value);
+      return this;
+    }
+  }
+}
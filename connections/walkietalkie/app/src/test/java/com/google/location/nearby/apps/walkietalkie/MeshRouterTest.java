@@ -0,0 +1,233 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.support.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class MeshRouterTest {
+  /** A message with nothing in it but a number. */
+  private static final MessageCodec.MessageType<long[]> PING =
+      new MessageCodec.MessageType<long[]>() {
+        @Override
+        public int getTag() {
+          return 1;
+        }
+
+        @Override
+        public void encode(long[] message, MessageWriter writer) {
+          writer.writeVarint(message[0]);
+        }
+
+        @Override
+        public long[] decode(MessageReader reader, @Nullable long[] reuse) {
+          return new long[] {reader.readVarint()};
+        }
+      };
+
+  /** Messages on their way, delivered in the order they were sent. */
+  private final ArrayDeque<Runnable> mInFlight = new ArrayDeque<>();
+
+  /** One device in a line of them, connected to the devices on either side. */
+  private class Node {
+    final Endpoint mEndpoint;
+    final MessageCodec mCodec = new MessageCodec();
+    final List<Endpoint> mNeighbors = new ArrayList<>();
+    final List<Long> mReceived = new ArrayList<>();
+    final MeshRouter mRouter;
+
+    Node(final List<Node> line, int index) {
+      mEndpoint = new Endpoint(Integer.toString(index), "node" + index);
+      mRouter =
+          new MeshRouter(
+              mCodec,
+              new MeshRouter.Transport() {
+                @Override
+                public void send(final Endpoint endpoint, final byte[] message) {
+                  mInFlight.add(
+                      new Runnable() {
+                        @Override
+                        public void run() {
+                          Node to = line.get(Integer.parseInt(endpoint.getId()));
+                          to.mCodec.dispatch(mEndpoint, message);
+                        }
+                      });
+                }
+
+                @Override
+                public Collection<Endpoint> getNeighbors() {
+                  return mNeighbors;
+                }
+              },
+              new Random(index));
+      mCodec.register(
+          PING,
+          new MessageCodec.Handler<long[]>() {
+            @Override
+            public void onMessage(Endpoint endpoint, int channel, long[] message) {
+              mReceived.add(message[0]);
+            }
+          });
+    }
+  }
+
+  @Test
+  public void window_rejectsDuplicates() {
+    MeshRouter.SequenceWindow window = new MeshRouter.SequenceWindow(5);
+
+    assertFalse(window.add(5));
+    assertTrue(window.add(6));
+    assertFalse(window.add(6));
+    assertFalse(window.add(5));
+  }
+
+  @Test
+  public void window_acceptsOutOfOrderMessagesWithinTheWindow() {
+    MeshRouter.SequenceWindow window = new MeshRouter.SequenceWindow(100);
+
+    assertTrue(window.add(90));
+    assertFalse(window.add(90));
+    assertTrue(window.add(100 - MeshRouter.WINDOW + 1));
+    assertFalse(window.add(100 - MeshRouter.WINDOW + 1));
+    assertTrue(window.add(99));
+    assertEquals(100, window.mNewest);
+  }
+
+  @Test
+  public void window_treatsMessagesTooOldToTellAsDuplicates() {
+    MeshRouter.SequenceWindow window = new MeshRouter.SequenceWindow(100);
+
+    assertFalse(window.add(100 - MeshRouter.WINDOW));
+    assertFalse(window.add(0));
+  }
+
+  @Test
+  public void window_keepsWhatItHasSeenAcrossAShortShift() {
+    MeshRouter.SequenceWindow window = new MeshRouter.SequenceWindow(10);
+    window.add(8);
+
+    // 10 is now the oldest we can tell about, and 8 too old.
+    assertTrue(window.add(10 + MeshRouter.WINDOW - 1));
+
+    assertFalse(window.add(10));
+    assertTrue(window.add(11));
+    assertFalse(window.add(8));
+    assertFalse(window.add(9));
+  }
+
+  @Test
+  public void window_startsOverAfterAShiftOfAWholeWindowOrMore() {
+    MeshRouter.SequenceWindow window = new MeshRouter.SequenceWindow(10);
+
+    // A shift of 100 would be a shift of 36 if it weren't special-cased, and 10 would look like 74.
+    assertTrue(window.add(110));
+
+    assertTrue(window.add(74));
+    assertFalse(window.add(110));
+    assertEquals(110, window.mNewest);
+
+    window = new MeshRouter.SequenceWindow(0);
+    assertTrue(window.add(MeshRouter.WINDOW));
+    assertFalse(window.add(0));
+    assertTrue(window.add(1));
+  }
+
+  @Test
+  public void broadcast_stopsWhenTheTimeToLiveRunsOut() {
+    List<Node> line = line(5);
+
+    line.get(0).mRouter.broadcast(PING, new long[] {7}, /* ttl= */ 2);
+    deliverAll();
+
+    assertTrue(line.get(0).mReceived.isEmpty());
+    assertEquals(1, line.get(1).mReceived.size());
+    assertEquals(1, line.get(2).mReceived.size());
+    assertTrue(line.get(3).mReceived.isEmpty());
+    assertTrue(line.get(4).mReceived.isEmpty());
+    // Node 2 had it with a time-to-live of 1, so didn't pass it on.
+    assertEquals(0, line.get(2).mRouter.getTransmissionCount());
+  }
+
+  @Test
+  public void broadcast_deliversEachMessageOnce() {
+    List<Node> line = line(5);
+    // Close the line into a ring, so every message comes around from both sides.
+    connect(line.get(4), line.get(0));
+
+    for (long i = 0; i < 3; i++) {
+      line.get(0).mRouter.broadcast(PING, new long[] {i}, MeshRouter.DEFAULT_TTL);
+    }
+    deliverAll();
+
+    for (int i = 1; i < line.size(); i++) {
+      assertEquals(3, line.get(i).mReceived.size());
+    }
+    assertTrue(line.get(0).mReceived.isEmpty());
+    long duplicates = 0;
+    for (Node node : line) {
+      duplicates += node.mRouter.getDuplicateCount();
+    }
+    assertTrue(duplicates > 0);
+  }
+
+  /**
+   * Floods a large random mesh. Every device within range must get every message, and since each
+   * device sends each message at most once to each neighbor, the cost is bounded by the links.
+   */
+  @Test
+  public void simulation_reachesEveryDeviceInRangeAtABoundedCost() {
+    MeshSimulator.Result result = new MeshSimulator(200, /* seed= */ 0).run(MeshRouter.DEFAULT_TTL);
+
+    assertEquals(result.toString(), 1.0, result.mDeliveryRatio, 0);
+    assertTrue(result.toString(), result.mAverageDegree > 1);
+    // Each device sends a message on every link but the one it came in on.
+    assertTrue(
+        result.toString(),
+        result.mTransmissionsPerMessage <= result.mNodes * result.mAverageDegree);
+    // Every transmission is either a first delivery or redundant, and most are first deliveries.
+    assertTrue(result.toString(), result.mRedundantPerMessage < result.mTransmissionsPerMessage);
+  }
+
+  @Test
+  public void simulation_reachesFurtherWithALongerTimeToLive() {
+    MeshSimulator.Result shortReach = new MeshSimulator(200, /* seed= */ 0).run(1);
+    MeshSimulator.Result longReach = new MeshSimulator(200, /* seed= */ 0).run(200);
+
+    assertEquals(1.0, shortReach.mDeliveryRatio, 0);
+    assertEquals(1.0, longReach.mDeliveryRatio, 0);
+    // With a time-to-live of 1, the sender's neighbors get it and nobody passes it on.
+    assertEquals(0, shortReach.mRedundantPerMessage, 0);
+    assertTrue(shortReach.mTransmissionsPerMessage <= MeshSimulator.MAX_NEIGHBORS);
+    assertTrue(longReach.mTransmissionsPerMessage > shortReach.mTransmissionsPerMessage);
+  }
+
+  private List<Node> line(int count) {
+    List<Node> line = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      line.add(new Node(line, i));
+      if (i > 0) {
+        connect(line.get(i - 1), line.get(i));
+      }
+    }
+    return line;
+  }
+
+  private static void connect(Node a, Node b) {
+    a.mNeighbors.add(b.mEndpoint);
+    b.mNeighbors.add(a.mEndpoint);
+  }
+
+  private void deliverAll() {
+    Runnable delivery;
+    while ((delivery = mInFlight.poll()) != null) {
+      delivery.run();
+    }
+  }
+}
@@ -0,0 +1,267 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import android.support.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Runs {@link MeshRouter}s over a simulated topology, to see how well flooding does without a room
+ * full of phones. Devices are scattered at random over a unit square and connected to every device
+ * within radio range, capped at the few connections a real device manages. Messages are delivered
+ * in the order they're sent, through an in-memory queue.
+ */
+class MeshSimulator {
+  /** How far a device's radio reaches, as a fraction of the side of the square. */
+  private static final double RADIO_RANGE = 0.15;
+
+  /** How many devices one device may be connected to. */
+  static final int MAX_NEIGHBORS = 4;
+
+  /** How many messages we flood, each from a random device. */
+  private static final int MESSAGES = 50;
+
+  /** What we flood. Its only field is the message's number. */
+  private static final MessageCodec.MessageType<long[]> PING =
+      new MessageCodec.MessageType<long[]>() {
+        @Override
+        public int getTag() {
+          return 1;
+        }
+
+        @Override
+        public void encode(long[] message, MessageWriter writer) {
+          writer.writeVarint(message[0]);
+        }
+
+        @Override
+        public long[] decode(MessageReader reader, @Nullable long[] reuse) {
+          long[] message = reuse != null ? reuse : new long[1];
+          message[0] = reader.readVarint();
+          return message;
+        }
+      };
+
+  private final Random mRandom;
+  private final List<Node> mNodes = new ArrayList<>();
+  private final ArrayDeque<Delivery> mInFlight = new ArrayDeque<>();
+
+  /** The number of the message being flooded, and how many devices have received it. */
+  private long mCurrentMessage;
+
+  private int mReceivers;
+
+  /** What flooding cost, averaged over the messages flooded. */
+  static class Result {
+    int mNodes;
+    double mAverageDegree;
+    int mTtl;
+
+    /** Of the devices within {@code ttl} hops of the sender, how many got the message. */
+    double mDeliveryRatio;
+
+    double mTransmissionsPerMessage;
+
+    /** Transmissions that reached a device that already had the message. */
+    double mRedundantPerMessage;
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "MeshSimulator{nodes=%d, avgDegree=%.1f, ttl=%d, messages=%d, deliveryRatio=%.3f, "
+              + "transmissionsPerMessage=%.1f, redundantPerMessage=%.1f}",
+          mNodes,
+          mAverageDegree,
+          mTtl,
+          MESSAGES,
+          mDeliveryRatio,
+          mTransmissionsPerMessage,
+          mRedundantPerMessage);
+    }
+  }
+
+  MeshSimulator(int nodeCount, long seed) {
+    mRandom = new Random(seed);
+    for (int i = 0; i < nodeCount; i++) {
+      mNodes.add(new Node(i));
+    }
+    connect();
+  }
+
+  /** Floods messages with the given time-to-live, and returns what it cost. */
+  Result run(int ttl) {
+    long deliveries = 0;
+    long reachable = 0;
+    long startTransmissions = totalTransmissions();
+    long startDuplicates = totalDuplicates();
+    for (int i = 0; i < MESSAGES; i++) {
+      Node origin = mNodes.get(mRandom.nextInt(mNodes.size()));
+      mCurrentMessage = i;
+      mReceivers = 0;
+      origin.mRouter.broadcast(PING, new long[] {i}, ttl);
+      while (!mInFlight.isEmpty()) {
+        Delivery delivery = mInFlight.poll();
+        delivery.mTo.mCodec.dispatch(delivery.mFrom.mEndpoint, delivery.mBytes);
+      }
+      deliveries += mReceivers;
+      reachable += reachableWithin(origin, ttl);
+    }
+    long transmissions = totalTransmissions() - startTransmissions;
+    long duplicates = totalDuplicates() - startDuplicates;
+
+    Result result = new Result();
+    result.mNodes = mNodes.size();
+    result.mAverageDegree = averageDegree();
+    result.mTtl = ttl;
+    result.mDeliveryRatio = reachable == 0 ? 1.0 : (double) deliveries / reachable;
+    result.mTransmissionsPerMessage = (double) transmissions / MESSAGES;
+    result.mRedundantPerMessage = (double) duplicates / MESSAGES;
+    return result;
+  }
+
+  /** Connects every device to its nearest neighbors within range. */
+  private void connect() {
+    for (Node node : mNodes) {
+      List<Node> candidates = new ArrayList<>();
+      for (Node other : mNodes) {
+        if (other != node && node.distanceTo(other) <= RADIO_RANGE) {
+          candidates.add(other);
+        }
+      }
+      while (node.mNeighbors.size() < MAX_NEIGHBORS && !candidates.isEmpty()) {
+        Node nearest = candidates.get(0);
+        for (Node candidate : candidates) {
+          if (node.distanceTo(candidate) < node.distanceTo(nearest)) {
+            nearest = candidate;
+          }
+        }
+        candidates.remove(nearest);
+        if (nearest.mNeighbors.size() < MAX_NEIGHBORS && !node.mNeighbors.contains(nearest)) {
+          node.mNeighbors.add(nearest);
+          nearest.mNeighbors.add(node);
+        }
+      }
+    }
+  }
+
+  /** Returns how many other devices are within {@code hops} hops of the origin. */
+  private int reachableWithin(Node origin, int hops) {
+    int[] distance = new int[mNodes.size()];
+    Arrays.fill(distance, -1);
+    distance[origin.mIndex] = 0;
+    ArrayDeque<Node> queue = new ArrayDeque<>();
+    queue.add(origin);
+    int count = 0;
+    while (!queue.isEmpty()) {
+      Node node = queue.poll();
+      if (distance[node.mIndex] == hops) {
+        continue;
+      }
+      for (Node neighbor : node.mNeighbors) {
+        if (distance[neighbor.mIndex] < 0) {
+          distance[neighbor.mIndex] = distance[node.mIndex] + 1;
+          count++;
+          queue.add(neighbor);
+        }
+      }
+    }
+    return count;
+  }
+
+  private double averageDegree() {
+    long degree = 0;
+    for (Node node : mNodes) {
+      degree += node.mNeighbors.size();
+    }
+    return mNodes.isEmpty() ? 0 : (double) degree / mNodes.size();
+  }
+
+  private long totalTransmissions() {
+    long count = 0;
+    for (Node node : mNodes) {
+      count += node.mRouter.getTransmissionCount();
+    }
+    return count;
+  }
+
+  private long totalDuplicates() {
+    long count = 0;
+    for (Node node : mNodes) {
+      count += node.mRouter.getDuplicateCount();
+    }
+    return count;
+  }
+
+  /** A simulated device. */
+  private class Node {
+    final int mIndex;
+    final double mX;
+    final double mY;
+    final Endpoint mEndpoint;
+    final List<Node> mNeighbors = new ArrayList<>();
+    final List<Endpoint> mNeighborEndpoints = new ArrayList<>();
+    final MessageCodec mCodec = new MessageCodec();
+    final MeshRouter mRouter;
+
+    Node(int index) {
+      mIndex = index;
+      mX = mRandom.nextDouble();
+      mY = mRandom.nextDouble();
+      mEndpoint = new Endpoint(Integer.toString(index), "node" + index);
+      mRouter =
+          new MeshRouter(
+              mCodec,
+              new MeshRouter.Transport() {
+                @Override
+                public void send(Endpoint endpoint, byte[] message) {
+                  Node to = mNodes.get(Integer.parseInt(endpoint.getId()));
+                  mInFlight.add(new Delivery(Node.this, to, message));
+                }
+
+                @Override
+                public Collection<Endpoint> getNeighbors() {
+                  mNeighborEndpoints.clear();
+                  for (Node neighbor : mNeighbors) {
+                    mNeighborEndpoints.add(neighbor.mEndpoint);
+                  }
+                  return mNeighborEndpoints;
+                }
+              },
+              mRandom);
+      mCodec.register(
+          PING,
+          new MessageCodec.Handler<long[]>() {
+            @Override
+            public void onMessage(Endpoint endpoint, int channel, long[] message) {
+              if (message[0] == mCurrentMessage) {
+                mReceivers++;
+              }
+            }
+          });
+    }
+
+    double distanceTo(Node other) {
+      double dx = mX - other.mX;
+      double dy = mY - other.mY;
+      return Math.sqrt(dx * dx + dy * dy);
+    }
+  }
+
+  /** A message on its way from one device to another. */
+  private static class Delivery {
+    final Node mFrom;
+    final Node mTo;
+    final byte[] mBytes;
+
+    Delivery(Node from, Node to, byte[] bytes) {
+      mFrom = from;
+      mTo = to;
+      mBytes = bytes;
+    }
+  }
+}
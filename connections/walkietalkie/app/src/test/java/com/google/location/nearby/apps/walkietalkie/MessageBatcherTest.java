@@ -0,0 +1,269 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class MessageBatcherTest {
+  private static final Endpoint ALICE = new Endpoint("a", "Alice");
+  private static final Endpoint BOB = new Endpoint("b", "Bob");
+
+  private static final int MAX_BATCH_BYTES = 64;
+  private static final long MAX_DELAY_MS = 20;
+
+  /** A message holding a single string. */
+  private static class TextType implements MessageCodec.MessageType<String> {
+    @Override
+    public int getTag() {
+      return 1;
+    }
+
+    @Override
+    public void encode(String message, MessageWriter writer) {
+      writer.writeString(message);
+    }
+
+    @Override
+    public String decode(MessageReader reader, String reuse) {
+      return reader.readString();
+    }
+  }
+
+  /** A payload handed to the sender. */
+  private static class Sent {
+    final Endpoint mEndpoint;
+    final byte[] mBytes;
+
+    Sent(Endpoint endpoint, byte[] bytes) {
+      mEndpoint = endpoint;
+      mBytes = bytes;
+    }
+  }
+
+  private final FakeScheduler mScheduler = new FakeScheduler();
+  private final List<Sent> mSent = new ArrayList<>();
+  private final MessageCodec mCodec = new MessageCodec();
+  private final TextType mType = new TextType();
+
+  /** The text of the messages the codec handled, in order. */
+  private final List<String> mReceived = new ArrayList<>();
+
+  private final MessageBatcher mBatcher =
+      new MessageBatcher(
+          new MessageBatcher.Sender() {
+            @Override
+            public void send(Endpoint endpoint, byte[] bytes) {
+              mSent.add(new Sent(endpoint, bytes));
+            }
+          },
+          mScheduler);
+
+  public MessageBatcherTest() {
+    mBatcher.setPolicy(MAX_BATCH_BYTES, MAX_DELAY_MS);
+    mCodec.register(
+        mType,
+        new MessageCodec.Handler<String>() {
+          @Override
+          public void onMessage(Endpoint endpoint, int channel, String message) {
+            mReceived.add(message);
+          }
+        });
+  }
+
+  @Test
+  public void send_aSingleMessageGoesBare() {
+    byte[] message = encode("hi");
+    mBatcher.send(ALICE, message, /* realTime= */ false);
+
+    mScheduler.advance(MAX_DELAY_MS - 1);
+    assertTrue(mSent.isEmpty());
+
+    mScheduler.advance(1);
+    assertEquals(1, mSent.size());
+    assertArrayEquals(message, mSent.get(0).mBytes);
+    assertFalse(MessageBatcher.isBatch(mSent.get(0).mBytes));
+    assertTrue(MessageCodec.isMessage(mSent.get(0).mBytes));
+  }
+
+  @Test
+  public void send_messagesWithinTheDelayShareAPayload() {
+    mBatcher.send(ALICE, encode("one"), /* realTime= */ false);
+    mScheduler.advance(MAX_DELAY_MS / 2);
+    mBatcher.send(ALICE, encode("two"), /* realTime= */ false);
+
+    // The delay runs from the oldest message.
+    mScheduler.advance(MAX_DELAY_MS / 2);
+
+    assertEquals(1, mSent.size());
+    assertEquals(Arrays.asList("one", "two"), receive(0));
+    assertEquals(2f, mBatcher.getBatchingFactor(), 0f);
+    assertEquals(MAX_DELAY_MS, mBatcher.getAverageDelayMillis());
+  }
+
+  @Test
+  public void send_keepsEndpointsApart() {
+    mBatcher.send(ALICE, encode("for alice"), /* realTime= */ false);
+    mBatcher.send(BOB, encode("for bob"), /* realTime= */ false);
+
+    mScheduler.advance(MAX_DELAY_MS);
+
+    // Endpoints are flushed in no particular order.
+    assertEquals(2, mSent.size());
+    int alice = ALICE.equals(mSent.get(0).mEndpoint) ? 0 : 1;
+    assertEquals(Arrays.asList("for alice"), receive(alice));
+    assertEquals(Arrays.asList("for bob"), receive(1 - alice));
+  }
+
+  @Test
+  public void send_flushesOnceTheBatchIsFull() {
+    // 13 bytes, plus a byte of length prefix. The batch marker and four messages take 57 bytes, and
+    // a fifth doesn't fit once we allow for the longest prefix.
+    byte[] message = encode("0123456789");
+    assertEquals(13, message.length);
+    int fits = 4;
+
+    for (int i = 0; i < fits; i++) {
+      mBatcher.send(ALICE, message, /* realTime= */ false);
+    }
+    assertTrue(mSent.isEmpty());
+
+    mBatcher.send(ALICE, message, /* realTime= */ false);
+    assertEquals(1, mSent.size());
+    assertTrue(mSent.get(0).mBytes.length <= MAX_BATCH_BYTES);
+    assertEquals(fits, receive(0).size());
+
+    // The message that didn't fit waits for the next flush.
+    mScheduler.advance(MAX_DELAY_MS);
+    assertEquals(2, mSent.size());
+    assertArrayEquals(message, mSent.get(1).mBytes);
+  }
+
+  @Test
+  public void send_realTimeFlushesWhatsWaitingFirst() {
+    mBatcher.send(ALICE, encode("one"), /* realTime= */ false);
+    mBatcher.send(ALICE, encode("two"), /* realTime= */ false);
+    mBatcher.send(BOB, encode("for bob"), /* realTime= */ false);
+
+    byte[] urgent = encode("three");
+    mBatcher.send(ALICE, urgent, /* realTime= */ true);
+
+    assertEquals(2, mSent.size());
+    assertEquals(Arrays.asList("one", "two"), receive(0));
+    assertArrayEquals(urgent, mSent.get(1).mBytes);
+
+    // Bob's batch still waits its turn, and nothing is left for Alice.
+    mScheduler.advance(MAX_DELAY_MS);
+    assertEquals(3, mSent.size());
+    assertEquals(BOB, mSent.get(2).mEndpoint);
+  }
+
+  @Test
+  public void send_realTimeWithNothingWaitingGoesRightAway() {
+    byte[] urgent = encode("now");
+    mBatcher.send(ALICE, urgent, /* realTime= */ true);
+
+    assertEquals(1, mSent.size());
+    assertArrayEquals(urgent, mSent.get(0).mBytes);
+    assertEquals(0, mScheduler.getPendingCount());
+  }
+
+  @Test
+  public void send_tooLargeToBatchFlushesWhatsWaitingFirst() {
+    mBatcher.send(ALICE, encode("small"), /* realTime= */ false);
+    byte[] large = new byte[MAX_BATCH_BYTES];
+
+    mBatcher.send(ALICE, large, /* realTime= */ false);
+
+    assertEquals(2, mSent.size());
+    assertEquals(Arrays.asList("small"), receive(0));
+    assertArrayEquals(large, mSent.get(1).mBytes);
+  }
+
+  @Test
+  public void remove_dropsWhatsWaiting() {
+    mBatcher.send(ALICE, encode("one"), /* realTime= */ false);
+    mBatcher.send(BOB, encode("two"), /* realTime= */ false);
+
+    mBatcher.remove(ALICE);
+    mScheduler.advance(MAX_DELAY_MS);
+
+    assertEquals(1, mSent.size());
+    assertEquals(BOB, mSent.get(0).mEndpoint);
+  }
+
+  @Test
+  public void clear_dropsEverythingAndCancelsTheFlush() {
+    mBatcher.send(ALICE, encode("one"), /* realTime= */ false);
+
+    mBatcher.clear();
+
+    assertEquals(0, mScheduler.getPendingCount());
+    mScheduler.advance(MAX_DELAY_MS);
+    assertTrue(mSent.isEmpty());
+  }
+
+  @Test
+  public void demultiplex_stopsAtAMalformedLength() {
+    MessageWriter writer = new MessageWriter();
+    writer.writeByte(MessageBatcher.MARKER);
+    writer.writeBytes(encode("intact"));
+    // Claims more bytes than are left.
+    writer.writeVarint(100);
+    writer.writeRaw(encode("cut"), 0, 2);
+
+    assertEquals(1, mBatcher.demultiplex(ALICE, writer.toByteArray(), mCodec));
+    assertEquals(Arrays.asList("intact"), mReceived);
+  }
+
+  @Test
+  public void demultiplex_stopsAtATruncatedLength() {
+    MessageWriter writer = new MessageWriter();
+    writer.writeByte(MessageBatcher.MARKER);
+    writer.writeBytes(encode("intact"));
+    // A varint whose continuation bit promises another byte.
+    writer.writeByte(0x80);
+
+    assertEquals(1, mBatcher.demultiplex(ALICE, writer.toByteArray(), mCodec));
+    assertEquals(Arrays.asList("intact"), mReceived);
+  }
+
+  @Test
+  public void split_stopsAtAMalformedLength() {
+    MessageWriter writer = new MessageWriter();
+    writer.writeByte(MessageBatcher.MARKER);
+    writer.writeBytes(encode("one"));
+    writer.writeBytes(encode("two"));
+    writer.writeVarint(100);
+
+    List<MessageCodec.Decoded> decoded = new ArrayList<>();
+    MessageBatcher.split(ALICE, writer.toByteArray(), mCodec, decoded);
+
+    assertEquals(2, decoded.size());
+    for (MessageCodec.Decoded message : decoded) {
+      assertTrue(mCodec.deliver(message));
+    }
+    assertEquals(Arrays.asList("one", "two"), mReceived);
+  }
+
+  private byte[] encode(String text) {
+    return mCodec.encode(mType, text);
+  }
+
+  /** Splits up the payload sent at {@code index}, and returns the text of its messages. */
+  private List<String> receive(int index) {
+    mReceived.clear();
+    byte[] bytes = mSent.get(index).mBytes;
+    if (MessageBatcher.isBatch(bytes)) {
+      mBatcher.demultiplex(mSent.get(index).mEndpoint, bytes, mCodec);
+    } else {
+      mCodec.dispatch(mSent.get(index).mEndpoint, bytes);
+    }
+    return new ArrayList<>(mReceived);
+  }
+}
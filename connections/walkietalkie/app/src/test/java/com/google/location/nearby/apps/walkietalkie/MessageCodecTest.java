@@ -0,0 +1,239 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class MessageCodecTest {
+  private static final Endpoint ALICE = new Endpoint("a", "Alice");
+
+  /** A position update, with only numeric fields, so decoding can reuse the instance. */
+  private static class Position {
+    long mX;
+    long mY;
+  }
+
+  private static class PositionType implements MessageCodec.MessageType<Position> {
+    private final int mTag;
+
+    PositionType(int tag) {
+      mTag = tag;
+    }
+
+    @Override
+    public int getTag() {
+      return mTag;
+    }
+
+    @Override
+    public void encode(Position message, MessageWriter writer) {
+      writer.writeSignedVarint(message.mX);
+      writer.writeSignedVarint(message.mY);
+    }
+
+    @Override
+    public Position decode(MessageReader reader, Position reuse) {
+      Position position = reuse != null ? reuse : new Position();
+      position.mX = reader.readSignedVarint();
+      position.mY = reader.readSignedVarint();
+      return position;
+    }
+  }
+
+  /** Records what it's handed, copying the messages since they may be reused. */
+  private static class RecordingHandler implements MessageCodec.Handler<Position> {
+    final List<String> mReceived = new ArrayList<>();
+    final List<Position> mInstances = new ArrayList<>();
+
+    @Override
+    public void onMessage(Endpoint endpoint, int channel, Position message) {
+      mReceived.add(endpoint.getId() + "/" + channel + ":" + message.mX + "," + message.mY);
+      mInstances.add(message);
+    }
+  }
+
+  private final MessageCodec mCodec = new MessageCodec();
+  private final PositionType mType = new PositionType(300);
+  private final RecordingHandler mHandler = new RecordingHandler();
+
+  @Test
+  public void dispatch_handsTheMessageToItsHandler() {
+    mCodec.register(mType, mHandler);
+
+    assertTrue(mCodec.dispatch(ALICE, mCodec.encode(mType, position(3, -4))));
+    assertTrue(mCodec.dispatch(ALICE, mCodec.encode(mType, 7, position(-1, 0))));
+
+    assertEquals(2, mHandler.mReceived.size());
+    assertEquals("a/" + MessageCodec.NO_CHANNEL + ":3,-4", mHandler.mReceived.get(0));
+    assertEquals("a/7:-1,0", mHandler.mReceived.get(1));
+  }
+
+  @Test
+  public void dispatch_reusesMessageInstances() {
+    mCodec.register(mType, mHandler);
+    mCodec.dispatch(ALICE, mCodec.encode(mType, position(1, 2)));
+    mCodec.dispatch(ALICE, mCodec.encode(mType, position(3, 4)));
+
+    assertSame(mHandler.mInstances.get(0), mHandler.mInstances.get(1));
+  }
+
+  @Test
+  public void dispatch_findsMessagesInsideALargerBuffer() {
+    mCodec.register(mType, mHandler);
+    byte[] message = mCodec.encode(mType, position(5, 6));
+    byte[] buffer = new byte[message.length + 4];
+    System.arraycopy(message, 0, buffer, 2, message.length);
+
+    assertTrue(mCodec.dispatch(ALICE, buffer, 2, message.length));
+    assertEquals("a/" + MessageCodec.NO_CHANNEL + ":5,6", mHandler.mReceived.get(0));
+  }
+
+  @Test
+  public void dispatch_routesByTag() {
+    PositionType other = new PositionType(1);
+    RecordingHandler otherHandler = new RecordingHandler();
+    // Registered out of order.
+    for (int tag = 40; tag > 20; tag--) {
+      mCodec.register(new PositionType(tag), new RecordingHandler());
+    }
+    mCodec.register(mType, mHandler);
+    mCodec.register(other, otherHandler);
+
+    mCodec.dispatch(ALICE, mCodec.encode(other, position(1, 1)));
+
+    assertEquals(1, otherHandler.mReceived.size());
+    assertTrue(mHandler.mReceived.isEmpty());
+  }
+
+  @Test
+  public void dispatch_ignoresUnknownTags() {
+    byte[] bytes = mCodec.encode(mType, position(1, 2));
+
+    assertFalse(mCodec.dispatch(ALICE, bytes));
+
+    mCodec.register(mType, mHandler);
+    mCodec.unregister(mType);
+    assertFalse(mCodec.dispatch(ALICE, bytes));
+    assertTrue(mHandler.mReceived.isEmpty());
+  }
+
+  @Test
+  public void dispatch_dropsMalformedMessages() {
+    mCodec.register(mType, mHandler);
+    byte[] bytes = mCodec.encode(mType, position(1, 1 << 20));
+
+    assertFalse(mCodec.dispatch(ALICE, bytes, 0, bytes.length - 1));
+    assertTrue(mHandler.mReceived.isEmpty());
+  }
+
+  @Test
+  public void isMessage_rejectsOtherPayloads() {
+    assertTrue(MessageCodec.isMessage(mCodec.encode(mType, position(0, 0))));
+    assertFalse(MessageCodec.isMessage(null));
+    assertFalse(MessageCodec.isMessage(new byte[0]));
+    assertFalse(MessageCodec.isMessage("hello".getBytes()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void register_rejectsNegativeTags() {
+    mCodec.register(new PositionType(-1), mHandler);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void encode_rejectsNegativeChannels() {
+    mCodec.encode(mType, -2, position(0, 0));
+  }
+
+  @Test
+  public void decodeThenDeliver_handsTheMessageToItsHandler() {
+    mCodec.register(mType, mHandler);
+    byte[] bytes = mCodec.encode(mType, 2, position(8, 9));
+
+    MessageCodec.Decoded decoded = mCodec.decode(ALICE, bytes, 0, bytes.length);
+    assertTrue(mHandler.mReceived.isEmpty());
+
+    assertTrue(mCodec.deliver(decoded));
+    assertEquals("a/2:8,9", mHandler.mReceived.get(0));
+  }
+
+  @Test
+  public void deliver_usesTheHandlerRegisteredAtDeliveryTime() {
+    mCodec.register(mType, new RecordingHandler());
+    byte[] bytes = mCodec.encode(mType, position(1, 2));
+    MessageCodec.Decoded decoded = mCodec.decode(ALICE, bytes, 0, bytes.length);
+
+    mCodec.register(mType, mHandler);
+    mCodec.deliver(decoded);
+
+    assertEquals(1, mHandler.mReceived.size());
+  }
+
+  @Test
+  public void deliver_dropsMalformedAndUnknownMessages() {
+    byte[] unknown = mCodec.encode(mType, position(1, 2));
+    assertFalse(mCodec.deliver(mCodec.decode(ALICE, unknown, 0, unknown.length)));
+
+    mCodec.register(mType, mHandler);
+    byte[] truncated = mCodec.encode(mType, position(1, 1 << 20));
+    assertFalse(mCodec.deliver(mCodec.decode(ALICE, truncated, 0, truncated.length - 1)));
+    assertTrue(mHandler.mReceived.isEmpty());
+  }
+
+  /**
+   * Types are registered on the main thread while workers decode. Workers must always find the
+   * type they're decoding, even while others come and go.
+   */
+  @Test
+  public void stress_decodeWhileRegistering() throws Exception {
+    mCodec.register(mType, mHandler);
+    final byte[] bytes = mCodec.encode(mType, position(1, 2));
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    final AtomicBoolean done = new AtomicBoolean();
+    Thread worker =
+        new Thread() {
+          @Override
+          public void run() {
+            try {
+              while (!done.get()) {
+                MessageCodec.Decoded decoded = mCodec.decode(ALICE, bytes, 0, bytes.length);
+                assertNotNull(decoded.mRegistration);
+                assertEquals(2, ((Position) decoded.mMessage).mY);
+              }
+            } catch (Throwable t) {
+              failure.compareAndSet(null, t);
+            }
+          }
+        };
+    worker.start();
+
+    for (int i = 0; i < 20000 && failure.get() == null; i++) {
+      PositionType other = new PositionType(i % 64);
+      if (i % 2 == 0) {
+        mCodec.register(other, new RecordingHandler());
+      } else {
+        mCodec.unregister(other);
+      }
+    }
+    done.set(true);
+    worker.join(30000);
+
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+  }
+
+  private static Position position(long x, long y) {
+    Position position = new Position();
+    position.mX = x;
+    position.mY = y;
+    return position;
+  }
+}
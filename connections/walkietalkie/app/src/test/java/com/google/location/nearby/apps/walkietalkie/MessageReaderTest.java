@@ -0,0 +1,143 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MessageReaderTest {
+  private static final long[] VARINTS = {
+    0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE, -1, Long.MIN_VALUE
+  };
+
+  @Test
+  public void varints_roundTrip() {
+    MessageWriter writer = new MessageWriter();
+    for (long value : VARINTS) {
+      writer.writeVarint(value);
+    }
+    MessageReader reader = read(writer);
+    for (long value : VARINTS) {
+      assertEquals(value, reader.readVarint());
+    }
+    assertEquals(0, reader.remaining());
+  }
+
+  @Test
+  public void signedVarints_roundTrip() {
+    MessageWriter writer = new MessageWriter();
+    for (long value : VARINTS) {
+      writer.writeSignedVarint(value);
+      writer.writeSignedVarint(-value);
+    }
+    MessageReader reader = read(writer);
+    for (long value : VARINTS) {
+      assertEquals(value, reader.readSignedVarint());
+      assertEquals(-value, reader.readSignedVarint());
+    }
+  }
+
+  @Test
+  public void varints_smallValuesTakeOneByte() {
+    MessageWriter writer = new MessageWriter();
+    writer.writeVarint(127);
+    writer.writeSignedVarint(-64);
+    assertEquals(2, writer.length());
+
+    writer.writeVarint(-1);
+    assertEquals(12, writer.length());
+  }
+
+  @Test
+  public void everyField_roundTrips() {
+    MessageWriter writer = new MessageWriter(1);
+    writer.writeBoolean(true);
+    writer.writeByte(0xAB);
+    writer.writeFixed64(0x0123456789ABCDEFL);
+    writer.writeBytes(new byte[] {1, 2, 3});
+    writer.writeString("walkie-talkie \u00e9\u4e2d");
+    writer.writeRaw(new byte[] {9, 8, 7}, 1, 2);
+
+    MessageReader reader = read(writer);
+    assertTrue(reader.readBoolean());
+    assertEquals((byte) 0xAB, reader.readByte());
+    assertEquals(0x0123456789ABCDEFL, reader.readFixed64());
+    assertArrayEquals(new byte[] {1, 2, 3}, reader.readBytes());
+    assertEquals("walkie-talkie \u00e9\u4e2d", reader.readString());
+    reader.skip(1);
+    assertEquals(7, reader.readByte());
+    assertEquals(0, reader.remaining());
+  }
+
+  @Test
+  public void reset_readsOnlyTheGivenRange() {
+    byte[] buffer = {5, 6, 7, 8};
+    MessageReader reader = new MessageReader();
+    reader.reset(buffer, 1, 2);
+
+    assertEquals(6, reader.readByte());
+    assertEquals(7, reader.readByte());
+    assertEquals(0, reader.remaining());
+  }
+
+  @Test
+  public void writer_reset_reusesTheBuffer() {
+    MessageWriter writer = new MessageWriter();
+    writer.writeString("hello");
+    byte[] buffer = writer.getBuffer();
+    writer.reset();
+    writer.writeVarint(1);
+
+    assertEquals(1, writer.length());
+    assertEquals(buffer, writer.getBuffer());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void truncatedFixed64_throws() {
+    MessageWriter writer = new MessageWriter();
+    writer.writeByte(1);
+    read(writer).readFixed64();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void truncatedString_throws() {
+    MessageWriter writer = new MessageWriter();
+    writer.writeVarint(10);
+    writer.writeByte('a');
+    read(writer).readString();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unterminatedVarint_throws() {
+    MessageWriter writer = new MessageWriter();
+    for (int i = 0; i < 11; i++) {
+      writer.writeByte(0x80);
+    }
+    read(writer).readVarint();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void varintTooLargeForAnInt_throws() {
+    MessageWriter writer = new MessageWriter();
+    writer.writeVarint(Integer.MAX_VALUE + 1L);
+    read(writer).readVarintInt();
+  }
+
+  @Test
+  public void readBoolean_anyNonZeroByteIsTrue() {
+    MessageWriter writer = new MessageWriter();
+    writer.writeByte(0);
+    writer.writeByte(2);
+    MessageReader reader = read(writer);
+    assertFalse(reader.readBoolean());
+    assertTrue(reader.readBoolean());
+  }
+
+  private static MessageReader read(MessageWriter writer) {
+    MessageReader reader = new MessageReader();
+    reader.reset(writer.toByteArray(), 0, writer.length());
+    return reader;
+  }
+}
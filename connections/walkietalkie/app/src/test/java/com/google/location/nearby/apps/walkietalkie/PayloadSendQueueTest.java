@@ -0,0 +1,315 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.gms.nearby.connection.Payload;
+import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class PayloadSendQueueTest {
+  private static final long MAX_OUTSTANDING_BYTES = 1000;
+  private static final int MAX_WAITING_PAYLOADS = 4;
+
+  /** Records what the queue hands to Nearby Connections. */
+  private static class FakeSender implements PayloadSendQueue.Sender {
+    final List<String> mSent = new ArrayList<>();
+    final List<Payload> mPayloads = new ArrayList<>();
+
+    @Override
+    public void sendPayload(String endpointId, Payload payload) {
+      mSent.add(endpointId + ":" + payload.getId());
+      mPayloads.add(payload);
+    }
+
+    @Override
+    public void sendPayload(List<String> endpointIds, Payload payload) {
+      mSent.add(endpointIds + ":" + payload.getId());
+    }
+  }
+
+  private final FakeSender mSender = new FakeSender();
+
+  @Test
+  public void enqueue_sendsRightAwayWhileThereIsRoom() {
+    PayloadSendQueue queue = newQueue(PayloadSendQueue.Policy.WAIT);
+    Payload first = bytes(400);
+    Payload second = bytes(400);
+
+    assertTrue(queue.enqueue("a", first));
+    assertTrue(queue.enqueue("a", second));
+
+    assertEquals(Arrays.asList("a:" + first.getId(), "a:" + second.getId()), mSender.mSent);
+    assertEquals(800, queue.getOutstandingBytes("a"));
+    assertEquals(0, queue.getQueueDepth("a"));
+  }
+
+  @Test
+  public void enqueue_waitsUntilEarlierPayloadsFinish() {
+    PayloadSendQueue queue = newQueue(PayloadSendQueue.Policy.WAIT);
+    Payload first = bytes(800);
+    Payload second = bytes(800);
+    queue.enqueue("a", first);
+    queue.enqueue("a", second);
+    assertEquals(1, mSender.mSent.size());
+    assertEquals(1, queue.getQueueDepth("a"));
+
+    queue.onTransferUpdate("a", done(first));
+
+    assertEquals("a:" + second.getId(), mSender.mSent.get(1));
+    assertEquals(800, queue.getOutstandingBytes("a"));
+  }
+
+  @Test
+  public void reject_acceptsUpToMaxWaitingPayloads() {
+    PayloadSendQueue queue = newQueue(PayloadSendQueue.Policy.REJECT);
+    assertTrue(queue.enqueue("a", bytes(MAX_OUTSTANDING_BYTES)));
+    for (int i = 0; i < MAX_WAITING_PAYLOADS; i++) {
+      assertTrue("Payload " + i + " was refused", queue.enqueue("a", bytes(10)));
+    }
+
+    assertFalse(queue.enqueue("a", bytes(10)));
+    assertEquals(MAX_WAITING_PAYLOADS, queue.getQueueDepth("a"));
+  }
+
+  @Test
+  public void dropOldest_keepsTheNewest() {
+    PayloadSendQueue queue = newQueue(PayloadSendQueue.Policy.DROP_OLDEST);
+    Payload blocker = bytes(MAX_OUTSTANDING_BYTES);
+    queue.enqueue("a", blocker);
+    List<Payload> waiting = new ArrayList<>();
+    for (int i = 0; i < MAX_WAITING_PAYLOADS + 2; i++) {
+      Payload payload = bytes(MAX_OUTSTANDING_BYTES);
+      waiting.add(payload);
+      assertTrue(queue.enqueue("a", payload));
+    }
+    assertEquals(MAX_WAITING_PAYLOADS, queue.getQueueDepth("a"));
+
+    queue.onTransferUpdate("a", done(blocker));
+
+    // The first two were dropped to make room.
+    assertEquals("a:" + waiting.get(2).getId(), mSender.mSent.get(1));
+  }
+
+  @Test
+  public void wait_isBoundedToo() {
+    PayloadSendQueue queue = newQueue(PayloadSendQueue.Policy.WAIT);
+    queue.enqueue("a", bytes(MAX_OUTSTANDING_BYTES));
+    int limit = MAX_WAITING_PAYLOADS * PayloadSendQueue.WAIT_LIMIT_FACTOR;
+    for (int i = 0; i < limit; i++) {
+      assertTrue("Payload " + i + " was refused", queue.enqueue("a", bytes(10)));
+    }
+
+    assertFalse(queue.enqueue("a", bytes(10)));
+    assertEquals(limit, queue.getQueueDepth("a"));
+  }
+
+  @Test
+  public void priorities_higherGoFirst() {
+    PayloadSendQueue queue = newQueue(PayloadSendQueue.Policy.WAIT);
+    Payload blocker = bytes(MAX_OUTSTANDING_BYTES);
+    queue.enqueue("a", blocker);
+    Payload bulk = bytes(MAX_OUTSTANDING_BYTES);
+    Payload realTime = bytes(MAX_OUTSTANDING_BYTES);
+    queue.enqueue("a", bulk, PayloadSendQueue.Priority.BULK);
+    queue.enqueue("a", realTime, PayloadSendQueue.Priority.REAL_TIME);
+
+    queue.onTransferUpdate("a", done(blocker));
+
+    assertEquals("a:" + realTime.getId(), mSender.mSent.get(1));
+  }
+
+  @Test
+  public void sharedStream_goesOutOnceToEveryEndpoint() {
+    PayloadSendQueue queue = newQueue(PayloadSendQueue.Policy.WAIT);
+    Payload stream = stream();
+
+    assertTrue(
+        queue.enqueue(Arrays.asList("a", "b"), stream, PayloadSendQueue.Priority.REAL_TIME));
+
+    assertEquals(Arrays.asList("[a, b]:" + stream.getId()), mSender.mSent);
+  }
+
+  @Test
+  public void sharedStream_waitsForTheSlowestEndpoint() {
+    PayloadSendQueue queue = newQueue(PayloadSendQueue.Policy.WAIT);
+    Payload blocker = bytes(MAX_OUTSTANDING_BYTES);
+    queue.enqueue("b", blocker);
+    // Something waiting ahead of the stream, so b's queue hasn't reached it yet.
+    Payload ahead = bytes(MAX_OUTSTANDING_BYTES);
+    queue.enqueue("b", ahead);
+    Payload stream = stream();
+    queue.enqueue(Arrays.asList("a", "b"), stream, PayloadSendQueue.Priority.INTERACTIVE);
+    Payload behind = bytes(10);
+    queue.enqueue("a", behind);
+    // a has reached the stream, and nothing may overtake it.
+    assertEquals(Arrays.asList("b:" + blocker.getId()), mSender.mSent);
+
+    queue.onTransferUpdate("b", done(blocker));
+    queue.onTransferUpdate("b", done(ahead));
+
+    assertEquals(
+        Arrays.asList(
+            "b:" + blocker.getId(),
+            "b:" + ahead.getId(),
+            "[a, b]:" + stream.getId(),
+            "a:" + behind.getId()),
+        mSender.mSent);
+  }
+
+  @Test
+  public void sharedStream_stopsWaitingForEndpointsThatLeave() {
+    PayloadSendQueue queue = newQueue(PayloadSendQueue.Policy.WAIT);
+    queue.enqueue("b", bytes(MAX_OUTSTANDING_BYTES));
+    queue.enqueue("b", bytes(MAX_OUTSTANDING_BYTES));
+    Payload stream = stream();
+    queue.enqueue(Arrays.asList("a", "b"), stream, PayloadSendQueue.Priority.INTERACTIVE);
+
+    queue.removeEndpoint("b");
+
+    assertEquals("[a]:" + stream.getId(), mSender.mSent.get(mSender.mSent.size() - 1));
+  }
+
+  @Test
+  public void realTime_goesOutPastAFullWindow() {
+    PayloadSendQueue queue = newQueue(PayloadSendQueue.Policy.WAIT);
+    // A single payload larger than the window, which keeps everything else waiting.
+    queue.enqueue("a", bytes(4 * MAX_OUTSTANDING_BYTES), PayloadSendQueue.Priority.BULK);
+    queue.enqueue("a", bytes(10), PayloadSendQueue.Priority.INTERACTIVE);
+    Payload audio = stream();
+
+    queue.enqueue(Arrays.asList("a"), audio, PayloadSendQueue.Priority.REAL_TIME);
+
+    assertEquals("a:" + audio.getId(), mSender.mSent.get(1));
+    assertEquals(1, queue.getQueueDepth("a"));
+  }
+
+  @Test
+  public void realTime_isNeverRejected() {
+    PayloadSendQueue queue = newQueue(PayloadSendQueue.Policy.REJECT);
+    queue.enqueue("a", bytes(MAX_OUTSTANDING_BYTES), PayloadSendQueue.Priority.BULK);
+    for (int i = 0; i < MAX_WAITING_PAYLOADS; i++) {
+      queue.enqueue("a", bytes(MAX_OUTSTANDING_BYTES), PayloadSendQueue.Priority.BULK);
+    }
+    assertFalse(queue.enqueue("a", bytes(10), PayloadSendQueue.Priority.BULK));
+
+    assertTrue(queue.enqueue("a", bytes(10), PayloadSendQueue.Priority.REAL_TIME));
+    assertEquals(2, mSender.mSent.size());
+  }
+
+  @Test
+  public void bulkHeldBack_countsEachPayloadOnce() {
+    PayloadSendQueue queue = newQueue(PayloadSendQueue.Policy.WAIT);
+    queue.setLoadMonitor(fallingBehind(true));
+    Payload first = bytes(10);
+    queue.enqueue("a", first, PayloadSendQueue.Priority.BULK);
+    queue.enqueue("a", bytes(10), PayloadSendQueue.Priority.BULK);
+
+    for (int i = 0; i < 5; i++) {
+      queue.onTransferUpdate("a", inProgress(first));
+    }
+    assertEquals(1, queue.getBulkHeldBack("a"));
+
+    queue.onTransferUpdate("a", done(first));
+    assertEquals(2, mSender.mSent.size());
+    assertEquals(1, queue.getBulkHeldBack("a"));
+  }
+
+  /**
+   * Simulates a file transfer that keeps the queue full of bulk payloads while we talk. The link
+   * finishes two payloads per tick, and we send a packet of audio every tick. No audio may wait,
+   * and bulk must still get through.
+   */
+  @Test
+  public void audioLatency_staysBoundedUnderBulkLoad() {
+    PayloadSendQueue queue = newQueue(PayloadSendQueue.Policy.WAIT);
+    queue.setLoadMonitor(fallingBehind(true));
+    Map<Long, Integer> audioEnqueuedAt = new HashMap<>();
+    ArrayDeque<Payload> inFlight = new ArrayDeque<>();
+    int sentSoFar = 0;
+    int maxAudioLatency = 0;
+    int bulkSent = 0;
+    int maxBulkInFlight = 0;
+
+    for (int tick = 0; tick < 200; tick++) {
+      // The file transfer keeps as much waiting as it's allowed to.
+      Payload chunk;
+      do {
+        chunk = bytes(MAX_OUTSTANDING_BYTES / 2);
+      } while (queue.enqueue("a", chunk, PayloadSendQueue.Priority.BULK));
+      Payload audio = bytes(100);
+      audioEnqueuedAt.put(audio.getId(), tick);
+      assertTrue(queue.enqueue("a", audio, PayloadSendQueue.Priority.REAL_TIME));
+
+      // See what went out this tick.
+      for (; sentSoFar < mSender.mPayloads.size(); sentSoFar++) {
+        Payload payload = mSender.mPayloads.get(sentSoFar);
+        Integer enqueuedAt = audioEnqueuedAt.remove(payload.getId());
+        if (enqueuedAt != null) {
+          maxAudioLatency = Math.max(maxAudioLatency, tick - enqueuedAt);
+        } else {
+          bulkSent++;
+        }
+        inFlight.add(payload);
+      }
+      int bulkInFlight = 0;
+      for (Payload payload : inFlight) {
+        bulkInFlight += payload.asBytes().length == 100 ? 0 : 1;
+      }
+      maxBulkInFlight = Math.max(maxBulkInFlight, bulkInFlight);
+
+      // The link finishes the oldest two payloads.
+      for (int i = 0; i < 2 && !inFlight.isEmpty(); i++) {
+        queue.onTransferUpdate("a", done(inFlight.poll()));
+      }
+    }
+
+    assertTrue(audioEnqueuedAt.isEmpty());
+    assertEquals(0, maxAudioLatency);
+    assertTrue("Only " + bulkSent + " bulk payloads were sent", bulkSent >= 50);
+    assertEquals(1, maxBulkInFlight);
+  }
+
+  private PayloadSendQueue newQueue(PayloadSendQueue.Policy policy) {
+    return new PayloadSendQueue(mSender, policy, MAX_OUTSTANDING_BYTES, MAX_WAITING_PAYLOADS);
+  }
+
+  private static Payload bytes(long size) {
+    return Payload.fromBytes(new byte[(int) size]);
+  }
+
+  private static Payload stream() {
+    return Payload.fromStream(new ByteArrayInputStream(new byte[0]));
+  }
+
+  private static PayloadSendQueue.LoadMonitor fallingBehind(final boolean fallingBehind) {
+    return new PayloadSendQueue.LoadMonitor() {
+      @Override
+      public boolean isRealTimeFallingBehind(String endpointId) {
+        return fallingBehind;
+      }
+    };
+  }
+
+  private static PayloadTransferUpdate inProgress(Payload payload) {
+    return new PayloadTransferUpdate.Builder()
+        .setPayloadId(payload.getId())
+        .setStatus(PayloadTransferUpdate.Status.IN_PROGRESS)
+        .build();
+  }
+
+  private static PayloadTransferUpdate done(Payload payload) {
+    return new PayloadTransferUpdate.Builder()
+        .setPayloadId(payload.getId())
+        .setStatus(PayloadTransferUpdate.Status.SUCCESS)
+        .build();
+  }
+}
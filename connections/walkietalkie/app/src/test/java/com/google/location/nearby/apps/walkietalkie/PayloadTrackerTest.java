@@ -0,0 +1,47 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.android.gms.nearby.connection.Payload;
+import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
+import org.junit.Test;
+
+public class PayloadTrackerTest {
+  @Test
+  public void onEndpointDisconnected_forgetsTheEndpoint() {
+    PayloadTracker tracker = new PayloadTracker();
+    for (int i = 0; i < 100; i++) {
+      String endpointId = "endpoint-" + i;
+      send(tracker, endpointId, 10);
+      tracker.onEndpointDisconnected(endpointId);
+    }
+
+    assertEquals(0, tracker.getEndpointCount());
+  }
+
+  @Test
+  public void onEndpointDisconnected_keepsTheTotals() {
+    PayloadTracker tracker = new PayloadTracker();
+    send(tracker, "a", 10);
+    send(tracker, "b", 20);
+    tracker.onEndpointDisconnected("a");
+
+    assertEquals(30, tracker.getTotalBytes());
+    assertEquals(
+        2, tracker.getSuccessCount(PayloadTracker.Direction.SENT, Payload.Type.BYTES));
+  }
+
+  /** Sends a BYTES payload of {@code size} to the endpoint, successfully. */
+  private static void send(PayloadTracker tracker, String endpointId, int size) {
+    Payload payload = Payload.fromBytes(new byte[size]);
+    tracker.onPayloadSent(endpointId, payload);
+    tracker.onTransferUpdate(
+        endpointId,
+        new PayloadTransferUpdate.Builder()
+            .setPayloadId(payload.getId())
+            .setStatus(PayloadTransferUpdate.Status.SUCCESS)
+            .setBytesTransferred(size)
+            .setTotalBytes(size)
+            .build());
+  }
+}
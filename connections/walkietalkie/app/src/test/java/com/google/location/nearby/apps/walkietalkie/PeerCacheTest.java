@@ -0,0 +1,158 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.SharedPreferences;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.junit.Test;
+
+public class PeerCacheTest {
+  private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+
+  /** Runs our background work right away, so everything is loaded and saved as we go. */
+  private static final Executor DIRECT =
+      new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+          runnable.run();
+        }
+      };
+
+  private final FakeSharedPreferences mPreferences = new FakeSharedPreferences();
+  private final long mNow = System.currentTimeMillis();
+
+  @Test
+  public void getPeers_mostRecentFirst() {
+    savePeer("Bob", 3);
+    savePeer("Alice", 1);
+    savePeer("Carol", 2);
+
+    PeerCache cache = newCache();
+
+    assertEquals(Arrays.asList("Alice", "Carol", "Bob"), names(cache.getPeers()));
+    assertEquals("service", cache.get("Alice").getServiceId());
+    assertEquals(mNow - HOUR_MILLIS, cache.get("Alice").getLastConnectedMillis());
+  }
+
+  @Test
+  public void onConnected_putsThePeerFirst() {
+    savePeer("Alice", 1);
+    savePeer("Bob", 2);
+    PeerCache cache = newCache();
+
+    cache.onConnected("Bob", "other");
+
+    assertEquals(Arrays.asList("Bob", "Alice"), names(cache.getPeers()));
+    assertEquals("other", cache.get("Bob").getServiceId());
+    assertTrue(mPreferences.getString("peer:Bob", "").endsWith(":other"));
+  }
+
+  @Test
+  public void onConnected_forgetsTheOldestOnceFull() {
+    for (int i = 0; i < PeerCache.MAX_PEERS; i++) {
+      savePeer("peer" + i, i + 1);
+    }
+    PeerCache cache = newCache();
+
+    cache.onConnected("Newcomer", "service");
+
+    List<PeerCache.Peer> peers = cache.getPeers();
+    assertEquals(PeerCache.MAX_PEERS, peers.size());
+    assertEquals("Newcomer", peers.get(0).getName());
+    assertEquals("peer" + (PeerCache.MAX_PEERS - 2), peers.get(peers.size() - 1).getName());
+    // The oldest is gone from storage too.
+    String oldest = "peer" + (PeerCache.MAX_PEERS - 1);
+    assertFalse(cache.contains(oldest));
+    assertFalse(mPreferences.contains("peer:" + oldest));
+    assertEquals(PeerCache.MAX_PEERS, countPeersInStorage());
+  }
+
+  @Test
+  public void load_prunesExpiredAndExtraPeers() {
+    for (int i = 0; i < PeerCache.MAX_PEERS + 2; i++) {
+      savePeer("peer" + i, i + 1);
+    }
+    mPreferences.mValues.put(
+        "peer:Stale", (mNow - PeerCache.MAX_AGE_MILLIS - HOUR_MILLIS) + ":service");
+    mPreferences.mValues.put("peer:Garbled", "yesterday");
+
+    PeerCache cache = newCache();
+
+    assertEquals(PeerCache.MAX_PEERS, cache.getPeers().size());
+    assertNull(cache.get("Stale"));
+    assertFalse(cache.contains("peer" + PeerCache.MAX_PEERS));
+    assertTrue(cache.contains("peer" + (PeerCache.MAX_PEERS - 1)));
+    assertFalse(mPreferences.contains("peer:Stale"));
+    assertFalse(mPreferences.contains("peer:Garbled"));
+    assertEquals(PeerCache.MAX_PEERS, countPeersInStorage());
+  }
+
+  @Test
+  public void getLocalName_isKeptAcrossRestarts() {
+    assertEquals("Alice", newCache().getLocalName("Alice"));
+
+    assertEquals("Alice", newCache().getLocalName("Bob"));
+  }
+
+  @Test
+  public void nothingIsKnownUntilLoaded() {
+    savePeer("Alice", 1);
+    final List<Runnable> tasks = new ArrayList<>();
+    PeerCache cache =
+        new PeerCache(
+            opener(),
+            new Executor() {
+              @Override
+              public void execute(Runnable runnable) {
+                tasks.add(runnable);
+              }
+            });
+
+    assertFalse(cache.contains("Alice"));
+
+    tasks.get(0).run();
+    assertTrue(cache.contains("Alice"));
+  }
+
+  private PeerCache newCache() {
+    return new PeerCache(opener(), DIRECT);
+  }
+
+  private PeerCache.PreferencesOpener opener() {
+    return new PeerCache.PreferencesOpener() {
+      @Override
+      public SharedPreferences open() {
+        return mPreferences;
+      }
+    };
+  }
+
+  /** Saves a peer we connected to {@code hoursAgo}, as an earlier run of the app would have. */
+  private void savePeer(String name, int hoursAgo) {
+    mPreferences.mValues.put("peer:" + name, (mNow - hoursAgo * HOUR_MILLIS) + ":service");
+  }
+
+  private int countPeersInStorage() {
+    int count = 0;
+    for (String key : mPreferences.getAll().keySet()) {
+      if (key.startsWith("peer:")) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static List<String> names(List<PeerCache.Peer> peers) {
+    List<String> names = new ArrayList<>();
+    for (PeerCache.Peer peer : peers) {
+      names.add(peer.getName());
+    }
+    return names;
+  }
+}
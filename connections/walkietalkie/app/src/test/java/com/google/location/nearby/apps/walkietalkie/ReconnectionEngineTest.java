@@ -0,0 +1,158 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class ReconnectionEngineTest {
+  private final FakeScheduler mScheduler = new FakeScheduler();
+  private final long mStartMillis = mScheduler.elapsedRealtime();
+
+  /** When each connection attempt went out, since the test started. */
+  private final List<Long> mAttempts = new ArrayList<>();
+
+  /** Whether attempts find the peer. */
+  private boolean mPeerFound;
+
+  private final ReconnectionEngine.Connector mConnector =
+      new ReconnectionEngine.Connector() {
+        @Override
+        public boolean connect(String endpointName) {
+          mAttempts.add(mScheduler.elapsedRealtime() - mStartMillis);
+          return mPeerFound;
+        }
+      };
+
+  @Test
+  public void backoff_doublesUpToTheLimit() {
+    ReconnectionEngine engine = newEngine(/* jitter= */ 0);
+
+    engine.onDisconnected("Alice");
+    mScheduler.advance(24000);
+
+    // With no jitter, we wait half of each backoff: 250, 500, 1000, 2000, 4000 and then 8000ms.
+    assertEquals(Arrays.asList(250L, 750L, 1750L, 3750L, 7750L, 15750L, 23750L), mAttempts);
+  }
+
+  @Test
+  public void backoff_isJitteredBetweenHalfAndAllOfTheBackoff() {
+    ReconnectionEngine engine =
+        new ReconnectionEngine(mConnector, mScheduler, new Random(/* seed= */ 42));
+
+    engine.onDisconnected("Alice");
+    mScheduler.advance(ReconnectionEngine.MAX_RECONNECT_MILLIS);
+
+    long backoff = ReconnectionEngine.INITIAL_BACKOFF_MILLIS;
+    long previous = 0;
+    boolean jittered = false;
+    for (long attempt : mAttempts) {
+      long delay = attempt - previous;
+      assertTrue(delay + " for a backoff of " + backoff, delay >= backoff / 2 && delay <= backoff);
+      jittered |= delay != backoff / 2;
+      previous = attempt;
+      backoff = Math.min(ReconnectionEngine.MAX_BACKOFF_MILLIS, backoff * 2);
+    }
+    assertTrue(jittered);
+    assertTrue(mAttempts.size() > 5);
+  }
+
+  @Test
+  public void giveUp_afterTryingForTooLong() {
+    ReconnectionEngine engine = newEngine(/* jitter= */ 0);
+    engine.onDisconnected("Alice");
+
+    mScheduler.advance(ReconnectionEngine.MAX_RECONNECT_MILLIS);
+    assertTrue(engine.isReconnecting("Alice"));
+    assertEquals(0, engine.getGiveUpCount());
+
+    // The attempt at 63750ms finds we've been at it for more than a minute.
+    mScheduler.advance(10000);
+    assertFalse(engine.isReconnecting("Alice"));
+    assertEquals(1, engine.getGiveUpCount());
+    assertEquals(63750L, (long) mAttempts.get(mAttempts.size() - 1));
+    assertEquals(0, mScheduler.getPendingCount());
+  }
+
+  @Test
+  public void discovery_connectsRightAway() {
+    ReconnectionEngine engine = newEngine(/* jitter= */ 0);
+    engine.onDisconnected("Alice");
+    mScheduler.advance(100);
+
+    mPeerFound = true;
+    assertTrue(engine.onEndpointDiscovered("Alice"));
+    assertFalse(engine.onEndpointDiscovered("Bob"));
+
+    assertEquals(Arrays.asList(100L), mAttempts);
+    mScheduler.advance(1200);
+    engine.onConnected("Alice");
+
+    assertFalse(engine.isReconnecting("Alice"));
+    assertEquals(1, engine.getReconnectionCount());
+    // 1300ms lands in the <=2000ms bucket.
+    assertEquals(1, engine.getReconnectionHistogram()[2]);
+    assertEquals(0, mScheduler.getPendingCount());
+  }
+
+  @Test
+  public void failedRequest_backsOffAndTriesAgain() {
+    ReconnectionEngine engine = newEngine(/* jitter= */ 0);
+    mPeerFound = true;
+    engine.onDisconnected("Alice");
+    mScheduler.advance(250);
+
+    engine.onConnectionFailed("Alice");
+    mScheduler.advance(500);
+
+    assertEquals(Arrays.asList(250L, 750L), mAttempts);
+  }
+
+  @Test
+  public void forget_stopsTryingUntilWeConnectAgain() {
+    ReconnectionEngine engine = newEngine(/* jitter= */ 0);
+    engine.onDisconnected("Alice");
+
+    engine.forget("Alice");
+    engine.onDisconnected("Alice");
+    mScheduler.advance(ReconnectionEngine.MAX_RECONNECT_MILLIS);
+    assertTrue(mAttempts.isEmpty());
+
+    engine.onConnected("Alice");
+    engine.onDisconnected("Alice");
+    assertTrue(engine.isReconnecting("Alice"));
+  }
+
+  @Test
+  public void disabling_cancelsEveryAttempt() {
+    ReconnectionEngine engine = newEngine(/* jitter= */ 0);
+    engine.onDisconnected("Alice");
+    engine.onDisconnected("Bob");
+
+    engine.setEnabled(false);
+    engine.onDisconnected("Carol");
+    mScheduler.advance(ReconnectionEngine.MAX_RECONNECT_MILLIS);
+
+    assertTrue(mAttempts.isEmpty());
+    assertFalse(engine.isReconnecting("Alice"));
+    assertFalse(engine.isReconnecting("Carol"));
+  }
+
+  /** Returns an engine whose jitter is always the given fraction of the backoff. */
+  private ReconnectionEngine newEngine(final double jitter) {
+    return new ReconnectionEngine(
+        mConnector,
+        mScheduler,
+        new Random() {
+          @Override
+          public double nextDouble() {
+            return jitter;
+          }
+        });
+  }
+}
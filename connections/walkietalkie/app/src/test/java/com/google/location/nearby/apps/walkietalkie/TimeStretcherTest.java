@@ -0,0 +1,130 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import org.junit.Test;
+
+public class TimeStretcherTest {
+  private static final int SAMPLE_RATE = 16000;
+  private static final int BUFFER_BYTES = 1280;
+  private static final int AMPLITUDE = 10000;
+  private static final double FREQUENCY = 440;
+
+  @Test
+  public void realTime_passesAudioStraightThrough() {
+    byte[] input = sine(SAMPLE_RATE, 1);
+    assertArrayEquals(input, stretch(new TimeStretcher(SAMPLE_RATE, BUFFER_BYTES), input, 1f));
+  }
+
+  @Test
+  public void realTime_handlesBuffersSplitMidSample() {
+    byte[] input = sine(SAMPLE_RATE, 1);
+    TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, BUFFER_BYTES);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    byte[] out = new byte[stretcher.getMaxOutputBytes()];
+    for (int offset = 0; offset < input.length; offset += 333) {
+      byte[] in = new byte[Math.min(333, input.length - offset)];
+      System.arraycopy(input, offset, in, 0, in.length);
+      output.write(out, 0, stretcher.process(in, in.length, out));
+    }
+    assertArrayEquals(input, output.toByteArray());
+  }
+
+  @Test
+  public void maxSpeed_shortensAudio() {
+    byte[] input = sine(SAMPLE_RATE, 5);
+    TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, BUFFER_BYTES);
+    byte[] output = stretch(stretcher, input, TimeStretcher.MAX_SPEED);
+
+    double ratio = input.length / (double) output.length;
+    assertEquals(TimeStretcher.MAX_SPEED, ratio, 0.02);
+    // Everything we didn't play was either skipped, or is still buffered for the next call.
+    long unaccounted = (input.length - output.length) / 2 - stretcher.getSamplesSkipped();
+    assertTrue("Unaccounted samples: " + unaccounted, unaccounted >= 0);
+    assertTrue("Unaccounted samples: " + unaccounted, unaccounted < SAMPLE_RATE / 10);
+  }
+
+  @Test
+  public void maxSpeed_keepsPitch() {
+    byte[] output =
+        stretch(
+            new TimeStretcher(SAMPLE_RATE, BUFFER_BYTES),
+            sine(SAMPLE_RATE, 5),
+            TimeStretcher.MAX_SPEED);
+    // A resampler would have raised the pitch by 10%. We must stay well within that.
+    assertEquals(FREQUENCY, frequency(output, SAMPLE_RATE), FREQUENCY * 0.02);
+  }
+
+  @Test
+  public void maxSpeed_joinsSequencesWithoutClicks() {
+    byte[] output =
+        stretch(
+            new TimeStretcher(SAMPLE_RATE, BUFFER_BYTES),
+            sine(SAMPLE_RATE, 5),
+            TimeStretcher.MAX_SPEED);
+    // The steepest a clean sine ever gets, per sample. A badly aligned splice jumps way past it.
+    double maxSlope = AMPLITUDE * 2 * Math.PI * FREQUENCY / SAMPLE_RATE;
+    int maxStep = 0;
+    for (int i = 2; i + 1 < output.length; i += 2) {
+      maxStep = Math.max(maxStep, Math.abs(sample(output, i) - sample(output, i - 2)));
+    }
+    assertTrue("Largest step between samples: " + maxStep, maxStep < 1.5 * maxSlope);
+  }
+
+  @Test
+  public void maxSpeed_costsAFractionOfRealTime() {
+    int sampleRate = 48000;
+    int seconds = 10;
+    byte[] input = sine(sampleRate, seconds);
+    // Warm up, so we measure compiled code.
+    stretch(new TimeStretcher(sampleRate, BUFFER_BYTES), input, TimeStretcher.MAX_SPEED);
+
+    TimeStretcher stretcher = new TimeStretcher(sampleRate, BUFFER_BYTES);
+    stretch(stretcher, input, TimeStretcher.MAX_SPEED);
+    double load = stretcher.getProcessingNanos() / (seconds * 1e9);
+    // On a desktop JVM this is well under 1%; leave plenty of room for slow build machines.
+    assertTrue("Stretching used " + (load * 100) + "% of real time", load < 0.1);
+  }
+
+  private static byte[] stretch(TimeStretcher stretcher, byte[] input, float speed) {
+    stretcher.setSpeed(speed);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    byte[] in = new byte[BUFFER_BYTES];
+    byte[] out = new byte[stretcher.getMaxOutputBytes()];
+    for (int offset = 0; offset < input.length; offset += BUFFER_BYTES) {
+      int len = Math.min(BUFFER_BYTES, input.length - offset);
+      System.arraycopy(input, offset, in, 0, len);
+      output.write(out, 0, stretcher.process(in, len, out));
+    }
+    return output.toByteArray();
+  }
+
+  /** Little endian 16bit mono PCM of a sine wave. */
+  private static byte[] sine(int sampleRate, int seconds) {
+    byte[] pcm = new byte[sampleRate * seconds * 2];
+    for (int i = 0; i < pcm.length / 2; i++) {
+      int sample = (int) (AMPLITUDE * Math.sin(2 * Math.PI * FREQUENCY * i / sampleRate));
+      pcm[2 * i] = (byte) sample;
+      pcm[2 * i + 1] = (byte) (sample >> 8);
+    }
+    return pcm;
+  }
+
+  private static int sample(byte[] pcm, int offset) {
+    return (short) ((pcm[offset] & 0xFF) | (pcm[offset + 1] << 8));
+  }
+
+  /** Estimates the frequency of a tone by counting its rising zero crossings. */
+  private static double frequency(byte[] pcm, int sampleRate) {
+    int crossings = 0;
+    for (int i = 2; i + 1 < pcm.length; i += 2) {
+      if (sample(pcm, i - 2) < 0 && sample(pcm, i) >= 0) {
+        crossings++;
+      }
+    }
+    return crossings * (double) sampleRate / (pcm.length / 2);
+  }
+}
@@ -0,0 +1,258 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.gms.nearby.connection.ConnectionInfo;
+import com.google.android.gms.nearby.connection.ConnectionLifecycleCallback;
+import com.google.android.gms.nearby.connection.ConnectionResolution;
+import com.google.android.gms.nearby.connection.DiscoveredEndpointInfo;
+import com.google.android.gms.nearby.connection.EndpointDiscoveryCallback;
+import com.google.android.gms.nearby.connection.Payload;
+import com.google.android.gms.nearby.connection.PayloadCallback;
+import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.junit.Test;
+
+public class TraceReplayClientTest {
+  private final FakeScheduler mScheduler = new FakeScheduler();
+
+  /** Stream reads, run when the test says so. */
+  private final ArrayDeque<Runnable> mDrains = new ArrayDeque<>();
+
+  private final Executor mDrainExecutor =
+      new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+          mDrains.add(runnable);
+        }
+      };
+
+  /** What our callbacks were told, and when, eg. "+100 found abcd". */
+  private final List<String> mCalls = new ArrayList<>();
+
+  private final List<Payload> mPayloads = new ArrayList<>();
+  private final List<PayloadTransferUpdate> mUpdates = new ArrayList<>();
+  private long mStartMillis;
+
+  private final EndpointDiscoveryCallback mDiscoveryCallback =
+      new EndpointDiscoveryCallback() {
+        @Override
+        public void onEndpointFound(String endpointId, DiscoveredEndpointInfo info) {
+          record("found " + endpointId);
+        }
+
+        @Override
+        public void onEndpointLost(String endpointId) {
+          record("lost " + endpointId);
+        }
+      };
+
+  private final ConnectionLifecycleCallback mLifecycleCallback =
+      new ConnectionLifecycleCallback() {
+        @Override
+        public void onConnectionInitiated(String endpointId, ConnectionInfo info) {
+          record("initiated " + endpointId);
+        }
+
+        @Override
+        public void onConnectionResult(String endpointId, ConnectionResolution resolution) {
+          record("result " + endpointId);
+        }
+
+        @Override
+        public void onDisconnected(String endpointId) {
+          record("disconnected " + endpointId);
+        }
+      };
+
+  private final PayloadCallback mPayloadCallback =
+      new PayloadCallback() {
+        @Override
+        public void onPayloadReceived(String endpointId, Payload payload) {
+          record("payload " + endpointId);
+          mPayloads.add(payload);
+        }
+
+        @Override
+        public void onPayloadTransferUpdate(String endpointId, PayloadTransferUpdate update) {
+          record("update " + endpointId);
+          mUpdates.add(update);
+        }
+      };
+
+  @Test
+  public void replay_deliversEventsInOrderAtTheRequestedSpeed() {
+    TraceReplayClient client =
+        newClient(
+            /* speed= */ 10,
+            event(EventLog.ENDPOINT_FOUND, 0, "a"),
+            event(EventLog.ENDPOINT_FOUND, 1000000, "b"),
+            event(EventLog.ENDPOINT_LOST, 1000000, "a"),
+            event(EventLog.ENDPOINT_LOST, 5000000, "b"));
+
+    startDiscovery(client);
+    mScheduler.runDue();
+    assertEquals(Arrays.asList("+0 found a"), mCalls);
+
+    // A second into the trace is a tenth of a second into playback.
+    mScheduler.advance(99);
+    assertEquals(1, mCalls.size());
+    mScheduler.advance(1);
+    assertEquals(Arrays.asList("+0 found a", "+100 found b", "+100 lost a"), mCalls);
+
+    mScheduler.advance(1000);
+    assertEquals("+500 lost b", mCalls.get(3));
+    assertTrue(client.isFinished());
+    assertEquals(4, client.getDeliveredCount());
+    assertEquals(0, client.getMaxLagMillis(), 0);
+  }
+
+  @Test
+  public void replay_asFastAsPossibleDeliversEverythingRightAway() {
+    CallbackTrace.Event[] events = new CallbackTrace.Event[200];
+    for (int i = 0; i < events.length; i++) {
+      events[i] = event(EventLog.ENDPOINT_FOUND, i * 1000000L, Integer.toString(i));
+    }
+    TraceReplayClient client = newClient(TraceReplayClient.AS_FAST_AS_POSSIBLE, events);
+
+    startDiscovery(client);
+    mScheduler.runDue();
+
+    assertTrue(client.isFinished());
+    assertEquals(200, mCalls.size());
+    for (int i = 0; i < events.length; i++) {
+      assertEquals("+0 found " + i, mCalls.get(i));
+    }
+  }
+
+  @Test
+  public void replay_waitsUntilWeAdvertiseOrDiscover() {
+    TraceReplayClient client = newClient(/* speed= */ 1, event(EventLog.ENDPOINT_FOUND, 0, "a"));
+
+    mScheduler.advance(1000);
+    assertFalse(client.isFinished());
+
+    startDiscovery(client);
+    mScheduler.runDue();
+    assertEquals(Arrays.asList("+0 found a"), mCalls);
+  }
+
+  @Test
+  public void replay_skipsEventsNobodyListensFor() {
+    TraceReplayClient client =
+        newClient(
+            TraceReplayClient.AS_FAST_AS_POSSIBLE,
+            event(EventLog.CONNECTION_INITIATED, 0, "a"),
+            event(EventLog.ENDPOINT_FOUND, 0, "b"),
+            event(EventLog.PAYLOAD_RECEIVED, 0, "b"));
+
+    // Discovering only, so nobody hears about connections, and we never accepted one.
+    startDiscovery(client);
+    mScheduler.runDue();
+
+    assertEquals(Arrays.asList("+0 found b"), mCalls);
+    assertEquals(1, client.getDeliveredCount());
+    assertEquals(2, client.getSkippedCount());
+  }
+
+  @Test
+  public void replay_rebuildsReceivedPayloads() {
+    CallbackTrace.Event message = event(EventLog.PAYLOAD_RECEIVED, 2000, "a");
+    message.mPayloadId = 7;
+    message.mPayloadType = Payload.Type.BYTES;
+    message.mSize = 3;
+    message.mBytes = new byte[] {4, 5, 6};
+    CallbackTrace.Event large = event(EventLog.PAYLOAD_RECEIVED, 3000, "a");
+    large.mPayloadId = 8;
+    large.mPayloadType = Payload.Type.BYTES;
+    large.mSize = CallbackTrace.MAX_RECORDED_BYTES + 1;
+    CallbackTrace.Event done = event(EventLog.PAYLOAD_TRANSFER_UPDATE, 4000, "a");
+    done.mPayloadId = 7;
+    done.mTransferStatus = PayloadTransferUpdate.Status.SUCCESS;
+    done.mTotalBytes = 3;
+    done.mBytesTransferred = 3;
+    TraceReplayClient client =
+        newClient(
+            TraceReplayClient.REAL_TIME,
+            event(EventLog.CONNECTION_INITIATED, 0, "a"),
+            event(EventLog.CONNECTION_RESULT, 1000, "a"),
+            message,
+            large,
+            done);
+
+    client.startAdvertising("me", "service", mLifecycleCallback, null);
+    mStartMillis = mScheduler.elapsedRealtime();
+    client.acceptConnection("a", mPayloadCallback);
+    mScheduler.advance(10);
+
+    assertEquals(
+        Arrays.asList(
+            "+0 initiated a", "+1 result a", "+2 payload a", "+3 payload a", "+4 update a"),
+        mCalls);
+    assertArrayEquals(new byte[] {4, 5, 6}, mPayloads.get(0).asBytes());
+    assertEquals(CallbackTrace.MAX_RECORDED_BYTES + 1, mPayloads.get(1).asBytes().length);
+    // The update is for the payload we rebuilt, not the one in the trace.
+    assertEquals(mPayloads.get(0).getId(), mUpdates.get(0).getPayloadId());
+  }
+
+  @Test
+  public void sendPayload_completesStreamsOnceTheyveBeenRead() {
+    TraceReplayClient client =
+        newClient(TraceReplayClient.AS_FAST_AS_POSSIBLE, event(EventLog.ENDPOINT_FOUND, 0, "a"));
+    client.acceptConnection("a", mPayloadCallback);
+    Payload stream = Payload.fromStream(new ByteArrayInputStream(new byte[10000]));
+
+    client.sendPayload("a", stream);
+    mScheduler.runDue();
+    assertTrue(mUpdates.isEmpty());
+
+    mDrains.poll().run();
+    mScheduler.runDue();
+    assertEquals(1, mUpdates.size());
+    assertEquals(stream.getId(), mUpdates.get(0).getPayloadId());
+    assertEquals(PayloadTransferUpdate.Status.SUCCESS, mUpdates.get(0).getStatus());
+    assertEquals(10000, mUpdates.get(0).getBytesTransferred());
+  }
+
+  @Test
+  public void sendPayload_takesAsLongAsInTheTrace() {
+    CallbackTrace.Event sent = event(EventLog.PAYLOAD_SENT, 0, "a");
+    sent.mPayloadId = 1;
+    CallbackTrace.Event done = event(EventLog.PAYLOAD_TRANSFER_UPDATE, 40000, "a");
+    done.mPayloadId = 1;
+    done.mTransferStatus = PayloadTransferUpdate.Status.SUCCESS;
+    TraceReplayClient client = newClient(/* speed= */ 2, sent, done);
+    client.acceptConnection("a", mPayloadCallback);
+
+    client.sendPayload("a", Payload.fromBytes(new byte[5]));
+    mScheduler.advance(19);
+    assertTrue(mUpdates.isEmpty());
+    mScheduler.advance(1);
+    assertEquals(5, mUpdates.get(0).getTotalBytes());
+  }
+
+  private TraceReplayClient newClient(double speed, CallbackTrace.Event... events) {
+    return new TraceReplayClient(Arrays.asList(events), speed, mScheduler, mDrainExecutor);
+  }
+
+  private void startDiscovery(TraceReplayClient client) {
+    mStartMillis = mScheduler.elapsedRealtime();
+    client.startDiscovery("service", mDiscoveryCallback, null);
+  }
+
+  private void record(String call) {
+    mCalls.add("+" + (mScheduler.elapsedRealtime() - mStartMillis) + " " + call);
+  }
+
+  private static CallbackTrace.Event event(int type, long timeMicros, String endpointId) {
+    return new CallbackTrace.Event(type, timeMicros, endpointId);
+  }
+}
@@ -0,0 +1,317 @@
+package com.google.location.nearby.apps.walkietalkie;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs a sender and a receiver against each other over a fake connection that can drop. Every
+ * thread is simulated with a queue, so the runs are deterministic.
+ */
+public class TransferManagerTest {
+  private static final int CHUNK_SIZE = 16 * 1024;
+
+  /** Large enough that a drop lands in the middle, and not a whole number of chunks. */
+  private static final int FILE_SIZE = 64 * CHUNK_SIZE + 1234;
+
+  private static final int CHUNK_COUNT = 65;
+
+  private static final Endpoint SENDER = new Endpoint("s", "Sender");
+  private static final Endpoint RECEIVER = new Endpoint("r", "Receiver");
+
+  @Rule public TemporaryFolder mFolder = new TemporaryFolder();
+
+  /** Stands in for the main thread, which both sides share, as on a real device. */
+  private final ArrayDeque<Runnable> mMain = new ArrayDeque<>();
+
+  /** Messages on their way. Lost if the connection drops. */
+  private final ArrayDeque<Runnable> mNetwork = new ArrayDeque<>();
+
+  private boolean mConnected = true;
+
+  /** The connection drops after this many more messages, until there are no drops left. */
+  private int mMessagesUntilDrop;
+
+  private int mDropInterval;
+  private int mDropsLeft;
+  private int mDrops;
+
+  /** If set, the next chunk sent is corrupted on the way. */
+  private boolean mCorruptNextChunk;
+
+  private File mSource;
+  private byte[] mContents;
+  private Side mSender;
+  private Side mReceiver;
+
+  /** One device: its own manager, and its own I/O thread. */
+  private class Side {
+    final Endpoint mSelf;
+    final MessageCodec mCodec = new MessageCodec();
+    final ArrayDeque<Runnable> mIo = new ArrayDeque<>();
+    final List<File> mReceived = new ArrayList<>();
+    final List<Long> mSent = new ArrayList<>();
+    final List<Long> mFailed = new ArrayList<>();
+    final TransferManager mManager;
+    boolean mIoPaused;
+    Side mOther;
+
+    Side(Endpoint self, File directory) {
+      mSelf = self;
+      mManager =
+          new TransferManager(
+              mCodec,
+              directory,
+              new TransferManager.Transport() {
+                @Override
+                public void send(
+                    Endpoint endpoint, byte[] message, PayloadSendQueue.Priority priority) {
+                  transmit(Side.this, message, priority);
+                }
+              },
+              new TransferManager.Listener() {
+                @Override
+                public void onTransferProgress(long transferId, long bytesDone, long totalBytes) {}
+
+                @Override
+                public void onFileReceived(Endpoint endpoint, File file) {
+                  mReceived.add(file);
+                }
+
+                @Override
+                public void onFileSent(Endpoint endpoint, long transferId) {
+                  mSent.add(transferId);
+                }
+
+                @Override
+                public void onTransferFailed(long transferId) {
+                  mFailed.add(transferId);
+                }
+              },
+              new Executor() {
+                @Override
+                public void execute(Runnable runnable) {
+                  mIo.add(runnable);
+                }
+              },
+              new Executor() {
+                @Override
+                public void execute(Runnable runnable) {
+                  mMain.add(runnable);
+                }
+              });
+    }
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    mContents = new byte[FILE_SIZE];
+    new Random(42).nextBytes(mContents);
+    mSource = new File(mFolder.newFolder("outgoing"), "recording.wav");
+    FileOutputStream out = new FileOutputStream(mSource);
+    try {
+      out.write(mContents);
+    } finally {
+      out.close();
+    }
+
+    mSender = new Side(SENDER, mFolder.newFolder("unused"));
+    mReceiver = new Side(RECEIVER, mFolder.newFolder("incoming"));
+    mSender.mOther = mReceiver;
+    mReceiver.mOther = mSender;
+  }
+
+  @Test
+  public void send_deliversTheFileIntact() throws IOException {
+    mSender.mManager.send(RECEIVER, mSource);
+    runUntilIdle();
+
+    assertReceivedIntact();
+    assertEquals(1, mSender.mSent.size());
+    assertEquals(CHUNK_COUNT, mSender.mManager.getChunksSent());
+    assertEquals(0, mSender.mManager.getChunksSkipped());
+  }
+
+  @Test
+  public void send_readsAndHashesChunksOnTheIoThread() throws IOException {
+    mSender.mIoPaused = true;
+    mSender.mManager.send(RECEIVER, mSource);
+    runUntilIdle();
+
+    // The receiver said what it has, but nothing has been read, so nothing has been sent.
+    assertFalse(mSender.mIo.isEmpty());
+    assertEquals(0, mSender.mManager.getChunksSent());
+
+    mSender.mIoPaused = false;
+    runUntilIdle();
+    assertReceivedIntact();
+  }
+
+  @Test
+  public void dropsMidTransfer_resumeWithoutStartingOver() throws IOException {
+    dropEvery(40, 3);
+    mSender.mManager.send(RECEIVER, mSource);
+    runUntilIdle();
+
+    assertEquals(3, mDrops);
+    assertReceivedIntact();
+    assertTrue(mSender.mManager.getChunksSkipped() > 0);
+    // Only chunks in flight when the connection dropped are sent again.
+    assertTrue(
+        "Sent " + mSender.mManager.getChunksSent() + " chunks",
+        mSender.mManager.getChunksSent() <= CHUNK_COUNT + 3 * 4);
+  }
+
+  @Test
+  public void dropAndRestart_resumesFromTheSavedBitmap() throws IOException {
+    dropEvery(60, 1);
+    mSender.mManager.send(RECEIVER, mSource);
+    // Run until the drop, then "restart" the receiver with what it left on disk.
+    while (mDrops == 0 && runOne()) {}
+    runWithoutReconnecting();
+    mReceiver = new Side(RECEIVER, new File(mFolder.getRoot(), "incoming"));
+    mSender.mOther = mReceiver;
+    mReceiver.mOther = mSender;
+    runUntilIdle();
+
+    assertReceivedIntact();
+    assertTrue(mSender.mManager.getChunksSkipped() > 0);
+    assertTrue(mSender.mManager.getChunksSent() < 2 * CHUNK_COUNT);
+  }
+
+  @Test
+  public void corruptedChunk_isRejectedAndSentAgain() throws IOException {
+    mCorruptNextChunk = true;
+    mSender.mManager.send(RECEIVER, mSource);
+    runUntilIdle();
+
+    assertReceivedIntact();
+    assertEquals(CHUNK_COUNT + 1, mSender.mManager.getChunksSent());
+  }
+
+  @Test
+  public void throughput_isMeasured() throws IOException {
+    mSender.mManager.send(RECEIVER, mSource);
+    runUntilIdle();
+
+    assertTrue(mSender.mManager.getThroughput() > 0);
+  }
+
+  private void dropEvery(int messages, int drops) {
+    mDropInterval = messages;
+    mMessagesUntilDrop = messages;
+    mDropsLeft = drops;
+  }
+
+  private void transmit(final Side from, byte[] message, PayloadSendQueue.Priority priority) {
+    if (!mConnected) {
+      return;
+    }
+    final byte[] bytes = message.clone();
+    if (priority == PayloadSendQueue.Priority.BULK && mCorruptNextChunk) {
+      mCorruptNextChunk = false;
+      bytes[bytes.length - 1] ^= 1;
+    }
+    mNetwork.add(
+        new Runnable() {
+          @Override
+          public void run() {
+            from.mOther.mCodec.dispatch(from.mSelf, bytes);
+          }
+        });
+    if (mDropsLeft > 0 && --mMessagesUntilDrop == 0) {
+      drop();
+    }
+  }
+
+  /** The connection drops. Both sides hear about it on their main thread. */
+  private void drop() {
+    mConnected = false;
+    mNetwork.clear();
+    mDrops++;
+    mDropsLeft--;
+    mMessagesUntilDrop = mDropInterval;
+    mMain.add(
+        new Runnable() {
+          @Override
+          public void run() {
+            mSender.mManager.onEndpointDisconnected(RECEIVER);
+            mReceiver.mManager.onEndpointDisconnected(SENDER);
+          }
+        });
+  }
+
+  private void reconnect() {
+    mConnected = true;
+    mReceiver.mManager.onEndpointConnected(SENDER);
+    mSender.mManager.onEndpointConnected(RECEIVER);
+  }
+
+  /** Runs everything, reconnecting whenever we're disconnected and there's nothing else to do. */
+  private void runUntilIdle() {
+    for (int i = 0; i < 1000000; i++) {
+      if (runOne()) {
+        continue;
+      }
+      if (mConnected) {
+        return;
+      }
+      reconnect();
+    }
+    throw new AssertionError("Never finished");
+  }
+
+  /** Runs everything without reconnecting. */
+  private void runWithoutReconnecting() {
+    while (runOne()) {}
+  }
+
+  /** Runs one task, from any thread, and returns false if there were none. */
+  private boolean runOne() {
+    Runnable task = null;
+    if (!mSender.mIoPaused && !mSender.mIo.isEmpty()) {
+      task = mSender.mIo.poll();
+    } else if (!mReceiver.mIo.isEmpty()) {
+      task = mReceiver.mIo.poll();
+    } else if (!mMain.isEmpty()) {
+      task = mMain.poll();
+    } else if (!mNetwork.isEmpty()) {
+      task = mNetwork.poll();
+    }
+    if (task == null) {
+      return false;
+    }
+    task.run();
+    return true;
+  }
+
+  private void assertReceivedIntact() throws IOException {
+    assertTrue(mSender.mFailed.isEmpty());
+    assertEquals(1, mReceiver.mReceived.size());
+    File file = mReceiver.mReceived.get(0);
+    assertEquals(mSource.getName(), file.getName());
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      byte[] received = new byte[(int) in.length()];
+      in.readFully(received);
+      assertArrayEquals(mContents, received);
+    } finally {
+      in.close();
+    }
+  }
+}